@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.streams.converter;
+
+import org.apache.streams.core.StreamsDatum;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Derives the partition directory a datum is written to, e.g. dt=2017-06-01/hr=04/source=twitter.
+ *
+ * <p/>
+ * Partitions are Hive style: dt (and hr, for hourly partitions) come from the datum timestamp
+ * in UTC, or the current time for datums without one, followed by the value of an optional
+ * metadata key.  Readers use {@link #overlaps(String, DateTime, DateTime)} to list only the
+ * partitions that can hold datums from a time range.
+ */
+public class DatumPartitioner {
+
+  public static final String DATE_PREFIX = "dt=";
+  public static final String HOUR_PREFIX = "hr=";
+
+  /**
+   * Value used for datums lacking the metadata key, as Hive does.
+   */
+  public static final String DEFAULT_PARTITION = "__HIVE_DEFAULT_PARTITION__";
+
+  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormat.forPattern("yyyy-MM-dd").withZoneUTC();
+  private static final String ESCAPED_CHARACTERS = "\"#%'*/:=?\\{}[]^";
+
+  private final boolean byDay;
+  private final boolean byHour;
+  private final String metadataKey;
+
+  /**
+   * DatumPartitioner constructor.
+   * @param granularity none, day or hour
+   * @param metadataKey metadata key to partition by after time, or null
+   */
+  public DatumPartitioner(String granularity, String metadataKey) {
+    this.byHour = "hour".equalsIgnoreCase(granularity);
+    this.byDay = byHour || "day".equalsIgnoreCase(granularity);
+    this.metadataKey = metadataKey != null && !metadataKey.isEmpty() ? metadataKey : null;
+  }
+
+  public boolean isPartitioned() {
+    return byDay || metadataKey != null;
+  }
+
+  /**
+   * get partition of a datum.
+   * @param datum datum
+   * @return relative directory, or the empty string when not partitioned
+   */
+  public String getPartition(StreamsDatum datum) {
+    StringBuilder partition = new StringBuilder();
+    if (byDay) {
+      DateTime timestamp = (datum.getTimestamp() == null ? DateTime.now() : datum.getTimestamp()).withZone(DateTimeZone.UTC);
+      partition.append(DATE_PREFIX).append(DATE_FORMAT.print(timestamp));
+      if (byHour) {
+        int hour = timestamp.getHourOfDay();
+        partition.append('/').append(HOUR_PREFIX).append(hour < 10 ? "0" : "").append(hour);
+      }
+    }
+    if (metadataKey != null) {
+      Object value = datum.getMetadata() == null ? null : datum.getMetadata().get(metadataKey);
+      if (partition.length() > 0) {
+        partition.append('/');
+      }
+      partition.append(escape(metadataKey)).append('=')
+          .append(value == null || value.toString().isEmpty() ? DEFAULT_PARTITION : escape(value.toString()));
+    }
+    return partition.toString();
+  }
+
+  // escape characters that would break the directory layout, as %XX
+  private static String escape(String value) {
+    StringBuilder escaped = null;
+    for (int i = 0; i < value.length(); i++) {
+      char character = value.charAt(i);
+      if (character < ' ' || character == '\u007F' || ESCAPED_CHARACTERS.indexOf(character) >= 0) {
+        if (escaped == null) {
+          escaped = new StringBuilder(value.length() + 8).append(value, 0, i);
+        }
+        escaped.append('%').append(String.format("%02X", (int) character));
+      } else if (escaped != null) {
+        escaped.append(character);
+      }
+    }
+    return escaped == null ? value : escaped.toString();
+  }
+
+  /**
+   * Whether a partition directory can hold datums timestamped between start and end.
+   * Directories other than dt= and hr= are not time partitions, and always match.
+   * @param partition relative directory, e.g. dt=2017-06-01 or dt=2017-06-01/hr=04
+   * @param start earliest timestamp, or null for no lower bound
+   * @param end latest timestamp, or null for no upper bound
+   * @return false only if no datum in the partition can fall between start and end
+   */
+  public static boolean overlaps(String partition, DateTime start, DateTime end) {
+    DateTime day = null;
+    int hour = -1;
+    for (String directory : partition.split("/")) {
+      try {
+        if (directory.startsWith(DATE_PREFIX)) {
+          day = DATE_FORMAT.parseDateTime(directory.substring(DATE_PREFIX.length()));
+        } else if (directory.startsWith(HOUR_PREFIX)) {
+          hour = Integer.parseInt(directory.substring(HOUR_PREFIX.length()));
+        }
+      } catch (IllegalArgumentException ex) {
+        // not written by a partitioner, so it could hold anything
+        return true;
+      }
+    }
+    if (day == null) {
+      return true;
+    }
+    DateTime from = hour >= 0 ? day.plusHours(hour) : day;
+    DateTime until = hour >= 0 ? from.plusHours(1) : from.plusDays(1);
+    return (end == null || !from.isAfter(end)) && (start == null || until.isAfter(start));
+  }
+
+  /**
+   * Whether a path lies inside a dt= time partition, whose files hold datums of that time
+   * however late they were written.
+   * @param path path or key of a directory or file
+   * @return whether any directory of path is a dt= partition
+   */
+  public static boolean isTimePartitioned(String path) {
+    for (String directory : path.split("/")) {
+      if (directory.startsWith(DATE_PREFIX)) {
+        try {
+          DATE_FORMAT.parseDateTime(directory.substring(DATE_PREFIX.length()));
+          return true;
+        } catch (IllegalArgumentException ex) {
+          // not written by a partitioner
+        }
+      }
+    }
+    return false;
+  }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.streams.converter;
+
+import org.joda.time.DateTime;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Files a reader has consumed, so repeated incremental reads can skip them.
+ *
+ * <p/>
+ * Stored as lines of [file]\t[modification time].  A file modified since it was consumed
+ * is read again.
+ *
+ * <p/>
+ * Also decides whether a file was written during a time range: a file was written from the
+ * time in its name (prefix-[epoch millis], as the hdfs and s3 writers name files) until its
+ * modification time.
+ */
+public class FileManifest {
+
+  private static final char SEPARATOR = '\t';
+
+  // the last 13 digit run in a name, after a separator and before an extension
+  private static final Pattern NAME_TIMESTAMP = Pattern.compile("(?:^|[-/_])(\\d{13})(?=\\.|$)");
+
+  private final Map<String, Long> files = new TreeMap<>();
+
+  /**
+   * Read a manifest.
+   * @param in stream, or null for an empty manifest
+   * @return manifest
+   * @throws IOException IOException
+   */
+  public static FileManifest load(InputStream in) throws IOException {
+    FileManifest manifest = new FileManifest();
+    if (in == null) {
+      return manifest;
+    }
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int separator = line.lastIndexOf(SEPARATOR);
+        if (separator > 0) {
+          manifest.files.put(line.substring(0, separator), Long.parseLong(line.substring(separator + 1)));
+        }
+      }
+    }
+    return manifest;
+  }
+
+  /**
+   * Write the manifest.
+   * @param out stream, closed when done
+   * @throws IOException IOException
+   */
+  public synchronized void store(OutputStream out) throws IOException {
+    try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Long> file : files.entrySet()) {
+        writer.append(file.getKey()).append(SEPARATOR).append(Long.toString(file.getValue())).append('\n');
+      }
+    }
+  }
+
+  public synchronized boolean isConsumed(String file, long modified) {
+    Long consumed = files.get(file);
+    return consumed != null && consumed >= modified;
+  }
+
+  public synchronized void add(String file, long modified) {
+    files.put(file, modified);
+  }
+
+  public synchronized int size() {
+    return files.size();
+  }
+
+  /**
+   * get the timestamp a writer put in a file name.
+   * @param file file name or path
+   * @return epoch millis, or -1 if the name has none
+   */
+  public static long nameTimestamp(String file) {
+    Matcher matcher = NAME_TIMESTAMP.matcher(file);
+    long timestamp = -1;
+    while (matcher.find()) {
+      timestamp = Long.parseLong(matcher.group(1));
+    }
+    return timestamp;
+  }
+
+  /**
+   * Whether a file can have been written between start and end.
+   * @param file file name or path
+   * @param modified modification time, epoch millis
+   * @param start earliest time, or null for no lower bound
+   * @param end latest time, or null for no upper bound
+   * @return false only if the file was written entirely before start or after end
+   */
+  public static boolean overlaps(String file, long modified, DateTime start, DateTime end) {
+    long created = nameTimestamp(file);
+    created = created >= 0 ? Math.min(created, modified) : modified;
+    return (start == null || modified >= start.getMillis()) && (end == null || created <= end.getMillis());
+  }
+
+}
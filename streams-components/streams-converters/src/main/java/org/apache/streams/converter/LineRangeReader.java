@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.converter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the lines of one byte range of a file, so a large file can be read by several
+ * workers at once.
+ *
+ * <p/>
+ * A line belongs to the range its first byte falls in: a range starting mid-line skips ahead to
+ * the next line, and the last line begun inside a range is read to its end even past the range.
+ * The stream passed in must be positioned at start - 1 (or 0 for the first range) so a range
+ * starting exactly at a line boundary can tell it does.
+ */
+public class LineRangeReader implements Closeable {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final byte NEWLINE = '\n';
+  private static final byte RETURN = '\r';
+
+  private final InputStream in;
+  private final Charset charset;
+  private final long end;
+
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int bufferPosition = 0;
+  private int bufferLimit = 0;
+  private byte[] line = new byte[256];
+
+  // file offset of the next unread byte
+  private long position;
+  private boolean skipFirst;
+
+  /**
+   * LineRangeReader constructor.
+   * @param in stream positioned at max(0, start - 1)
+   * @param charset charset
+   * @param start first byte of the range
+   * @param end first byte after the range
+   */
+  public LineRangeReader(InputStream in, Charset charset, long start, long end) {
+    this.in = in;
+    this.charset = charset;
+    this.end = end;
+    this.position = start > 0 ? start - 1 : 0;
+    this.skipFirst = start > 0;
+  }
+
+  /**
+   * Whole-stream LineRangeReader.
+   * @param in stream
+   * @param charset charset
+   */
+  public LineRangeReader(InputStream in, Charset charset) {
+    this(in, charset, 0, Long.MAX_VALUE);
+  }
+
+  /**
+   * Split a file into ranges of about splitSize bytes.
+   * @param length length of the file
+   * @param splitSize target range size, or 0 to read the file as one range
+   * @return [start, end) pairs covering the file
+   */
+  public static List<long[]> split(long length, long splitSize) {
+    if (splitSize <= 0 || length <= splitSize) {
+      return Arrays.<long[]>asList(new long[] {0, Long.MAX_VALUE});
+    }
+    List<long[]> ranges = new ArrayList<>();
+    for (long start = 0; start < length; start += splitSize) {
+      long end = start + splitSize >= length ? Long.MAX_VALUE : start + splitSize;
+      ranges.add(new long[] {start, end});
+    }
+    return ranges;
+  }
+
+  /**
+   * Read the next line of the range, without its line terminator.
+   * @return line, or null at the end of the range
+   * @throws IOException IOException
+   */
+  public String readLine() throws IOException {
+    if (skipFirst) {
+      skipFirst = false;
+      if (readRawLine() < 0) {
+        return null;
+      }
+    }
+    if (position >= end) {
+      return null;
+    }
+    int length = readRawLine();
+    if (length < 0) {
+      return null;
+    }
+    if (length > 0 && line[length - 1] == RETURN) {
+      length--;
+    }
+    return new String(line, 0, length, charset);
+  }
+
+  // copy bytes up to the next newline into line, returning their count or -1 at end of stream
+  private int readRawLine() throws IOException {
+    int length = 0;
+    boolean any = false;
+    while (true) {
+      if (bufferPosition == bufferLimit) {
+        bufferLimit = in.read(buffer, 0, buffer.length);
+        bufferPosition = 0;
+        if (bufferLimit <= 0) {
+          bufferLimit = 0;
+          return any ? length : -1;
+        }
+      }
+      any = true;
+      int start = bufferPosition;
+      while (bufferPosition < bufferLimit && buffer[bufferPosition] != NEWLINE) {
+        bufferPosition++;
+      }
+      int count = bufferPosition - start;
+      if (length + count > line.length) {
+        line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+      }
+      System.arraycopy(buffer, start, line, length, count);
+      length += count;
+      position += count;
+      if (bufferPosition < bufferLimit) {
+        // consume the newline
+        bufferPosition++;
+        position++;
+        return length;
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+}
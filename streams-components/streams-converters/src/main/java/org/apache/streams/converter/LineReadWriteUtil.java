@@ -24,15 +24,13 @@ import org.apache.streams.jackson.StreamsJacksonMapper;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.Joiner;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -40,6 +38,11 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * LineReadWriteUtil converts Datums to/from character array appropriate for writing to
  * file systems.
+ *
+ * <p/>
+ * The position of each field is resolved once per configuration.  Lines are read with a single
+ * pass over the characters, splitting on the literal field delimiter, and written into a
+ * per-thread buffer, so converting a datum creates no intermediate lists or joiners.
  */
 public class LineReadWriteUtil {
 
@@ -47,11 +50,24 @@ public class LineReadWriteUtil {
 
   private static Map<LineReadWriteConfiguration, LineReadWriteUtil> INSTANCE_MAP = new ConcurrentHashMap<>();
 
+  private static ObjectMapper MAPPER = StreamsJacksonMapper.getInstance();
+
+  // kinds of field, resolved once from the configured field names
+  private static final int OTHER = 0;
+  private static final int ID = 1;
+  private static final int SEQ = 2;
+  private static final int TS = 3;
+  private static final int META = 4;
+  private static final int DOC = 5;
+
+  private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+
   private List<String> fields;
   private String fieldDelimiter = "\t";
   private String lineDelimiter = "\n";
 
-  private static ObjectMapper MAPPER = StreamsJacksonMapper.getInstance();
+  private int[] kinds;
+  private boolean writesMetadata;
 
   private LineReadWriteUtil() {
   }
@@ -60,7 +76,28 @@ public class LineReadWriteUtil {
     this.fields = configuration.getFields();
     this.fieldDelimiter = configuration.getFieldDelimiter();
     this.lineDelimiter = configuration.getLineDelimiter();
-    String encoding = configuration.getEncoding();
+    this.kinds = new int[fields.size()];
+    for (int i = 0; i < kinds.length; i++) {
+      kinds[i] = kindOf(fields.get(i));
+      writesMetadata |= kinds[i] == META;
+    }
+  }
+
+  private static int kindOf(String field) {
+    switch (field) {
+      case FieldConstants.ID:
+        return ID;
+      case FieldConstants.SEQ:
+        return SEQ;
+      case FieldConstants.TS:
+        return TS;
+      case FieldConstants.META:
+        return META;
+      case FieldConstants.DOC:
+        return DOC;
+      default:
+        return OTHER;
+    }
   }
 
   public static LineReadWriteUtil getInstance() {
@@ -73,12 +110,7 @@ public class LineReadWriteUtil {
    * @return result
    */
   public static LineReadWriteUtil getInstance(LineReadWriteConfiguration configuration) {
-    if (INSTANCE_MAP.containsKey(configuration) && INSTANCE_MAP.get(configuration) != null) {
-      return INSTANCE_MAP.get(configuration);
-    } else {
-      INSTANCE_MAP.put(configuration, new LineReadWriteUtil(configuration));
-      return INSTANCE_MAP.get(configuration);
-    }
+    return INSTANCE_MAP.computeIfAbsent(configuration, LineReadWriteUtil::new);
   }
 
   /**
@@ -87,14 +119,26 @@ public class LineReadWriteUtil {
    * @return result
    */
   public StreamsDatum processLine(String line) {
+    return processLine((CharSequence) line);
+  }
 
-    List<String> expectedFields = fields;
-    if ( line.endsWith(lineDelimiter)) {
-      line = trimLineDelimiter(line);
-    }
-    String[] parsedFields = line.split(fieldDelimiter);
+  /**
+   * processLine
+   * @param line
+   * @return result
+   */
+  public StreamsDatum processLine(CharSequence line) {
 
-    if (parsedFields.length == 0) {
+    int end = line.length();
+    if ( endsWith(line, end, lineDelimiter)) {
+      end -= lineDelimiter.length();
+    }
+    // like String.split, ignore empty trailing fields, and read a line of only delimiters as nothing
+    int length = end;
+    while ( endsWith(line, length, fieldDelimiter)) {
+      length -= fieldDelimiter.length();
+    }
+    if (length == 0 && end > 0) {
       return null;
     }
 
@@ -104,30 +148,33 @@ public class LineReadWriteUtil {
     Map<String, Object> metadata = null;
     String json = null;
 
-    if ( expectedFields.contains( FieldConstants.DOC )
-        && parsedFields.length > expectedFields.indexOf(FieldConstants.DOC)) {
-      json = parsedFields[expectedFields.indexOf(FieldConstants.DOC)];
-    }
-
-    if ( expectedFields.contains( FieldConstants.ID )
-        && parsedFields.length > expectedFields.indexOf(FieldConstants.ID)) {
-      id = parsedFields[expectedFields.indexOf(FieldConstants.ID)];
-    }
-    if ( expectedFields.contains( FieldConstants.SEQ )
-        && parsedFields.length > expectedFields.indexOf(FieldConstants.SEQ)) {
-      try {
-        seq = new BigInteger(parsedFields[expectedFields.indexOf(FieldConstants.SEQ)]);
-      } catch ( NumberFormatException nfe ) {
-        LOGGER.warn("invalid sequence number {}", nfe);
+    int start = 0;
+    for (int index = 0; index < kinds.length && start <= length; index++) {
+      int next = indexOf(line, fieldDelimiter, start, length);
+      int fieldEnd = next < 0 ? length : next;
+      switch (kinds[index]) {
+        case DOC:
+          json = line.subSequence(start, fieldEnd).toString();
+          break;
+        case ID:
+          id = line.subSequence(start, fieldEnd).toString();
+          break;
+        case SEQ:
+          seq = parseSeq(line.subSequence(start, fieldEnd).toString());
+          break;
+        case TS:
+          ts = parseTs(line.subSequence(start, fieldEnd).toString());
+          break;
+        case META:
+          metadata = parseMap(line.subSequence(start, fieldEnd).toString());
+          break;
+        default:
+          break;
       }
-    }
-    if ( expectedFields.contains( FieldConstants.TS )
-        && parsedFields.length > expectedFields.indexOf(FieldConstants.TS)) {
-      ts = parseTs(parsedFields[expectedFields.indexOf(FieldConstants.TS)]);
-    }
-    if ( expectedFields.contains( FieldConstants.META )
-        && parsedFields.length > expectedFields.indexOf(FieldConstants.META)) {
-      metadata = parseMap(parsedFields[expectedFields.indexOf(FieldConstants.META)]);
+      if (next < 0) {
+        break;
+      }
+      start = next + fieldDelimiter.length();
     }
 
     StreamsDatum datum = new StreamsDatum(json);
@@ -139,19 +186,63 @@ public class LineReadWriteUtil {
 
   }
 
+  private static boolean endsWith(CharSequence line, int end, String suffix) {
+    int start = end - suffix.length();
+    if (suffix.isEmpty() || start < 0) {
+      return false;
+    }
+    for (int i = 0; i < suffix.length(); i++) {
+      if (line.charAt(start + i) != suffix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // first literal occurrence of delimiter in line[from, to), or -1
+  private static int indexOf(CharSequence line, String delimiter, int from, int to) {
+    if (delimiter.isEmpty()) {
+      return -1;
+    }
+    char first = delimiter.charAt(0);
+    int last = to - delimiter.length();
+    for (int i = from; i <= last; i++) {
+      if (line.charAt(i) == first && endsWith(line, i + delimiter.length(), delimiter)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static BigInteger parseSeq(String field) {
+    if (!isInteger(field)) {
+      LOGGER.warn("invalid sequence number {}", field);
+      return null;
+    }
+    return new BigInteger(field);
+  }
+
   /**
    * convertResultToString
    * @param entry
    * @return result
    */
   public String convertResultToString(StreamsDatum entry) {
-    String metadataJson = null;
-    try {
-      metadataJson = MAPPER.writeValueAsString(entry.getMetadata());
-    } catch (JsonProcessingException ex) {
-      LOGGER.warn("Error converting metadata to a string", ex);
+    StringBuilder builder = BUFFER.get();
+    builder.setLength(0);
+    if (!appendTo(entry, builder)) {
+      return null;
     }
+    return builder.toString();
+  }
 
+  /**
+   * Append the line for a datum, without a line delimiter, to a buffer the caller reuses.
+   * @param entry
+   * @param builder
+   * @return false, appending nothing, if the datum has no document
+   */
+  public boolean appendTo(StreamsDatum entry, StringBuilder builder) {
     String documentJson = null;
     try {
       if ( entry.getDocument() instanceof String ) {
@@ -164,40 +255,50 @@ public class LineReadWriteUtil {
     }
 
     if (StringUtils.isBlank(documentJson)) {
-      return null;
-    } else {
-      StringBuilder stringBuilder = new StringBuilder();
-      Iterator<String> fields = this.fields.iterator();
-      List<String> fielddata = new ArrayList<>();
-      Joiner joiner = Joiner.on(fieldDelimiter).useForNull("");
-      while( fields.hasNext() ) {
-        String field = fields.next();
-        if ( field.equals(FieldConstants.DOC) ) {
-          fielddata.add(documentJson);
-        } else if ( field.equals(FieldConstants.ID) ) {
-          fielddata.add(entry.getId());
-        } else if ( field.equals(FieldConstants.SEQ) ) {
-          if (entry.getSequenceid() != null) {
-            fielddata.add(entry.getSequenceid().toString());
-          } else {
-            fielddata.add("null");
-          }
-        } else if ( field.equals(FieldConstants.TS) ) {
-          if (entry.getTimestamp() != null) {
-            fielddata.add(entry.getTimestamp().toString());
-          } else {
-            fielddata.add(DateTime.now().toString());
-          }
-        } else if ( field.equals(FieldConstants.META) ) {
-          fielddata.add(metadataJson);
-        } else if ( entry.getMetadata().containsKey(field)) {
-          fielddata.add(entry.getMetadata().get(field).toString());
-        } else {
-          fielddata.add(null);
-        }
+      return false;
+    }
+
+    String metadataJson = null;
+    if (writesMetadata) {
+      try {
+        metadataJson = MAPPER.writeValueAsString(entry.getMetadata());
+      } catch (JsonProcessingException ex) {
+        LOGGER.warn("Error converting metadata to a string", ex);
+      }
+    }
+
+    for (int index = 0; index < kinds.length; index++) {
+      if (index > 0) {
+        builder.append(fieldDelimiter);
+      }
+      switch (kinds[index]) {
+        case DOC:
+          builder.append(documentJson);
+          break;
+        case ID:
+          appendNullable(builder, entry.getId());
+          break;
+        case SEQ:
+          builder.append(entry.getSequenceid());
+          break;
+        case TS:
+          builder.append(entry.getTimestamp() != null ? entry.getTimestamp() : DateTime.now());
+          break;
+        case META:
+          appendNullable(builder, metadataJson);
+          break;
+        default:
+          Map<String, Object> metadata = entry.getMetadata();
+          appendNullable(builder, metadata != null ? metadata.get(fields.get(index)) : null);
+          break;
       }
-      joiner.appendTo(stringBuilder, fielddata);
-      return stringBuilder.toString();
+    }
+    return true;
+  }
+
+  private static void appendNullable(StringBuilder builder, Object value) {
+    if (value != null) {
+      builder.append(value);
     }
   }
 
@@ -208,25 +309,107 @@ public class LineReadWriteUtil {
    */
   public DateTime parseTs(String field) {
 
-    DateTime timestamp = null;
+    // fast paths for epoch millis and the ISO format DateTime.toString writes
+    if (isInteger(field) && field.length() <= 20) {
+      try {
+        return new DateTime(Long.parseLong(field));
+      } catch (NumberFormatException ex) {
+        // out of range for a long: try the other forms
+      }
+    }
+    DateTime timestamp = parseIsoDateTime(field);
+    if (timestamp != null) {
+      return timestamp;
+    }
     try {
-      long longts = Long.parseLong(field);
-      timestamp = new DateTime(longts);
-    } catch ( Exception e1 ) {
+      timestamp = DateTime.parse(field);
+    } catch ( Exception e2 ) {
       try {
-        timestamp = DateTime.parse(field);
-      } catch ( Exception e2 ) {
-        try {
-          timestamp = MAPPER.readValue(field, DateTime.class);
-        } catch ( Exception e3 ) {
-          LOGGER.warn("Could not parse timestamp:{} ", field);
-        }
+        timestamp = MAPPER.readValue(field, DateTime.class);
+      } catch ( Exception e3 ) {
+        LOGGER.warn("Could not parse timestamp:{} ", field);
       }
     }
 
     return timestamp;
   }
 
+  private static boolean isInteger(String field) {
+    int start = field.startsWith("-") ? 1 : 0;
+    if (field.length() == start) {
+      return false;
+    }
+    for (int i = start; i < field.length(); i++) {
+      if (field.charAt(i) < '0' || field.charAt(i) > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parse yyyy-MM-ddTHH:mm:ss[.SSS](Z|+HH:mm|-HH:mm) without exceptions.
+   * @return the same DateTime as DateTime.parse, or null if field has any other form
+   */
+  private static DateTime parseIsoDateTime(String field) {
+    int length = field.length();
+    if (length < 20 || field.charAt(4) != '-' || field.charAt(7) != '-' || field.charAt(10) != 'T'
+        || field.charAt(13) != ':' || field.charAt(16) != ':') {
+      return null;
+    }
+    int year = digits(field, 0, 4);
+    int month = digits(field, 5, 2);
+    int day = digits(field, 8, 2);
+    int hour = digits(field, 11, 2);
+    int minute = digits(field, 14, 2);
+    int second = digits(field, 17, 2);
+    int millis = 0;
+    int zone = 19;
+    if (field.charAt(19) == '.') {
+      if (length < 24) {
+        return null;
+      }
+      millis = digits(field, 20, 3);
+      zone = 23;
+    }
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59 || millis < 0) {
+      return null;
+    }
+    DateTimeZone offset;
+    if (length == zone + 1 && field.charAt(zone) == 'Z') {
+      offset = DateTimeZone.UTC;
+    } else if (length == zone + 6 && (field.charAt(zone) == '+' || field.charAt(zone) == '-') && field.charAt(zone + 3) == ':') {
+      int hours = digits(field, zone + 1, 2);
+      int minutes = digits(field, zone + 4, 2);
+      if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59) {
+        return null;
+      }
+      offset = DateTimeZone.forOffsetHoursMinutes(field.charAt(zone) == '-' ? -hours : hours,
+          field.charAt(zone) == '-' && hours == 0 ? -minutes : minutes);
+    } else {
+      return null;
+    }
+    try {
+      return new DateTime(year, month, day, hour, minute, second, millis, offset);
+    } catch (IllegalArgumentException ex) {
+      // e.g. February 30th
+      return null;
+    }
+  }
+
+  // value of count decimal digits starting at start, or -1
+  private static int digits(String field, int start, int count) {
+    int value = 0;
+    for (int i = start; i < start + count; i++) {
+      char digit = field.charAt(i);
+      if (digit < '0' || digit > '9') {
+        return -1;
+      }
+      value = value * 10 + digit - '0';
+    }
+    return value;
+  }
+
   /**
    * parseMap
    * @param field
@@ -245,12 +428,4 @@ public class LineReadWriteUtil {
     return metadata;
   }
 
-  private String trimLineDelimiter(String str) {
-    if (!StringUtils.isNotBlank(str)) {
-      if (str.endsWith(lineDelimiter)) {
-        return str.substring(0, str.length() - 1);
-      }
-    }
-    return str;
-  }
 }
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.streams.converter.test;
+
+import org.apache.streams.converter.DatumPartitioner;
+import org.apache.streams.core.StreamsDatum;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link DatumPartitioner}
+ */
+public class DatumPartitionerTest {
+
+  private static final DateTime TIMESTAMP = new DateTime(2017, 6, 1, 23, 30, DateTimeZone.forOffsetHours(-5));
+
+  @Test
+  public void testUnpartitioned() {
+    DatumPartitioner partitioner = new DatumPartitioner("none", null);
+    assertFalse(partitioner.isPartitioned());
+    assertEquals("", partitioner.getPartition(new StreamsDatum("{}", "id", TIMESTAMP)));
+  }
+
+  @Test
+  public void testHourlyPartitionUsesUtc() {
+    DatumPartitioner partitioner = new DatumPartitioner("hour", null);
+    assertTrue(partitioner.isPartitioned());
+    assertEquals("dt=2017-06-02/hr=04", partitioner.getPartition(new StreamsDatum("{}", "id", TIMESTAMP)));
+    assertEquals("dt=2017-06-02", new DatumPartitioner("day", null).getPartition(new StreamsDatum("{}", "id", TIMESTAMP)));
+  }
+
+  @Test
+  public void testMetadataKey() {
+    DatumPartitioner partitioner = new DatumPartitioner("day", "source");
+    StreamsDatum datum = new StreamsDatum("{}", "id", TIMESTAMP);
+    assertEquals("dt=2017-06-02/source=" + DatumPartitioner.DEFAULT_PARTITION, partitioner.getPartition(datum));
+    datum.getMetadata().put("source", "a/b=c");
+    assertEquals("dt=2017-06-02/source=a%2Fb%3Dc", partitioner.getPartition(datum));
+    assertEquals("source=a%2Fb%3Dc", new DatumPartitioner("none", "source").getPartition(datum));
+  }
+
+  @Test
+  public void testOverlaps() {
+    DateTime start = new DateTime(2017, 6, 2, 4, 30, DateTimeZone.UTC);
+    DateTime end = new DateTime(2017, 6, 2, 6, 0, DateTimeZone.UTC);
+    assertTrue(DatumPartitioner.overlaps("dt=2017-06-02", start, end));
+    assertFalse(DatumPartitioner.overlaps("dt=2017-06-01", start, end));
+    assertFalse(DatumPartitioner.overlaps("dt=2017-06-03", start, end));
+    assertFalse(DatumPartitioner.overlaps("dt=2017-06-02/hr=03", start, end));
+    assertTrue(DatumPartitioner.overlaps("dt=2017-06-02/hr=04", start, end));
+    assertTrue(DatumPartitioner.overlaps("dt=2017-06-02/hr=06", start, end));
+    assertFalse(DatumPartitioner.overlaps("dt=2017-06-02/hr=07", start, end));
+    assertTrue(DatumPartitioner.overlaps("dt=2017-06-02/hr=07", start, null));
+    assertTrue(DatumPartitioner.overlaps("dt=2017-06-01", null, end));
+    // directories not written by a partitioner always match
+    assertTrue(DatumPartitioner.overlaps("source=twitter", start, end));
+    assertTrue(DatumPartitioner.overlaps("dt=yesterday", start, end));
+  }
+
+  @Test
+  public void testIsTimePartitioned() {
+    assertTrue(DatumPartitioner.isTimePartitioned("/data/activity/dt=2017-06-02/hr=04/part-0001.tsv"));
+    assertTrue(DatumPartitioner.isTimePartitioned("activity/dt=2017-06-02/source=twitter/part-0001.tsv"));
+    assertFalse(DatumPartitioner.isTimePartitioned("activity/source=twitter/part-0001.tsv"));
+    assertFalse(DatumPartitioner.isTimePartitioned("activity/dt=yesterday/part-0001.tsv"));
+  }
+
+}
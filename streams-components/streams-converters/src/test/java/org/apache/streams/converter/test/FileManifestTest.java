@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.streams.converter.test;
+
+import org.apache.streams.converter.FileManifest;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link FileManifest}
+ */
+public class FileManifestTest {
+
+  @Test
+  public void testStoreAndLoad() throws Exception {
+    FileManifest manifest = FileManifest.load(null);
+    manifest.add("data/dt=2017-06-01/lines-1496275200000.tsv", 1496275300000L);
+    manifest.add("data/with\ttab-1.tsv", 5L);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    manifest.store(out);
+
+    FileManifest loaded = FileManifest.load(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(2, loaded.size());
+    assertTrue(loaded.isConsumed("data/dt=2017-06-01/lines-1496275200000.tsv", 1496275300000L));
+    assertTrue(loaded.isConsumed("data/with\ttab-1.tsv", 5L));
+    // modified since it was consumed
+    assertFalse(loaded.isConsumed("data/dt=2017-06-01/lines-1496275200000.tsv", 1496275300001L));
+    assertFalse(loaded.isConsumed("data/other-1496275200000.tsv", 0L));
+  }
+
+  @Test
+  public void testNameTimestamp() {
+    assertEquals(1496275200000L, FileManifest.nameTimestamp("/data/dt=2017-06-01/lines-1496275200000.tsv.lz4"));
+    assertEquals(1496275200000L, FileManifest.nameTimestamp("writer/prefix/1496275200000.tsv"));
+    assertEquals(1496275200000L, FileManifest.nameTimestamp("lines-1496275200000"));
+    assertEquals(-1L, FileManifest.nameTimestamp("part-00000.tsv"));
+    assertEquals(-1L, FileManifest.nameTimestamp("lines-14962752000001.tsv"));
+  }
+
+  @Test
+  public void testOverlaps() {
+    DateTime start = new DateTime(1496275200000L);
+    DateTime end = start.plusHours(1);
+    // written from the time in its name until it was last modified
+    assertTrue(FileManifest.overlaps("lines-1496271600000.tsv", start.getMillis() + 1, start, end));
+    assertFalse(FileManifest.overlaps("lines-1496271600000.tsv", start.getMillis() - 1, start, end));
+    assertFalse(FileManifest.overlaps("lines-1496282400000.tsv", 1496282500000L, start, end));
+    // without a name timestamp only the modification time is known
+    assertTrue(FileManifest.overlaps("part-00000.tsv", end.getMillis(), start, end));
+    assertFalse(FileManifest.overlaps("part-00000.tsv", end.getMillis() + 1, start, end));
+    assertTrue(FileManifest.overlaps("part-00000.tsv", 0L, null, end));
+  }
+
+}
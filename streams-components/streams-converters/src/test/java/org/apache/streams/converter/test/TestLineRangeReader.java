@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.converter.test;
+
+import org.apache.streams.converter.LineRangeReader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link LineRangeReader}
+ */
+public class TestLineRangeReader {
+
+  private static List<String> readAll(byte[] bytes, long splitSize) throws Exception {
+    List<String> lines = new ArrayList<>();
+    for (long[] range : LineRangeReader.split(bytes.length, splitSize)) {
+      int from = (int) Math.max(0, range[0] - 1);
+      ByteArrayInputStream in = new ByteArrayInputStream(bytes, from, bytes.length - from);
+      try (LineRangeReader reader = new LineRangeReader(in, StandardCharsets.UTF_8, range[0], range[1])) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          lines.add(line);
+        }
+      }
+    }
+    return lines;
+  }
+
+  @Test
+  public void testEveryLineReadOnceForAnySplitSize() throws Exception {
+    List<String> expected = new ArrayList<>();
+    StringBuilder file = new StringBuilder();
+    for (int i = 0; i < 50; i++) {
+      String line = "line-" + i + "-" + new String(new char[i % 7]).replace('\0', 'x');
+      expected.add(line);
+      file.append(line).append(i % 5 == 0 ? "\r\n" : "\n");
+    }
+    byte[] bytes = file.toString().getBytes(StandardCharsets.UTF_8);
+    for (long splitSize = 0; splitSize < 40; splitSize++) {
+      assertEquals("splitSize " + splitSize, expected, readAll(bytes, splitSize));
+    }
+  }
+
+  @Test
+  public void testMissingTrailingNewline() throws Exception {
+    byte[] bytes = "a\nbb\nccc".getBytes(StandardCharsets.UTF_8);
+    List<String> expected = new ArrayList<>();
+    expected.add("a");
+    expected.add("bb");
+    expected.add("ccc");
+    assertEquals(expected, readAll(bytes, 0));
+    assertEquals(expected, readAll(bytes, 2));
+    assertEquals(expected, readAll(bytes, 3));
+  }
+
+}
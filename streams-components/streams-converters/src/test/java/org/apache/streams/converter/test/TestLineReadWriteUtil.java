@@ -26,6 +26,7 @@ import org.apache.streams.jackson.StreamsJacksonMapper;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +41,9 @@ import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
 /**
  * Tests for {@link LineReadWriteUtil}
  */
@@ -98,6 +102,52 @@ public class TestLineReadWriteUtil {
 
     }
 
+    @Test
+    public void TestLineReadWriteRoundTrip () throws Exception {
+
+        LineReadWriteUtil lineReadWriteUtil = LineReadWriteUtil.getInstance(new LineReadWriteConfiguration()
+                .withFields(Arrays.asList("ID", "SEQ", "TS", "META", "DOC"))
+                .withFieldDelimiter("|"));
+
+        StreamsDatum testDatum = randomDatum();
+        testDatum.setTimestamp(new DateTime(2017, 6, 1, 23, 30, 0, 123, DateTimeZone.forOffsetHoursMinutes(-5, 30)));
+        StreamsDatum readResult = lineReadWriteUtil.processLine(lineReadWriteUtil.convertResultToString(testDatum) + "\n");
+
+        assertEquals(testDatum.getId(), readResult.getId());
+        assertEquals(testDatum.getSequenceid(), readResult.getSequenceid());
+        assertEquals(testDatum.getTimestamp(), readResult.getTimestamp());
+        assertEquals(testDatum.getMetadata(), readResult.getMetadata());
+        assertEquals(testDatum.getDocument(), readResult.getDocument());
+
+    }
+
+    @Test
+    public void TestParseTs () throws Exception {
+
+        LineReadWriteUtil lineReadWriteUtil = LineReadWriteUtil.getInstance();
+
+        assertEquals(new DateTime(1496359800000L), lineReadWriteUtil.parseTs("1496359800000"));
+        assertEquals(DateTime.parse("2017-06-01T23:30:00Z"), lineReadWriteUtil.parseTs("2017-06-01T23:30:00Z"));
+        assertEquals(DateTime.parse("2017-06-01T23:30:00.123+05:30"), lineReadWriteUtil.parseTs("2017-06-01T23:30:00.123+05:30"));
+        assertEquals(DateTime.parse("2017-06-01"), lineReadWriteUtil.parseTs("2017-06-01"));
+        assertNull(lineReadWriteUtil.parseTs("2017-02-30T00:00:00Z"));
+
+    }
+
+    @Test
+    public void TestEmptyTrailingFields () throws Exception {
+
+        LineReadWriteUtil lineReadWriteUtil = LineReadWriteUtil.getInstance(new LineReadWriteConfiguration()
+                .withFields(Arrays.asList("ID", "TS", "DOC")));
+
+        StreamsDatum readResult = lineReadWriteUtil.processLine("id\t\t");
+        assertEquals("id", readResult.getId());
+        assertNull(readResult.getTimestamp());
+        assertNull(readResult.getDocument());
+        assertNull(lineReadWriteUtil.processLine("\t\t"));
+
+    }
+
     public static StreamsDatum randomDatum() {
 
         StreamsDatum datum = new StreamsDatum(UUID.randomUUID().toString());
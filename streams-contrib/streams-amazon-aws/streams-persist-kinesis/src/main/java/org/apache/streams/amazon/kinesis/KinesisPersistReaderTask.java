@@ -90,20 +90,23 @@ public class KinesisPersistReaderTask implements Runnable {
 
       List<Record> recordList = recordsResult.getRecords();
 
-      for (Record record : recordList) {
+      for (Record kinesisRecord : recordList) {
         try {
-          byte[] byteArray = record.getData().array();
-          //byte[] decoded = Base64.decode(byteArray);
-          String message = new String(byteArray, Charset.forName("UTF-8"));
-          reader.persistQueue.add(
-              new StreamsDatum(
-                  message,
-                  record.getPartitionKey(),
-                  new DateTime(),
-                  new BigInteger(record.getSequenceNumber()),
-                  metadata));
+          // records packed by KinesisPersistWriter with aggregate set are read back individually
+          for (Record record : KinesisRecordAggregator.deaggregate(kinesisRecord)) {
+            byte[] byteArray = record.getData().array();
+            //byte[] decoded = Base64.decode(byteArray);
+            String message = new String(byteArray, Charset.forName("UTF-8"));
+            reader.persistQueue.add(
+                new StreamsDatum(
+                    message,
+                    record.getPartitionKey(),
+                    new DateTime(),
+                    new BigInteger(record.getSequenceNumber()),
+                    metadata));
+          }
         } catch ( Exception ex ) {
-          LOGGER.warn("Exception processing record {}: {}", record, ex);
+          LOGGER.warn("Exception processing record {}: {}", kinesisRecord, ex);
         }
       }
       try {
@@ -21,10 +21,12 @@ package org.apache.streams.amazon.kinesis;
 
 import org.apache.streams.config.ComponentConfigurator;
 import org.apache.streams.config.StreamsConfigurator;
-import org.apache.streams.converter.TypeConverterUtil;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
+import org.apache.streams.jackson.StreamsJacksonMapper;
+import org.apache.streams.util.BatchAccumulator;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.Protocol;
 import com.amazonaws.auth.AWSCredentials;
@@ -32,35 +34,63 @@ import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
-import com.amazonaws.services.kinesis.model.PutRecordRequest;
-import com.amazonaws.services.kinesis.model.PutRecordResult;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.StreamDescription;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.typesafe.config.Config;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Flushable;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * KinesisPersistWriter writes documents to kinesis.
+ *
+ * <p/>
+ * Each writing thread buffers records in its own batch, which is sent once it holds batchSize
+ * records or batchBytes bytes, or its oldest record has waited maxTimeBetweenFlushMs.  Batches
+ * are sent as PutRecords requests of at most 500 records and 5MB on a pool of threads, and writing
+ * only blocks while maxRequestsInFlight requests are outstanding.  Records kinesis rejects are
+ * sent again up to maxRetries times, with exponential backoff.  With aggregate set, records bound
+ * for the same shard are packed together by {@link KinesisRecordAggregator}.  Documents over the
+ * 1MB record limit are counted as failed rather than sent.
  */
-public class KinesisPersistWriter implements StreamsPersistWriter {
+public class KinesisPersistWriter implements StreamsPersistWriter, Flushable {
 
   public static final String STREAMS_ID = "KinesisPersistWriter";
 
   private static final Logger LOGGER = LoggerFactory.getLogger(KinesisPersistWriter.class);
 
+  private static final int MAX_REQUEST_RECORDS = 500;
+  private static final int MAX_REQUEST_BYTES = 5 * 1024 * 1024;
+
   protected volatile Queue<StreamsDatum> persistQueue;
 
-  private ObjectMapper mapper = new ObjectMapper();
+  private ObjectMapper mapper = StreamsJacksonMapper.getInstance();
 
   private KinesisWriterConfiguration config;
 
@@ -70,6 +100,15 @@ public class KinesisPersistWriter implements StreamsPersistWriter {
 
   protected AmazonKinesisClient client;
 
+  private BatchAccumulator<Pending> batches;
+
+  // starting hash key of each open shard, for aggregation
+  private final TreeMap<BigInteger, String> shards = new TreeMap<>();
+
+  private final AtomicLong documentsWritten = new AtomicLong();
+  private final AtomicLong documentsFailed = new AtomicLong();
+  private final AtomicLong requestsRetried = new AtomicLong();
+
   /**
    * KinesisPersistWriter constructor - resolves KinesisWriterConfiguration from JVM 'kinesis'.
    */
@@ -99,18 +138,42 @@ public class KinesisPersistWriter implements StreamsPersistWriter {
   @Override
   public void write(StreamsDatum entry) {
 
-    String document = (String) TypeConverterUtil.getInstance().convert(entry.getDocument(), String.class);
+    byte[] data;
+    try {
+      data = entry.getDocument() instanceof String
+          ? ((String) entry.getDocument()).getBytes(StandardCharsets.UTF_8)
+          : mapper.writeValueAsBytes(entry.getDocument());
+    } catch (IOException ex) {
+      LOGGER.warn("Failure serializing {}: {}", entry, ex.getMessage());
+      documentsFailed.incrementAndGet();
+      return;
+    }
 
-    PutRecordRequest putRecordRequest = new PutRecordRequest()
-        .withStreamName(config.getStream())
-        .withPartitionKey(entry.getId())
-        .withData(ByteBuffer.wrap(document.getBytes()));
+    // kinesis requires a partition key
+    String key = StringUtils.isNotEmpty(entry.getId())
+        ? entry.getId()
+        : Long.toHexString(ThreadLocalRandom.current().nextLong());
 
-    PutRecordResult putRecordResult = client.putRecord(putRecordRequest);
+    Pending record = new Pending(key, data, 1);
+    // kinesis rejects a request holding an oversized record as a whole, so keep it away from the others
+    if (record.bytes() > KinesisRecordAggregator.MAX_RECORD_BYTES) {
+      LOGGER.warn("Dropping {}: {} bytes is over the kinesis record limit of {}",
+          key, record.bytes(), KinesisRecordAggregator.MAX_RECORD_BYTES);
+      documentsFailed.incrementAndGet();
+      return;
+    }
+    batches.add(record, record.bytes());
 
-    entry.setSequenceid(new BigInteger(putRecordResult.getSequenceNumber()));
+    LOGGER.debug("Buffered {}", entry);
+  }
 
-    LOGGER.debug("Wrote {}", entry);
+  /**
+   * Send every buffered record, and wait for all requests to finish.
+   * @throws IOException IOException
+   */
+  @Override
+  public void flush() throws IOException {
+    batches.flush();
   }
 
   @Override
@@ -128,16 +191,238 @@ public class KinesisPersistWriter implements StreamsPersistWriter {
         this.client.setRegion(Region.getRegion(Regions.fromName(config.getRegion())));
       }
     }
-    executor = Executors.newSingleThreadExecutor();
-
+    if (config.getAggregate()) {
+      loadShards();
+    }
+    int maxInFlight = Math.max(1, config.getMaxRequestsInFlight().intValue());
+    executor = Executors.newFixedThreadPool(maxInFlight);
+    batches = new BatchAccumulator<>(config.getBatchSize(), config.getBatchBytes(), config.getMaxTimeBetweenFlushMs(),
+        maxInFlight, this::send);
+    batches.start();
   }
 
   @Override
   public void cleanUp() {
+    batches.close();
     try {
-      executor.awaitTermination(5, TimeUnit.SECONDS);
+      flush();
+    } catch (IOException ex) {
+      LOGGER.error("Error flushing", ex);
+    }
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+        executor.shutdownNow();
+      }
     } catch (InterruptedException ex) {
       LOGGER.debug("Interrupted! ", ex);
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    LOGGER.info("{} documents written, {} failed, {} requests retried",
+        documentsWritten.get(), documentsFailed.get(), requestsRetried.get());
+  }
+
+  // split records into requests within the PutRecords limits, blocking while maxRequestsInFlight are outstanding
+  private void send(List<Pending> records) {
+    if (config.getAggregate()) {
+      records = aggregate(records);
+    }
+    List<Pending> request = new ArrayList<>();
+    long requestBytes = 0;
+    for (Pending record : records) {
+      if (!request.isEmpty()
+          && (request.size() >= MAX_REQUEST_RECORDS || requestBytes + record.bytes() > MAX_REQUEST_BYTES)) {
+        submit(request);
+        request = new ArrayList<>();
+        requestBytes = 0;
+      }
+      request.add(record);
+      requestBytes += record.bytes();
+    }
+    if (!request.isEmpty()) {
+      submit(request);
+    }
+  }
+
+  private void submit(List<Pending> request) {
+    batches.acquire();
+    try {
+      executor.execute(() -> {
+        try {
+          putRecords(request);
+        } finally {
+          batches.release();
+        }
+      });
+    } catch (RuntimeException ex) {
+      LOGGER.error("Error sending {} records to kinesis", request.size(), ex);
+      documentsFailed.addAndGet(documents(request));
+      batches.release();
+    }
+  }
+
+  // send one request, then send again just the records kinesis rejected, backing off between attempts
+  private void putRecords(List<Pending> request) {
+    List<Pending> remaining = request;
+    for (int attempt = 0; ; attempt++) {
+      List<Pending> rejected = new ArrayList<>();
+      String error = null;
+      try {
+        List<PutRecordsRequestEntry> entries = new ArrayList<>(remaining.size());
+        for (Pending record : remaining) {
+          entries.add(record.toEntry());
+        }
+        PutRecordsResult result = client.putRecords(new PutRecordsRequest()
+            .withStreamName(config.getStream())
+            .withRecords(entries));
+        List<PutRecordsResultEntry> results = result.getRecords();
+        for (int i = 0; i < results.size(); i++) {
+          if (results.get(i).getErrorCode() != null) {
+            rejected.add(remaining.get(i));
+            error = results.get(i).getErrorCode() + ": " + results.get(i).getErrorMessage();
+          } else {
+            documentsWritten.addAndGet(remaining.get(i).documents);
+          }
+        }
+      } catch (AmazonClientException ex) {
+        rejected = remaining;
+        error = ex.getMessage();
+      }
+      if (rejected.isEmpty()) {
+        return;
+      }
+      if (attempt >= config.getMaxRetries()) {
+        LOGGER.warn("{} records failed to write to kinesis after {} attempts: {}", rejected.size(), attempt + 1, error);
+        documentsFailed.addAndGet(documents(rejected));
+        return;
+      }
+      LOGGER.debug("{} of {} records rejected by kinesis, retrying: {}", rejected.size(), remaining.size(), error);
+      requestsRetried.incrementAndGet();
+      try {
+        Thread.sleep(config.getRetryBackoffMs() << attempt);
+      } catch (InterruptedException ex) {
+        documentsFailed.addAndGet(documents(rejected));
+        Thread.currentThread().interrupt();
+        return;
+      }
+      remaining = rejected;
+    }
+  }
+
+  // pack records by the shard their partition key hashes to
+  private List<Pending> aggregate(List<Pending> records) {
+    Map<String, KinesisRecordAggregator> open = new LinkedHashMap<>();
+    List<Pending> aggregated = new ArrayList<>();
+    for (Pending record : records) {
+      String shard = shardFor(record.key);
+      KinesisRecordAggregator aggregator = open.computeIfAbsent(shard, key -> new KinesisRecordAggregator());
+      if (!aggregator.add(record.key, record.data)) {
+        aggregated.add(aggregated(aggregator, shard));
+        aggregator = new KinesisRecordAggregator();
+        aggregator.add(record.key, record.data);
+        open.put(shard, aggregator);
+      }
+    }
+    for (Map.Entry<String, KinesisRecordAggregator> entry : open.entrySet()) {
+      aggregated.add(aggregated(entry.getValue(), entry.getKey()));
+    }
+    return aggregated;
+  }
+
+  private static Pending aggregated(KinesisRecordAggregator aggregator, String shard) {
+    Pending record = new Pending(aggregator.getPartitionKey(), aggregator.toByteArray(), aggregator.getRecords());
+    // with no shard map, kinesis places the record by its partition key
+    record.explicitHashKey = shard.isEmpty() ? null : shard;
+    return record;
+  }
+
+  // starting hash key of the shard a partition key hashes to, as kinesis places records
+  private String shardFor(String key) {
+    if (shards.isEmpty()) {
+      return "";
+    }
+    try {
+      BigInteger hash = new BigInteger(1, MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8)));
+      Map.Entry<BigInteger, String> shard = shards.floorEntry(hash);
+      return shard != null ? shard.getValue() : shards.firstEntry().getValue();
+    } catch (NoSuchAlgorithmException ex) {
+      return "";
+    }
+  }
+
+  // read the hash key ranges of open shards; records still reach a shard after a reshard, just not the planned one
+  private void loadShards() {
+    String exclusiveStartShardId = null;
+    boolean more = true;
+    try {
+      while (more) {
+        StreamDescription description = client.describeStream(new DescribeStreamRequest()
+            .withStreamName(config.getStream())
+            .withExclusiveStartShardId(exclusiveStartShardId)).getStreamDescription();
+        for (Shard shard : description.getShards()) {
+          exclusiveStartShardId = shard.getShardId();
+          if (shard.getSequenceNumberRange().getEndingSequenceNumber() == null) {
+            String start = shard.getHashKeyRange().getStartingHashKey();
+            shards.put(new BigInteger(start), start);
+          }
+        }
+        more = description.getHasMoreShards();
+      }
+    } catch (AmazonClientException ex) {
+      LOGGER.warn("Unable to describe stream {}, aggregating without a shard map: {}", config.getStream(), ex.getMessage());
+      shards.clear();
+    }
+    LOGGER.info("Aggregating records for {} open shards of {}", shards.size(), config.getStream());
+  }
+
+  private static long documents(List<Pending> records) {
+    long documents = 0;
+    for (Pending record : records) {
+      documents += record.documents;
+    }
+    return documents;
+  }
+
+  public long getDocumentsWritten() {
+    return documentsWritten.get();
+  }
+
+  public long getDocumentsFailed() {
+    return documentsFailed.get();
+  }
+
+  public long getRequestsRetried() {
+    return requestsRetried.get();
+  }
+
+  // a record waiting to be sent, possibly holding several aggregated documents
+  private static class Pending {
+
+    private final String key;
+    private final int keyBytes;
+    private final byte[] data;
+    private final int documents;
+    private String explicitHashKey;
+
+    private Pending(String key, byte[] data, int documents) {
+      this.key = key;
+      this.keyBytes = key.getBytes(StandardCharsets.UTF_8).length;
+      this.data = data;
+      this.documents = documents;
+    }
+
+    // kinesis counts the partition key against the request and record size limits
+    private long bytes() {
+      return data.length + keyBytes;
+    }
+
+    // a fresh entry per attempt, since sending may consume its buffer
+    private PutRecordsRequestEntry toEntry() {
+      return new PutRecordsRequestEntry()
+          .withPartitionKey(key)
+          .withExplicitHashKey(explicitHashKey)
+          .withData(ByteBuffer.wrap(data));
     }
   }
 }
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.amazon.kinesis;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * KinesisRecordAggregator packs several small records into one kinesis record, and unpacks them again.
+ *
+ * <p/>
+ * Shards accept a limited number of records per second as well as a limited number of bytes,
+ * so packing small documents bound for the same shard lets each shard take many more of them.
+ * An aggregated record starts with four magic bytes, the first of which never occurs in utf-8 text,
+ * followed by each record framed as [int key length][key][int data length][data].  The magic differs
+ * from that of the Kinesis Producer Library, whose protobuf framing this is not.
+ */
+public class KinesisRecordAggregator {
+
+  /**
+   * Most bytes of data and partition key kinesis accepts in one record.
+   */
+  public static final int MAX_RECORD_BYTES = 1024 * 1024;
+
+  private static final byte[] MAGIC = {(byte) 0xFF, 'S', 'A', 1};
+
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  private final DataOutputStream out = new DataOutputStream(buffer);
+
+  private String partitionKey;
+  private int partitionKeyBytes;
+  private byte[] first;
+  private int records = 0;
+
+  /**
+   * Add a record, unless it would take the aggregated record past MAX_RECORD_BYTES.
+   * The first record is always accepted.
+   * @param key partition key
+   * @param data data
+   * @return whether the record was added
+   */
+  public boolean add(String key, byte[] data) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int framed = 8 + keyBytes.length + data.length;
+    if (records > 0 && buffer.size() + framed + partitionKeyBytes > MAX_RECORD_BYTES) {
+      return false;
+    }
+    try {
+      if (records == 0) {
+        partitionKey = key;
+        partitionKeyBytes = keyBytes.length;
+        first = data;
+        out.write(MAGIC);
+      }
+      out.writeInt(keyBytes.length);
+      out.write(keyBytes);
+      out.writeInt(data.length);
+      out.write(data);
+    } catch (IOException ex) {
+      // ByteArrayOutputStream does not throw
+      throw new UncheckedIOException(ex);
+    }
+    records++;
+    return true;
+  }
+
+  public int getRecords() {
+    return records;
+  }
+
+  /**
+   * Partition key of the aggregated record, which is that of its first record.
+   * @return partition key
+   */
+  public String getPartitionKey() {
+    return partitionKey;
+  }
+
+  /**
+   * Data of the aggregated record; a single record is left as it was.
+   * @return data
+   */
+  public byte[] toByteArray() {
+    return records == 1 ? first : buffer.toByteArray();
+  }
+
+  /**
+   * Whether data was written by a KinesisRecordAggregator.
+   * @param data data
+   * @return whether data holds aggregated records
+   */
+  public static boolean isAggregated(ByteBuffer data) {
+    if (data.remaining() < MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (data.get(data.position() + i) != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Unpack the records of an aggregated record, which share its sequence number and arrival time.
+   * @param record record read from kinesis
+   * @return the records it holds, or the record itself if it is not aggregated
+   * @throws IllegalArgumentException if the record is aggregated but truncated or corrupt
+   */
+  public static List<Record> deaggregate(Record record) {
+    if (!isAggregated(record.getData())) {
+      return Collections.singletonList(record);
+    }
+    List<Record> records = new ArrayList<>();
+    ByteBuffer data = record.getData().duplicate();
+    data.position(data.position() + MAGIC.length);
+    while (data.hasRemaining()) {
+      byte[] key = frame(data, record);
+      byte[] bytes = frame(data, record);
+      records.add(new Record()
+          .withPartitionKey(new String(key, StandardCharsets.UTF_8))
+          .withData(ByteBuffer.wrap(bytes))
+          .withSequenceNumber(record.getSequenceNumber())
+          .withApproximateArrivalTimestamp(record.getApproximateArrivalTimestamp()));
+    }
+    return records;
+  }
+
+  private static byte[] frame(ByteBuffer data, Record record) {
+    int length = data.remaining() >= 4 ? data.getInt() : -1;
+    if (length < 0 || length > data.remaining()) {
+      throw new IllegalArgumentException("Corrupt aggregated record " + record.getSequenceNumber()
+          + " at byte " + data.position());
+    }
+    byte[] bytes = new byte[length];
+    data.get(bytes);
+    return bytes;
+  }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.amazon.kinesis;
+
+import org.apache.streams.core.StreamsDatum;
+
+import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class KinesisPersistWriterTest {
+
+  private final List<Integer> requestSizes = new ArrayList<>();
+
+  private KinesisPersistWriter writer;
+
+  @Before
+  public void setUp() {
+    KinesisWriterConfiguration config = new KinesisWriterConfiguration();
+    config.setKey("key");
+    config.setSecretKey("secret");
+    config.setStream("stream");
+    config.setBatchSize(2L);
+
+    writer = new KinesisPersistWriter(config);
+    writer.prepare(null);
+
+    AmazonKinesisClient client = mock(AmazonKinesisClient.class);
+    when(client.putRecords(any(PutRecordsRequest.class))).thenAnswer(invocation -> {
+      PutRecordsRequest request = (PutRecordsRequest) invocation.getArguments()[0];
+      List<PutRecordsResultEntry> results = new ArrayList<>();
+      for (int i = 0; i < request.getRecords().size(); i++) {
+        results.add(new PutRecordsResultEntry().withSequenceNumber(Integer.toString(i)));
+      }
+      synchronized (requestSizes) {
+        requestSizes.add(results.size());
+      }
+      return new PutRecordsResult().withRecords(results).withFailedRecordCount(0);
+    });
+    writer.client = client;
+  }
+
+  @After
+  public void tearDown() {
+    writer.cleanUp();
+  }
+
+  @Test
+  public void testBatchesBySize() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      writer.write(new StreamsDatum("{\"id\":" + i + "}", Integer.toString(i)));
+    }
+    writer.flush();
+
+    // requests are sent on a pool, so they may finish in any order
+    Collections.sort(requestSizes);
+    assertEquals(Arrays.asList(1, 2, 2), requestSizes);
+    assertEquals(5, writer.getDocumentsWritten());
+    assertEquals(0, writer.getDocumentsFailed());
+  }
+
+  @Test
+  public void testOversizedRecordIsRejectedAtWrite() throws Exception {
+    char[] large = new char[KinesisRecordAggregator.MAX_RECORD_BYTES];
+    Arrays.fill(large, 'x');
+
+    writer.write(new StreamsDatum("{\"id\":1}", "1"));
+    writer.write(new StreamsDatum(new String(large), "2"));
+    writer.write(new StreamsDatum("{\"id\":3}", "3"));
+    writer.flush();
+
+    // the valid records still share one request
+    assertEquals(Arrays.asList(2), requestSizes);
+    assertEquals(2, writer.getDocumentsWritten());
+    assertEquals(1, writer.getDocumentsFailed());
+  }
+
+}
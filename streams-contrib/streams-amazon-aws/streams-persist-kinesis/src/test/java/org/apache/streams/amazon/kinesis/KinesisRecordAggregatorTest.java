@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.amazon.kinesis;
+
+import com.amazonaws.services.kinesis.model.Record;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KinesisRecordAggregatorTest {
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testAggregatedRecordsReadBack() {
+    KinesisRecordAggregator aggregator = new KinesisRecordAggregator();
+    assertTrue(aggregator.add("a", bytes("{\"id\":\"a\"}")));
+    assertTrue(aggregator.add("b", bytes("{\"id\":\"b\"}")));
+    assertTrue(aggregator.add("c", bytes("")));
+    assertEquals(3, aggregator.getRecords());
+    assertEquals("a", aggregator.getPartitionKey());
+
+    Record record = new Record()
+        .withPartitionKey(aggregator.getPartitionKey())
+        .withData(ByteBuffer.wrap(aggregator.toByteArray()))
+        .withSequenceNumber("42");
+    List<Record> records = KinesisRecordAggregator.deaggregate(record);
+
+    assertEquals(3, records.size());
+    assertEquals("b", records.get(1).getPartitionKey());
+    assertArrayEquals(bytes("{\"id\":\"b\"}"), records.get(1).getData().array());
+    assertEquals(0, records.get(2).getData().remaining());
+    assertEquals("42", records.get(2).getSequenceNumber());
+  }
+
+  @Test
+  public void testSingleRecordIsNotAggregated() {
+    KinesisRecordAggregator aggregator = new KinesisRecordAggregator();
+    aggregator.add("a", bytes("{}"));
+    assertArrayEquals(bytes("{}"), aggregator.toByteArray());
+
+    Record record = new Record().withPartitionKey("a").withData(ByteBuffer.wrap(bytes("{}")));
+    assertFalse(KinesisRecordAggregator.isAggregated(record.getData()));
+    assertSame(record, KinesisRecordAggregator.deaggregate(record).get(0));
+  }
+
+  @Test
+  public void testKplRecordIsNotAggregated() {
+    byte[] kpl = {(byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2, 10, 1, 'a'};
+    assertFalse(KinesisRecordAggregator.isAggregated(ByteBuffer.wrap(kpl)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTruncatedRecordIsRejected() {
+    KinesisRecordAggregator aggregator = new KinesisRecordAggregator();
+    aggregator.add("a", bytes("{}"));
+    aggregator.add("b", bytes("{}"));
+    byte[] data = aggregator.toByteArray();
+    byte[] truncated = Arrays.copyOf(data, data.length - 1);
+    KinesisRecordAggregator.deaggregate(new Record().withData(ByteBuffer.wrap(truncated)).withSequenceNumber("1"));
+  }
+
+  @Test
+  public void testRecordLimit() {
+    KinesisRecordAggregator aggregator = new KinesisRecordAggregator();
+    byte[] data = new byte[KinesisRecordAggregator.MAX_RECORD_BYTES / 3];
+    assertTrue(aggregator.add("a", data));
+    assertTrue(aggregator.add("b", data));
+    assertFalse(aggregator.add("c", data));
+    assertEquals(2, aggregator.getRecords());
+    assertTrue(aggregator.toByteArray().length + 1 <= KinesisRecordAggregator.MAX_RECORD_BYTES);
+  }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.streams.s3;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the objects under a prefix, fetching each page of the listing only once
+ * the previous page has been consumed, so reading can start after the first page and
+ * only one page is held in memory.
+ */
+public class S3ListingIterator implements Iterator<S3ObjectSummary> {
+
+  private final AmazonS3Client amazonS3Client;
+  private final ListObjectsRequest request;
+  private ObjectListing listing;
+  private Iterator<S3ObjectSummary> page;
+
+  /**
+   * S3ListingIterator constructor.  Nothing is listed until the first call to hasNext.
+   * @param amazonS3Client amazonS3Client
+   * @param bucket bucket
+   * @param prefix prefix
+   * @param pageSize keys per page, at most 1000
+   */
+  public S3ListingIterator(AmazonS3Client amazonS3Client, String bucket, String prefix, int pageSize) {
+    this.amazonS3Client = amazonS3Client;
+    this.request = new ListObjectsRequest()
+        .withBucketName(bucket)
+        .withPrefix(prefix)
+        .withMaxKeys(pageSize);
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (page == null || !page.hasNext()) {
+      if (listing == null) {
+        listing = amazonS3Client.listObjects(request);
+      } else if (listing.isTruncated()) {
+        listing = amazonS3Client.listNextBatchOfObjects(listing);
+      } else {
+        return false;
+      }
+      page = listing.getObjectSummaries().iterator();
+    }
+    return true;
+  }
+
+  @Override
+  public S3ObjectSummary next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return page.next();
+  }
+
+}
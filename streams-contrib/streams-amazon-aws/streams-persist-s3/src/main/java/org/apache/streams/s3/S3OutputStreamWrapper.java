@@ -19,39 +19,75 @@
 package org.apache.streams.s3;
 
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.transfer.TransferManager;
-import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
- * This class uses ByteArrayOutputStreams to ensure files are written to S3 properly. The stream is written to the
- * in memory ByteArrayOutPutStream before it is finally written to Amazon S3. The size the file is allowed to become
- * is directly controlled by the S3PersistWriter.
+ * This class streams a file to S3 as a multipart upload. Bytes are written into a buffer taken from a
+ * shared pool of direct buffers; each time a buffer fills it is uploaded as one part on the upload executor
+ * while writing continues into the next buffer, and returned to the pool once its part is uploaded.
+ * Writers only wait when every buffer in the pool is still being uploaded.
+ *
+ * <p/>
+ * close() does not wait for the upload either: the upload is completed once its last part is, and
+ * {@link #getUploadResult()} can be used to wait for that.  Wrappers created with the original
+ * constructor, whose callers expect the object to exist once close() returns, still wait for it. Files smaller than one buffer are written
+ * with a single PUT. The size the file is allowed to become is directly controlled by the S3PersistWriter.
  */
 public class S3OutputStreamWrapper extends OutputStream {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(S3OutputStreamWrapper.class);
 
+  // smallest part size S3 accepts for any but the last part
+  public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+  private static final int SHARED_BUFFERS = 8;
+  private static final int SHARED_UPLOAD_THREADS = 4;
+
   private final AmazonS3Client amazonS3Client;
   private final String bucketName;
   private final String path;
   private final String fileName;
-  private ByteArrayOutputStream outputStream;
   private final Map<String, String> metaData;
+  private final BlockingQueue<ByteBuffer> buffers;
+  private final Executor uploadExecutor;
+  private final boolean shared;
+
+  private ByteBuffer buffer;
+  private String uploadId;
+  private final List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+  private long contentLength = 0;
+  private CompletableFuture<Void> uploadResult;
   private boolean isClosed = false;
 
   /**
-   * Create an OutputStream Wrapper
+   * Create an OutputStream Wrapper that uploads on a small buffer pool and thread pool shared with every
+   * other wrapper created this way, and whose close() returns once the object is in S3.
    * @param amazonS3Client
    * The Amazon S3 Client which will be handling the file
    * @param bucketName
@@ -66,81 +102,309 @@ public class S3OutputStreamWrapper extends OutputStream {
    * If there is an issue creating the stream, this
    */
   public S3OutputStreamWrapper(AmazonS3Client amazonS3Client, String bucketName, String path, String fileName, Map<String, String> metaData) throws IOException {
+    this(amazonS3Client, bucketName, path, fileName, metaData, Shared.BUFFERS, Shared.UPLOADS, true);
+  }
+
+  /**
+   * Create an OutputStream Wrapper that uploads parts from a shared buffer pool.
+   * @param amazonS3Client
+   * The Amazon S3 Client which will be handling the file
+   * @param bucketName
+   * The Bucket Name you are wishing to write to.
+   * @param path
+   * The path where the object will live
+   * @param fileName
+   * The fileName you ware wishing to write.
+   * @param metaData
+   * Any meta data that is to be written along with the object
+   * @param buffers
+   * Buffers to fill, one part each; every buffer must be at least MIN_PART_SIZE bytes
+   * @param uploadExecutor
+   * Executor that uploads the parts
+   * @throws IOException
+   * If there is an issue creating the stream, this
+   */
+  public S3OutputStreamWrapper(AmazonS3Client amazonS3Client, String bucketName, String path, String fileName,
+                               Map<String, String> metaData, BlockingQueue<ByteBuffer> buffers, Executor uploadExecutor) throws IOException {
+    this(amazonS3Client, bucketName, path, fileName, metaData, buffers, uploadExecutor, false);
+  }
+
+  private S3OutputStreamWrapper(AmazonS3Client amazonS3Client, String bucketName, String path, String fileName,
+                                Map<String, String> metaData, BlockingQueue<ByteBuffer> buffers, Executor uploadExecutor,
+                                boolean shared) {
+    this.shared = shared;
     this.amazonS3Client = amazonS3Client;
     this.bucketName = bucketName;
     this.path = path;
     this.fileName = fileName;
     this.metaData = metaData;
-    this.outputStream = new ByteArrayOutputStream();
+    this.buffers = buffers;
+    this.uploadExecutor = uploadExecutor;
+  }
+
+  /**
+   * Create a pool of direct buffers to share between wrappers.
+   * @param count number of buffers
+   * @param size size of each buffer, and so of each uploaded part
+   * @return pool
+   */
+  public static BlockingQueue<ByteBuffer> newBufferPool(int count, int size) {
+    BlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(count);
+    for (int i = 0; i < count; i++) {
+      pool.add(ByteBuffer.allocateDirect(size));
+    }
+    return pool;
   }
 
   public void write(int byt) throws IOException {
-    this.outputStream.write(byt);
+    ensureBuffer();
+    this.buffer.put((byte) byt);
+    this.contentLength++;
   }
 
   public void write(byte[] byt) throws IOException {
-    this.outputStream.write(byt);
+    write(byt, 0, byt.length);
   }
 
   public void write(byte[] byt, int off, int len) throws IOException {
-    this.outputStream.write(byt, off, len);
+    while (len > 0) {
+      ensureBuffer();
+      int count = Math.min(len, this.buffer.remaining());
+      this.buffer.put(byt, off, count);
+      this.contentLength += count;
+      off += count;
+      len -= count;
+    }
   }
 
   public void flush() throws IOException {
-    this.outputStream.flush();
+    // parts are uploaded as their buffers fill
   }
 
   /**
-   * Whenever the output stream is closed we are going to kick the ByteArrayOutputStream off to Amazon S3.
+   * Whenever the output stream is closed we upload the remaining bytes and complete the upload in the background,
+   * or, for a wrapper created with the original constructor, wait for the upload to complete.
    * @throws IOException
-   * Exception thrown from the FileOutputStream
+   * If a wrapper created with the original constructor could not write the object
    */
   public void close() throws IOException {
     if (!isClosed) {
       try {
-        this.addFile();
-        this.outputStream.close();
-        this.outputStream = null;
+        if (this.uploadId == null) {
+          this.uploadResult = putFile();
+        } else {
+          if (this.buffer != null && this.buffer.position() > 0) {
+            uploadPart();
+          }
+          this.uploadResult = completeFile();
+        }
       } catch (Exception ex) {
-        ex.printStackTrace();
-        LOGGER.warn("There was an error adding the temporaryFile to S3");
+        LOGGER.warn("There was an error adding {} to S3", path + fileName, ex);
+        this.uploadResult = new CompletableFuture<>();
+        this.uploadResult.completeExceptionally(ex);
+        abort();
       } finally {
         // we are done here.
         this.isClosed = true;
       }
+      if (this.shared) {
+        try {
+          this.uploadResult.join();
+        } catch (CompletionException ex) {
+          throw new IOException("Unable to write " + path + fileName + " to S3", ex.getCause());
+        }
+      }
     }
   }
 
-  private void addFile() throws Exception {
+  /**
+   * Completes when the object is in S3, or exceptionally if it could not be written.
+   * @return result, or null if the stream is still open
+   */
+  public CompletableFuture<Void> getUploadResult() {
+    return this.uploadResult;
+  }
 
-    InputStream is = new ByteArrayInputStream(this.outputStream.toByteArray());
-    int contentLength = outputStream.size();
+  private void ensureBuffer() throws IOException {
+    if (this.buffer == null) {
+      this.buffer = takeBuffer();
+    } else if (!this.buffer.hasRemaining()) {
+      uploadPart();
+      this.buffer = takeBuffer();
+    }
+  }
+
+  private ByteBuffer takeBuffer() throws IOException {
+    if (this.shared) {
+      // wrappers sharing the default pool fill buffers at their own pace and could otherwise wait on each
+      // other forever, so once the direct buffers run out they fall back to garbage collected ones
+      ByteBuffer next = this.buffers.poll();
+      if (next == null) {
+        return ByteBuffer.allocate(MIN_PART_SIZE);
+      }
+      next.clear();
+      return next;
+    }
+    try {
+      ByteBuffer next = this.buffers.take();
+      next.clear();
+      return next;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for an upload buffer", ex);
+    }
+  }
 
-    TransferManager transferManager = new TransferManager(amazonS3Client);
+  private ObjectMetadata objectMetadata() {
     ObjectMetadata metadata = new ObjectMetadata();
     metadata.setExpirationTime(DateTime.now().plusDays(365 * 3).toDate());
-    metadata.setContentLength(contentLength);
 
     metadata.addUserMetadata("writer", "org.apache.streams");
 
     for (String s : metaData.keySet()) {
       metadata.addUserMetadata(s, metaData.get(s));
     }
+    return metadata;
+  }
 
-    String fileNameToWrite = path + fileName;
-    Upload upload = transferManager.upload(bucketName, fileNameToWrite, is, metadata);
-    try {
-      upload.waitForUploadResult();
+  private void uploadPart() {
+    if (this.uploadId == null) {
+      InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucketName, path + fileName, objectMetadata());
+      this.uploadId = amazonS3Client.initiateMultipartUpload(request).getUploadId();
+    }
+    final ByteBuffer part = this.buffer;
+    final int partNumber = this.parts.size() + 1;
+    this.buffer = null;
+    part.flip();
+    this.parts.add(CompletableFuture.supplyAsync(() -> {
+      try {
+        UploadPartRequest request = new UploadPartRequest()
+            .withBucketName(bucketName)
+            .withKey(path + fileName)
+            .withUploadId(uploadId)
+            .withPartNumber(partNumber)
+            .withPartSize(part.remaining())
+            .withInputStream(new ByteBufferInputStream(part));
+        return amazonS3Client.uploadPart(request).getPartETag();
+      } finally {
+        if (part.isDirect()) {
+          this.buffers.offer(part);
+        }
+      }
+    }, uploadExecutor));
+  }
 
-      is.close();
-      transferManager.shutdownNow(false);
+  private CompletableFuture<Void> putFile() {
+    final ByteBuffer part = this.buffer != null ? this.buffer : ByteBuffer.allocate(0);
+    this.buffer = null;
+    part.flip();
+    return CompletableFuture.runAsync(() -> {
+      try {
+        ObjectMetadata metadata = objectMetadata();
+        metadata.setContentLength(part.remaining());
+        amazonS3Client.putObject(new PutObjectRequest(bucketName, path + fileName, new ByteBufferInputStream(part), metadata));
+        LOGGER.info("S3 File Close[{} kb] - {}", contentLength / 1024, path + fileName);
+      } finally {
+        if (part.isDirect()) {
+          this.buffers.offer(part);
+        }
+      }
+    }, uploadExecutor);
+  }
+
+  private CompletableFuture<Void> completeFile() {
+    CompletableFuture<?>[] pending = this.parts.toArray(new CompletableFuture<?>[0]);
+    return CompletableFuture.allOf(pending).thenRunAsync(() -> {
+      List<PartETag> etags = this.parts.stream().map(CompletableFuture::join).collect(Collectors.toList());
+      amazonS3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, path + fileName, uploadId, etags));
       LOGGER.info("S3 File Close[{} kb] - {}", contentLength / 1024, path + fileName);
-    } catch (Exception ignored) {
-      LOGGER.trace("Ignoring", ignored);
+    }, uploadExecutor).whenComplete((ignored, ex) -> {
+      if (ex != null) {
+        LOGGER.warn("There was an error uploading {} to S3: {}", path + fileName, ex.getMessage());
+        abort();
+      }
+    });
+  }
+
+  private void abort() {
+    if (this.uploadId != null) {
+      try {
+        amazonS3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, path + fileName, uploadId));
+      } catch (Exception ex) {
+        LOGGER.warn("Problem aborting the upload of {}: {}", path + fileName, ex.getMessage());
+      }
     }
+  }
+
+  /**
+   * Buffers and upload threads shared by every wrapper created without its own, created on first use.
+   * The threads are daemons, since nothing owns them to shut them down.
+   */
+  private static class Shared {
+
+    static final BlockingQueue<ByteBuffer> BUFFERS = newBufferPool(SHARED_BUFFERS, MIN_PART_SIZE);
+
+    static final ExecutorService UPLOADS = Executors.newFixedThreadPool(SHARED_UPLOAD_THREADS, new ThreadFactory());
+
+    private static class ThreadFactory implements java.util.concurrent.ThreadFactory {
 
+      private final AtomicInteger count = new AtomicInteger();
 
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "s3-upload-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    }
   }
 
+  /**
+   * Reads a part without copying it out of its buffer.
+   */
+  private static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(len, buffer.remaining());
+      buffer.get(bytes, off, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+
+    // lets the client retry a failed request from the start of the part
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+      buffer.mark();
+    }
+
+    @Override
+    public synchronized void reset() {
+      buffer.reset();
+    }
+  }
 
 }
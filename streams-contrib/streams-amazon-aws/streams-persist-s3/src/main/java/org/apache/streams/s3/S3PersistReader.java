@@ -20,6 +20,8 @@ package org.apache.streams.s3;
 
 import org.apache.streams.config.StreamsConfiguration;
 import org.apache.streams.config.StreamsConfigurator;
+import org.apache.streams.converter.DatumPartitioner;
+import org.apache.streams.converter.FileManifest;
 import org.apache.streams.converter.LineReadWriteUtil;
 import org.apache.streams.core.DatumStatusCountable;
 import org.apache.streams.core.DatumStatusCounter;
@@ -37,18 +39,24 @@ import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.S3ClientOptions;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.Queues;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Queue;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -57,6 +65,15 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * S3PersistReader reads documents from s3.
+ *
+ * <p/>
+ * Objects are listed a page at a time while they are read, so reading starts as soon as the
+ * first page is listed, however many objects there are.
+ *
+ * <p/>
+ * readRange lists only the dt= and hr= partitions written by S3PersistWriter that overlap the range.
+ * readNew and readRange select objects by last modified time and the time in their names, and
+ * with a manifestKey configured, record the objects they read so later calls skip them.
  */
 public class S3PersistReader implements StreamsPersistReader, DatumStatusCountable {
 
@@ -64,15 +81,21 @@ public class S3PersistReader implements StreamsPersistReader, DatumStatusCountab
   public static final String STREAMS_ID = "S3PersistReader";
   protected static final char DELIMITER = '\t';
 
+  // most keys S3 returns per listing request
+  private static final int PAGE_SIZE = 1000;
+
   StreamsConfiguration streamsConfiguration;
 
   private S3ReaderConfiguration s3ReaderConfiguration;
   private AmazonS3Client amazonS3Client;
   private ObjectMapper mapper = new ObjectMapper();
   protected LineReadWriteUtil lineReaderUtil;
-  private Collection<String> files;
+  private Iterable<S3ObjectSummary> files;
+  private FileManifest manifest;
+  // objects that could not be read this run, so are left out of the manifest
+  private final Set<String> failedFiles = ConcurrentHashMap.newKeySet();
   private ExecutorService executor;
-  protected volatile Queue<StreamsDatum> persistQueue;
+  protected volatile BlockingQueue<StreamsDatum> persistQueue;
 
   protected DatumStatusCounter countersTotal = new DatumStatusCounter();
   protected DatumStatusCounter countersCurrent = new DatumStatusCounter();
@@ -90,12 +113,142 @@ public class S3PersistReader implements StreamsPersistReader, DatumStatusCountab
     return this.s3ReaderConfiguration.getBucket();
   }
 
+  /**
+   * Read the objects modified after sequence and not yet consumed.
+   * @param sequence epoch millis, or null for every object not in the manifest
+   * @return result
+   */
   public StreamsResultSet readNew(BigInteger sequence) {
-    return null;
+    long after = sequence != null ? sequence.longValue() : Long.MIN_VALUE;
+    List<S3ObjectSummary> objects = new ArrayList<>();
+    for (S3ObjectSummary objectSummary : (Iterable<S3ObjectSummary>) this::listing) {
+      if (objectSummary.getLastModified().getTime() > after && isUnconsumed(objectSummary)) {
+        objects.add(objectSummary);
+      }
+    }
+    LOGGER.info("Found {} new files", objects.size());
+    return readFiles(objects);
   }
 
+  /**
+   * Read the objects written between start and end and not yet consumed.
+   * Partitions that cannot hold datums from the range are not listed, and every object of a time
+   * partition that can is read, however late it was written.  Outside time partitions, an object is
+   * written from the time in its name until its last modified time.  Only whole objects are skipped,
+   * so datums just outside the range may be returned too.
+   * @param start earliest timestamp, or null
+   * @param end latest timestamp, or null
+   * @return result
+   */
   public StreamsResultSet readRange(DateTime start, DateTime end) {
-    return null;
+    List<S3ObjectSummary> objects = new ArrayList<>();
+    for (S3ObjectSummary objectSummary : listFiles(start, end)) {
+      // a time partition already holds just datums of its time, so backfilled objects are trusted
+      if ((DatumPartitioner.isTimePartitioned(objectSummary.getKey())
+          || FileManifest.overlaps(objectSummary.getKey(), objectSummary.getLastModified().getTime(), start, end))
+          && isUnconsumed(objectSummary)) {
+        objects.add(objectSummary);
+      }
+    }
+    LOGGER.info("Found {} files in range {} - {}", objects.size(), start, end);
+    return readFiles(objects);
+  }
+
+  // every object under readerPath, listed a page at a time
+  private Iterator<S3ObjectSummary> listing() {
+    return new S3ListingIterator(this.amazonS3Client, getBucketName(), s3ReaderConfiguration.getReaderPath(), PAGE_SIZE);
+  }
+
+  private List<S3ObjectSummary> listFiles(DateTime start, DateTime end) {
+    List<S3ObjectSummary> objects = new ArrayList<>();
+    listFiles(s3ReaderConfiguration.getReaderPath(), "", start, end, objects);
+    return objects;
+  }
+
+  // list one level of keys at a time, descending only into partitions that overlap the range
+  private void listFiles(String prefix, String partition, DateTime start, DateTime end, List<S3ObjectSummary> objects) {
+    ListObjectsRequest request = new ListObjectsRequest()
+        .withBucketName(this.s3ReaderConfiguration.getBucket())
+        .withPrefix(prefix)
+        .withDelimiter("/")
+        .withMaxKeys(PAGE_SIZE);
+    ObjectListing listing = this.amazonS3Client.listObjects(request);
+    while (true) {
+      objects.addAll(listing.getObjectSummaries());
+      for (String commonPrefix : listing.getCommonPrefixes()) {
+        String name = StringUtils.removeEnd(commonPrefix.substring(prefix.length()), "/");
+        String child = partition.isEmpty() ? name : partition + "/" + name;
+        if (DatumPartitioner.overlaps(child, start, end)) {
+          listFiles(commonPrefix, child, start, end, objects);
+        }
+      }
+      if (!listing.isTruncated()) {
+        break;
+      }
+      listing = this.amazonS3Client.listNextBatchOfObjects(listing);
+    }
+  }
+
+  private boolean isUnconsumed(S3ObjectSummary objectSummary) {
+    return manifest == null
+        || !objectSummary.getKey().equals(s3ReaderConfiguration.getManifestKey())
+        && !manifest.isConsumed(objectSummary.getKey(), objectSummary.getLastModified().getTime());
+  }
+
+  // read objects, then record those read without error in the manifest
+  private StreamsResultSet readFiles(List<S3ObjectSummary> objects) {
+    if (objects.isEmpty()) {
+      return new StreamsResultSet(new LinkedBlockingQueue<>());
+    }
+    this.failedFiles.clear();
+    return read(() -> {
+      new S3PersistReaderTask(this, objects).run();
+      commit(objects);
+    });
+  }
+
+  // run a read to completion into a queue of its own; nothing drains that queue until the read
+  // returns, so unlike the queue readCurrent drains it can not be bounded, and the read is not
+  // abandoned part way, which would leave it committing objects nobody consumed
+  private StreamsResultSet read(Runnable readerTask) {
+    BlockingQueue<StreamsDatum> streaming = persistQueue;
+    BlockingQueue<StreamsDatum> results = new LinkedBlockingQueue<>();
+    persistQueue = results;
+    try {
+      readerTask.run();
+    } finally {
+      persistQueue = streaming;
+    }
+    return new StreamsResultSet(results);
+  }
+
+  private synchronized void commit(List<S3ObjectSummary> objects) {
+    if (manifest == null) {
+      return;
+    }
+    for (S3ObjectSummary objectSummary : objects) {
+      if (!failedFiles.contains(objectSummary.getKey())) {
+        manifest.add(objectSummary.getKey(), objectSummary.getLastModified().getTime());
+      }
+    }
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      manifest.store(out);
+      ObjectMetadata metadata = new ObjectMetadata();
+      metadata.setContentLength(out.size());
+      this.amazonS3Client.putObject(getBucketName(), s3ReaderConfiguration.getManifestKey(), new ByteArrayInputStream(out.toByteArray()), metadata);
+      LOGGER.info("Manifest : {} consumed files", manifest.size());
+    } catch (Exception ex) {
+      LOGGER.error("Unable to write manifest {}: {}", s3ReaderConfiguration.getManifestKey(), ex.getMessage());
+    }
+  }
+
+  /**
+   * Note an object that could not be read, so it is not recorded as consumed.
+   * @param file key
+   */
+  protected void failed(String file) {
+    failedFiles.add(file);
   }
 
   @Override
@@ -107,7 +260,11 @@ public class S3PersistReader implements StreamsPersistReader, DatumStatusCountab
     return countersTotal;
   }
 
-  public Collection<String> getFiles() {
+  /**
+   * Objects readAll and startStream read, listed lazily as they are iterated.
+   * @return objects
+   */
+  public Iterable<S3ObjectSummary> getFiles() {
     return this.files;
   }
 
@@ -146,51 +303,22 @@ public class S3PersistReader implements StreamsPersistReader, DatumStatusCountab
       this.amazonS3Client.setS3ClientOptions(clientOptions);
     }
 
-    final ListObjectsRequest request = new ListObjectsRequest()
-        .withBucketName(this.s3ReaderConfiguration.getBucket())
-        .withPrefix(s3ReaderConfiguration.getReaderPath())
-        .withMaxKeys(500);
-
-
-    ObjectListing listing = this.amazonS3Client.listObjects(request);
-
-    this.files = new ArrayList<>();
-
-    /*
-     * If you can list files that are in this path, then you must be dealing with a directory
-     * if you cannot list files that are in this path, then you are most likely dealing with
-     * a simple file.
-     */
-    boolean hasCommonPrefixes = listing.getCommonPrefixes().size() > 0;
-    boolean hasObjectSummaries = listing.getObjectSummaries().size() > 0;
-
-    if (hasCommonPrefixes || hasObjectSummaries) {
-      // Handle the 'directory' use case
-      do {
-        if (hasCommonPrefixes) {
-          for (String file : listing.getCommonPrefixes()) {
-            this.files.add(file);
-          }
-        } else {
-          for (final S3ObjectSummary objectSummary : listing.getObjectSummaries()) {
-            this.files.add(objectSummary.getKey());
-          }
-        }
-
-        // get the next batch.
-        listing = this.amazonS3Client.listNextBatchOfObjects(listing);
+    // nothing is listed until reading starts
+    this.files = this::listing;
+
+    if (StringUtils.isNotBlank(s3ReaderConfiguration.getManifestKey())) {
+      try {
+        manifest = FileManifest.load(this.amazonS3Client.doesObjectExist(getBucketName(), s3ReaderConfiguration.getManifestKey())
+            ? this.amazonS3Client.getObject(getBucketName(), s3ReaderConfiguration.getManifestKey()).getObjectContent()
+            : null);
+        LOGGER.info("Manifest : {} consumed files", manifest.size());
+      } catch (IOException ex) {
+        LOGGER.error("Unable to read manifest {}", s3ReaderConfiguration.getManifestKey(), ex);
+        throw new RuntimeException(ex);
       }
-      while (listing.isTruncated());
-    } else {
-      // handle the single file use-case
-      this.files.add(s3ReaderConfiguration.getReaderPath());
-    }
-
-    if (this.files.size() <= 0) {
-      LOGGER.error("There are no files to read");
     }
 
-    this.persistQueue = Queues.synchronizedQueue(new LinkedBlockingQueue<StreamsDatum>(streamsConfiguration.getQueueSize().intValue()));
+    this.persistQueue = new LinkedBlockingQueue<>(streamsConfiguration.getQueueSize().intValue());
     this.executor = Executors.newSingleThreadExecutor();
   }
 
@@ -200,12 +328,7 @@ public class S3PersistReader implements StreamsPersistReader, DatumStatusCountab
 
   public StreamsResultSet readAll() {
     LOGGER.debug("readAll");
-    Thread thread = new Thread(new S3PersistReaderTask(this));
-    try {
-      thread.start();
-      thread.join(streamsConfiguration.getProviderTimeoutMs());
-    } catch( InterruptedException ie) {}
-    return new StreamsResultSet(persistQueue);
+    return read(new S3PersistReaderTask(this));
   }
 
   public void startStream() {
@@ -216,17 +339,28 @@ public class S3PersistReader implements StreamsPersistReader, DatumStatusCountab
   @Override
   public StreamsResultSet readCurrent() {
 
-    StreamsResultSet current;
+    List<StreamsDatum> batch = new ArrayList<>();
+    persistQueue.drainTo(batch);
+
+    StreamsResultSet current = new StreamsResultSet(new ConcurrentLinkedQueue<>(batch));
 
     synchronized ( S3PersistReader.class ) {
-      current = new StreamsResultSet(new ConcurrentLinkedQueue<>(persistQueue));
       current.setCounter(new DatumStatusCounter());
       current.getCounter().add(countersCurrent);
       countersTotal.add(countersCurrent);
       countersCurrent = new DatumStatusCounter();
-      persistQueue.clear();
     }
     return current;
   }
 
+  /**
+   * Add counts accumulated by a reader thread.
+   * @param counter counter
+   */
+  protected void count( DatumStatusCounter counter ) {
+    synchronized ( S3PersistReader.class ) {
+      countersCurrent.add(counter);
+    }
+  }
+
 }
@@ -18,65 +18,212 @@
 
 package org.apache.streams.s3;
 
+import org.apache.streams.converter.LineRangeReader;
 import org.apache.streams.core.DatumStatus;
+import org.apache.streams.core.DatumStatusCounter;
 import org.apache.streams.core.StreamsDatum;
-import org.apache.streams.util.ComponentUtils;
+import org.apache.streams.util.codec.BlockCompressedInputStream;
+import org.apache.streams.util.codec.BlockCompressedOutputStream;
+import org.apache.streams.util.codec.StreamsCodec;
+import org.apache.streams.util.codec.StreamsCodecs;
 
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
-import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
 
 /**
- * S3PersistReaderTask reads documents from s3 on behalf of
+ * S3PersistReaderTask reads from s3 on behalf of
  * @see org.apache.streams.s3.S3PersistReader
+ *
+ * <p/>
+ * Objects are taken from the reader's listing as threads free up, and read by a pool of
+ * readerThreads threads, one object per thread; uncompressed or block-compressed (lz4, snappy,
+ * deflate) objects larger than splitSize are split into ranges on line or block boundaries and
+ * read concurrently.  The codec is chosen by extension, or by the
+ * first bytes of objects without a codec extension.
  */
 public class S3PersistReaderTask implements Runnable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(S3PersistReaderTask.class);
 
+  // lines read between counter updates
+  private static final int COUNT_INTERVAL = 1000;
+
   private S3PersistReader reader;
+  private Iterable<S3ObjectSummary> files;
 
   public S3PersistReaderTask(S3PersistReader reader) {
+    this(reader, reader.getFiles());
+  }
+
+  /**
+   * S3PersistReaderTask constructor - reads just the supplied objects.
+   * @param reader reader
+   * @param files objects to read
+   */
+  public S3PersistReaderTask(S3PersistReader reader, Iterable<S3ObjectSummary> files) {
     this.reader = reader;
+    this.files = files;
   }
 
   @Override
   public void run() {
 
-    for (String file : reader.getFiles()) {
-
-      // Create our buffered reader
-      S3ObjectInputStreamWrapper is = new S3ObjectInputStreamWrapper(reader.getAmazonS3Client().getObject(reader.getBucketName(), file));
-      BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(is));
-      LOGGER.info("Reading: {} ", file);
-
-      String line;
-      try {
-        while ((line = bufferedReader.readLine()) != null) {
-          if (StringUtils.isNotEmpty(line) ) {
-            reader.countersCurrent.incrementAttempt();
-            StreamsDatum entry = reader.lineReaderUtil.processLine(line);
-            ComponentUtils.offerUntilSuccess(entry, reader.persistQueue);
-            reader.countersCurrent.incrementStatus(DatumStatus.SUCCESS);
+    S3ReaderConfiguration config = reader.getS3ReaderConfiguration();
+    int threads = Math.max(1, config.getReaderThreads() != null ? config.getReaderThreads().intValue() : 1);
+    long splitSize = config.getSplitSize() != null ? config.getSplitSize() : 0;
+
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    // objects are taken from the listing only as workers free up, so the listing is never held in memory
+    Semaphore admitted = new Semaphore(threads * 2);
+    // every object and range in flight, plus this thread
+    Phaser pending = new Phaser(1);
+
+    int count = 0;
+    try {
+      for (S3ObjectSummary file : files) {
+        admitted.acquire();
+        count++;
+        pending.register();
+        workers.execute(() -> {
+          try {
+            readFile(file, splitSize, workers, pending);
+          } finally {
+            admitted.release();
+            pending.arriveAndDeregister();
           }
-        }
-      } catch (Exception ex) {
-        ex.printStackTrace();
-        LOGGER.warn(ex.getMessage());
-        reader.countersCurrent.incrementStatus(DatumStatus.FAIL);
+        });
       }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (Exception ex) {
+      LOGGER.error("Unable to list {}: {}", config.getReaderPath(), ex.getMessage());
+    }
+    if (count == 0) {
+      LOGGER.error("There are no files to read");
+    }
 
-      LOGGER.info("Completed:  " + file);
+    try {
+      pending.awaitAdvanceInterruptibly(pending.arrive());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    workers.shutdownNow();
+  }
 
-      try {
-        closeSafely(file, is);
-      } catch (Exception ex) {
-        LOGGER.error(ex.getMessage());
+  private void readFile(S3ObjectSummary file, long splitSize, ExecutorService workers, Phaser pending) {
+    String key = file.getKey();
+    final StreamsCodec codec;
+    final byte[] header;
+    try {
+      StreamsCodec named = StreamsCodecs.forFile(key);
+      byte[] head = named == null || isBlockCompressed(named) ? readHead(key) : null;
+      codec = named != null ? named : StreamsCodecs.forMagic(head, head.length);
+      header = isBlockCompressed(codec) ? BlockCompressedInputStream.readHeader(new ByteArrayInputStream(head)) : null;
+    } catch (Exception ex) {
+      LOGGER.warn("Unable to read {}: {}", key, ex.getMessage());
+      reader.failed(key);
+      return;
+    }
+    // gzip objects can only be read from the start
+    List<long[]> fileRanges = splitSize > 0 && codec.isSplittable()
+        ? LineRangeReader.split(file.getSize(), splitSize)
+        : LineRangeReader.split(0, 0);
+    // the first range is read here, and the rest by any free worker
+    for (long[] range : fileRanges.subList(1, fileRanges.size())) {
+      pending.register();
+      workers.execute(() -> {
+        try {
+          readRange(key, codec, header, range[0], range[1]);
+        } finally {
+          pending.arriveAndDeregister();
+        }
+      });
+    }
+    readRange(key, codec, header, fileRanges.get(0)[0], fileRanges.get(0)[1]);
+  }
+
+  private static boolean isBlockCompressed(StreamsCodec codec) {
+    return codec != StreamsCodecs.NONE && codec != StreamsCodecs.GZIP;
+  }
+
+  // the first bytes of an object, enough for its block header or codec magic
+  private byte[] readHead(String file) throws Exception {
+    GetObjectRequest request = new GetObjectRequest(reader.getBucketName(), file)
+        .withRange(0, BlockCompressedOutputStream.HEADER_LENGTH - 1);
+    try (S3ObjectInputStreamWrapper is = new S3ObjectInputStreamWrapper(reader.getAmazonS3Client().getObject(request))) {
+      return IOUtils.toByteArray(is);
+    }
+  }
+
+  private void readRange(String file, StreamsCodec codec, byte[] header, long start, long end) {
+
+    GetObjectRequest request = new GetObjectRequest(reader.getBucketName(), file);
+    if (header != null && start > 0) {
+      request.withRange(start);
+    } else if (start > 0) {
+      // one byte early, so the range can tell whether it starts on a line boundary
+      request.withRange(start - 1);
+    }
+
+    Charset charset = Charset.forName(reader.getS3ReaderConfiguration().getEncoding());
+    LOGGER.info("Reading: {} [{}, {}) Compression: {}", file, start, end, codec.getName());
+
+    DatumStatusCounter counter = new DatumStatusCounter();
+    String line;
+    S3ObjectInputStreamWrapper is = null;
+    try {
+      is = new S3ObjectInputStreamWrapper(reader.getAmazonS3Client().getObject(request));
+      // Create our line reader; block ranges hold whole lines, so they are read as a whole stream
+      LineRangeReader lineReader;
+      if (header != null) {
+        lineReader = new LineRangeReader(new BlockCompressedInputStream(header, is, start, end), charset);
+      } else if (codec == StreamsCodecs.NONE) {
+        lineReader = new LineRangeReader(is, charset, start, end);
+      } else {
+        lineReader = new LineRangeReader(codec.decompress(is), charset);
+      }
+      while ((line = lineReader.readLine()) != null) {
+        if (StringUtils.isNotEmpty(line) ) {
+          counter.incrementAttempt();
+          StreamsDatum entry = reader.lineReaderUtil.processLine(line);
+          if (entry != null) {
+            Uninterruptibles.putUninterruptibly(reader.persistQueue, entry);
+            counter.incrementStatus(DatumStatus.SUCCESS);
+          } else {
+            LOGGER.warn("processLine failed");
+            counter.incrementStatus(DatumStatus.FAIL);
+          }
+          if (counter.getEmitted() >= COUNT_INTERVAL) {
+            reader.count(counter);
+            counter = new DatumStatusCounter();
+          }
+        }
       }
+    } catch (Exception ex) {
+      LOGGER.warn("Error reading {} [{}, {})", file, start, end, ex);
+      counter.incrementStatus(DatumStatus.FAIL);
+      reader.failed(file);
+    }
+    reader.count(counter);
+
+    LOGGER.info("Completed:  " + file);
+
+    if (is != null) {
+      closeSafely(file, is);
     }
   }
 
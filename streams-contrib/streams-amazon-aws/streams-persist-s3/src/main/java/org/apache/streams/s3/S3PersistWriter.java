@@ -20,6 +20,7 @@ package org.apache.streams.s3;
 
 import org.apache.streams.config.ComponentConfigurator;
 import org.apache.streams.config.StreamsConfigurator;
+import org.apache.streams.converter.DatumPartitioner;
 import org.apache.streams.converter.LineReadWriteUtil;
 import org.apache.streams.core.DatumStatus;
 import org.apache.streams.core.DatumStatusCountable;
@@ -27,6 +28,8 @@ import org.apache.streams.core.DatumStatusCounter;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
 import org.apache.streams.jackson.StreamsJacksonMapper;
+import org.apache.streams.util.codec.StreamsCodec;
+import org.apache.streams.util.codec.StreamsCodecs;
 
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.Protocol;
@@ -44,19 +47,34 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Flushable;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * S3PersistWriter writes documents to s3.
+ *
+ * <p/>
+ * Files are compressed with the configured codec as they are uploaded; lz4, snappy and deflate
+ * files are block compressed, so S3PersistReader can still read them in ranges.
+ *
+ * <p/>
+ * With partitionGranularity or partitionMetadataKey set, files are written below the writer path
+ * in Hive style partition directories (see {@link DatumPartitioner}), with one open file per
+ * partition.  When maxOpenFiles partitions are open, the least recently written one is closed.
  */
 public class S3PersistWriter implements StreamsPersistWriter, DatumStatusCountable {
 
@@ -73,10 +91,8 @@ public class S3PersistWriter implements StreamsPersistWriter, DatumStatusCountab
   protected LineReadWriteUtil lineWriterUtil;
 
   private final AtomicLong totalBytesWritten = new AtomicLong();
-  private AtomicLong bytesWrittenThisFile = new AtomicLong();
 
   private final AtomicInteger totalRecordsWritten = new AtomicInteger();
-  private AtomicInteger fileLineCounter = new AtomicInteger();
 
   private static Map<String, String> objectMetaData = new HashMap<>();
 
@@ -87,7 +103,15 @@ public class S3PersistWriter implements StreamsPersistWriter, DatumStatusCountab
     objectMetaData.put("line[3]", "document");
   }
 
-  private OutputStreamWriter currentWriter = null;
+  // one open file per partition, least recently written first
+  private final LinkedHashMap<String, PartitionFile> openFiles = new LinkedHashMap<>(16, 0.75f, true);
+  private DatumPartitioner partitioner;
+  private int maxOpenFiles;
+
+  // part buffers and upload threads shared by every file this writer rolls through
+  private BlockingQueue<ByteBuffer> partBuffers;
+  private ExecutorService uploadExecutor;
+  private final List<CompletableFuture<Void>> pendingUploads = new ArrayList<>();
 
   public AmazonS3Client getAmazonS3Client() {
     return this.amazonS3Client;
@@ -146,11 +170,13 @@ public class S3PersistWriter implements StreamsPersistWriter, DatumStatusCountab
   public void write(StreamsDatum streamsDatum) {
 
     synchronized (this) {
+      PartitionFile file = openFile(partitioner.getPartition(streamsDatum));
+
       // Check to see if we need to reset the file that we are currently working with
-      if (this.currentWriter == null || ( this.bytesWrittenThisFile.get()  >= (this.s3WriterConfiguration.getMaxFileSize() * 1024 * 1024))) {
+      if (file.writer == null || ( file.bytesWritten >= (this.s3WriterConfiguration.getMaxFileSize() * 1024 * 1024))) {
         try {
           LOGGER.info("Resetting the file");
-          this.currentWriter = resetFile();
+          resetFile(file);
         } catch (Exception ex) {
           ex.printStackTrace();
         }
@@ -159,7 +185,7 @@ public class S3PersistWriter implements StreamsPersistWriter, DatumStatusCountab
       String line = lineWriterUtil.convertResultToString(streamsDatum);
 
       try {
-        this.currentWriter.write(line);
+        file.writer.write(line);
       } catch (IOException ex) {
         ex.printStackTrace();
       }
@@ -167,27 +193,45 @@ public class S3PersistWriter implements StreamsPersistWriter, DatumStatusCountab
       // add the bytes we've written
       int recordSize = line.getBytes().length;
       this.totalBytesWritten.addAndGet(recordSize);
-      this.bytesWrittenThisFile.addAndGet(recordSize);
+      file.bytesWritten += recordSize;
 
       // increment the record count
       this.totalRecordsWritten.incrementAndGet();
-      this.fileLineCounter.incrementAndGet();
+      file.lineCounter++;
     }
 
   }
 
+  // the open file for a partition, closing the least recently written file if too many are open
+  private PartitionFile openFile(String partition) {
+    PartitionFile file = this.openFiles.get(partition);
+    if (file == null) {
+      if (this.openFiles.size() >= this.maxOpenFiles) {
+        Iterator<PartitionFile> eldest = this.openFiles.values().iterator();
+        PartitionFile evicted = eldest.next();
+        eldest.remove();
+        closeAndDestroyWriter(evicted);
+      }
+      file = new PartitionFile(partition);
+      this.openFiles.put(partition, file);
+    }
+    return file;
+  }
+
   /**
    * Reset File when it's time to create a new file.
-   * @return OutputStreamWriter
+   * @param file file of the partition to roll
    * @throws Exception Exception
    */
-  public synchronized OutputStreamWriter resetFile() throws Exception {
+  private synchronized void resetFile(PartitionFile file) throws Exception {
     // this will keep it thread safe, so we don't create too many files
-    if (this.fileLineCounter.get() == 0 && this.currentWriter != null) {
-      return this.currentWriter;
+    if (file.lineCounter == 0 && file.writer != null) {
+      return;
     }
 
-    closeAndDestroyWriter();
+    closeAndDestroyWriter(file);
+
+    StreamsCodec codec = StreamsCodecs.forName(this.s3WriterConfiguration.getCompression().toString());
 
     // Create the path for where the file is going to live.
     try {
@@ -195,43 +239,65 @@ public class S3PersistWriter implements StreamsPersistWriter, DatumStatusCountab
       String fileName = this.s3WriterConfiguration.getWriterFilePrefix()
           + (this.s3WriterConfiguration.getChunk() ? "/" : "-")
           + new Date().getTime()
-          + ".tsv";
+          + ".tsv"
+          + codec.getExtension();
+
+      // partitions are directories below the writer path
+      String path = file.partition.isEmpty()
+          ? this.s3WriterConfiguration.getWriterPath()
+          : StringUtils.appendIfMissing(this.s3WriterConfiguration.getWriterPath(), "/") + file.partition + "/";
 
       // create the output stream
-      OutputStream outputStream = new S3OutputStreamWrapper(this.amazonS3Client,
+      S3OutputStreamWrapper outputStream = new S3OutputStreamWrapper(this.amazonS3Client,
           this.s3WriterConfiguration.getBucket(),
-          this.s3WriterConfiguration.getWriterPath(),
+          path,
           fileName,
-          objectMetaData);
+          objectMetaData,
+          partBuffers,
+          uploadExecutor);
+      file.stream = outputStream;
 
       // reset the counter
-      this.fileLineCounter = new AtomicInteger();
-      this.bytesWrittenThisFile = new AtomicLong();
+      file.lineCounter = 0;
+      file.bytesWritten = 0;
 
       // add this to the list of written files
-      writtenFiles.add(this.s3WriterConfiguration.getWriterPath() + fileName);
+      writtenFiles.add(path + fileName);
 
       // Log that we are creating this file
-      LOGGER.info("File Created: Bucket[{}] - {}", this.s3WriterConfiguration.getBucket(), this.s3WriterConfiguration.getWriterPath() + fileName);
+      LOGGER.info("File Created: Bucket[{}] - {}", this.s3WriterConfiguration.getBucket(), path + fileName);
 
-      // return the output stream
-      return new OutputStreamWriter(outputStream);
+      file.writer = new OutputStreamWriter(codec.compress(outputStream));
     } catch (Exception ex) {
       LOGGER.error(ex.getMessage());
       throw ex;
     }
   }
 
-  private synchronized void closeAndDestroyWriter() {
+  private synchronized void closeAndDestroyWriter(PartitionFile file) {
     // if there is a current writer, we must close it first.
-    if (this.currentWriter != null) {
-      this.safeFlush(this.currentWriter);
-      this.closeSafely(this.currentWriter);
-      this.currentWriter = null;
+    if (file.writer != null) {
+      this.safeFlush(file.writer);
+      this.closeSafely(file.writer);
+      file.writer = null;
+
+      // the upload finishes in the background; keep track of it so cleanUp can wait
+      if (file.stream != null && file.stream.getUploadResult() != null) {
+        this.pendingUploads.removeIf(CompletableFuture::isDone);
+        this.pendingUploads.add(file.stream.getUploadResult());
+      }
+      file.stream = null;
 
       // Logging of information to alert the user to the activities of this class
-      LOGGER.debug("File Closed: Records[{}] Bytes[{}] {} ", this.fileLineCounter.get(), this.bytesWrittenThisFile.get(), this.writtenFiles.get(this.writtenFiles.size() - 1));
+      LOGGER.debug("File Closed: Records[{}] Bytes[{}] {} ", file.lineCounter, file.bytesWritten, this.writtenFiles.get(this.writtenFiles.size() - 1));
+    }
+  }
+
+  private synchronized void closeAndDestroyWriters() {
+    for (PartitionFile file : this.openFiles.values()) {
+      closeAndDestroyWriter(file);
     }
+    this.openFiles.clear();
   }
 
   private synchronized void closeSafely(Writer writer)  {
@@ -293,11 +359,38 @@ public class S3PersistWriter implements StreamsPersistWriter, DatumStatusCountab
       }
 
       Preconditions.checkArgument(this.amazonS3Client != null);
+
+      this.partitioner = new DatumPartitioner(this.s3WriterConfiguration.getPartitionGranularity().toString(), this.s3WriterConfiguration.getPartitionMetadataKey());
+      this.maxOpenFiles = this.partitioner.isPartitioned() ? Math.max(1, this.s3WriterConfiguration.getMaxOpenFiles().intValue()) : 1;
+
+      // every open file fills one buffer while up to uploadThreads more are uploaded
+      int uploadThreads = Math.max(1, this.s3WriterConfiguration.getUploadThreads().intValue());
+      int partSize = Math.max(S3OutputStreamWrapper.MIN_PART_SIZE, this.s3WriterConfiguration.getPartSize().intValue() * 1024 * 1024);
+      this.partBuffers = S3OutputStreamWrapper.newBufferPool(this.maxOpenFiles + uploadThreads, partSize);
+      this.uploadExecutor = Executors.newFixedThreadPool(uploadThreads);
     }
   }
 
+  /**
+   * Close the current file and wait for every upload to finish.
+   */
   public void cleanUp() {
-    closeAndDestroyWriter();
+    closeAndDestroyWriters();
+    List<CompletableFuture<Void>> uploads;
+    synchronized (this) {
+      uploads = new ArrayList<>(this.pendingUploads);
+      this.pendingUploads.clear();
+    }
+    for (CompletableFuture<Void> upload : uploads) {
+      try {
+        upload.join();
+      } catch (Exception ex) {
+        LOGGER.warn("Upload failed: {}", ex.getMessage());
+      }
+    }
+    if (this.uploadExecutor != null) {
+      this.uploadExecutor.shutdown();
+    }
   }
 
   @Override
@@ -307,4 +400,20 @@ public class S3PersistWriter implements StreamsPersistWriter, DatumStatusCountab
     counters.incrementStatus(DatumStatus.SUCCESS, this.totalRecordsWritten.get());
     return counters;
   }
+
+  /**
+   * The open file of one partition.
+   */
+  private static class PartitionFile {
+
+    private final String partition;
+    private OutputStreamWriter writer;
+    private S3OutputStreamWrapper stream;
+    private int lineCounter = 0;
+    private long bytesWritten = 0;
+
+    private PartitionFile(String partition) {
+      this.partition = partition;
+    }
+  }
 }
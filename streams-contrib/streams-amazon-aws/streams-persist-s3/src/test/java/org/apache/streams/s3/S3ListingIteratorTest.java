@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.streams.s3;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class S3ListingIteratorTest {
+
+  // serves pages of two keys each, counting requests
+  private static class PagedClient extends AmazonS3Client {
+
+    private final int pages;
+    private int requests = 0;
+
+    PagedClient(int pages) {
+      super(new BasicAWSCredentials("key", "secret"));
+      this.pages = pages;
+    }
+
+    @Override
+    public ObjectListing listObjects(ListObjectsRequest request) {
+      return page(0);
+    }
+
+    @Override
+    public ObjectListing listNextBatchOfObjects(ObjectListing previous) {
+      return page(Integer.parseInt(previous.getNextMarker()));
+    }
+
+    private ObjectListing page(int number) {
+      requests++;
+      ObjectListing listing = new ObjectListing();
+      if (number < pages) {
+        for (int i = 0; i < 2; i++) {
+          S3ObjectSummary summary = new S3ObjectSummary();
+          summary.setKey("path/file-" + number + "-" + i);
+          listing.getObjectSummaries().add(summary);
+        }
+      }
+      listing.setTruncated(number + 1 < pages);
+      listing.setNextMarker(Integer.toString(number + 1));
+      return listing;
+    }
+  }
+
+  @Test
+  public void testPagesAreListedAsTheyAreConsumed() {
+    PagedClient client = new PagedClient(3);
+    S3ListingIterator iterator = new S3ListingIterator(client, "bucket", "path/", 2);
+    assertEquals(0, client.requests);
+
+    List<String> keys = new ArrayList<>();
+    keys.add(iterator.next().getKey());
+    assertEquals(1, client.requests);
+    while (iterator.hasNext()) {
+      keys.add(iterator.next().getKey());
+    }
+    assertEquals(3, client.requests);
+    assertEquals(Arrays.asList("path/file-0-0", "path/file-0-1", "path/file-1-0", "path/file-1-1",
+        "path/file-2-0", "path/file-2-1"), keys);
+  }
+
+  @Test
+  public void testEmptyListing() {
+    PagedClient client = new PagedClient(0);
+    S3ListingIterator iterator = new S3ListingIterator(client, "bucket", "path/", 2);
+    assertFalse(iterator.hasNext());
+    assertFalse(iterator.hasNext());
+    assertEquals(1, client.requests);
+  }
+
+  @Test
+  public void testLastPageIsRead() {
+    PagedClient client = new PagedClient(2);
+    S3ListingIterator iterator = new S3ListingIterator(client, "bucket", "path/", 2);
+    int count = 0;
+    while (iterator.hasNext()) {
+      iterator.next();
+      count++;
+    }
+    assertEquals(4, count);
+    assertEquals(2, client.requests);
+  }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class S3OutputStreamWrapperTest {
+
+  private static final int PART_SIZE = 16;
+
+  @Test
+  public void testLargeFileUploadsParts() throws Exception {
+    AmazonS3Client client = mock(AmazonS3Client.class);
+    InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+    initiated.setUploadId("upload");
+    when(client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+    ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+    when(client.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+      UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+      byte[] part = IOUtils.toByteArray(request.getInputStream());
+      assertEquals(request.getPartSize(), part.length);
+      synchronized (uploaded) {
+        uploaded.write(part);
+      }
+      UploadPartResult result = new UploadPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag("etag" + request.getPartNumber());
+      return result;
+    });
+
+    BlockingQueue<ByteBuffer> buffers = S3OutputStreamWrapper.newBufferPool(2, PART_SIZE);
+    // a single upload thread keeps the parts in order for the assertion below
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    S3OutputStreamWrapper stream = new S3OutputStreamWrapper(client, "bucket", "path/", "file", Collections.emptyMap(), buffers, executor);
+
+    byte[] content = new byte[100];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    stream.write(content, 0, 10);
+    stream.write(content, 10, 90);
+    stream.close();
+    stream.getUploadResult().join();
+    executor.shutdown();
+
+    assertArrayEquals(content, uploaded.toByteArray());
+    verify(client, times(7)).uploadPart(any(UploadPartRequest.class));
+    ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+    verify(client).completeMultipartUpload(complete.capture());
+    assertEquals(7, complete.getValue().getPartETags().size());
+    verify(client, never()).putObject(any(PutObjectRequest.class));
+    // every buffer went back to the pool
+    assertEquals(2, buffers.size());
+  }
+
+  @Test
+  public void testSmallFileUsesSinglePut() throws Exception {
+    AmazonS3Client client = mock(AmazonS3Client.class);
+    BlockingQueue<ByteBuffer> buffers = S3OutputStreamWrapper.newBufferPool(2, PART_SIZE);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    S3OutputStreamWrapper stream = new S3OutputStreamWrapper(client, "bucket", "path/", "file", Collections.emptyMap(), buffers, executor);
+
+    stream.write(new byte[] {1, 2, 3});
+    stream.close();
+    stream.getUploadResult().join();
+    executor.shutdown();
+
+    ArgumentCaptor<PutObjectRequest> put = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(client).putObject(put.capture());
+    assertEquals(3, put.getValue().getMetadata().getContentLength());
+    assertEquals("path/file", put.getValue().getKey());
+    verify(client, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    assertEquals(2, buffers.size());
+  }
+
+  @Test
+  public void testOriginalConstructorWaitsForUpload() throws Exception {
+    AmazonS3Client client = mock(AmazonS3Client.class);
+    S3OutputStreamWrapper stream = new S3OutputStreamWrapper(client, "bucket", "path/", "file", Collections.emptyMap());
+
+    stream.write(new byte[] {1, 2, 3});
+    stream.close();
+
+    assertTrue(stream.getUploadResult().isDone());
+    verify(client).putObject(any(PutObjectRequest.class));
+  }
+
+  @Test(expected = IOException.class)
+  public void testOriginalConstructorCloseThrowsUploadFailure() throws Exception {
+    AmazonS3Client client = mock(AmazonS3Client.class);
+    when(client.putObject(any(PutObjectRequest.class))).thenThrow(new AmazonClientException("unavailable"));
+    S3OutputStreamWrapper stream = new S3OutputStreamWrapper(client, "bucket", "path/", "file", Collections.emptyMap());
+
+    stream.write(new byte[] {1, 2, 3});
+    stream.close();
+  }
+
+}
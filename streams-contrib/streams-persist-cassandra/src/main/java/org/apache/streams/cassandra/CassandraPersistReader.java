@@ -26,16 +26,15 @@ import org.apache.streams.core.StreamsPersistReader;
 import org.apache.streams.core.StreamsResultSet;
 import org.apache.streams.jackson.StreamsJacksonMapper;
 
-import com.datastax.driver.core.Cluster;
-import com.datastax.driver.core.DataType;
-import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnMetadata;
 import com.datastax.driver.core.Metadata;
-import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.Row;
-import com.datastax.driver.core.Session;
 import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.Token;
+import com.datastax.driver.core.TokenRange;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
-import com.datastax.driver.core.schemabuilder.SchemaBuilder;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.Queues;
@@ -46,21 +45,36 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Queue;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
 
 /**
  * CassandraPersistReader reads documents from cassandra.
+ *
+ * <p/>
+ * The table is read as the token ranges of the ring, split further when there are fewer than
+ * RANGES_PER_THREAD per reader, by readerThreads readers that each take the next unread range
+ * and page through it fetchSize rows at a time.
+ *
+ * <p/>
+ * With checkpointTable set, each reader saves the last partition token it has finished in a
+ * range, and a restarted read skips finished ranges and resumes the rest after their saved
+ * token.  Checkpoints are removed once every range has been read, so the next read starts over.
  */
 public class CassandraPersistReader implements StreamsPersistReader {
 
@@ -68,17 +82,27 @@ public class CassandraPersistReader implements StreamsPersistReader {
 
   public static final Logger LOGGER = LoggerFactory.getLogger(CassandraPersistReader.class);
 
+  // ranges wanted per reader, so readers finishing early find more work
+  private static final int RANGES_PER_THREAD = 4;
+
   protected volatile Queue<StreamsDatum> persistQueue;
 
   private ObjectMapper mapper = StreamsJacksonMapper.getInstance();
 
   private ExecutorService executor;
-  private CompletableFuture<Boolean> readerTaskFuture = new CompletableFuture<>();
 
   private CassandraConfiguration config;
   private CassandraClient client;
 
-  protected Iterator<Row> rowIterator;
+  protected List<TokenRange> ranges;
+  protected PreparedStatement rangeStatement;
+  protected PreparedStatement openRangeStatement;
+  private Token minToken;
+
+  private String checkpointId;
+  private PreparedStatement checkpointStatement;
+  // "start:end" of a range -> its checkpoint
+  private Map<String, Row> checkpoints = Collections.emptyMap();
 
   protected final ReadWriteLock lock = new ReentrantReadWriteLock();
 
@@ -132,17 +156,152 @@ public class CassandraPersistReader implements StreamsPersistReader {
       return;
     }
 
-    String selectStatement = getSelectStatement();
-    ResultSet rs = client.client().execute(selectStatement);
-    rowIterator = rs.iterator();
-
-    if (!rowIterator.hasNext()) {
+    if (client.client().execute(QueryBuilder.select().all().from(config.getKeyspace(), config.getTable()).limit(1)).one() == null) {
       throw new RuntimeException("Table" + config.getTable() + "is empty!");
     }
 
+    prepareRanges();
+    if (StringUtils.isNotEmpty(config.getCheckpointTable())) {
+      prepareCheckpoints();
+    }
+
     persistQueue = constructQueue();
 
-    executor = Executors.newSingleThreadExecutor();
+    executor = Executors.newFixedThreadPool(Math.max(1, config.getReaderThreads().intValue()));
+  }
+
+  // split the ring into ranges, and prepare the statements reading one
+  private void prepareRanges() {
+    Metadata metadata = client.cluster().getMetadata();
+    TableMetadata table = metadata.getKeyspace(config.getKeyspace()).getTable(config.getTable());
+
+    String partitionKey = table.getPartitionKey().stream()
+        .map(column -> Metadata.quoteIfNecessary(column.getName()))
+        .collect(Collectors.joining(", "));
+    List<String> columns = new ArrayList<>();
+    for (ColumnMetadata column : table.getColumns()) {
+      columns.add(Metadata.quoteIfNecessary(column.getName()));
+    }
+    String select = "SELECT token(" + partitionKey + "), " + String.join(", ", columns)
+        + " FROM " + Metadata.quoteIfNecessary(config.getKeyspace()) + "." + Metadata.quoteIfNecessary(config.getTable())
+        + " WHERE token(" + partitionKey + ") > ?";
+    openRangeStatement = client.client().prepare(select);
+    rangeStatement = client.client().prepare(select + " AND token(" + partitionKey + ") <= ?");
+
+    List<TokenRange> ring = new ArrayList<>();
+    for (TokenRange range : metadata.getTokenRanges()) {
+      ring.addAll(range.unwrap());
+    }
+    int wanted = Math.max(1, config.getReaderThreads().intValue()) * RANGES_PER_THREAD;
+    if (ring.size() < wanted) {
+      int splits = (wanted + ring.size() - 1) / ring.size();
+      List<TokenRange> split = new ArrayList<>();
+      for (TokenRange range : ring) {
+        try {
+          split.addAll(range.splitEvenly(splits));
+        } catch (IllegalArgumentException | UnsupportedOperationException ex) {
+          split.add(range);
+        }
+      }
+      ring = split;
+    }
+    Collections.sort(ring);
+    ranges = ring;
+    // the end of the last unwrapped range: no token is above it
+    minToken = ring.get(0).getStart();
+    LOGGER.info("Reading {}.{} in {} token ranges", config.getKeyspace(), config.getTable(), ranges.size());
+  }
+
+  // load checkpoints of an earlier, unfinished read
+  private void prepareCheckpoints() {
+    String table = Metadata.quoteIfNecessary(config.getKeyspace()) + "." + Metadata.quoteIfNecessary(config.getCheckpointTable());
+    checkpointId = config.getKeyspace() + "." + config.getTable();
+    client.client().execute("CREATE TABLE IF NOT EXISTS " + table
+        + " (id text, range_start text, range_end text, position text, done boolean,"
+        + " PRIMARY KEY (id, range_start, range_end))");
+    checkpointStatement = client.client().prepare("INSERT INTO " + table
+        + " (id, range_start, range_end, position, done) VALUES (?, ?, ?, ?, ?)");
+    checkpoints = new HashMap<>();
+    for (Row row : client.client().execute("SELECT * FROM " + table + " WHERE id = ?", checkpointId)) {
+      checkpoints.put(row.getString("range_start") + ":" + row.getString("range_end"), row);
+    }
+    if (!checkpoints.isEmpty()) {
+      LOGGER.info("Resuming {} from {} range checkpoints", checkpointId, checkpoints.size());
+    }
+  }
+
+  private void checkpoint(TokenRange range, Token position, boolean done) {
+    if (checkpointStatement != null) {
+      client.client().execute(checkpointStatement.bind(checkpointId,
+          range.getStart().toString(), range.getEnd().toString(),
+          position != null ? position.toString() : null, done));
+    }
+  }
+
+  // read every range, returning once all are read
+  private void readRanges() {
+    Queue<TokenRange> pending = new ConcurrentLinkedQueue<>(ranges);
+    AtomicBoolean failed = new AtomicBoolean(false);
+    List<Callable<Object>> tasks = new ArrayList<>();
+    for (int i = 0; i < Math.max(1, config.getReaderThreads().intValue()); i++) {
+      tasks.add(Executors.callable(new CassandraPersistReaderTask(this, pending, failed)));
+    }
+    try {
+      for (Future<Object> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException ex) {
+      LOGGER.trace("Interrupt", ex);
+      Thread.currentThread().interrupt();
+      return;
+    } catch (ExecutionException ex) {
+      LOGGER.warn("Failed reading ranges", ex.getCause());
+      failed.set(true);
+    }
+    if (checkpointStatement != null && !failed.get()) {
+      client.client().execute("DELETE FROM " + Metadata.quoteIfNecessary(config.getKeyspace()) + "."
+          + Metadata.quoteIfNecessary(config.getCheckpointTable()) + " WHERE id = ?", checkpointId);
+    }
+  }
+
+  /**
+   * Read one token range, resuming after its checkpoint if it has one.
+   * @param range range
+   */
+  protected void readRange(TokenRange range) {
+    Token from = range.getStart();
+    Row checkpoint = checkpoints.get(range.getStart() + ":" + range.getEnd());
+    if (checkpoint != null) {
+      if (checkpoint.getBool("done")) {
+        return;
+      }
+      if (checkpoint.getString("position") != null) {
+        from = client.cluster().getMetadata().newToken(checkpoint.getString("position"));
+      }
+    }
+
+    BoundStatement statement = range.getEnd().equals(minToken)
+        ? openRangeStatement.bind().setToken(0, from)
+        : rangeStatement.bind().setToken(0, from).setToken(1, range.getEnd());
+    statement.setFetchSize(config.getFetchSize().intValue());
+
+    Token current = null;
+    int sinceCheckpoint = 0;
+    for (Row row : client.client().execute(statement)) {
+      Token token = row.getToken(0);
+      // a partition is finished once the next one starts
+      if (current != null && !token.equals(current) && sinceCheckpoint >= config.getFetchSize()) {
+        checkpoint(range, current, false);
+        sinceCheckpoint = 0;
+      }
+      current = token;
+      sinceCheckpoint++;
+      StreamsDatum datum = prepareDatum(row);
+      if (datum != null) {
+        write(datum);
+      }
+    }
+    checkpoint(range, current, true);
   }
 
   @Override
@@ -172,14 +331,7 @@ public class CassandraPersistReader implements StreamsPersistReader {
 
   @Override
   public StreamsResultSet readAll() {
-    ResultSet rs = client.client().execute(getSelectStatement());
-    Iterator<Row> rowsIterator = rs.iterator();
-
-    while (rowsIterator.hasNext()) {
-      Row row = rowsIterator.next();
-      StreamsDatum datum = prepareDatum(row);
-      write(datum);
-    }
+    readRanges();
 
     return readCurrent();
   }
@@ -187,19 +339,10 @@ public class CassandraPersistReader implements StreamsPersistReader {
   @Override
   public void startStream() {
     LOGGER.debug("startStream");
-    CassandraPersistReaderTask readerTask = new CassandraPersistReaderTask(this);
 
-    CompletableFuture.runAsync(readerTask, executor);
+    readRanges();
 
-    try {
-      if (readerTaskFuture.get()) {
-        executor.shutdown();
-      }
-    } catch (InterruptedException ex) {
-      LOGGER.trace("Interrupt", ex);
-    } catch (ExecutionException ex) {
-      LOGGER.trace("Execution exception", ex);
-    }
+    executor.shutdown();
   }
 
   @Override
@@ -252,30 +395,34 @@ public class CassandraPersistReader implements StreamsPersistReader {
     return Queues.synchronizedQueue(new LinkedBlockingQueue<StreamsDatum>(10000));
   }
 
-  private String getSelectStatement() {
-    return QueryBuilder.select().all()
-      .from(config.getKeyspace(), config.getTable())
-      .getQueryString();
-  }
-
   public class CassandraPersistReaderTask implements Runnable {
 
     private CassandraPersistReader reader;
-
-    public CassandraPersistReaderTask(CassandraPersistReader reader) {
+    private Queue<TokenRange> pending;
+    private AtomicBoolean failed;
+
+    /**
+     * CassandraPersistReaderTask constructor.
+     * @param reader reader
+     * @param pending ranges not yet taken by a task
+     * @param failed set when a range could not be read
+     */
+    public CassandraPersistReaderTask(CassandraPersistReader reader, Queue<TokenRange> pending, AtomicBoolean failed) {
       this.reader = reader;
+      this.pending = pending;
+      this.failed = failed;
     }
 
     @Override
     public void run() {
-      try {
-        while (reader.rowIterator.hasNext()) {
-          Row row = reader.rowIterator.next();
-          StreamsDatum datum = reader.prepareDatum(row);
-          reader.write(datum);
+      TokenRange range;
+      while ((range = pending.poll()) != null) {
+        try {
+          reader.readRange(range);
+        } catch (Exception ex) {
+          LOGGER.error("Error reading token range {}", range, ex);
+          failed.set(true);
         }
-      } finally {
-        readerTaskFuture.complete(true);
       }
     }
   }
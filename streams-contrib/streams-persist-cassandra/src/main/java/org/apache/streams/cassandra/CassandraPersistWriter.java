@@ -23,23 +23,31 @@ import org.apache.streams.config.StreamsConfigurator;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
 import org.apache.streams.jackson.StreamsJacksonMapper;
+import org.apache.streams.util.BatchAccumulator;
 import org.apache.streams.util.GuidUtils;
 
 import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
-import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
 import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.Host;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.Metadata;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.TableMetadata;
 import com.datastax.driver.core.querybuilder.Insert;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.datastax.driver.core.schemabuilder.SchemaBuilder;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import org.apache.commons.lang3.StringUtils;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,33 +56,38 @@ import java.io.Flushable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * CassandraPersistWriter writes documents to a cassandra table.
+ *
+ * <p/>
+ * Each writing thread buffers insert statements in its own batch, which is sent once it holds
+ * batchSize statements or its oldest statement has waited maxTimeBetweenFlushMs.  Statements
+ * are grouped by the replicas owning their partition key: a group of one is sent alone, and a
+ * larger group as an unlogged batch, routed to one of those replicas.  Requests are sent
+ * asynchronously, and writing only blocks while maxRequestsInFlight of them are outstanding.
+ */
 public class CassandraPersistWriter implements StreamsPersistWriter, Runnable, Flushable, Closeable {
 
   public static final String STREAMS_ID = "CassandraPersistWriter";
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CassandraPersistWriter.class);
 
-  private static final long MAX_WRITE_LATENCY = 1000;
-
   protected volatile Queue<StreamsDatum> persistQueue;
 
   private ObjectMapper mapper = StreamsJacksonMapper.getInstance();
-  private volatile AtomicLong lastWrite = new AtomicLong(System.currentTimeMillis());
-  private ScheduledExecutorService backgroundFlushTask = Executors.newSingleThreadScheduledExecutor();
 
   private CassandraConfiguration config;
   private CassandraClient client;
@@ -83,9 +96,13 @@ public class CassandraPersistWriter implements StreamsPersistWriter, Runnable, F
 
   protected PreparedStatement insertStatement;
 
-  protected List<BoundStatement> insertBatch = new ArrayList<>();
+  private BatchAccumulator<BoundStatement> batches;
 
-  protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final AtomicLong documentsWritten = new AtomicLong();
+  private final AtomicLong documentsFailed = new AtomicLong();
+  private final AtomicLong flushes = new AtomicLong();
+  private final AtomicLong flushLatencyMs = new AtomicLong();
+  private volatile long lastFlushLatencyMs = 0;
 
   public CassandraPersistWriter() {
     this(new ComponentConfigurator<>(CassandraConfiguration.class).detectConfiguration());
@@ -125,7 +142,7 @@ public class CassandraPersistWriter implements StreamsPersistWriter, Runnable, F
         }
 
         BoundStatement statement = insertStatement.bind(key, ByteBuffer.wrap(value));
-        insertBatch.add(statement);
+        batches.add(statement, 0);
       } catch (IOException ex) {
         LOGGER.warn("Failure adding object: {}", streamsDatum.getDocument().toString());
         return;
@@ -142,38 +159,28 @@ public class CassandraPersistWriter implements StreamsPersistWriter, Runnable, F
         }
 
         BoundStatement statement = insertStatement.bind(key, ByteBuffer.wrap(value));
-        insertBatch.add(statement);
+        batches.add(statement, 0);
       } catch (Exception ex) {
         LOGGER.warn("Failure adding object: {}", streamsDatum.getDocument().toString());
         return;
       }
     }
-
-    flushIfNecessary();
   }
 
+  /**
+   * Send every buffered statement, and wait for all requests to finish.
+   * @throws IOException IOException
+   */
   @Override
   public void flush() throws IOException {
-    try {
-      LOGGER.debug("Attempting to flush {} items to cassandra", insertBatch.size());
-      lock.writeLock().lock();
-
-      BatchStatement batchStatement = new BatchStatement();
-      batchStatement.addAll(insertBatch);
-      session.execute(batchStatement);
-
-      lastWrite.set(System.currentTimeMillis());
-      insertBatch = new ArrayList<>();
-    } finally {
-      lock.writeLock().unlock();
-    }
+    batches.flush();
   }
 
   @Override
   public synchronized void close() throws IOException {
+    batches.close();
     session.close();
     client.cluster().close();
-    backgroundFlushTask.shutdownNow();
   }
 
   /**
@@ -189,12 +196,10 @@ public class CassandraPersistWriter implements StreamsPersistWriter, Runnable, F
       LOGGER.error("Exception", e);
       return;
     }
-    backgroundFlushTask.scheduleAtFixedRate(new Runnable() {
-      @Override
-      public void run() {
-        flushIfNecessary();
-      }
-    }, 0, MAX_WRITE_LATENCY * 2, TimeUnit.MILLISECONDS);
+    // cassandra batches are sized by statement count, so there is no byte limit
+    batches = new BatchAccumulator<>(config.getBatchSize(), Long.MAX_VALUE, config.getMaxTimeBetweenFlushMs(),
+        config.getMaxRequestsInFlight().intValue(), this::send);
+    batches.start();
   }
 
   /**
@@ -212,23 +217,6 @@ public class CassandraPersistWriter implements StreamsPersistWriter, Runnable, F
     } catch (IOException ex) {
       LOGGER.error("Error closing", ex);
     }
-
-    try {
-      backgroundFlushTask.shutdown();
-      // Wait a while for existing tasks to terminate
-      if (!backgroundFlushTask.awaitTermination(15, TimeUnit.SECONDS)) {
-        backgroundFlushTask.shutdownNow(); // Cancel currently executing tasks
-        // Wait a while for tasks to respond to being cancelled
-        if (!backgroundFlushTask.awaitTermination(15, TimeUnit.SECONDS)) {
-          LOGGER.error("Stream did not terminate");
-        }
-      }
-    } catch (InterruptedException ie) {
-      // (Re-)Cancel if current thread also interrupted
-      backgroundFlushTask.shutdownNow();
-      // Preserve interrupt status
-      Thread.currentThread().interrupt();
-    }
   }
 
   @Override
@@ -261,17 +249,96 @@ public class CassandraPersistWriter implements StreamsPersistWriter, Runnable, F
     stop();
   }
 
+  // send batches whose oldest statement has waited maxTimeBetweenFlushMs, such as those of idle threads
   protected void flushIfNecessary() {
-    long lastLatency = System.currentTimeMillis() - lastWrite.get();
-    //Flush iff the size > 0 AND the size is divisible by 100 or the time between now and the last flush is greater
-    //than the maximum desired latency
-    if (insertBatch.size() > 0 && (insertBatch.size() % 100 == 0 || lastLatency > MAX_WRITE_LATENCY)) {
+    batches.flushIfNecessary();
+  }
+
+  // send statements grouped by replicas, blocking while maxRequestsInFlight requests are outstanding
+  private void send(List<BoundStatement> statements) {
+    long start = System.currentTimeMillis();
+    Map<Object, List<BoundStatement>> groups = groupByReplicas(statements);
+    AtomicInteger pending = new AtomicInteger(groups.size());
+    Runnable done = () -> {
+      batches.release();
+      if (pending.decrementAndGet() == 0) {
+        long latency = System.currentTimeMillis() - start;
+        lastFlushLatencyMs = latency;
+        flushLatencyMs.addAndGet(latency);
+        flushes.incrementAndGet();
+        LOGGER.debug("Wrote {} statements to cassandra in {} requests, {} ms", statements.size(), groups.size(), latency);
+      }
+    };
+    for (List<BoundStatement> group : groups.values()) {
+      Statement statement = group.size() == 1 ? group.get(0) : new BatchStatement(BatchStatement.Type.UNLOGGED).addAll(group);
+      batches.acquire();
+      ResultSetFuture future;
       try {
-        flush();
-      } catch (IOException ex) {
-        LOGGER.error("Error writing to Cassandra", ex);
+        future = session.executeAsync(statement);
+      } catch (Exception ex) {
+        LOGGER.error("Error writing {} statements to cassandra", group.size(), ex);
+        documentsFailed.addAndGet(group.size());
+        done.run();
+        continue;
       }
+      Futures.addCallback(future, new FutureCallback<ResultSet>() {
+        @Override
+        public void onSuccess(ResultSet result) {
+          documentsWritten.addAndGet(group.size());
+          done.run();
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+          LOGGER.warn("{} statements failed to write to cassandra: {}", group.size(), throwable.getMessage());
+          documentsFailed.addAndGet(group.size());
+          done.run();
+        }
+      }, MoreExecutors.directExecutor());
+    }
+  }
+
+  // statements whose partitions live on the same replicas can share one unlogged batch
+  private Map<Object, List<BoundStatement>> groupByReplicas(List<BoundStatement> statements) {
+    Map<Object, List<BoundStatement>> groups = new LinkedHashMap<>();
+    Metadata metadata = client.cluster().getMetadata();
+    ProtocolVersion protocolVersion = client.cluster().getConfiguration().getProtocolOptions().getProtocolVersion();
+    CodecRegistry codecRegistry = client.cluster().getConfiguration().getCodecRegistry();
+    for (BoundStatement statement : statements) {
+      ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+      Set<Host> replicas = routingKey != null
+          ? metadata.getReplicas(config.getKeyspace(), routingKey)
+          : Collections.<Host>emptySet();
+      // with no known replicas, send the statement alone
+      Object group = replicas.isEmpty() ? new Object() : replicas;
+      groups.computeIfAbsent(group, key -> new ArrayList<>()).add(statement);
     }
+    return groups;
+  }
+
+  public long getDocumentsWritten() {
+    return documentsWritten.get();
+  }
+
+  public long getDocumentsFailed() {
+    return documentsFailed.get();
+  }
+
+  /**
+   * Time from sending the most recent batch until its last request finished.
+   * @return milliseconds
+   */
+  public long getLastFlushLatencyMs() {
+    return lastFlushLatencyMs;
+  }
+
+  /**
+   * Mean time from sending a batch until its last request finished.
+   * @return milliseconds
+   */
+  public double getMeanFlushLatencyMs() {
+    long count = flushes.get();
+    return count == 0 ? 0 : (double) flushLatencyMs.get() / count;
   }
 
   private synchronized void connectToCassandra() throws Exception {
@@ -312,4 +379,4 @@ public class CassandraPersistWriter implements StreamsPersistWriter, Runnable, F
     insertBuilder.value(config.getColumn(), new Object());
     insertStatement = session.prepare(insertBuilder.getQueryString());
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.elasticsearch;
+
+import org.apache.streams.core.StreamsDatum;
+
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the index each datum is written to, and makes sure it exists.
+ *
+ * <p/>
+ * When indexDateFormat is configured, the configured index is partitioned by
+ * datum timestamp (UTC), e.g. activity-2017.06.01 for yyyy.MM.dd.  Indices known
+ * to exist are cached, and upcoming partitions can be created ahead of time
+ * so writes do not wait on index creation when a new period starts.
+ */
+public class ElasticsearchIndexResolver {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ElasticsearchIndexResolver.class);
+
+  private static final String PARTITION_SEPARATOR = "-";
+
+  private final ElasticsearchWriterConfiguration config;
+  private final ElasticsearchClientManager manager;
+  private final DateTimeFormatter partitionFormat;
+
+  private final Set<String> existingIndexes = ConcurrentHashMap.newKeySet();
+
+  /**
+   * ElasticsearchIndexResolver constructor.
+   * @param config config
+   * @param manager manager
+   */
+  public ElasticsearchIndexResolver(ElasticsearchWriterConfiguration config, ElasticsearchClientManager manager) {
+    this.config = config;
+    this.manager = manager;
+    this.partitionFormat = StringUtils.isNotBlank(config.getIndexDateFormat())
+        ? DateTimeFormat.forPattern(config.getIndexDateFormat()).withZoneUTC()
+        : null;
+  }
+
+  public boolean isPartitioned() {
+    return partitionFormat != null;
+  }
+
+  /**
+   * get Index to write a datum to.
+   * Indexes named explicitly in metadata are used as-is.
+   * @param datum datum
+   * @return result
+   */
+  public String getIndex(StreamsDatum datum) {
+    Map<String, Object> metadata = datum.getMetadata();
+    String index = ElasticsearchMetadataUtil.getIndex(metadata, config);
+    if (partitionFormat == null || !index.equals(config.getIndex())) {
+      return index;
+    }
+    return getIndex(index, datum.getTimestamp() == null ? DateTime.now() : datum.getTimestamp());
+  }
+
+  /**
+   * get partition of an index for a point in time.
+   * @param index index
+   * @param timestamp timestamp
+   * @return result
+   */
+  public String getIndex(String index, DateTime timestamp) {
+    if (partitionFormat == null) {
+      return index;
+    }
+    return index + PARTITION_SEPARATOR + partitionFormat.print(timestamp.withZone(DateTimeZone.UTC));
+  }
+
+  /**
+   * Create the partitions covering now through now + indexPrecreateMs, if missing.
+   */
+  public void precreate() {
+    if (partitionFormat == null) {
+      return;
+    }
+    long ahead = config.getIndexPrecreateMs() == null ? 0 : config.getIndexPrecreateMs();
+    DateTime now = DateTime.now();
+    createIndexIfMissing(getIndex(config.getIndex(), now));
+    createIndexIfMissing(getIndex(config.getIndex(), now.plus(ahead)));
+  }
+
+  /**
+   * createIndexIfMissing.
+   * Only the first call for each index reaches the cluster.
+   * @param indexName indexName
+   * @return true if this call created the index
+   */
+  public boolean createIndexIfMissing(String indexName) {
+    if (existingIndexes.contains(indexName)) {
+      return false;
+    }
+    boolean created = false;
+    if (!this.manager.client()
+        .admin()
+        .indices()
+        .exists(new IndicesExistsRequest(indexName))
+        .actionGet()
+        .isExists()) {
+      // It does not exist... So we are going to need to create the index.
+      // Unless a template is configured, we are going to assume that the 'templates' that
+      // we have loaded into elasticsearch are sufficient to ensure the index is being created properly.
+      CreateIndexRequest request = new CreateIndexRequest(indexName);
+      if (config.getIndexTemplate() != null) {
+        request.source(config.getIndexTemplate());
+      }
+      try {
+        CreateIndexResponse response = this.manager.client().admin().indices().create(request).actionGet();
+        if (response.isAcknowledged()) {
+          LOGGER.info("Index Created: {}", indexName);
+          created = true;
+        } else {
+          LOGGER.error("Index {} did not exist. While attempting to create the index we were unable to get an acknowledgement.", indexName);
+          LOGGER.error("Error Message: {}", response.toString());
+          throw new RuntimeException("Unable to create index " + indexName);
+        }
+      } catch (RuntimeException ex) {
+        // another writer got there first
+        if (!(ExceptionsHelper.unwrapCause(ex) instanceof IndexAlreadyExistsException)) {
+          throw ex;
+        }
+      }
+    }
+    existingIndexes.add(indexName);
+    return created;
+  }
+
+}
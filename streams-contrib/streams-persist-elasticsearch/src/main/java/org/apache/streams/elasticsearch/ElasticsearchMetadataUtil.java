@@ -189,6 +189,35 @@ public class ElasticsearchMetadataUtil {
     return routing;
   }
 
+  /**
+   * Metadata key through which a datum picks its own bulk action: index, update, upsert or delete.
+   */
+  public static final String ACTION_KEY = "elasticsearch.action";
+
+  /**
+   * get bulk action to use based on supplied parameters.
+   *
+   * @param datum datum
+   * @param defaultAction action to use when metadata does not name one
+   * @return result
+   */
+  static String getAction(StreamsDatum datum, String defaultAction) {
+
+    String action = null;
+
+    Map<String, Object> metadata = datum.getMetadata();
+
+    if (metadata != null && metadata.containsKey(ACTION_KEY)) {
+      action = (String) datum.getMetadata().get(ACTION_KEY);
+    }
+
+    if (action == null) {
+      action = defaultAction;
+    }
+
+    return action;
+  }
+
   /**
    * get JsonNode as Map.
    * @param node node
@@ -21,13 +21,9 @@ package org.apache.streams.elasticsearch;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
 
-import org.elasticsearch.action.delete.DeleteRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
-import java.util.Objects;
-
 /**
  * ElasticsearchPersistDeleter deletes documents from elasticsearch.
  */
@@ -57,66 +53,7 @@ public class ElasticsearchPersistDeleter extends ElasticsearchPersistWriter impl
       return;
     }
 
-    LOGGER.debug("Delete Document: {}", streamsDatum.getDocument());
-
-    Map<String, Object> metadata = streamsDatum.getMetadata();
-
-    LOGGER.debug("Delete Metadata: {}", metadata);
-
-    String index = ElasticsearchMetadataUtil.getIndex(metadata, config);
-    String type = ElasticsearchMetadataUtil.getType(metadata, config);
-    String id = ElasticsearchMetadataUtil.getId(streamsDatum);
-
-    try {
-      delete(index, type, id);
-    } catch (Throwable ex) {
-      LOGGER.warn("Unable to Delete Document from ElasticSearch: {}", ex.getMessage());
-    }
-  }
-
-  /**
-   * Prepare and en-queue @see org.elasticsearch.action.delete.DeleteRequest
-   * @param index index
-   * @param type type
-   * @param id id
-   */
-  public void delete(String index, String type, String id) {
-    DeleteRequest deleteRequest;
-
-    Objects.requireNonNull(index);
-    Objects.requireNonNull(id);
-    Objects.requireNonNull(type);
-
-    // They didn't specify an ID, so we will create one for them.
-    deleteRequest = new DeleteRequest()
-        .index(index)
-        .type(type)
-        .id(id);
-
-    add(deleteRequest);
-
-  }
-
-  /**
-   * Enqueue DeleteRequest.
-   * @param request request
-   */
-  public void add(DeleteRequest request) {
-
-    Objects.requireNonNull(request);
-    Objects.requireNonNull(request.index());
-
-    // If our queue is larger than our flush threshold, then we should flush the queue.
-    synchronized (this) {
-      checkIndexImplications(request.index());
-
-      bulkRequest.add(request);
-
-      currentBatchItems.incrementAndGet();
-
-      checkForFlush();
-    }
-
+    write(streamsDatum, ACTION_DELETE);
   }
 
 }
@@ -21,14 +21,9 @@ package org.apache.streams.elasticsearch;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
 
-import org.apache.commons.lang3.StringUtils;
-import org.elasticsearch.action.update.UpdateRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
-import java.util.Objects;
-
 /**
  * ElasticsearchPersistUpdater updates documents to elasticsearch.
  */
@@ -58,29 +53,7 @@ public class ElasticsearchPersistUpdater extends ElasticsearchPersistWriter impl
       return;
     }
 
-    LOGGER.debug("Update Document: {}", streamsDatum.getDocument());
-
-    Map<String, Object> metadata = streamsDatum.getMetadata();
-
-    LOGGER.debug("Update Metadata: {}", metadata);
-
-    String index = ElasticsearchMetadataUtil.getIndex(metadata, config);
-    String type = ElasticsearchMetadataUtil.getType(metadata, config);
-    String id = ElasticsearchMetadataUtil.getId(streamsDatum);
-    String parent = ElasticsearchMetadataUtil.getParent(streamsDatum);
-    String routing = ElasticsearchMetadataUtil.getRouting(streamsDatum);
-
-    try {
-
-      String docAsJson = docAsJson(streamsDatum.getDocument());
-
-      LOGGER.debug("Attempt Update: ({},{},{},{},{}) {}", index, type, id, parent, routing, docAsJson);
-
-      update(index, type, id, parent, routing, docAsJson);
-
-    } catch (Throwable ex) {
-      LOGGER.warn("Unable to Update Document in ElasticSearch: {}", ex.getMessage());
-    }
+    write(streamsDatum, config.getUpsert() != null && config.getUpsert() ? ACTION_UPSERT : ACTION_UPDATE);
   }
 
   /**
@@ -94,54 +67,7 @@ public class ElasticsearchPersistUpdater extends ElasticsearchPersistWriter impl
    * @param json json
    */
   public void update(String indexName, String type, String id, String parent, String routing, String json) {
-    UpdateRequest updateRequest;
-
-    Objects.requireNonNull(id);
-    Objects.requireNonNull(json);
-
-    // They didn't specify an ID, so we will create one for them.
-    updateRequest = new UpdateRequest()
-        .index(indexName)
-        .type(type)
-        .id(id)
-        .doc(json);
-
-    if (StringUtils.isNotBlank(parent)) {
-      updateRequest = updateRequest.parent(parent);
-    }
-
-    if (StringUtils.isNotBlank(routing)) {
-      updateRequest = updateRequest.routing(routing);
-    }
-
-    // add fields
-    //updateRequest.docAsUpsert(true);
-
-    add(updateRequest);
-
-  }
-
-  /**
-   * Enqueue UpdateRequest.
-   * @param request request
-   */
-  public void add(UpdateRequest request) {
-
-    Objects.requireNonNull(request);
-    Objects.requireNonNull(request.index());
-
-    // If our queue is larger than our flush threshold, then we should flush the queue.
-    synchronized (this) {
-      checkIndexImplications(request.index());
-
-      bulkRequest.add(request);
-
-      currentBatchBytes.addAndGet(request.doc().source().length());
-      currentBatchItems.incrementAndGet();
-
-      checkForFlush();
-    }
-
+    update(indexName, type, id, parent, routing, json, config.getUpsert() != null && config.getUpsert());
   }
 
 }
@@ -27,17 +27,23 @@ import org.apache.streams.jackson.StreamsJacksonMapper;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.lang3.StringUtils;
 import org.elasticsearch.action.ActionListener;
-import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
-import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
-import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
 import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptService;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +54,7 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -68,11 +75,25 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Seriali
   private static final NumberFormat NUMBER_FORMAT = new DecimalFormat("###,###,###,###");
   private static final Long DEFAULT_BULK_FLUSH_THRESHOLD = 5L * 1024L * 1024L;
   private static final int DEFAULT_BATCH_SIZE = 100;
+  //Batch defaults when 'bulk' asks for large batches
+  private static final int LARGE_BATCH_SIZE = 1000;
+  private static final Long LARGE_BULK_FLUSH_THRESHOLD = 15L * 1024L * 1024L;
   //ES defaults its bulk index queue to 50 items.  We want to be under this on our backoff so set this to 1/2 ES default
   //at a batch size as configured here.
   private static final long WAITING_DOCS_LIMIT = DEFAULT_BATCH_SIZE * 25;
   //A document should have to wait no more than 10s to get flushed
   private static final long DEFAULT_MAX_WAIT = 10000;
+  //How often to check whether the next time-partitioned index needs creating
+  private static final long PRECREATE_INTERVAL = 60000;
+  private static final String REFRESH_INTERVAL = "index.refresh_interval";
+  private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+  //What refresh_interval is when an index does not set one
+  private static final String DEFAULT_REFRESH_INTERVAL = "1s";
+
+  public static final String ACTION_INDEX = "index";
+  public static final String ACTION_UPDATE = "update";
+  public static final String ACTION_UPSERT = "upsert";
+  public static final String ACTION_DELETE = "delete";
 
   protected static final ObjectMapper OBJECT_MAPPER = StreamsJacksonMapper.getInstance();
 
@@ -80,10 +101,15 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Seriali
 
   protected final ElasticsearchClientManager manager;
   protected final ElasticsearchWriterConfiguration config;
+  protected final ElasticsearchIndexResolver indexResolver;
 
   protected BulkRequestBuilder bulkRequest;
 
-  private boolean veryLargeBulk = false;  // by default this setting is set to false
+  private boolean veryLargeBulk = false;  // by default this setting is set to false, sizes default batches
+  private boolean bulkLoad = false;
+  private Integer forceMergeSegments = null;
+  private final Map<String, Settings> originalSettings = new HashMap<>();
+  private transient Thread restoreHook;
   private long flushThresholdsRecords = DEFAULT_BATCH_SIZE;
   private long flushThresholdBytes = DEFAULT_BULK_FLUSH_THRESHOLD;
 
@@ -120,6 +146,7 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Seriali
   public ElasticsearchPersistWriter(ElasticsearchWriterConfiguration config, ElasticsearchClientManager manager) {
     this.config = config;
     this.manager = manager;
+    this.indexResolver = new ElasticsearchIndexResolver(config, manager);
     this.bulkRequest = this.manager.client().prepareBulk();
   }
 
@@ -159,6 +186,10 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Seriali
     this.veryLargeBulk = veryLargeBulk;
   }
 
+  public void setBulkLoad(boolean bulkLoad) {
+    this.bulkLoad = bulkLoad;
+  }
+
   private long getLastFlush() {
     return this.lastFlush;
   }
@@ -207,7 +238,16 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Seriali
       return;
     }
 
-    checkForBackOff();
+    write(streamsDatum, ACTION_INDEX);
+  }
+
+  /**
+   * Enqueue the bulk action named in the datum metadata, or defaultAction if there is none.
+   * Any other action is logged and counted as failed.
+   * @param streamsDatum streamsDatum
+   * @param defaultAction one of index, update, upsert or delete
+   */
+  protected void write(StreamsDatum streamsDatum, String defaultAction) {
 
     LOGGER.debug("Write Document: {}", streamsDatum.getDocument());
 
@@ -215,20 +255,38 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Seriali
 
     LOGGER.debug("Write Metadata: {}", metadata);
 
-    String index = ElasticsearchMetadataUtil.getIndex(metadata, config);
+    String action = ElasticsearchMetadataUtil.getAction(streamsDatum, defaultAction);
+    String index = indexResolver.getIndex(streamsDatum);
     String type = ElasticsearchMetadataUtil.getType(metadata, config);
     String id = ElasticsearchMetadataUtil.getId(streamsDatum);
     String parent = ElasticsearchMetadataUtil.getParent(streamsDatum);
     String routing = ElasticsearchMetadataUtil.getRouting(streamsDatum);
 
     try {
-      streamsDatum = appendMetadata(streamsDatum);
-      String docAsJson = docAsJson(streamsDatum.getDocument());
-      add(index, type, id, parent, routing,
-          streamsDatum.getTimestamp() == null ? Long.toString(DateTime.now().getMillis()) : Long.toString(streamsDatum.getTimestamp().getMillis()),
-          docAsJson);
+      switch (action) {
+        case ACTION_DELETE:
+          delete(index, type, id);
+          break;
+        case ACTION_UPDATE:
+        case ACTION_UPSERT:
+          update(index, type, id, parent, routing, docAsJson(streamsDatum.getDocument()), ACTION_UPSERT.equals(action));
+          break;
+        case ACTION_INDEX:
+          streamsDatum = appendMetadata(streamsDatum);
+          String docAsJson = docAsJson(streamsDatum.getDocument());
+          add(index, type, id, parent, routing,
+              streamsDatum.getTimestamp() == null ? Long.toString(DateTime.now().getMillis()) : Long.toString(streamsDatum.getTimestamp().getMillis()),
+              docAsJson);
+          break;
+        default:
+          // count it as sent and failed, so it shows up in the totals without leaving anything outstanding
+          LOGGER.warn("Unknown {} '{}' on datum {}, not written", ElasticsearchMetadataUtil.ACTION_KEY, action, id);
+          this.totalSent.incrementAndGet();
+          this.totalFailed.incrementAndGet();
+          break;
+      }
     } catch (Throwable ex) {
-      LOGGER.warn("Unable to Write Datum to ElasticSearch: {}", ex.getMessage());
+      LOGGER.warn("Unable to {} Datum in ElasticSearch: {}", action, ex.getMessage());
     }
   }
 
@@ -271,9 +329,8 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Seriali
       LOGGER.warn("This is unexpected: {}", ex);
     } finally {
 
-      if (veryLargeBulk) {
-        resetRefreshInterval();
-      }
+      restoreIndexSettings(forceMergeSegments);
+      detachRestoreHook();
 
       if ( config.getRefresh() ) {
         refreshIndexes();
@@ -288,23 +345,33 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Seriali
     }
   }
 
-  private void resetRefreshInterval() {
-    for (String indexName : this.affectedIndexes) {
-
-      if (this.veryLargeBulk) {
-        LOGGER.debug("Resetting our Refresh Interval: {}", indexName);
-        // They are in 'very large bulk' mode and the process is finished. We now want to turn the
-        // refreshing back on.
-        UpdateSettingsRequest updateSettingsRequest = new UpdateSettingsRequest(indexName);
-        updateSettingsRequest.settings(Settings.settingsBuilder().put("refresh_interval", "5s"));
-
-        // submit to ElasticSearch
-        this.manager.client()
-            .admin()
-            .indices()
-            .updateSettings(updateSettingsRequest)
-            .actionGet();
+  /**
+   * Put back the settings changed by {@link #applyBulkSettings(String)}, optionally
+   * force merging each index first while it still has no replicas to copy segments to.
+   * @param maxNumSegments segments to merge down to, or null to skip merging
+   */
+  protected void restoreIndexSettings(Integer maxNumSegments) {
+    synchronized (this.originalSettings) {
+      for (Map.Entry<String, Settings> original : this.originalSettings.entrySet()) {
+        String indexName = original.getKey();
+        try {
+          if (maxNumSegments != null && maxNumSegments > 0) {
+            LOGGER.info("Force merging {} to {} segments", indexName, maxNumSegments);
+            this.manager.client()
+                .admin()
+                .indices()
+                .prepareForceMerge(indexName)
+                .setMaxNumSegments(maxNumSegments)
+                .execute()
+                .actionGet();
+          }
+          LOGGER.debug("Restoring settings of {}: {}", indexName, original.getValue().getAsMap());
+          updateSettings(indexName, original.getValue());
+        } catch (Exception ex) {
+          LOGGER.error("Unable to restore settings of {} to {}: {}", indexName, original.getValue().getAsMap(), ex.getMessage());
+        }
       }
+      this.originalSettings.clear();
     }
   }
 
@@ -447,18 +514,110 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Seriali
     add(indexRequestBuilder.request());
   }
 
+  /**
+   * Prepare and en-queue.
+   * @see org.elasticsearch.action.update.UpdateRequest
+   * @param indexName indexName
+   * @param type type
+   * @param id id
+   * @param parent parent
+   * @param routing routing
+   * @param json partial document, or script params when an updateScript is configured
+   * @param upsert whether to insert json when the document does not exist
+   */
+  public void update(String indexName, String type, String id, String parent, String routing, String json, boolean upsert) {
+
+    Objects.requireNonNull(id);
+    Objects.requireNonNull(json);
+
+    UpdateRequest updateRequest = new UpdateRequest()
+        .index(indexName)
+        .type(type)
+        .id(id);
+
+    if (StringUtils.isNotBlank(config.getUpdateScript())) {
+      Map<String, Object> params = XContentHelper.convertToMap(new BytesArray(json), false).v2();
+      updateRequest.script(new Script(config.getUpdateScript(), ScriptService.ScriptType.INLINE, null, params));
+      if (upsert) {
+        updateRequest.upsert(json);
+      }
+    } else {
+      updateRequest.doc(json).docAsUpsert(upsert);
+    }
+
+    if (StringUtils.isNotBlank(parent)) {
+      updateRequest.parent(parent);
+    }
+
+    if (StringUtils.isNotBlank(routing)) {
+      updateRequest.routing(routing);
+    }
+
+    add(updateRequest);
+  }
+
+  /**
+   * Prepare and en-queue @see org.elasticsearch.action.delete.DeleteRequest
+   * @param index index
+   * @param type type
+   * @param id id
+   */
+  public void delete(String index, String type, String id) {
+
+    Objects.requireNonNull(index);
+    Objects.requireNonNull(id);
+    Objects.requireNonNull(type);
+
+    add(new DeleteRequest()
+        .index(index)
+        .type(type)
+        .id(id));
+  }
+
   protected void add(IndexRequest request) {
+    Objects.requireNonNull(request);
+    addAction(request.index(), request);
+  }
 
+  /**
+   * Enqueue UpdateRequest.
+   * @param request request
+   */
+  public void add(UpdateRequest request) {
     Objects.requireNonNull(request);
-    Objects.requireNonNull(request.index());
+    addAction(request.index(), request);
+  }
+
+  /**
+   * Enqueue DeleteRequest.
+   * @param request request
+   */
+  public void add(DeleteRequest request) {
+    Objects.requireNonNull(request);
+    addAction(request.index(), request);
+  }
+
+  /**
+   * Enqueue any bulk action, so index, update and delete requests share one
+   * bulk request, one set of flush thresholds and the same back-off.
+   * @param indexName indexName
+   * @param request IndexRequest, UpdateRequest or DeleteRequest
+   */
+  protected void addAction(String indexName, ActionRequest request) {
+
+    Objects.requireNonNull(indexName);
+
+    checkForBackOff();
 
     // If our queue is larger than our flush threshold, then we should flush the queue.
     synchronized (this) {
-      checkIndexImplications(request.index());
+      checkIndexImplications(indexName);
 
-      bulkRequest.add(request);
+      // count bytes the way elasticsearch does, so every action type weighs the same
+      long sizeBefore = bulkRequest.request().estimatedSizeInBytes();
+      bulkRequest.request().add(request);
 
-      this.currentBatchBytes.addAndGet(request.source().length());
+      this.currentBatchBytes.addAndGet(bulkRequest.request().estimatedSizeInBytes() - sizeBefore);
       this.currentBatchItems.incrementAndGet();
 
       checkForFlush();
@@ -479,37 +638,102 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Seriali
   }
 
   protected void checkIndexImplications(String indexName) {
-    // We need this to be safe across all writers that are currently being executed
-    synchronized (ElasticsearchPersistWriter.class) {
+    synchronized (this) {
 
       // this will be common if we have already verified the index.
       if (this.affectedIndexes.contains(indexName)) {
         return;
       }
 
-      // create the index if it is missing
+      // create the index if it is missing; the resolver tolerates other writers racing us
       createIndexIfMissing(indexName);
 
       // we haven't log this index.
       this.affectedIndexes.add(indexName);
 
+      if (bulkLoad) {
+        applyBulkSettings(indexName);
+      }
+
     }
   }
 
   protected void disableRefresh() {
-
     for (String indexName : this.affectedIndexes) {
-      // They are in 'very large bulk' mode we want to turn off refreshing the index.
-      // Create a request then add the setting to tell it to stop refreshing the interval
-      UpdateSettingsRequest updateSettingsRequest = new UpdateSettingsRequest(indexName);
-      updateSettingsRequest.settings(Settings.settingsBuilder().put("refresh_interval", -1));
+      applyBulkSettings(indexName);
+    }
+  }
 
-      // submit to ElasticSearch
-      this.manager.client()
+  /**
+   * Switch an index into bulk loading mode: no refreshing and no replicas.
+   * The previous values are remembered so cleanUp can restore them.
+   * @param indexName indexName
+   */
+  protected void applyBulkSettings(String indexName) {
+    synchronized (this.originalSettings) {
+      if (this.originalSettings.containsKey(indexName)) {
+        return;
+      }
+
+      GetSettingsResponse current = this.manager.client()
           .admin()
           .indices()
-          .updateSettings(updateSettingsRequest)
+          .prepareGetSettings(indexName)
+          .execute()
           .actionGet();
+
+      Settings.Builder original = Settings.settingsBuilder();
+      Settings.Builder bulk = Settings.settingsBuilder();
+
+      String refresh = current.getSetting(indexName, REFRESH_INTERVAL);
+      original.put(REFRESH_INTERVAL, refresh == null ? DEFAULT_REFRESH_INTERVAL : refresh);
+      bulk.put(REFRESH_INTERVAL, -1);
+
+      String replicas = current.getSetting(indexName, NUMBER_OF_REPLICAS);
+      if (replicas != null) {
+        original.put(NUMBER_OF_REPLICAS, replicas);
+        bulk.put(NUMBER_OF_REPLICAS, 0);
+      }
+
+      // remember first, so a failure part way through still gets undone
+      this.originalSettings.put(indexName, original.build());
+
+      LOGGER.info("Bulk loading {}: {}", indexName, bulk.internalMap());
+      updateSettings(indexName, bulk.build());
+    }
+  }
+
+  private void updateSettings(String indexName, Settings settings) {
+    UpdateSettingsRequest updateSettingsRequest = new UpdateSettingsRequest(indexName);
+    updateSettingsRequest.settings(settings);
+
+    // submit to ElasticSearch
+    this.manager.client()
+        .admin()
+        .indices()
+        .updateSettings(updateSettingsRequest)
+        .actionGet();
+  }
+
+  /**
+   * Restore index settings if the JVM exits before cleanUp gets the chance.
+   */
+  private void attachRestoreHook() {
+    this.restoreHook = new Thread(() -> {
+      LOGGER.warn("Shutting down before cleanUp, restoring index settings");
+      restoreIndexSettings(null);
+    });
+    Runtime.getRuntime().addShutdownHook(this.restoreHook);
+  }
+
+  private void detachRestoreHook() {
+    if (this.restoreHook != null) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(this.restoreHook);
+      } catch (IllegalStateException ex) {
+        // already shutting down, the hook is running or has run
+      }
+      this.restoreHook = null;
     }
   }
 
@@ -518,36 +742,25 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Seriali
    * @param indexName indexName
    */
   public void createIndexIfMissing(String indexName) {
-    // Synchronize this on a static class level
-    if (!this.manager.client()
-        .admin()
-        .indices()
-        .exists(new IndicesExistsRequest(indexName))
-        .actionGet()
-        .isExists()) {
-      // It does not exist... So we are going to need to create the index.
-      // we are going to assume that the 'templates' that we have loaded into
-      // elasticsearch are sufficient to ensure the index is being created properly.
-      CreateIndexResponse response = this.manager.client().admin().indices().create(new CreateIndexRequest(indexName)).actionGet();
-
-      if (response.isAcknowledged()) {
-        LOGGER.info("Index Created: {}", indexName);
-      } else {
-        LOGGER.error("Index {} did not exist. While attempting to create the index from stored ElasticSearch Templates we were unable to get an acknowledgement.", indexName);
-        LOGGER.error("Error Message: {}", response.toString());
-        throw new RuntimeException("Unable to create index " + indexName);
-      }
-    }
+    indexResolver.createIndexIfMissing(indexName);
   }
 
   @Override
   public void prepare(Object configurationObject) {
-    this.veryLargeBulk = config.getBulk() == null
+    if (config.getBulk() != null) {
+      this.veryLargeBulk = config.getBulk();
+    }
+
+    this.bulkLoad = config.getBulkLoad() == null
         ? Boolean.FALSE
-        : config.getBulk();
+        : config.getBulkLoad();
+
+    this.forceMergeSegments = config.getForceMergeSegments() == null
+        ? null
+        : config.getForceMergeSegments().intValue();
 
     this.flushThresholdsRecords = config.getBatchSize() == null
-        ? DEFAULT_BATCH_SIZE
+        ? (veryLargeBulk ? LARGE_BATCH_SIZE : DEFAULT_BATCH_SIZE)
         : (int)(config.getBatchSize().longValue());
 
     this.flushThresholdTime = config.getMaxTimeBetweenFlushMs() != null && config.getMaxTimeBetweenFlushMs() > 0
@@ -555,7 +768,7 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Seriali
         : DEFAULT_MAX_WAIT;
 
     this.flushThresholdBytes = config.getBatchBytes() == null
-        ? DEFAULT_BULK_FLUSH_THRESHOLD
+        ? (veryLargeBulk ? LARGE_BULK_FLUSH_THRESHOLD : DEFAULT_BULK_FLUSH_THRESHOLD)
         : config.getBatchBytes();
 
     timer.scheduleAtFixedRate(new TimerTask() {
@@ -564,8 +777,23 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Seriali
       }
     }, this.flushThresholdTime, this.flushThresholdTime);
 
-    if ( veryLargeBulk ) {
-      disableRefresh();
+    if (indexResolver.isPartitioned()) {
+      indexResolver.precreate();
+      timer.scheduleAtFixedRate(new TimerTask() {
+        public void run() {
+          try {
+            indexResolver.precreate();
+          } catch (Exception ex) {
+            LOGGER.warn("Unable to create upcoming index: {}", ex.getMessage());
+          }
+        }
+      }, PRECREATE_INTERVAL, PRECREATE_INTERVAL);
+    }
+
+    // 'bulk' only sizes batches; index settings change just for an explicit bulkLoad, as each
+    // index is first written (see checkIndexImplications)
+    if ( bulkLoad ) {
+      attachRestoreHook();
     }
   }
 
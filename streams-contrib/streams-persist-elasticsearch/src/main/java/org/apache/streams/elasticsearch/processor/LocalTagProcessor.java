@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.elasticsearch.processor;
+
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.core.StreamsProcessor;
+import org.apache.streams.elasticsearch.ElasticsearchWriterConfiguration;
+import org.apache.streams.jackson.StreamsJacksonMapper;
+import org.apache.streams.pojo.extensions.ExtensionUtil;
+import org.apache.streams.pojo.json.Activity;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Applies the tags configured for {@link PercolateTagProcessor} in-process, without
+ * registering them in an elasticsearch _percolator index.
+ *
+ * @see TagQueryMatcher for the supported query syntax
+ */
+public class LocalTagProcessor implements StreamsProcessor {
+
+  public static final String STREAMS_ID = "LocalTagProcessor";
+  private static final Logger LOGGER = LoggerFactory.getLogger(LocalTagProcessor.class);
+  private static final String ALL_FIELDS = "_all";
+
+  private ObjectMapper mapper;
+
+  private ElasticsearchWriterConfiguration config;
+  private TagQueryMatcher matcher;
+  protected String useMatchField;
+
+  public LocalTagProcessor(ElasticsearchWriterConfiguration config) {
+    this(config, ALL_FIELDS);
+  }
+
+  public LocalTagProcessor(ElasticsearchWriterConfiguration config, String defaultMatchField) {
+    this.config = config;
+    this.useMatchField = defaultMatchField;
+  }
+
+  public ElasticsearchWriterConfiguration getConfig() {
+    return config;
+  }
+
+  public void setConfig(ElasticsearchWriterConfiguration config) {
+    this.config = config;
+  }
+
+  public TagQueryMatcher getMatcher() {
+    return matcher;
+  }
+
+  @Override
+  public String getId() {
+    return STREAMS_ID;
+  }
+
+  @Override
+  public List<StreamsDatum> process(StreamsDatum entry) {
+
+    List<StreamsDatum> result = new ArrayList<>();
+
+    ObjectNode node;
+    // first check for valid json
+    if (entry.getDocument() instanceof String) {
+      try {
+        node = (ObjectNode) mapper.readTree((String) entry.getDocument());
+      } catch (IOException ex) {
+        LOGGER.warn("Invalid datum: {}", ex.getMessage());
+        return null;
+      }
+    } else if (entry.getDocument() instanceof ObjectNode) {
+      node = (ObjectNode) entry.getDocument();
+    } else if (entry.getDocument() instanceof Activity) {
+      node = mapper.valueToTree(entry.getDocument());
+    } else {
+      LOGGER.warn("Incompatible document type: {}", entry.getDocument().getClass());
+      return null;
+    }
+
+    List<String> text = new ArrayList<>();
+    if (ALL_FIELDS.equals(useMatchField)) {
+      collectText(node, text);
+    } else {
+      collectText(node.at("/" + useMatchField.replace('.', '/')), text);
+    }
+
+    ArrayNode tagArray = JsonNodeFactory.instance.arrayNode();
+
+    for (String tag : matcher.match(text)) {
+      tagArray.add(tag);
+    }
+
+    LOGGER.trace("Local matches: {}", tagArray);
+
+    Activity activity = entry.getDocument() instanceof Activity
+        ? (Activity) entry.getDocument()
+        : mapper.convertValue(node, Activity.class);
+
+    appendMatches(tagArray, activity);
+
+    entry.setDocument(activity);
+
+    result.add(entry);
+
+    return result;
+
+  }
+
+  protected void appendMatches(ArrayNode tagArray, Activity activity) {
+
+    ExtensionUtil.getInstance().addExtension(activity, PercolateTagProcessor.TAGS_EXTENSION, tagArray);
+
+  }
+
+  private static void collectText(JsonNode node, List<String> text) {
+    if (node.isTextual()) {
+      text.add(node.textValue());
+    } else if (node.isContainerNode()) {
+      for (JsonNode child : node) {
+        collectText(child, text);
+      }
+    }
+  }
+
+  @Override
+  public void prepare(Object configuration) {
+
+    mapper = StreamsJacksonMapper.getInstance();
+
+    Objects.requireNonNull(config);
+
+    Map<String, String> tags = new LinkedHashMap<>();
+    if (config.getTags() != null) {
+      for (Map.Entry<String, Object> tag : config.getTags().getAdditionalProperties().entrySet()) {
+        tags.put(tag.getKey(), (String) tag.getValue());
+      }
+    }
+
+    matcher = new TagQueryMatcher(tags);
+
+    LOGGER.info("compiled {} tags for local matching", matcher.size());
+
+  }
+
+  @Override
+  public void cleanUp() {
+
+  }
+
+}
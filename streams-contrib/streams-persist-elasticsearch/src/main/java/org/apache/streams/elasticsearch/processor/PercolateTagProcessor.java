@@ -32,14 +32,18 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.elasticsearch.action.ListenableActionFuture;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.percolate.MultiPercolateRequestBuilder;
+import org.elasticsearch.action.percolate.MultiPercolateResponse;
 import org.elasticsearch.action.percolate.PercolateRequestBuilder;
 import org.elasticsearch.action.percolate.PercolateResponse;
+import org.elasticsearch.action.percolate.PercolateSourceBuilder;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.index.query.QueryBuilders;
@@ -50,12 +54,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * References:
@@ -72,6 +81,9 @@ public class PercolateTagProcessor implements StreamsProcessor {
   public static final String STREAMS_ID = "PercolateTagProcessor";
   private static final Logger LOGGER = LoggerFactory.getLogger(PercolateTagProcessor.class);
   private static final String DEFAULT_PERCOLATE_FIELD = "_all";
+  private static final int DEFAULT_TAG_BATCH_SIZE = 1;
+  private static final int DEFAULT_TAG_BATCH_MAX_IN_FLIGHT = 4;
+  private static final long DEFAULT_MAX_TIME_BETWEEN_BATCHES = 10000;
 
   private ObjectMapper mapper;
 
@@ -85,6 +97,17 @@ public class PercolateTagProcessor implements StreamsProcessor {
   private BulkRequestBuilder bulkBuilder;
   protected String usePercolateField;
 
+  private int tagBatchSize = DEFAULT_TAG_BATCH_SIZE;
+  private int tagBatchMaxInFlight = DEFAULT_TAG_BATCH_MAX_IN_FLIGHT;
+  private long maxTimeBetweenBatches = DEFAULT_MAX_TIME_BETWEEN_BATCHES;
+
+  // batching state, shared with the background flush and guarded by this
+  private PercolateBatch pendingBatch;
+  private final Deque<PercolateBatch> inFlight = new ArrayDeque<>();
+  private final List<StreamsDatum> completed = new ArrayList<>();
+
+  private ScheduledExecutorService backgroundFlushTask;
+
   public PercolateTagProcessor(ElasticsearchWriterConfiguration config) {
     this(config, DEFAULT_PERCOLATE_FIELD);
   }
@@ -122,8 +145,6 @@ public class PercolateTagProcessor implements StreamsProcessor {
   @Override
   public List<StreamsDatum> process(StreamsDatum entry) {
 
-    List<StreamsDatum> result = new ArrayList<>();
-
     String json;
     ObjectNode node;
     // first check for valid json
@@ -148,19 +169,41 @@ public class PercolateTagProcessor implements StreamsProcessor {
       return null;
     }
 
-    StringBuilder percolateRequestJson = new StringBuilder();
-    percolateRequestJson.append("{ \"doc\": ");
-    percolateRequestJson.append(json);
-    //percolateRequestJson.append("{ \"content\" : \"crazy good shit\" }");
-    percolateRequestJson.append("}");
+    if (tagBatchSize <= 1) {
+      return percolate(entry, node, json);
+    }
+
+    synchronized (this) {
+      if (pendingBatch == null) {
+        pendingBatch = new PercolateBatch(manager.client().prepareMultiPercolate());
+      }
+      pendingBatch.add(entry, node, percolateRequest(json));
+
+      if (pendingBatch.size() >= tagBatchSize
+          || System.currentTimeMillis() - pendingBatch.createdAt >= maxTimeBetweenBatches) {
+        submitPendingBatch();
+      }
+
+      return drainCompletedBatches(false);
+    }
+
+  }
+
+  /**
+   * Percolate a single document and block until its tags are known.
+   */
+  private List<StreamsDatum> percolate(StreamsDatum entry, ObjectNode node, String json) {
+
+    List<StreamsDatum> result = new ArrayList<>();
 
     PercolateRequestBuilder request;
     PercolateResponse response;
 
     try {
-      LOGGER.trace("Percolate request json: {}", percolateRequestJson.toString());
-      request = manager.client().preparePercolate().setIndices(config.getIndex()).setDocumentType(config.getType()).setSource(percolateRequestJson.toString());
-      LOGGER.trace("Percolate request: {}", mapper.writeValueAsString(request.request()));
+      request = percolateRequest(json);
+      if (LOGGER.isTraceEnabled()) {
+        LOGGER.trace("Percolate request: {}", mapper.writeValueAsString(request.request()));
+      }
       response = request.execute().actionGet();
       LOGGER.trace("Percolate response: {} matches", response.getMatches().length);
     } catch (Exception ex) {
@@ -168,6 +211,21 @@ public class PercolateTagProcessor implements StreamsProcessor {
       return null;
     }
 
+    result.add(applyMatches(entry, node, response));
+
+    return result;
+
+  }
+
+  private PercolateRequestBuilder percolateRequest(String json) {
+    return manager.client().preparePercolate()
+        .setIndices(config.getIndex())
+        .setDocumentType(config.getType())
+        .setPercolateDoc(PercolateSourceBuilder.docBuilder().setDoc(json));
+  }
+
+  private StreamsDatum applyMatches(StreamsDatum entry, ObjectNode node, PercolateResponse response) {
+
     ArrayNode tagArray = JsonNodeFactory.instance.arrayNode();
 
     for (PercolateResponse.Match aResponse : response) {
@@ -182,10 +240,62 @@ public class PercolateTagProcessor implements StreamsProcessor {
 
     entry.setDocument(activity);
 
-    result.add(entry);
+    return entry;
+
+  }
 
+  /**
+   * Send the pending multi-percolate request without waiting for it,
+   * blocking on the oldest outstanding request first if too many are in flight.
+   */
+  private void submitPendingBatch() {
+    if (pendingBatch == null) {
+      return;
+    }
+    while (inFlight.size() >= tagBatchMaxInFlight) {
+      inFlight.peekFirst().await();
+      completed.addAll(inFlight.pollFirst().results());
+    }
+    LOGGER.trace("Submitting multi-percolate request of {} documents", pendingBatch.size());
+    pendingBatch.submit();
+    inFlight.addLast(pendingBatch);
+    pendingBatch = null;
+  }
+
+  /**
+   * Collect datums whose batches have returned, preserving arrival order.
+   */
+  private List<StreamsDatum> drainCompletedBatches(boolean wait) {
+    List<StreamsDatum> result = new ArrayList<>(completed);
+    completed.clear();
+    while (!inFlight.isEmpty() && (wait || inFlight.peekFirst().isDone())) {
+      inFlight.peekFirst().await();
+      result.addAll(inFlight.pollFirst().results());
+    }
     return result;
+  }
+
+  /**
+   * Submit any partially filled batch and wait for every outstanding multi-percolate request.
+   * The runtime calls this after the last datum, so the tail of the stream is passed on.
+   * @return remaining tagged datums, in the order they were received
+   */
+  @Override
+  public synchronized List<StreamsDatum> flush() {
+    submitPendingBatch();
+    return drainCompletedBatches(true);
+  }
 
+  /**
+   * Submit the pending batch once it has waited maxTimeBetweenFlushMs, so the tail of the
+   * stream is tagged even when no more datums arrive, and collect batches that have returned;
+   * they are emitted by the next call to process, or by flush.
+   */
+  protected synchronized void flushIfNecessary() {
+    if (pendingBatch != null && System.currentTimeMillis() - pendingBatch.createdAt >= maxTimeBetweenBatches) {
+      submitPendingBatch();
+    }
+    completed.addAll(drainCompletedBatches(false));
   }
 
   protected void appendMatches(ArrayNode tagArray, Activity activity) {
@@ -201,7 +311,33 @@ public class PercolateTagProcessor implements StreamsProcessor {
 
     Objects.requireNonNull(config);
 
-    manager = ElasticsearchClientManager.getInstance(config);
+    if (manager == null) {
+      manager = ElasticsearchClientManager.getInstance(config);
+    }
+
+    tagBatchSize = config.getTagBatchSize() == null
+        ? DEFAULT_TAG_BATCH_SIZE
+        : config.getTagBatchSize().intValue();
+
+    tagBatchMaxInFlight = config.getTagBatchMaxInFlight() != null && config.getTagBatchMaxInFlight() > 0
+        ? config.getTagBatchMaxInFlight().intValue()
+        : DEFAULT_TAG_BATCH_MAX_IN_FLIGHT;
+
+    maxTimeBetweenBatches = config.getMaxTimeBetweenFlushMs() != null && config.getMaxTimeBetweenFlushMs() > 0
+        ? config.getMaxTimeBetweenFlushMs()
+        : DEFAULT_MAX_TIME_BETWEEN_BATCHES;
+
+    if (tagBatchSize > 1) {
+      backgroundFlushTask = Executors.newSingleThreadScheduledExecutor();
+      long interval = Math.max(1, maxTimeBetweenBatches / 2);
+      backgroundFlushTask.scheduleAtFixedRate(() -> {
+        try {
+          flushIfNecessary();
+        } catch (Exception ex) {
+          LOGGER.warn("Background percolate flush failed: {}", ex.getMessage());
+        }
+      }, interval, interval, TimeUnit.MILLISECONDS);
+    }
 
     if ( config.getTags() != null && config.getTags().getAdditionalProperties().size() > 0) {
       // initial write tags to index
@@ -227,6 +363,14 @@ public class PercolateTagProcessor implements StreamsProcessor {
 
   @Override
   public void cleanUp() {
+    if (backgroundFlushTask != null) {
+      backgroundFlushTask.shutdown();
+    }
+    // anything still held here was never flushed, so nothing down stream can receive it
+    List<StreamsDatum> remaining = flush();
+    if (remaining.size() > 0) {
+      LOGGER.warn("Dropping {} tagged datums that were never flushed", remaining.size());
+    }
     if (config.getCleanupTags()) {
       deleteOldQueries(config.getIndex());
     }
@@ -365,6 +509,73 @@ public class PercolateTagProcessor implements StreamsProcessor {
 
   }
 
+  /**
+   * Datums sharing one multi-percolate request, in the order they were received.
+   */
+  private class PercolateBatch {
+
+    private final MultiPercolateRequestBuilder request;
+    private final List<StreamsDatum> entries = new ArrayList<>();
+    private final List<ObjectNode> nodes = new ArrayList<>();
+    private final long createdAt = System.currentTimeMillis();
+    private ListenableActionFuture<MultiPercolateResponse> future;
+    private MultiPercolateResponse response;
+
+    PercolateBatch(MultiPercolateRequestBuilder request) {
+      this.request = request;
+    }
+
+    void add(StreamsDatum entry, ObjectNode node, PercolateRequestBuilder percolateRequest) {
+      entries.add(entry);
+      nodes.add(node);
+      request.add(percolateRequest);
+    }
+
+    int size() {
+      return entries.size();
+    }
+
+    void submit() {
+      try {
+        future = request.execute();
+      } catch (Exception ex) {
+        LOGGER.warn("Multi-percolate exception: {}", ex.getMessage());
+      }
+    }
+
+    boolean isDone() {
+      return future == null || future.isDone();
+    }
+
+    void await() {
+      if (future != null && response == null) {
+        try {
+          response = future.actionGet();
+        } catch (Exception ex) {
+          LOGGER.warn("Multi-percolate exception: {}", ex.getMessage());
+        }
+      }
+    }
+
+    /**
+     * Tag each datum from its item in the response.
+     * Datums whose percolation failed are passed through untagged.
+     */
+    List<StreamsDatum> results() {
+      List<StreamsDatum> result = new ArrayList<>(entries.size());
+      MultiPercolateResponse.Item[] items = response == null ? null : response.getItems();
+      for (int i = 0; i < entries.size(); i++) {
+        if (items == null || items[i].isFailure()) {
+          LOGGER.warn("Percolate failure: {}", items == null ? "no response" : items[i].getErrorMessage());
+          result.add(entries.get(i));
+        } else {
+          result.add(applyMatches(entries.get(i), nodes.get(i), items[i].getResponse()));
+        }
+      }
+      return result;
+    }
+  }
+
   public enum FilterLevel {
     MUST, SHOULD, MUST_NOT
   }
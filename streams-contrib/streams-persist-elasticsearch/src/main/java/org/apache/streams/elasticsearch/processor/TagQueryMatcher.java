@@ -0,0 +1,398 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.elasticsearch.processor;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Matches text against a fixed set of tag queries without a percolator.
+ *
+ * <p/>
+ * Tag queries use the subset of query_string syntax that the tags of a
+ * {@link PercolateTagProcessor} are typically written in: terms, "quoted phrases",
+ * parentheses, AND / OR / NOT (also &amp;&amp;, ||, !) and the +/- prefixes.
+ * Adjacent clauses default to OR.  Field prefixes (field:term) are accepted and ignored.
+ *
+ * <p/>
+ * Each query is indexed by the tokens at least one of which must be present for it
+ * to match, so a document only evaluates the queries that share a token with it.
+ */
+public class TagQueryMatcher {
+
+  // positions between separately tokenized values, so phrases never span two fields
+  private static final int FIELD_POSITION_GAP = 100;
+
+  private final List<String> tags = new ArrayList<>();
+  private final List<Query> queries = new ArrayList<>();
+  private final Map<String, int[]> index = new HashMap<>();
+  private final int[] unindexed;
+
+  /**
+   * TagQueryMatcher constructor.
+   * @param tagQueries query string per tag id
+   */
+  public TagQueryMatcher(Map<String, String> tagQueries) {
+    Map<String, List<Integer>> postings = new HashMap<>();
+    List<Integer> alwaysEvaluate = new ArrayList<>();
+    for (Map.Entry<String, String> tag : tagQueries.entrySet()) {
+      Query query = new Parser(tag.getValue()).parse();
+      int ordinal = queries.size();
+      tags.add(tag.getKey());
+      queries.add(query);
+      Set<String> anchors = query.anchors();
+      if (anchors == null) {
+        alwaysEvaluate.add(ordinal);
+      } else {
+        for (String anchor : anchors) {
+          postings.computeIfAbsent(anchor, key -> new ArrayList<>()).add(ordinal);
+        }
+      }
+    }
+    for (Map.Entry<String, List<Integer>> posting : postings.entrySet()) {
+      index.put(posting.getKey(), toArray(posting.getValue()));
+    }
+    unindexed = toArray(alwaysEvaluate);
+  }
+
+  public int size() {
+    return queries.size();
+  }
+
+  public List<String> match(CharSequence text) {
+    return match(Collections.singletonList(text));
+  }
+
+  /**
+   * Tags whose queries match any of the supplied values.
+   * @param values text values, each tokenized separately
+   * @return matching tag ids, in the order the tags were supplied
+   */
+  public List<String> match(Iterable<? extends CharSequence> values) {
+    Map<String, List<Integer>> positions = new HashMap<>();
+    int offset = 0;
+    for (CharSequence value : values) {
+      offset = tokenize(value, offset, positions) + FIELD_POSITION_GAP;
+    }
+
+    BitSet candidates = new BitSet(queries.size());
+    for (int ordinal : unindexed) {
+      candidates.set(ordinal);
+    }
+    for (String token : positions.keySet()) {
+      int[] ordinals = index.get(token);
+      if (ordinals != null) {
+        for (int ordinal : ordinals) {
+          candidates.set(ordinal);
+        }
+      }
+    }
+
+    List<String> result = new ArrayList<>();
+    for (int ordinal = candidates.nextSetBit(0); ordinal >= 0; ordinal = candidates.nextSetBit(ordinal + 1)) {
+      if (queries.get(ordinal).matches(positions)) {
+        result.add(tags.get(ordinal));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Lower-cased runs of letters and digits.
+   */
+  static List<String> tokenize(CharSequence text) {
+    List<String> tokens = new ArrayList<>();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (wordChar && start < 0) {
+        start = i;
+      } else if (!wordChar && start >= 0) {
+        tokens.add(text.subSequence(start, i).toString().toLowerCase(Locale.ROOT));
+        start = -1;
+      }
+    }
+    return tokens;
+  }
+
+  private static int tokenize(CharSequence text, int offset, Map<String, List<Integer>> positions) {
+    int position = offset;
+    for (String token : tokenize(text)) {
+      positions.computeIfAbsent(token, key -> new ArrayList<>()).add(position++);
+    }
+    return position;
+  }
+
+  private static int[] toArray(List<Integer> values) {
+    int[] array = new int[values.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = values.get(i);
+    }
+    return array;
+  }
+
+  private interface Query {
+
+    boolean matches(Map<String, List<Integer>> positions);
+
+    /**
+     * Tokens of which at least one must be present for a match, or null if there are none.
+     */
+    Set<String> anchors();
+  }
+
+  private static class Phrase implements Query {
+
+    private final String[] tokens;
+
+    Phrase(List<String> tokens) {
+      this.tokens = tokens.toArray(new String[tokens.size()]);
+    }
+
+    @Override
+    public boolean matches(Map<String, List<Integer>> positions) {
+      List<Integer> first = positions.get(tokens[0]);
+      if (first == null) {
+        return false;
+      }
+      for (int start : first) {
+        int i = 1;
+        while (i < tokens.length && contains(positions.get(tokens[i]), start + i)) {
+          i++;
+        }
+        if (i == tokens.length) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static boolean contains(List<Integer> list, int position) {
+      return list != null && Collections.binarySearch(list, position) >= 0;
+    }
+
+    @Override
+    public Set<String> anchors() {
+      return Collections.singleton(tokens[0]);
+    }
+
+    @Override
+    public String toString() {
+      return "\"" + String.join(" ", tokens) + "\"";
+    }
+  }
+
+  private static class BooleanQuery implements Query {
+
+    private final List<Query> must = new ArrayList<>();
+    private final List<Query> should = new ArrayList<>();
+    private final List<Query> mustNot = new ArrayList<>();
+
+    @Override
+    public boolean matches(Map<String, List<Integer>> positions) {
+      for (Query query : must) {
+        if (!query.matches(positions)) {
+          return false;
+        }
+      }
+      for (Query query : mustNot) {
+        if (query.matches(positions)) {
+          return false;
+        }
+      }
+      if (!must.isEmpty() || should.isEmpty()) {
+        return !must.isEmpty() || !mustNot.isEmpty();
+      }
+      for (Query query : should) {
+        if (query.matches(positions)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public Set<String> anchors() {
+      Set<String> best = null;
+      for (Query query : must) {
+        Set<String> anchors = query.anchors();
+        if (anchors != null && (best == null || anchors.size() < best.size())) {
+          best = anchors;
+        }
+      }
+      if (best != null || !must.isEmpty() || should.isEmpty()) {
+        return best;
+      }
+      Set<String> union = new HashSet<>();
+      for (Query query : should) {
+        Set<String> anchors = query.anchors();
+        if (anchors == null) {
+          return null;
+        }
+        union.addAll(anchors);
+      }
+      return union;
+    }
+
+    @Override
+    public String toString() {
+      return "must" + must + " should" + should + " mustNot" + mustNot;
+    }
+  }
+
+  private enum Occur {
+    MUST, SHOULD, MUST_NOT
+  }
+
+  /**
+   * Recursive descent over the query string, applying Lucene's classic
+   * conjunction rules: AND makes both neighbours required, NOT and '-' exclude.
+   */
+  private static class Parser {
+
+    private final List<String> tokens;
+    private int pos = 0;
+
+    Parser(String query) {
+      this.tokens = lex(Objects.requireNonNull(query));
+    }
+
+    Query parse() {
+      Query query = parseClauses();
+      if (pos < tokens.size()) {
+        throw new IllegalArgumentException("Unexpected '" + tokens.get(pos) + "' in tag query");
+      }
+      return query;
+    }
+
+    private Query parseClauses() {
+      List<Query> clauses = new ArrayList<>();
+      List<Occur> occurs = new ArrayList<>();
+      boolean conjunction = false;
+      while (pos < tokens.size() && !tokens.get(pos).equals(")")) {
+        String token = tokens.get(pos);
+        if (token.equals("AND") || token.equals("&&")) {
+          pos++;
+          conjunction = true;
+          if (!occurs.isEmpty() && occurs.get(occurs.size() - 1) == Occur.SHOULD) {
+            occurs.set(occurs.size() - 1, Occur.MUST);
+          }
+          continue;
+        }
+        if (token.equals("OR") || token.equals("||")) {
+          pos++;
+          continue;
+        }
+        Occur occur = conjunction ? Occur.MUST : Occur.SHOULD;
+        conjunction = false;
+        if (token.equals("NOT") || token.equals("!") || token.equals("-")) {
+          pos++;
+          occur = Occur.MUST_NOT;
+        } else if (token.equals("+")) {
+          pos++;
+          occur = Occur.MUST;
+        }
+        Query clause = parsePrimary();
+        if (clause != null) {
+          clauses.add(clause);
+          occurs.add(occur);
+        }
+      }
+      if (clauses.size() == 1 && occurs.get(0) != Occur.MUST_NOT) {
+        return clauses.get(0);
+      }
+      BooleanQuery query = new BooleanQuery();
+      for (int i = 0; i < clauses.size(); i++) {
+        switch (occurs.get(i)) {
+          case MUST:
+            query.must.add(clauses.get(i));
+            break;
+          case MUST_NOT:
+            query.mustNot.add(clauses.get(i));
+            break;
+          default:
+            query.should.add(clauses.get(i));
+            break;
+        }
+      }
+      return query;
+    }
+
+    private Query parsePrimary() {
+      if (pos >= tokens.size()) {
+        throw new IllegalArgumentException("Tag query ends with an operator");
+      }
+      String token = tokens.get(pos++);
+      if (token.equals("(")) {
+        Query group = parseClauses();
+        if (pos >= tokens.size()) {
+          throw new IllegalArgumentException("Unbalanced '(' in tag query");
+        }
+        pos++;
+        return group;
+      }
+      // terms and phrases are analyzed like document text, so "foo-bar" behaves as a phrase
+      List<String> terms = tokenize(token.startsWith("\"") ? token.substring(1) : token);
+      return terms.isEmpty() ? null : new Phrase(terms);
+    }
+
+    private static List<String> lex(String query) {
+      List<String> tokens = new ArrayList<>();
+      int i = 0;
+      while (i < query.length()) {
+        char ch = query.charAt(i);
+        if (Character.isWhitespace(ch)) {
+          i++;
+        } else if (ch == '"') {
+          int end = query.indexOf('"', i + 1);
+          end = end < 0 ? query.length() : end;
+          // keep the opening quote as a marker so operators inside phrases stay literal
+          tokens.add(query.substring(i, end));
+          i = end + 1;
+        } else if (ch == '(' || ch == ')' || ch == '+' || ch == '-' || ch == '!') {
+          tokens.add(String.valueOf(ch));
+          i++;
+        } else {
+          int start = i;
+          while (i < query.length() && !Character.isWhitespace(query.charAt(i))
+              && "()\"".indexOf(query.charAt(i)) < 0) {
+            i++;
+          }
+          String word = query.substring(start, i);
+          int field = word.indexOf(':');
+          if (field >= 0) {
+            word = word.substring(field + 1);
+          }
+          if (!word.isEmpty()) {
+            tokens.add(word);
+          }
+        }
+      }
+      return tokens;
+    }
+  }
+}
@@ -18,9 +18,34 @@
 
 package org.apache.streams.elasticsearch.processor;
 
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.elasticsearch.ElasticsearchClientManager;
+import org.apache.streams.elasticsearch.ElasticsearchWriterConfiguration;
+import org.apache.streams.pojo.json.Activity;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.percolate.PercolateAction;
+import org.elasticsearch.action.percolate.MultiPercolateRequestBuilder;
+import org.elasticsearch.action.percolate.MultiPercolateResponse;
+import org.elasticsearch.action.percolate.PercolateRequestBuilder;
+import org.elasticsearch.action.percolate.PercolateResponse;
+import org.elasticsearch.client.transport.TransportClient;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * Unit Test for
@@ -48,4 +73,120 @@ public class PercolateTagProcessorTest {
     assertEquals(id, percolateQueryBuilder.getId());
 //        assertEquals(expectedResults, percolateQueryBuilder.getSource());
   }
+
+  @Test
+  public void testPartialBatchIsHeldUntilFlush() {
+    List<MultiPercolateRequestBuilder> requests = new ArrayList<>();
+    PercolateTagProcessor processor = batchingProcessor(3, 60000L, requests);
+
+    assertEquals(0, processor.process(datum("1")).size());
+    assertEquals(0, processor.process(datum("2")).size());
+    verify(requests.get(0), never()).execute();
+
+    assertIds(processor.flush(), "1", "2");
+    verify(requests.get(0)).execute();
+    processor.cleanUp();
+  }
+
+  @Test
+  public void testFullBatchesAreEmittedInOrder() {
+    List<MultiPercolateRequestBuilder> requests = new ArrayList<>();
+    PercolateTagProcessor processor = batchingProcessor(2, 60000L, requests);
+
+    List<StreamsDatum> emitted = new ArrayList<>();
+    for (int i = 1; i <= 5; i++) {
+      emitted.addAll(processor.process(datum(Integer.toString(i))));
+    }
+    assertIds(emitted, "1", "2", "3", "4");
+
+    // the odd datum out is the tail of the stream
+    assertIds(processor.flush(), "5");
+    assertEquals(3, requests.size());
+    processor.cleanUp();
+  }
+
+  @Test
+  public void testTimerSubmitsAgedBatch() {
+    List<MultiPercolateRequestBuilder> requests = new ArrayList<>();
+    PercolateTagProcessor processor = batchingProcessor(10, 100L, requests);
+
+    processor.process(datum("1"));
+    processor.process(datum("2"));
+
+    // no datum arrives after these, so only the timer can send them
+    verify(requests.get(0), timeout(5000)).execute();
+
+    assertIds(processor.process(datum("3")), "1", "2");
+    assertIds(processor.flush(), "3");
+    processor.cleanUp();
+  }
+
+  private static PercolateTagProcessor batchingProcessor(long batchSize, long maxTimeBetweenFlushMs,
+                                                         List<MultiPercolateRequestBuilder> requests) {
+    TransportClient client = mock(TransportClient.class);
+    when(client.preparePercolate()).thenAnswer(invocation -> new PercolateRequestBuilder(client, PercolateAction.INSTANCE));
+    when(client.prepareMultiPercolate()).thenAnswer(invocation -> {
+      MultiPercolateRequestBuilder request = multiPercolateRequest();
+      synchronized (requests) {
+        requests.add(request);
+      }
+      return request;
+    });
+    ElasticsearchClientManager manager = mock(ElasticsearchClientManager.class);
+    when(manager.client()).thenReturn(client);
+
+    ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+    config.setIndex("index");
+    config.setType("type");
+    config.setTagBatchSize(batchSize);
+    config.setMaxTimeBetweenFlushMs(maxTimeBetweenFlushMs);
+    config.setCleanupTags(false);
+
+    PercolateTagProcessor processor = new PercolateTagProcessor(config);
+    processor.setManager(manager);
+    processor.prepare(null);
+    return processor;
+  }
+
+  /**
+   * A multi-percolate request answering every document it was given with no matches.
+   */
+  @SuppressWarnings("unchecked")
+  private static MultiPercolateRequestBuilder multiPercolateRequest() {
+    AtomicInteger documents = new AtomicInteger();
+    MultiPercolateRequestBuilder request = mock(MultiPercolateRequestBuilder.class);
+    when(request.add(any(PercolateRequestBuilder.class))).thenAnswer(invocation -> {
+      documents.incrementAndGet();
+      return request;
+    });
+    ListenableActionFuture<MultiPercolateResponse> future = mock(ListenableActionFuture.class);
+    when(future.isDone()).thenReturn(true);
+    when(future.actionGet()).thenAnswer(invocation -> {
+      MultiPercolateResponse.Item[] items = new MultiPercolateResponse.Item[documents.get()];
+      for (int i = 0; i < items.length; i++) {
+        PercolateResponse response = mock(PercolateResponse.class);
+        when(response.iterator()).thenReturn(Collections.<PercolateResponse.Match>emptyIterator());
+        items[i] = mock(MultiPercolateResponse.Item.class);
+        when(items[i].getResponse()).thenReturn(response);
+      }
+      MultiPercolateResponse response = mock(MultiPercolateResponse.class);
+      when(response.getItems()).thenReturn(items);
+      return response;
+    });
+    when(request.execute()).thenReturn(future);
+    return request;
+  }
+
+  private static StreamsDatum datum(String id) {
+    ObjectNode document = JsonNodeFactory.instance.objectNode();
+    document.put("id", id);
+    return new StreamsDatum(document, id);
+  }
+
+  private static void assertIds(List<StreamsDatum> datums, String... ids) {
+    assertEquals(ids.length, datums.size());
+    for (int i = 0; i < ids.length; i++) {
+      assertEquals(ids[i], ((Activity) datums.get(i).getDocument()).getId());
+    }
+  }
 }
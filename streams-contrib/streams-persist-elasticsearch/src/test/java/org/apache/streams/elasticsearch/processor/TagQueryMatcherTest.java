@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.elasticsearch.processor;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit Test for
+ * @see org.apache.streams.elasticsearch.processor.TagQueryMatcher
+ */
+public class TagQueryMatcherTest {
+
+  private TagQueryMatcher matcher(String... idsAndQueries) {
+    Map<String, String> tags = new LinkedHashMap<>();
+    for (int i = 0; i < idsAndQueries.length; i += 2) {
+      tags.put(idsAndQueries[i], idsAndQueries[i + 1]);
+    }
+    return new TagQueryMatcher(tags);
+  }
+
+  @Test
+  public void testTermsDefaultToOr() {
+    TagQueryMatcher matcher = matcher("t", "apache streams");
+    assertEquals(Collections.singletonList("t"), matcher.match("Streams are great"));
+    assertEquals(Collections.emptyList(), matcher.match("rivers are great"));
+  }
+
+  @Test
+  public void testPhrase() {
+    TagQueryMatcher matcher = matcher("t", "\"apache streams\"");
+    assertEquals(Collections.singletonList("t"), matcher.match("Welcome to Apache Streams!"));
+    assertEquals(Collections.emptyList(), matcher.match("streams by apache"));
+    assertEquals(Collections.emptyList(), matcher.match(Arrays.asList("apache", "streams")));
+  }
+
+  @Test
+  public void testBoolean() {
+    TagQueryMatcher matcher = matcher(
+        "and", "apache AND streams",
+        "not", "apache NOT streams",
+        "required", "+apache streams -kafka",
+        "group", "(kafka OR mongo) AND sink",
+        "negative", "-spam");
+    assertEquals(Arrays.asList("and", "required", "negative"), matcher.match("apache streams"));
+    assertEquals(Arrays.asList("not", "required", "negative"), matcher.match("apache rivers"));
+    assertEquals(Arrays.asList("not", "group", "negative"), matcher.match("apache kafka sink"));
+    assertEquals(Collections.singletonList("group"), matcher.match("mongo sink spam"));
+  }
+
+  @Test
+  public void testFieldPrefixIgnored() {
+    TagQueryMatcher matcher = matcher("t", "content:kafka");
+    assertEquals(Collections.singletonList("t"), matcher.match("kafka"));
+  }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.elasticsearch.test;
+
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.elasticsearch.ElasticsearchIndexResolver;
+import org.apache.streams.elasticsearch.ElasticsearchWriterConfiguration;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ElasticsearchIndexResolverTest {
+
+  private static final DateTime TIMESTAMP = new DateTime(2017, 6, 1, 23, 30, DateTimeZone.forOffsetHours(-5));
+
+  @Test
+  public void testUnpartitioned() {
+    ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration().withIndex("activity");
+    ElasticsearchIndexResolver resolver = new ElasticsearchIndexResolver(config, null);
+
+    Assert.assertFalse(resolver.isPartitioned());
+    Assert.assertEquals("activity", resolver.getIndex(new StreamsDatum("{}", "id", TIMESTAMP)));
+  }
+
+  @Test
+  public void testHourlyPartitionUsesUtc() {
+    ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration()
+        .withIndex("activity")
+        .withIndexDateFormat("yyyy.MM.dd.HH");
+    ElasticsearchIndexResolver resolver = new ElasticsearchIndexResolver(config, null);
+
+    Assert.assertTrue(resolver.isPartitioned());
+    Assert.assertEquals("activity-2017.06.02.04", resolver.getIndex(new StreamsDatum("{}", "id", TIMESTAMP)));
+  }
+
+  @Test
+  public void testMetadataIndexIsNotPartitioned() {
+    ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration()
+        .withIndex("activity")
+        .withIndexDateFormat("yyyy.MM.dd");
+    ElasticsearchIndexResolver resolver = new ElasticsearchIndexResolver(config, null);
+
+    StreamsDatum datum = new StreamsDatum("{}", "id", TIMESTAMP);
+    datum.getMetadata().put("index", "archive");
+
+    Assert.assertEquals("archive", resolver.getIndex(datum));
+  }
+
+}
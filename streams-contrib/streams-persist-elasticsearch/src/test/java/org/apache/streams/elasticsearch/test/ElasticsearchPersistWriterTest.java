@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.elasticsearch.test;
+
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.elasticsearch.ElasticsearchClientManager;
+import org.apache.streams.elasticsearch.ElasticsearchPersistWriter;
+import org.apache.streams.elasticsearch.ElasticsearchWriterConfiguration;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.transport.TransportClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit Test for
+ * @see org.apache.streams.elasticsearch.ElasticsearchPersistWriter
+ */
+public class ElasticsearchPersistWriterTest {
+
+  @Test
+  public void testMixedActionsShareOneBulk() {
+    TestWriter writer = testWriter();
+
+    writer.write(datum("1", null));
+    writer.write(datum("2", "update"));
+    writer.write(datum("3", "delete"));
+    writer.write(datum("4", "upsert"));
+
+    List<ActionRequest> requests = writer.queued();
+    Assert.assertEquals(4, requests.size());
+    Assert.assertTrue(requests.get(0) instanceof IndexRequest);
+    Assert.assertTrue(requests.get(1) instanceof UpdateRequest);
+    Assert.assertFalse(((UpdateRequest) requests.get(1)).docAsUpsert());
+    Assert.assertTrue(requests.get(2) instanceof DeleteRequest);
+    Assert.assertTrue(requests.get(3) instanceof UpdateRequest);
+    Assert.assertTrue(((UpdateRequest) requests.get(3)).docAsUpsert());
+    Assert.assertEquals(0, writer.getTotalFailed());
+  }
+
+  @Test
+  public void testUnknownActionIsCountedAsFailed() {
+    TestWriter writer = testWriter();
+
+    writer.write(datum("1", "index"));
+    writer.write(datum("2", "remove"));
+    writer.write(datum("3", "delete"));
+
+    List<ActionRequest> requests = writer.queued();
+    Assert.assertEquals(2, requests.size());
+    Assert.assertTrue(requests.get(0) instanceof IndexRequest);
+    Assert.assertTrue(requests.get(1) instanceof DeleteRequest);
+    Assert.assertEquals(1, writer.getTotalFailed());
+    Assert.assertEquals(0, writer.getTotalOutstanding());
+  }
+
+  private StreamsDatum datum(String id, String action) {
+    StreamsDatum datum = new StreamsDatum("{\"verb\":\"post\"}", id);
+    if (action != null) {
+      datum.getMetadata().put("elasticsearch.action", action);
+    }
+    return datum;
+  }
+
+  private TestWriter testWriter() {
+    TransportClient client = mock(TransportClient.class);
+    when(client.prepareBulk()).thenAnswer(invocation -> new BulkRequestBuilder(client, BulkAction.INSTANCE));
+    when(client.prepareIndex(anyString(), anyString())).thenAnswer(invocation ->
+        new IndexRequestBuilder(client, IndexAction.INSTANCE)
+            .setIndex((String) invocation.getArguments()[0])
+            .setType((String) invocation.getArguments()[1]));
+
+    ElasticsearchClientManager manager = mock(ElasticsearchClientManager.class);
+    when(manager.client()).thenReturn(client);
+
+    ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration()
+        .withIndex("activity")
+        .withType("activity");
+
+    return new TestWriter(config, manager);
+  }
+
+  private static class TestWriter extends ElasticsearchPersistWriter {
+
+    TestWriter(ElasticsearchWriterConfiguration config, ElasticsearchClientManager manager) {
+      super(config, manager);
+    }
+
+    @Override
+    public void createIndexIfMissing(String indexName) {
+      // no cluster behind the mocked client
+    }
+
+    List<ActionRequest> queued() {
+      return bulkRequest.request().requests();
+    }
+  }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.filebuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Durable append-only log of records, stored as memory-mapped segment files in a directory.
+ *
+ * <p/>
+ * Each segment is named after the log offset of its first byte and holds records framed as
+ * [int length][bytes].  A zero length marks the end of written data, and a negative length
+ * marks the end of a segment whose remaining space was too small for the next record.
+ *
+ * <p/>
+ * Appends are not forced to disk individually: {@link #sync()} forces everything written so far,
+ * and the writer calls it when syncBytes have accumulated or syncIntervalMs has passed (group commit).
+ *
+ * <p/>
+ * Readers track their position per consumer in a [consumer].offset file, so several consumers can
+ * read the same log, and a restarted consumer resumes after the last offset it committed.
+ */
+public class FileBufferLog implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileBufferLog.class);
+
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String OFFSET_SUFFIX = ".offset";
+  private static final int HEADER_BYTES = 4;
+  private static final int END_OF_SEGMENT = -1;
+
+  private final File directory;
+  private final int segmentBytes;
+
+  // base offset -> segment, oldest first; writing maps only the active segment, reading maps the rest
+  private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+
+  private MappedByteBuffer active;
+  private long activeBase;
+  private long unsyncedBytes = 0;
+  private long lastSync = System.currentTimeMillis();
+
+  /**
+   * FileBufferLog constructor.
+   * @param directory directory holding the segments
+   * @param segmentBytes size of each segment file
+   * @throws IOException IOException
+   */
+  public FileBufferLog(File directory, int segmentBytes) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    File[] files = Objects.requireNonNull(directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX)));
+    long last = -1L;
+    for (File file : files) {
+      last = Math.max(last, baseOffset(file));
+    }
+    if (last < 0) {
+      roll(0L, segmentBytes);
+    } else {
+      activeBase = last;
+      active = map(segmentFile(last), 0);
+      active.position(endOfData(active));
+      segments.put(activeBase, active);
+    }
+  }
+
+  /**
+   * Append one record.  Not durable until the next {@link #sync()}.
+   * @param record record
+   * @throws IOException IOException
+   */
+  public synchronized void append(byte[] record) throws IOException {
+    int framed = HEADER_BYTES + record.length;
+    // always leave room for a terminating zero length or end-of-segment marker
+    if (active.remaining() < framed + HEADER_BYTES) {
+      if (active.remaining() >= HEADER_BYTES) {
+        active.putInt(active.position(), END_OF_SEGMENT);
+      }
+      roll(activeBase + active.position(), Math.max(segmentBytes, framed + HEADER_BYTES));
+    }
+    int start = active.position();
+    active.position(start + HEADER_BYTES);
+    active.put(record);
+    // publish the length last, so readers never see a partially written record
+    active.putInt(start, record.length);
+    unsyncedBytes += framed;
+  }
+
+  public synchronized long getUnsyncedBytes() {
+    return unsyncedBytes;
+  }
+
+  public synchronized long getLastSync() {
+    return lastSync;
+  }
+
+  /**
+   * Force all appended records to disk.
+   */
+  public synchronized void sync() {
+    if (unsyncedBytes > 0) {
+      active.force();
+      unsyncedBytes = 0;
+    }
+    lastSync = System.currentTimeMillis();
+  }
+
+  /**
+   * Read records written by this or another FileBufferLog on the same directory.
+   * @param offset log offset to start at
+   * @param maxRecords most records to return
+   * @param records receives the records read
+   * @return offset following the last record read
+   * @throws IOException IOException
+   */
+  public synchronized long read(long offset, int maxRecords, List<byte[]> records) throws IOException {
+    refreshSegments();
+    long position = offset;
+    while (records.size() < maxRecords) {
+      Long base = segments.floorKey(position);
+      if (base == null) {
+        // everything before the oldest remaining segment was deleted
+        base = segments.firstKey();
+        position = base;
+      }
+      ByteBuffer segment = segments.get(base).duplicate();
+      int index = (int) (position - base);
+      int length = index + HEADER_BYTES <= segment.limit() ? segment.getInt(index) : END_OF_SEGMENT;
+      if (length == 0) {
+        break;
+      }
+      if (length == END_OF_SEGMENT) {
+        Long next = segments.higherKey(base);
+        if (next == null) {
+          break;
+        }
+        position = next;
+        continue;
+      }
+      byte[] record = new byte[length];
+      segment.position(index + HEADER_BYTES);
+      segment.get(record);
+      records.add(record);
+      position += HEADER_BYTES + length;
+    }
+    return position;
+  }
+
+  /**
+   * Offset a consumer committed, or the start of the log.
+   * @param consumer consumer
+   * @return offset
+   * @throws IOException IOException
+   */
+  public synchronized long getCommittedOffset(String consumer) throws IOException {
+    File file = new File(directory, consumer + OFFSET_SUFFIX);
+    if (!file.exists()) {
+      refreshSegments();
+      return segments.isEmpty() ? 0L : segments.firstKey();
+    }
+    return Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+  }
+
+  /**
+   * Durably record a consumer's offset, and optionally delete segments every record of which
+   * every consumer that has committed has read, so one consumer never deletes what another
+   * has yet to read.
+   * @param consumer consumer
+   * @param offset offset
+   * @param deleteConsumed whether to delete consumed segments
+   * @throws IOException IOException
+   */
+  public synchronized void commitOffset(String consumer, long offset, boolean deleteConsumed) throws IOException {
+    File tmp = new File(directory, consumer + OFFSET_SUFFIX + ".tmp");
+    Files.write(tmp.toPath(), Long.toString(offset).getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SYNC);
+    Files.move(tmp.toPath(), new File(directory, consumer + OFFSET_SUFFIX).toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    if (deleteConsumed) {
+      long consumed = minimumCommittedOffset();
+      // a segment is consumed once every offset has moved into a later one
+      while (segments.size() > 1 && segments.higherKey(segments.firstKey()) <= consumed) {
+        long base = segments.firstKey();
+        segments.remove(base);
+        if (!segmentFile(base).delete()) {
+          LOGGER.warn("Unable to delete consumed segment {}", segmentFile(base));
+        }
+      }
+    }
+  }
+
+  // lowest offset committed by any consumer of this directory
+  private long minimumCommittedOffset() throws IOException {
+    long minimum = Long.MAX_VALUE;
+    File[] files = Objects.requireNonNull(directory.listFiles((dir, name) -> name.endsWith(OFFSET_SUFFIX)));
+    for (File file : files) {
+      minimum = Math.min(minimum, Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim()));
+    }
+    return minimum;
+  }
+
+  @Override
+  public synchronized void close() {
+    sync();
+    segments.clear();
+    active = null;
+  }
+
+  private void roll(long base, int size) throws IOException {
+    if (active != null) {
+      active.force();
+      // drop the full segment, so a long lived writer does not keep every segment it ever wrote mapped,
+      // including those consumers have since deleted; a read maps it again if needed
+      segments.remove(activeBase);
+    }
+    active = map(segmentFile(base), size);
+    activeBase = base;
+    segments.put(base, active);
+    LOGGER.debug("Rolled to segment {}", segmentFile(base));
+  }
+
+  // pick up segments rolled by a writer in another instance, and forget ones deleted underneath us
+  private void refreshSegments() throws IOException {
+    File[] files = Objects.requireNonNull(directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX)));
+    List<Long> present = new ArrayList<>();
+    for (File file : files) {
+      long base = baseOffset(file);
+      present.add(base);
+      // remap segments first seen before their writer finished sizing them
+      if (!segments.containsKey(base) || segments.get(base).capacity() < file.length()) {
+        segments.put(base, map(file, 0));
+      }
+    }
+    segments.keySet().retainAll(present);
+  }
+
+  private static long baseOffset(File segment) {
+    return Long.parseLong(segment.getName().substring(0, segment.getName().length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private File segmentFile(long base) {
+    return new File(directory, String.format("%020d", base) + SEGMENT_SUFFIX);
+  }
+
+  private static MappedByteBuffer map(File file, int size) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long length = Math.max(channel.size(), size);
+      // the mapping stays valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+  }
+
+  private static int endOfData(ByteBuffer segment) {
+    int position = 0;
+    while (position + HEADER_BYTES <= segment.limit()) {
+      int length = segment.getInt(position);
+      if (length == 0) {
+        return position;
+      }
+      if (length == END_OF_SEGMENT) {
+        // full segment: park at the limit so the next append rolls
+        return segment.limit();
+      }
+      position += HEADER_BYTES + length;
+    }
+    return segment.limit();
+  }
+}
@@ -31,13 +31,13 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -46,6 +46,11 @@ import java.util.concurrent.Executors;
 
 /**
  * Reads data from a buffer stored on the file-system.
+ *
+ * <p/>
+ * When segmented is set, each readCurrent returns up to readBatchSize records from a
+ * {@link FileBufferLog}, starting after the offset last committed for the configured consumer.
+ * Compressed records are detected and decompressed whatever compression is configured.
  */
 public class FileBufferPersistReader implements StreamsPersistReader, Serializable {
 
@@ -61,6 +66,8 @@ public class FileBufferPersistReader implements StreamsPersistReader, Serializab
 
   private QueueFile queueFile;
 
+  private FileBufferLog log;
+
   private boolean isStarted = false;
   private boolean isStopped = false;
 
@@ -92,12 +99,14 @@ public class FileBufferPersistReader implements StreamsPersistReader, Serializab
   @Override
   public StreamsResultSet readCurrent() {
 
-    while (!queueFile.isEmpty()) {
+    if (log != null) {
+      readLog();
+    }
+
+    while (queueFile != null && !queueFile.isEmpty()) {
       try {
         byte[] bytes = queueFile.peek();
-        ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-        BufferedReader buf = new BufferedReader(new InputStreamReader(bais));
-        String line = buf.readLine();
+        String line = firstLine(new String(FileBufferRecords.decode(bytes), StandardCharsets.UTF_8));
         LOGGER.debug(line);
         write(new StreamsDatum(line));
         queueFile.remove();
@@ -113,6 +122,30 @@ public class FileBufferPersistReader implements StreamsPersistReader, Serializab
     return current;
   }
 
+  private void readLog() {
+    try {
+      List<byte[]> records = new ArrayList<>();
+      long offset = log.getCommittedOffset(config.getConsumer());
+      long next = log.read(offset, config.getReadBatchSize().intValue(), records);
+      for (byte[] record : records) {
+        write(new StreamsDatum(new String(FileBufferRecords.decode(record), StandardCharsets.UTF_8)));
+      }
+      if (next != offset) {
+        log.commitOffset(config.getConsumer(), next, config.getDeleteConsumed());
+      }
+    } catch (IOException ex) {
+      LOGGER.error("Unable to read {}: {}", config.getBuffer(), ex.getMessage());
+    }
+  }
+
+  private static String firstLine(String item) {
+    int end = item.indexOf('\n');
+    if (end < 0) {
+      return item;
+    }
+    return item.substring(0, end > 0 && item.charAt(end - 1) == '\r' ? end - 1 : end);
+  }
+
   private void write( StreamsDatum entry ) {
     persistQueue.offer(entry);
   }
@@ -145,6 +178,18 @@ public class FileBufferPersistReader implements StreamsPersistReader, Serializab
 
     File file = new File( config.getBuffer() );
 
+    this.persistQueue = new ConcurrentLinkedQueue<>();
+
+    if (config.getSegmented()) {
+      try {
+        log = new FileBufferLog(file, config.getSegmentBytes().intValue());
+      } catch (IOException ex) {
+        LOGGER.error(ex.getMessage());
+      }
+      Objects.requireNonNull(log);
+      return;
+    }
+
     if ( !file.exists() ) {
       try {
         file.createNewFile();
@@ -164,12 +209,16 @@ public class FileBufferPersistReader implements StreamsPersistReader, Serializab
 
     Objects.requireNonNull(queueFile);
 
-    this.persistQueue = new ConcurrentLinkedQueue<>();
-
   }
 
   @Override
   public void cleanUp() {
+    if (log != null) {
+      log.close();
+      log = null;
+      isStopped = true;
+      return;
+    }
     try {
       queueFile.close();
     } catch (IOException ex) {
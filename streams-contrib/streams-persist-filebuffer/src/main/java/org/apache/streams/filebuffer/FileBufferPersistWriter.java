@@ -23,6 +23,8 @@ import org.apache.streams.config.StreamsConfigurator;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
 import org.apache.streams.util.GuidUtils;
+import org.apache.streams.util.codec.BlockCompressor;
+import org.apache.streams.util.codec.BlockCompressors;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Preconditions;
@@ -34,12 +36,23 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Writes data to a buffer stored on the file-system.
+ *
+ * <p/>
+ * When segmented is set, data is appended to a {@link FileBufferLog} and forced to disk
+ * once syncBytes have accumulated or syncIntervalMs has passed, rather than per datum.
+ *
+ * <p/>
+ * With compression set, each record is compressed on its own, so it can still be read singly.
  */
 public class FileBufferPersistWriter implements StreamsPersistWriter, Serializable {
 
@@ -55,6 +68,12 @@ public class FileBufferPersistWriter implements StreamsPersistWriter, Serializab
 
   private QueueFile queueFile;
 
+  private FileBufferLog log;
+
+  private ScheduledExecutorService syncExecutor;
+
+  private BlockCompressor compressor;
+
   public FileBufferPersistWriter() {
     this(new ComponentConfigurator<>(FileBufferConfiguration.class).detectConfiguration());
   }
@@ -77,14 +96,27 @@ public class FileBufferPersistWriter implements StreamsPersistWriter, Serializab
     Preconditions.checkArgument(entry.getDocument() instanceof String);
     Preconditions.checkArgument(StringUtils.isNotBlank((String) entry.getDocument()));
 
-    byte[] item = ((String)entry.getDocument()).getBytes();
     try {
-      queueFile.add(item);
+      byte[] item = FileBufferRecords.encode(((String)entry.getDocument()).getBytes(StandardCharsets.UTF_8), compressor);
+      if (log != null) {
+        log.append(item);
+        if (log.getUnsyncedBytes() >= config.getSyncBytes()) {
+          log.sync();
+        }
+      } else {
+        queueFile.add(item);
+      }
     } catch (IOException ex) {
       ex.printStackTrace();
     }
   }
 
+  private void syncIfDue() {
+    if (System.currentTimeMillis() - log.getLastSync() >= config.getSyncIntervalMs()) {
+      log.sync();
+    }
+  }
+
   @Override
   public void prepare(Object configurationObject) {
 
@@ -92,6 +124,23 @@ public class FileBufferPersistWriter implements StreamsPersistWriter, Serializab
 
     File file = new File( config.getBuffer() );
 
+    this.persistQueue  = new ConcurrentLinkedQueue<>();
+
+    compressor = BlockCompressors.forName(config.getCompression().toString());
+
+    if (config.getSegmented()) {
+      try {
+        log = new FileBufferLog(file, config.getSegmentBytes().intValue());
+      } catch (IOException ex) {
+        LOGGER.error("Unable to open {}: {}", file, ex.getMessage());
+      }
+      Objects.requireNonNull(log);
+      long interval = Math.max(1, config.getSyncIntervalMs() / 2);
+      syncExecutor = Executors.newSingleThreadScheduledExecutor();
+      syncExecutor.scheduleWithFixedDelay(this::syncIfDue, interval, interval, TimeUnit.MILLISECONDS);
+      return;
+    }
+
     try {
       queueFile = new QueueFile(file);
     } catch (IOException ex) {
@@ -103,12 +152,16 @@ public class FileBufferPersistWriter implements StreamsPersistWriter, Serializab
 
     Objects.requireNonNull(queueFile);
 
-    this.persistQueue  = new ConcurrentLinkedQueue<>();
-
   }
 
   @Override
   public void cleanUp() {
+    if (log != null) {
+      syncExecutor.shutdown();
+      log.close();
+      log = null;
+      return;
+    }
     try {
       queueFile.close();
     } catch (IOException ex) {
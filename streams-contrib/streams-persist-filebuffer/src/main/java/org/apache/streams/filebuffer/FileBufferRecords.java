@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.filebuffer;
+
+import org.apache.streams.util.codec.BlockCompressor;
+import org.apache.streams.util.codec.BlockCompressors;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes buffer records, optionally compressed.
+ *
+ * <p/>
+ * A compressed record is [0x00][compressor id][int raw length][compressed bytes].  Text never
+ * starts with a zero byte, so records written without compression, including those written
+ * before compression was configured, are read back unchanged.
+ */
+final class FileBufferRecords {
+
+  private static final byte COMPRESSED = 0;
+  private static final int HEADER_BYTES = 2 + 4;
+
+  private FileBufferRecords() {
+  }
+
+  /**
+   * Compress a record, unless compression would not make it smaller.
+   * @param raw raw
+   * @param compressor compressor, or null to store records as they are
+   * @return record
+   * @throws IOException IOException
+   */
+  static byte[] encode(byte[] raw, BlockCompressor compressor) throws IOException {
+    if (compressor == null) {
+      return raw;
+    }
+    byte[] record = new byte[HEADER_BYTES + compressor.maxCompressedLength(raw.length)];
+    int length = compressor.compress(raw, 0, raw.length, record, HEADER_BYTES);
+    if (HEADER_BYTES + length >= raw.length && (raw.length == 0 || raw[0] != COMPRESSED)) {
+      return raw;
+    }
+    ByteBuffer.wrap(record).put(COMPRESSED).put(compressor.getId()).putInt(raw.length);
+    return Arrays.copyOf(record, HEADER_BYTES + length);
+  }
+
+  /**
+   * Decompress a record written by encode.
+   * @param record record
+   * @return raw
+   * @throws IOException IOException
+   */
+  static byte[] decode(byte[] record) throws IOException {
+    if (record.length < HEADER_BYTES || record[0] != COMPRESSED) {
+      return record;
+    }
+    ByteBuffer header = ByteBuffer.wrap(record);
+    header.get();
+    BlockCompressor compressor = BlockCompressors.forId(header.get());
+    byte[] raw = new byte[header.getInt()];
+    compressor.decompress(record, HEADER_BYTES, record.length - HEADER_BYTES, raw, 0, raw.length);
+    return raw;
+  }
+
+}
@@ -21,6 +21,7 @@ package org.apache.streams.filebuffer.test;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsResultSet;
 import org.apache.streams.filebuffer.FileBufferConfiguration;
+import org.apache.streams.filebuffer.FileBufferLog;
 import org.apache.streams.filebuffer.FileBufferPersistReader;
 import org.apache.streams.filebuffer.FileBufferPersistWriter;
 
@@ -28,6 +29,10 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 
 import static org.junit.Assert.assertEquals;
 
@@ -75,4 +80,164 @@ public class TestFileBufferPersist {
 
   }
 
+  @Test
+  public void testSegmentedPersistWriterString() {
+
+    testConfiguration = new FileBufferConfiguration();
+    testConfiguration.setBuffer("target/TestFilePersistSegments");
+    testConfiguration.setSegmented(true);
+    testConfiguration.setSegmentBytes(256L);
+    testConfiguration.setReadBatchSize(40L);
+
+    File directory = new File( testConfiguration.getBuffer());
+    if( directory.exists() ) {
+      for (File file : Objects.requireNonNull(directory.listFiles())) {
+        file.delete();
+      }
+    }
+
+    FileBufferPersistWriter testPersistWriter = new FileBufferPersistWriter(testConfiguration);
+    testPersistWriter.prepare(testConfiguration);
+
+    for (int i = 0; i < 100; i++) {
+      testPersistWriter.write(new StreamsDatum("{\"dummy\":" + i + "}", "test" + i));
+    }
+
+    testPersistWriter.cleanUp();
+
+    // records span several segments
+    Assert.assertTrue(Objects.requireNonNull(directory.listFiles((dir, name) -> name.endsWith(".log"))).length > 1);
+
+    FileBufferPersistReader testPersistReader = new FileBufferPersistReader(testConfiguration);
+    testPersistReader.prepare(testConfiguration);
+
+    StreamsResultSet testResult = testPersistReader.readCurrent();
+    assertEquals(40, testResult.size());
+    assertEquals("{\"dummy\":0}", testResult.getQueue().peek().getDocument());
+
+    testPersistReader.cleanUp();
+
+    // a new reader resumes from the committed offset
+    testPersistReader = new FileBufferPersistReader(testConfiguration);
+    testPersistReader.prepare(testConfiguration);
+
+    assertEquals(40, testPersistReader.readCurrent().size());
+    testResult = testPersistReader.readCurrent();
+    assertEquals(20, testResult.size());
+    assertEquals("{\"dummy\":80}", testResult.getQueue().peek().getDocument());
+    assertEquals(0, testPersistReader.readCurrent().size());
+
+    testPersistReader.cleanUp();
+
+  }
+
+  @Test
+  public void testConsumedSegmentsKeptForOtherConsumers() throws Exception {
+
+    File directory = new File("target/TestFilePersistConsumers");
+    if( directory.exists() ) {
+      for (File file : Objects.requireNonNull(directory.listFiles())) {
+        file.delete();
+      }
+    }
+
+    try (FileBufferLog log = new FileBufferLog(directory, 256)) {
+      for (int i = 0; i < 100; i++) {
+        log.append(("{\"dummy\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+      }
+      log.sync();
+
+      // b starts with a, then falls behind
+      log.commitOffset("b", log.getCommittedOffset("b"), true);
+
+      List<byte[]> records = new ArrayList<>();
+      long offset = log.read(log.getCommittedOffset("a"), 1000, records);
+      assertEquals(100, records.size());
+      log.commitOffset("a", offset, true);
+
+      records.clear();
+      log.read(log.getCommittedOffset("b"), 1000, records);
+      assertEquals(100, records.size());
+
+      // once b catches up, the segments both have read are deleted
+      offset = log.read(log.getCommittedOffset("b"), 1000, new ArrayList<>());
+      log.commitOffset("b", offset, true);
+      assertEquals(1, Objects.requireNonNull(directory.listFiles((dir, name) -> name.endsWith(".log"))).length);
+    }
+
+  }
+
+  @Test
+  public void testWriterOutlivesConsumedSegments() throws Exception {
+
+    File directory = new File("target/TestFilePersistWriterOutlives");
+    if( directory.exists() ) {
+      for (File file : Objects.requireNonNull(directory.listFiles())) {
+        file.delete();
+      }
+    }
+
+    try (FileBufferLog writer = new FileBufferLog(directory, 256);
+         FileBufferLog reader = new FileBufferLog(directory, 256)) {
+      for (int round = 0; round < 3; round++) {
+        for (int i = 0; i < 100; i++) {
+          writer.append(("{\"dummy\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+        }
+        writer.sync();
+
+        // the reader deletes every segment the writer has rolled past
+        List<byte[]> records = new ArrayList<>();
+        long offset = reader.read(reader.getCommittedOffset("a"), 1000, records);
+        assertEquals(100, records.size());
+        reader.commitOffset("a", offset, true);
+        assertEquals(1, Objects.requireNonNull(directory.listFiles((dir, name) -> name.endsWith(".log"))).length);
+      }
+    }
+
+  }
+
+  @Test
+  public void testCompressedPersistWriterString() {
+
+    testConfiguration = new FileBufferConfiguration();
+    testConfiguration.setBuffer("target/TestFilePersistCompressed");
+    testConfiguration.setSegmented(true);
+
+    File directory = new File( testConfiguration.getBuffer());
+    if( directory.exists() ) {
+      for (File file : Objects.requireNonNull(directory.listFiles())) {
+        file.delete();
+      }
+    }
+
+    String repetitive = "{\"dummy\":\"" + new String(new char[500]).replace('\0', 'x') + "\"}";
+
+    // records written before and after compression is switched on read back the same
+    FileBufferPersistWriter testPersistWriter = new FileBufferPersistWriter(testConfiguration);
+    testPersistWriter.prepare(testConfiguration);
+    testPersistWriter.write(new StreamsDatum(repetitive, "plain"));
+    testPersistWriter.cleanUp();
+
+    for (FileBufferConfiguration.Compression compression : FileBufferConfiguration.Compression.values()) {
+      testConfiguration.setCompression(compression);
+      testPersistWriter = new FileBufferPersistWriter(testConfiguration);
+      testPersistWriter.prepare(testConfiguration);
+      testPersistWriter.write(new StreamsDatum(repetitive, compression.toString()));
+      testPersistWriter.write(new StreamsDatum("{}", compression.toString()));
+      testPersistWriter.cleanUp();
+    }
+
+    FileBufferPersistReader testPersistReader = new FileBufferPersistReader(testConfiguration);
+    testPersistReader.prepare(testConfiguration);
+
+    StreamsResultSet testResult = testPersistReader.readCurrent();
+    assertEquals(1 + 2 * FileBufferConfiguration.Compression.values().length, testResult.size());
+    for (StreamsDatum datum : testResult) {
+      Assert.assertTrue(datum.getDocument().equals(repetitive) || datum.getDocument().equals("{}"));
+    }
+
+    testPersistReader.cleanUp();
+
+  }
+
 }
@@ -18,20 +18,35 @@
 
 package org.apache.streams.hbase;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.streams.config.ComponentConfigurator;
 import org.apache.streams.config.StreamsConfigurator;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistReader;
 import org.apache.streams.core.StreamsResultSet;
+import org.apache.streams.jackson.StreamsJacksonMapper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Queues;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -39,6 +54,18 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * HbasePersistReader reads the configured column of a table.
+ *
+ * <p/>
+ * Scans are split at region boundaries, and readerThreads regions are scanned at once, each
+ * fetching scanCaching rows per round trip, so reading a table takes about as long as its
+ * largest region.  readRange scans only cells written between its start and end.
+ *
+ * <p/>
+ * startStream scans in the background, and what it has read is collected by calling readCurrent
+ * while isRunning.  readAll and readRange scan to completion and return every cell they read.
+ */
 public class HbasePersistReader implements StreamsPersistReader, Serializable {
 
     public final static String STREAMS_ID = "HbasePersistReader";
@@ -51,20 +78,22 @@ public class HbasePersistReader implements StreamsPersistReader, Serializable {
 
     protected volatile Queue<StreamsDatum> persistQueue;
 
-    private ObjectMapper mapper = new ObjectMapper();
+    protected ObjectMapper mapper = StreamsJacksonMapper.getInstance();
 
     protected HbaseConfiguration config;
 
     protected Properties props = new Properties();
 
-    private ExecutorService executor = Executors.newSingleThreadExecutor();
+    protected transient Connection connection;
+
+    protected TableName tableName;
+
+    private transient ExecutorService executor;
 
     public HbasePersistReader() {
         this.config = new ComponentConfigurator<>(HbaseConfiguration.class).detectConfiguration();
     }
 
-    private HbasePersistReaderTask task;
-
     public HbasePersistReader(HbaseConfiguration config) {
         this.config = config;
     }
@@ -83,15 +112,24 @@ public class HbasePersistReader implements StreamsPersistReader, Serializable {
 
         LOGGER.debug("{} startStream", STREAMS_ID);
 
-        executor.submit(task);
-
-        running.set(true);
+        scan(regionScans(null, null));
 
     }
 
     @Override
     public StreamsResultSet readAll() {
-        return readCurrent();
+        return read(regionScans(null, null));
+    }
+
+    /**
+     * Read every cell written from start up to end.
+     * @param start earliest write time
+     * @param end latest write time, exclusive
+     * @return cells read
+     */
+    @Override
+    public StreamsResultSet readRange(DateTime start, DateTime end) {
+        return read(regionScans(start, end));
     }
 
     @Override
@@ -102,18 +140,18 @@ public class HbasePersistReader implements StreamsPersistReader, Serializable {
         LOGGER.debug("Providing {} docs", persistQueue.size());
 
         try {
-            lock.readLock().lock();
+            lock.writeLock().lock();
             result = new StreamsResultSet(persistQueue);
             persistQueue = constructQueue();
         } finally {
-            lock.readLock().unlock();
+            lock.writeLock().unlock();
         }
 
         return result;
     }
 
     protected Queue<StreamsDatum> constructQueue() {
-        return new LinkedBlockingQueue<StreamsDatum>();
+        return Queues.synchronizedQueue(new LinkedBlockingQueue<StreamsDatum>(10000));
     }
 
     @Override
@@ -121,50 +159,149 @@ public class HbasePersistReader implements StreamsPersistReader, Serializable {
         return null;
     }
 
-    @Override
-    public StreamsResultSet readRange(DateTime dateTime, DateTime dateTime2) {
-        return null;
-    }
-
+    // rows read by a scan that has finished are still waiting for readCurrent
     @Override
     public boolean isRunning() {
-        return running.get();
+        return running.get() || !persistQueue.isEmpty();
     }
 
     @Override
     public void prepare(Object configurationObject) {
 
-//        props.put("bootstrap.servers", config.getBrokerlist());
-//        props.put("group.id", config.getGroupId());
-//        props.put("auto.commit.interval.ms", "1000");
-//        props.put("auto.offset.reset", "earliest");
-//        props.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
-//        props.put("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
-
         persistQueue = constructQueue();
 
-        task = new HbasePersistReaderTask(this);
+        connectToHbase();
+
+        executor = Executors.newFixedThreadPool(Math.max(1, config.getReaderThreads().intValue()));
 
     }
 
-    @Override
-    public void cleanUp() {
-        running.set(false);
-        executor.shutdown();
-//
-//        try {
-//            executor.awaitTermination(5, TimeUnit.SECONDS);
-//        } catch (InterruptedException ignored) {}
+    private synchronized void connectToHbase() {
+
+        Configuration configuration = new Configuration();
+        configuration.set("hbase.rootdir", config.getRootdir());
+        configuration.set("zookeeper.znode.parent", config.getParent());
+        configuration.set("zookeeper.znode.rootserver", config.getRootserver());
+        configuration.set("hbase.cluster.distributed", "false");
+        configuration.set("hbase.zookeeper.quorum", config.getQuorum());
+        configuration.set("hbase.zookeeper.property.clientPort", Long.toString(config.getClientPort()));
+        configuration.setInt("zookeeper.session.timeout", 1000);
 
+        configuration.setInt("timeout", 1000);
+
+        tableName = TableName.valueOf(config.getTable());
+
+        try {
+            connection = ConnectionFactory.createConnection(configuration);
+        } catch (IOException ex) {
+            LOGGER.error("There was an error connecting to HBase, please check your settings and try again", ex);
+        }
     }
 
-    public void write(StreamsDatum streamsDatum) {
+    /**
+     * One scan per region of the table, optionally limited to cells written from start up to end.
+     * @param start earliest write time, or null
+     * @param end latest write time, exclusive, or null
+     * @return scans
+     */
+    protected List<Scan> regionScans(DateTime start, DateTime end) {
+        List<Scan> scans = new ArrayList<>();
+        try (RegionLocator locator = connection.getRegionLocator(tableName)) {
+            Pair<byte[][], byte[][]> keys = locator.getStartEndKeys();
+            for (int i = 0; i < keys.getFirst().length; i++) {
+                Scan scan = new Scan(keys.getFirst()[i], keys.getSecond()[i]);
+                scan.addColumn(Bytes.toBytes(config.getFamily()), Bytes.toBytes(config.getQualifier()));
+                scan.setCaching(config.getScanCaching().intValue());
+                if (config.getScanBatch() > 0) {
+                    scan.setBatch(config.getScanBatch().intValue());
+                }
+                // a full read would only evict blocks other clients are using
+                scan.setCacheBlocks(false);
+                if (start != null || end != null) {
+                    scan.setTimeRange(start != null ? start.getMillis() : 0L, end != null ? end.getMillis() : Long.MAX_VALUE);
+                }
+                scans.add(scan);
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Unable to locate regions of {}", tableName, ex);
+        }
+        LOGGER.info("Scanning {} in {} regions", tableName, scans.size());
+        return scans;
+    }
+
+    // run scans to completion into a queue of their own; nothing drains that queue until the read
+    // returns, so unlike the queue readCurrent drains it can not be bounded
+    private StreamsResultSet read(List<Scan> scans) {
+        Queue<StreamsDatum> streaming;
+        Queue<StreamsDatum> results = Queues.synchronizedQueue(new LinkedBlockingQueue<StreamsDatum>());
         try {
             lock.writeLock().lock();
-            persistQueue.add(streamsDatum);
+            streaming = persistQueue;
+            persistQueue = results;
         } finally {
             lock.writeLock().unlock();
         }
+        try {
+            scan(scans).join();
+        } finally {
+            try {
+                lock.writeLock().lock();
+                persistQueue = streaming;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return new StreamsResultSet(results);
+    }
 
+    // run scans in the background, readerThreads at a time; running stays set until all are done
+    private CompletableFuture<Void> scan(List<Scan> scans) {
+        if (scans.isEmpty()) {
+            running.set(false);
+            return CompletableFuture.completedFuture(null);
+        }
+        running.set(true);
+        CompletableFuture<?>[] tasks = new CompletableFuture<?>[scans.size()];
+        for (int i = 0; i < tasks.length; i++) {
+            Scan scan = scans.get(i);
+            tasks[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    new HbasePersistReaderTask(this, scan).run();
+                } catch (Exception ex) {
+                    LOGGER.warn("Failed scanning region {}", Bytes.toStringBinary(scan.getStartRow()), ex);
+                }
+            }, executor);
+        }
+        return CompletableFuture.allOf(tasks).whenComplete((ignored, ex) -> running.set(false));
+    }
+
+    @Override
+    public void cleanUp() {
+        running.set(false);
+        executor.shutdown();
+        try {
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Error closing HBase connection: {}", ex.getMessage());
+        }
+    }
+
+    //The locking may appear to be counter intuitive but we really don't care if multiple threads offer to the queue
+    //as it is a synchronized queue.  What we do care about is that we don't want to be offering to the current reference
+    //if the queue is being replaced with a new instance
+    public void write(StreamsDatum streamsDatum) {
+        boolean success;
+        do {
+            try {
+                lock.readLock().lock();
+                success = persistQueue.offer(streamsDatum);
+                Thread.yield();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        while (!success && running.get());
     }
 }
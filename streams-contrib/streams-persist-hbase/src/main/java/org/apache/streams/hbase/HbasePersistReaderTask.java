@@ -18,25 +18,63 @@
 
 package org.apache.streams.hbase;
 
+import org.apache.streams.core.StreamsDatum;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+
+/**
+ * HbasePersistReaderTask scans one region on behalf of
+ * @see org.apache.streams.hbase.HbasePersistReader
+ */
 public class HbasePersistReaderTask implements Runnable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(HbasePersistReaderTask.class);
 
     private HbasePersistReader reader;
+    private Scan scan;
 
-    public HbasePersistReaderTask(HbasePersistReader reader) {
+    public HbasePersistReaderTask(HbasePersistReader reader, Scan scan) {
         this.reader = reader;
+        this.scan = scan;
     }
 
     @Override
     public void run() {
 
-        while(reader.isRunning()) {
-
+        byte[] family = Bytes.toBytes(reader.config.getFamily());
+        byte[] qualifier = Bytes.toBytes(reader.config.getQualifier());
 
+        try (Table table = reader.connection.getTable(reader.tableName);
+             ResultScanner scanner = table.getScanner(scan)) {
+            Result result;
+            while (reader.running.get() && (result = scanner.next()) != null) {
+                Cell cell = result.getColumnLatestCell(family, qualifier);
+                if (cell == null) {
+                    continue;
+                }
+                String id = Bytes.toString(result.getRow());
+                try {
+                    ObjectNode document = reader.mapper.readValue(
+                        cell.getValueArray(), cell.getValueOffset(), cell.getValueLength(), ObjectNode.class);
+                    reader.write(new StreamsDatum(document, id, new DateTime(cell.getTimestamp())));
+                } catch (IOException ex) {
+                    LOGGER.warn("Row {} isn't valid JSON: {}", id, Bytes.toStringBinary(CellUtil.cloneValue(cell)));
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Error scanning {} from {}", reader.tableName, Bytes.toStringBinary(scan.getStartRow()), ex);
         }
 
     }
@@ -22,30 +22,44 @@ import org.apache.streams.config.ComponentConfigurator;
 import org.apache.streams.config.StreamsConfigurator;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
+import org.apache.streams.jackson.StreamsJacksonMapper;
 import org.apache.streams.util.GuidUtils;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HTableDescriptor;
-import org.apache.hadoop.hbase.client.HConnection;
-import org.apache.hadoop.hbase.client.HConnectionManager;
-import org.apache.hadoop.hbase.client.HTable;
-import org.apache.hadoop.hbase.client.HTableInterface;
-import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * HbasePersistWriter writes to hbase.
+ *
+ * <p/>
+ * Each document is serialized to json bytes once, and its put handed to a BufferedMutator,
+ * which sends puts in the background, batched by region server, once writeBufferSize bytes
+ * are buffered.  Buffered puts are also sent every maxTimeBetweenFlushMs.  Puts that fail
+ * after all retries are passed to {@link #onException(RetriesExhaustedWithDetailsException, BufferedMutator)}.
  */
 public class HbasePersistWriter implements StreamsPersistWriter, Flushable, Closeable {
 
@@ -53,17 +67,23 @@ public class HbasePersistWriter implements StreamsPersistWriter, Flushable, Clos
 
   private static final Logger LOGGER = LoggerFactory.getLogger(HbasePersistWriter.class);
 
-  protected HConnection connection;
-  protected HTablePool pool;
-  protected HTableInterface table;
+  protected Connection connection;
+  protected BufferedMutator mutator;
   protected HTableDescriptor descriptor;
 
   protected volatile Queue<StreamsDatum> persistQueue;
 
-  private ObjectMapper mapper = new ObjectMapper();
+  private ObjectMapper mapper = StreamsJacksonMapper.getInstance();
+  private ScheduledExecutorService backgroundFlushTask = Executors.newSingleThreadScheduledExecutor();
 
   private HbaseConfiguration config;
 
+  private byte[] family;
+  private byte[] qualifier;
+
+  private final AtomicLong documentsWritten = new AtomicLong();
+  private final AtomicLong documentsFailed = new AtomicLong();
+
   /**
    * HbasePersistWriter constructor - resolve HbaseConfiguration from JVM 'hbase'.
    */
@@ -96,37 +116,33 @@ public class HbasePersistWriter implements StreamsPersistWriter, Flushable, Clos
 
     configuration.setInt("timeout", 1000);
 
-    //pool = new HTablePool(configuration, 10);
-    try {
-      connection = HConnectionManager.createConnection(configuration);
-    } catch (Exception ex) {
-      ex.printStackTrace();
-      return;
-    }
+    family = Bytes.toBytes(config.getFamily());
+    qualifier = Bytes.toBytes(config.getQualifier());
+
+    TableName tableName = TableName.valueOf(config.getTable());
 
     try {
-      //    table = new HTable(configuration, config.getTable());
-      //    table = (HTable) pool.getTable(config.getTable());
-      table = new HTable(configuration, config.getTable().getBytes());
-      table.setAutoFlush(true);
+      connection = ConnectionFactory.createConnection(configuration);
     } catch (Exception ex) {
-      ex.printStackTrace();
+      LOGGER.error("There was an error connecting to HBase, please check your settings and try again", ex);
       return;
     }
-    //
 
     try {
-      descriptor = table.getTableDescriptor();
+      BufferedMutatorParams params = new BufferedMutatorParams(tableName)
+          .writeBufferSize(config.getWriteBufferSize())
+          .listener(this::onException);
+      mutator = connection.getBufferedMutator(params);
     } catch (Exception ex) {
-      ex.printStackTrace();
+      LOGGER.error("Unable to open table {}", config.getTable(), ex);
       return;
     }
 
-    try {
+    try (Table table = connection.getTable(tableName)) {
+      descriptor = table.getTableDescriptor();
       LOGGER.info("Table : {}", descriptor);
     } catch (Exception ex) {
-      LOGGER.error("There was an error connecting to HBase, please check your settings and try again");
-      ex.printStackTrace();
+      LOGGER.error("There was an error connecting to HBase, please check your settings and try again", ex);
     }
   }
 
@@ -138,64 +154,82 @@ public class HbasePersistWriter implements StreamsPersistWriter, Flushable, Clos
   @Override
   public void write(StreamsDatum streamsDatum) {
 
-    ObjectNode node;
     byte[] row;
     if (StringUtils.isNotBlank(streamsDatum.getId())) {
-      row = streamsDatum.getId().getBytes();
+      row = Bytes.toBytes(streamsDatum.getId());
     } else {
-      row = GuidUtils.generateGuid(streamsDatum.toString()).getBytes();
+      row = Bytes.toBytes(GuidUtils.generateGuid(streamsDatum.toString()));
     }
-    Put put = new Put(row);
-    if ( streamsDatum.getDocument() instanceof String ) {
-      try {
-        node = mapper.readValue((String)streamsDatum.getDocument(), ObjectNode.class);
-      } catch (IOException ex) {
-        ex.printStackTrace();
-        LOGGER.warn("Invalid json: {}", streamsDatum.getDocument().toString());
-        return;
-      }
-      try {
-        byte[] value = node.binaryValue();
-        put.add(config.getFamily().getBytes(), config.getQualifier().getBytes(), value);
-      } catch (IOException ex) {
-        ex.printStackTrace();
-        LOGGER.warn("Failure adding object: {}", streamsDatum.getDocument().toString());
-        return;
-      }
-    } else {
-      try {
-        node = mapper.valueToTree(streamsDatum.getDocument());
-      } catch (Exception ex) {
-        ex.printStackTrace();
-        LOGGER.warn("Invalid json: {}", streamsDatum.getDocument().toString());
-        return;
-      }
-      put.setId(GuidUtils.generateGuid(node.toString()));
-      try {
-        byte[] value = node.binaryValue();
-        put.add(config.getFamily().getBytes(), config.getQualifier().getBytes(), value);
-      } catch (IOException ex) {
-        ex.printStackTrace();
-        LOGGER.warn("Failure preparing put: {}", streamsDatum.getDocument().toString());
-        return;
-      }
 
+    byte[] value;
+    try {
+      value = toBytes(streamsDatum.getDocument());
+    } catch (IOException ex) {
+      LOGGER.warn("Failure serializing object: {}", ex.getMessage());
+      documentsFailed.incrementAndGet();
+      return;
     }
+
+    Put put = new Put(row);
+    put.addColumn(family, qualifier, value);
     try {
-      table.put(put);
+      mutator.mutate(put);
+      documentsWritten.incrementAndGet();
     } catch (IOException ex) {
-      ex.printStackTrace();
-      LOGGER.warn("Failure executin put: {}", streamsDatum.getDocument().toString());
+      // failures of earlier puts surface here, and have already reached onException
+      LOGGER.warn("Failure executing put: {}", ex.getMessage());
     }
 
   }
 
+  // json bytes of the document, serialized once; string documents are assumed to be json already
+  private byte[] toBytes(Object document) throws IOException {
+    if (document instanceof String) {
+      return ((String) document).getBytes(StandardCharsets.UTF_8);
+    } else if (document instanceof byte[]) {
+      return (byte[]) document;
+    }
+    return mapper.writeValueAsBytes(document);
+  }
+
+  /**
+   * Called with puts that failed after all retries.
+   * @param exception failed puts and their causes
+   * @param mutator mutator
+   */
+  protected void onException(RetriesExhaustedWithDetailsException exception, BufferedMutator mutator) {
+    int failed = exception.getNumExceptions();
+    documentsWritten.addAndGet(-failed);
+    documentsFailed.addAndGet(failed);
+    LOGGER.warn("{} puts failed to write to {}, first: row {} on {}: {}", failed, mutator.getName(),
+        failed > 0 ? Bytes.toStringBinary(exception.getRow(0).getRow()) : null,
+        failed > 0 ? exception.getHostnamePort(0) : null,
+        failed > 0 ? exception.getCause(0).getMessage() : exception.getMessage());
+  }
+
+  public long getDocumentsWritten() {
+    return documentsWritten.get();
+  }
+
+  public long getDocumentsFailed() {
+    return documentsFailed.get();
+  }
+
   public void flush() throws IOException {
-    table.flushCommits();
+    mutator.flush();
   }
 
+  /**
+   * Send buffered puts, and close the connection.
+   * @throws IOException IOException
+   */
   public synchronized void close() throws IOException {
-    table.close();
+    backgroundFlushTask.shutdown();
+    try {
+      mutator.close();
+    } finally {
+      connection.close();
+    }
   }
 
   @Override
@@ -203,15 +237,19 @@ public class HbasePersistWriter implements StreamsPersistWriter, Flushable, Clos
 
     connectToHbase();
 
+    long interval = Math.max(1, config.getMaxTimeBetweenFlushMs());
+    backgroundFlushTask.scheduleAtFixedRate(() -> {
+      try {
+        flush();
+      } catch (IOException ex) {
+        LOGGER.warn("Error flushing to HBase: {}", ex.getMessage());
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+
     Thread task = new Thread(new HbasePersistWriterTask(this));
+    task.setDaemon(true);
     task.start();
 
-    try {
-      task.join();
-    } catch (InterruptedException ex) {
-      ex.printStackTrace();
-    }
-
   }
 
   @Override
@@ -220,12 +258,12 @@ public class HbasePersistWriter implements StreamsPersistWriter, Flushable, Clos
     try {
       flush();
     } catch (IOException ex) {
-      ex.printStackTrace();
+      LOGGER.error("Error flushing to HBase", ex);
     }
     try {
       close();
     } catch (IOException ex) {
-      ex.printStackTrace();
+      LOGGER.error("Error closing HBase connection", ex);
     }
 
   }
@@ -48,7 +48,7 @@ public class HbasePersistWriterTask implements Runnable {
           StreamsDatum entry = writer.persistQueue.remove();
           writer.write(entry);
         } catch (Exception ex) {
-          ex.printStackTrace();
+          LOGGER.warn("Failure writing entry from Queue: {}", ex.getMessage());
         }
       }
       try {
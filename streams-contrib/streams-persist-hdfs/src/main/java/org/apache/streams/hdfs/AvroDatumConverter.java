@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.hdfs;
+
+import org.apache.streams.converter.LineReadWriteConfiguration;
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.jackson.StreamsJacksonMapper;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * AvroDatumConverter converts Datums to/from avro records with typed columns, for
+ * writing avro container files that Hive and Spark can query without parsing json.
+ *
+ * <p/>
+ * Each record holds one nullable column per configured {@link HdfsColumn}, read from the
+ * document by dotted path, followed by the configured line fields (id, timestamp,
+ * metadata and document), so files can be read back into Datums losslessly.
+ */
+public class AvroDatumConverter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AvroDatumConverter.class);
+
+  public static final String ID_FIELD = "id";
+  public static final String TS_FIELD = "timestamp";
+  public static final String META_FIELD = "metadata";
+  public static final String DOC_FIELD = "document";
+
+  /**
+   * Columns written when none are configured.
+   */
+  public static final List<HdfsColumn> DEFAULT_COLUMNS = Arrays.asList(
+      new HdfsColumn().withName("verb").withPath("verb").withType(HdfsColumn.Type.STRING),
+      new HdfsColumn().withName("published").withPath("published").withType(HdfsColumn.Type.TIMESTAMP),
+      new HdfsColumn().withName("actor_id").withPath("actor.id").withType(HdfsColumn.Type.STRING),
+      new HdfsColumn().withName("actor_objectType").withPath("actor.objectType").withType(HdfsColumn.Type.STRING),
+      new HdfsColumn().withName("object_id").withPath("object.id").withType(HdfsColumn.Type.STRING),
+      new HdfsColumn().withName("object_objectType").withPath("object.objectType").withType(HdfsColumn.Type.STRING),
+      new HdfsColumn().withName("provider_id").withPath("provider.id").withType(HdfsColumn.Type.STRING),
+      new HdfsColumn().withName("target_id").withPath("target.id").withType(HdfsColumn.Type.STRING)
+  );
+
+  private static final ObjectMapper MAPPER = StreamsJacksonMapper.getInstance();
+
+  private final List<HdfsColumn> columns = new ArrayList<>();
+  private final List<String> pointers = new ArrayList<>();
+  private final List<String> fields;
+  private final Schema schema;
+
+  /**
+   * AvroDatumConverter constructor.
+   * @param configuration line fields to keep
+   * @param columns typed columns, or null/empty for {@link #DEFAULT_COLUMNS}
+   */
+  public AvroDatumConverter(LineReadWriteConfiguration configuration, List<HdfsColumn> columns) {
+    this.fields = configuration.getFields();
+    Set<String> names = new HashSet<>(Arrays.asList(ID_FIELD, TS_FIELD, META_FIELD, DOC_FIELD));
+    for (HdfsColumn column : columns == null || columns.isEmpty() ? DEFAULT_COLUMNS : columns) {
+      String name = avroName(column.getName() != null ? column.getName() : column.getPath());
+      if (!names.add(name)) {
+        LOGGER.warn("Skipping column {}: name already in use", name);
+        continue;
+      }
+      this.columns.add(new HdfsColumn().withName(name).withPath(column.getPath()).withType(column.getType()));
+      this.pointers.add("/" + column.getPath().replace('.', '/'));
+    }
+    this.schema = buildSchema();
+  }
+
+  public Schema getSchema() {
+    return schema;
+  }
+
+  private Schema buildSchema() {
+    ObjectNode record = JsonNodeFactory.instance.objectNode();
+    record.put("type", "record");
+    record.put("name", "StreamsDatum");
+    record.put("namespace", "org.apache.streams");
+    ArrayNode avroFields = record.putArray("fields");
+    for (HdfsColumn column : columns) {
+      addField(avroFields, column.getName(), avroType(column.getType()));
+    }
+    if (fields.contains("ID")) {
+      addField(avroFields, ID_FIELD, "string");
+    }
+    if (fields.contains("TS")) {
+      addField(avroFields, TS_FIELD, "long");
+    }
+    if (fields.contains("META")) {
+      addField(avroFields, META_FIELD, "string");
+    }
+    if (fields.contains("DOC")) {
+      addField(avroFields, DOC_FIELD, "string");
+    }
+    return new Schema.Parser().parse(record.toString());
+  }
+
+  // every column is nullable, since any document may lack any path
+  private static void addField(ArrayNode avroFields, String name, String type) {
+    ObjectNode field = avroFields.addObject();
+    field.put("name", name);
+    field.putArray("type").add("null").add(type);
+    field.putNull("default");
+  }
+
+  private static String avroType(HdfsColumn.Type type) {
+    switch (type == null ? HdfsColumn.Type.STRING : type) {
+      case LONG:
+      case TIMESTAMP:
+        return "long";
+      case DOUBLE:
+        return "double";
+      case BOOLEAN:
+        return "boolean";
+      default:
+        return "string";
+    }
+  }
+
+  private static String avroName(String name) {
+    String sanitized = name.replaceAll("[^A-Za-z0-9_]", "_");
+    return Character.isDigit(sanitized.charAt(0)) ? "_" + sanitized : sanitized;
+  }
+
+  /**
+   * convert a Datum to a record.
+   * @param datum datum
+   * @return record
+   * @throws IOException if the document is not json
+   */
+  public GenericRecord toRecord(StreamsDatum datum) throws IOException {
+    GenericRecord record = new GenericData.Record(schema);
+    JsonNode document = datum.getDocument() instanceof String
+        ? MAPPER.readTree((String) datum.getDocument())
+        : MAPPER.valueToTree(datum.getDocument());
+    for (int i = 0; i < columns.size(); i++) {
+      HdfsColumn column = columns.get(i);
+      record.put(column.getName(), columnValue(document.at(pointers.get(i)), column.getType()));
+    }
+    if (fields.contains("ID")) {
+      record.put(ID_FIELD, datum.getId());
+    }
+    if (fields.contains("TS") && datum.getTimestamp() != null) {
+      record.put(TS_FIELD, datum.getTimestamp().getMillis());
+    }
+    if (fields.contains("META") && datum.getMetadata() != null && !datum.getMetadata().isEmpty()) {
+      record.put(META_FIELD, MAPPER.writeValueAsString(datum.getMetadata()));
+    }
+    if (fields.contains("DOC")) {
+      record.put(DOC_FIELD, datum.getDocument() instanceof String ? datum.getDocument() : MAPPER.writeValueAsString(document));
+    }
+    return record;
+  }
+
+  private static Object columnValue(JsonNode node, HdfsColumn.Type type) {
+    if (node.isMissingNode() || node.isNull()) {
+      return null;
+    }
+    switch (type == null ? HdfsColumn.Type.STRING : type) {
+      case LONG:
+        return node.canConvertToLong() ? node.asLong() : null;
+      case DOUBLE:
+        return node.isNumber() ? node.asDouble() : null;
+      case BOOLEAN:
+        return node.isBoolean() ? node.asBoolean() : null;
+      case TIMESTAMP:
+        if (node.isNumber()) {
+          return node.asLong();
+        }
+        try {
+          return DateTime.parse(node.asText()).getMillis();
+        } catch (IllegalArgumentException ex) {
+          return null;
+        }
+      default:
+        return node.isValueNode() ? node.asText() : node.toString();
+    }
+  }
+
+  /**
+   * convert a record written by toRecord back to a Datum.
+   * @param record record
+   * @return datum
+   * @throws IOException if the metadata is not json
+   */
+  public static StreamsDatum fromRecord(GenericRecord record) throws IOException {
+    Object document = fieldValue(record, DOC_FIELD);
+    Object id = fieldValue(record, ID_FIELD);
+    Object ts = fieldValue(record, TS_FIELD);
+    StreamsDatum datum = new StreamsDatum(
+        document != null ? document.toString() : null,
+        id != null ? id.toString() : null,
+        ts != null ? new DateTime((long) ts) : null);
+    Object meta = fieldValue(record, META_FIELD);
+    if (meta != null) {
+      datum.setMetadata(MAPPER.readValue(meta.toString(), new TypeReference<Map<String, Object>>() {}));
+    }
+    return datum;
+  }
+
+  private static Object fieldValue(GenericRecord record, String name) {
+    return record.getSchema().getField(name) != null ? record.get(name) : null;
+  }
+
+}
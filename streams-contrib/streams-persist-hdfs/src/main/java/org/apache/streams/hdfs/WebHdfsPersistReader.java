@@ -21,6 +21,8 @@ package org.apache.streams.hdfs;
 import org.apache.streams.config.ComponentConfigurator;
 import org.apache.streams.config.StreamsConfiguration;
 import org.apache.streams.config.StreamsConfigurator;
+import org.apache.streams.converter.DatumPartitioner;
+import org.apache.streams.converter.FileManifest;
 import org.apache.streams.converter.LineReadWriteUtil;
 import org.apache.streams.core.DatumStatusCountable;
 import org.apache.streams.core.DatumStatusCounter;
@@ -30,7 +32,7 @@ import org.apache.streams.core.StreamsResultSet;
 import org.apache.streams.jackson.StreamsJacksonMapper;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
@@ -49,18 +51,29 @@ import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.PrivilegedExceptionAction;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * WebHdfsPersistReader reads from hdfs.
+ *
+ * <p/>
+ * Files are found recursively, so partitioned output is read in full by readAll, while readRange
+ * lists only the dt= and hr= partitions overlapping the range.
+ *
+ * <p/>
+ * readNew and readRange select files by modification time and the time in their names, and
+ * with a manifestPath configured, record the files they read so later calls skip them.
  */
 public class WebHdfsPersistReader implements StreamsPersistReader, DatumStatusCountable {
 
@@ -74,7 +87,12 @@ public class WebHdfsPersistReader implements StreamsPersistReader, DatumStatusCo
   protected Path path;
   protected FileStatus[] status;
 
-  protected volatile Queue<StreamsDatum> persistQueue;
+  protected Path manifestPath;
+  protected FileManifest manifest;
+  // files that could not be read this run, so are left out of the manifest
+  protected final Set<Path> failedFiles = ConcurrentHashMap.newKeySet();
+
+  protected volatile BlockingQueue<StreamsDatum> persistQueue;
 
   protected ObjectMapper mapper;
   protected LineReadWriteUtil lineReaderUtil;
@@ -198,28 +216,68 @@ public class WebHdfsPersistReader implements StreamsPersistReader, DatumStatusCo
     String pathString = hdfsConfiguration.getPath() + "/" + hdfsConfiguration.getReaderPath();
     LOGGER.info("Path : {}", pathString);
     path = new Path(pathString);
+    status = listFiles(null, null);
+    if ( StringUtils.isNotBlank(hdfsConfiguration.getManifestPath())) {
+      manifestPath = new Path(hdfsConfiguration.getManifestPath());
+      if ( !manifestPath.isAbsolute()) {
+        manifestPath = new Path(hdfsConfiguration.getPath(), hdfsConfiguration.getManifestPath());
+      }
+      try {
+        manifest = FileManifest.load(client.exists(manifestPath) ? client.open(manifestPath) : null);
+        LOGGER.info("Manifest : {} consumed files", manifest.size());
+      } catch (IOException ex) {
+        LOGGER.error("Unable to read manifest {}", manifestPath, ex);
+        throw new RuntimeException(ex);
+      }
+    }
+    streamsConfiguration = StreamsConfigurator.detectConfiguration();
+    persistQueue = new LinkedBlockingQueue<>(streamsConfiguration.getBatchSize().intValue());
+    executor = Executors.newSingleThreadExecutor();
+    mapper = StreamsJacksonMapper.getInstance();
+  }
+
+  /**
+   * List the files under path, skipping partition directories that cannot hold datums
+   * timestamped between start and end.
+   * @param start earliest timestamp, or null
+   * @param end latest timestamp, or null
+   * @return files, sorted
+   */
+  protected FileStatus[] listFiles(DateTime start, DateTime end) {
+    List<FileStatus> files = new ArrayList<>();
     try {
       if ( client.isFile(path)) {
         LOGGER.info("Found File");
-        FileStatus fileStatus = client.getFileStatus(path);
-        status = new FileStatus[1];
-        status[0] = fileStatus;
+        files.add(client.getFileStatus(path));
       } else if ( client.isDirectory(path)) {
-        status = client.listStatus(path);
-        List<FileStatus> statusList = Arrays.asList(status);
-        Collections.sort(statusList);
-        status = statusList.toArray(new FileStatus[0]);
-        LOGGER.info("Found Directory : {} files", status.length);
+        listFiles(path, "", start, end, files);
+        files.sort(Comparator.comparing(FileStatus::getPath));
+        LOGGER.info("Found Directory : {} files", files.size());
       } else {
         LOGGER.error("Neither file nor directory, wtf");
       }
     } catch (IOException ex) {
       LOGGER.error("IOException", ex);
     }
-    streamsConfiguration = StreamsConfigurator.detectConfiguration();
-    persistQueue = Queues.synchronizedQueue(new LinkedBlockingQueue<StreamsDatum>(streamsConfiguration.getBatchSize().intValue()));
-    executor = Executors.newSingleThreadExecutor();
-    mapper = StreamsJacksonMapper.getInstance();
+    return files.toArray(new FileStatus[0]);
+  }
+
+  private void listFiles(Path directory, String partition, DateTime start, DateTime end, List<FileStatus> files) throws IOException {
+    for ( FileStatus fileStatus : client.listStatus(directory)) {
+      String name = fileStatus.getPath().getName();
+      if ( fileStatus.isDirectory()) {
+        // skip hidden and temporary directories such as _temporary
+        if ( name.startsWith("_") || name.startsWith(".")) {
+          continue;
+        }
+        String child = partition.isEmpty() ? name : partition + "/" + name;
+        if ( DatumPartitioner.overlaps(child, start, end)) {
+          listFiles(fileStatus.getPath(), child, start, end, files);
+        }
+      } else {
+        files.add(fileStatus);
+      }
+    }
   }
 
   @Override
@@ -229,59 +287,162 @@ public class WebHdfsPersistReader implements StreamsPersistReader, DatumStatusCo
 
   @Override
   public StreamsResultSet readAll() {
-    WebHdfsPersistReaderTask readerTask = new WebHdfsPersistReaderTask(this);
-    Thread readerThread = new Thread(readerTask);
-    readerThread.start();
-    try {
-      readerThread.join();
-    } catch (InterruptedException ignored) {
-      LOGGER.trace("ignored InterruptedException", ignored);
-    }
-    return new StreamsResultSet(persistQueue);
+    return read(new WebHdfsPersistReaderTask(this, status));
   }
 
   @Override
   public void startStream() {
     LOGGER.debug("startStream");
-    task = executor.submit(new WebHdfsPersistReaderTask(this));
+    task = executor.submit(() -> {
+      new WebHdfsPersistReaderTask(this, status).run();
+      // stay running a while, so readCurrent drains the queue before isRunning turns false
+      Uninterruptibles.sleepUninterruptibly(15, TimeUnit.SECONDS);
+    });
   }
 
   @Override
   public StreamsResultSet readCurrent() {
 
-    StreamsResultSet current;
+    List<StreamsDatum> batch = new ArrayList<>();
+    persistQueue.drainTo(batch);
+
+    StreamsResultSet current = new StreamsResultSet(new ConcurrentLinkedQueue<>(batch));
 
     synchronized ( WebHdfsPersistReader.class ) {
-      current = new StreamsResultSet(new ConcurrentLinkedQueue<>(persistQueue));
       current.setCounter(new DatumStatusCounter());
       current.getCounter().add(countersCurrent);
       countersTotal.add(countersCurrent);
       countersCurrent = new DatumStatusCounter();
-      persistQueue.clear();
     }
 
     return current;
   }
 
+  /**
+   * Queue a datum, waiting while the queue is full.  Safe to call from several reader threads.
+   * @param entry entry
+   */
   protected void write( StreamsDatum entry ) {
-    boolean success;
-    do {
-      synchronized ( WebHdfsPersistReader.class ) {
-        success = persistQueue.offer(entry);
-      }
-      Thread.yield();
+    Uninterruptibles.putUninterruptibly(persistQueue, entry);
+  }
+
+  /**
+   * Add counts accumulated by a reader thread.
+   * @param counter counter
+   */
+  protected void count( DatumStatusCounter counter ) {
+    synchronized ( WebHdfsPersistReader.class ) {
+      countersCurrent.add(counter);
     }
-    while ( !success );
   }
 
+  /**
+   * Read the files modified after sequence and not yet consumed.
+   * @param sequence epoch millis, or null for every file not in the manifest
+   * @return result
+   */
   @Override
   public StreamsResultSet readNew(BigInteger sequence) {
-    return null;
+    long after = sequence != null ? sequence.longValue() : Long.MIN_VALUE;
+    List<FileStatus> files = new ArrayList<>();
+    for ( FileStatus fileStatus : listFiles(null, null)) {
+      if ( fileStatus.getModificationTime() > after && isUnconsumed(fileStatus)) {
+        files.add(fileStatus);
+      }
+    }
+    LOGGER.info("Found {} new files", files.size());
+    return readFiles(files);
   }
 
+  /**
+   * Read the files written between start and end and not yet consumed.
+   * Partitions that cannot hold datums from the range are not listed, and every file of a time
+   * partition that can is read, however late it was written.  Outside time partitions, a file is
+   * written from the time in its name until its modification time.  Only whole files are skipped,
+   * so datums just outside the range may be returned too.
+   * @param start earliest timestamp, or null
+   * @param end latest timestamp, or null
+   * @return result
+   */
   @Override
   public StreamsResultSet readRange(DateTime start, DateTime end) {
-    return null;
+    List<FileStatus> files = new ArrayList<>();
+    for ( FileStatus fileStatus : listFiles(start, end)) {
+      // a time partition already holds just datums of its time, so backfilled files are trusted
+      if ( (DatumPartitioner.isTimePartitioned(fileStatus.getPath().toUri().getPath())
+          || FileManifest.overlaps(fileStatus.getPath().getName(), fileStatus.getModificationTime(), start, end))
+          && isUnconsumed(fileStatus)) {
+        files.add(fileStatus);
+      }
+    }
+    LOGGER.info("Found {} files in range {} - {}", files.size(), start, end);
+    return readFiles(files);
+  }
+
+  private boolean isUnconsumed(FileStatus fileStatus) {
+    if ( manifest == null ) {
+      return true;
+    }
+    String file = fileStatus.getPath().toUri().getPath();
+    return !file.equals(client.makeQualified(manifestPath).toUri().getPath())
+        && !manifest.isConsumed(file, fileStatus.getModificationTime());
+  }
+
+  // read files, then record those read without error in the manifest
+  private StreamsResultSet readFiles(List<FileStatus> files) {
+    if ( files.isEmpty()) {
+      return new StreamsResultSet(new LinkedBlockingQueue<>());
+    }
+    failedFiles.clear();
+    return read(() -> {
+      new WebHdfsPersistReaderTask(this, files.toArray(new FileStatus[0])).run();
+      commit(files);
+    });
+  }
+
+  // run a read to completion into a queue of its own; nothing drains that queue until the read
+  // returns, so unlike the queue readCurrent drains it can not be bounded
+  private StreamsResultSet read(Runnable readerTask) {
+    BlockingQueue<StreamsDatum> streaming = persistQueue;
+    BlockingQueue<StreamsDatum> results = new LinkedBlockingQueue<>();
+    persistQueue = results;
+    try {
+      readerTask.run();
+    } finally {
+      persistQueue = streaming;
+    }
+    return new StreamsResultSet(results);
+  }
+
+  private synchronized void commit(List<FileStatus> files) {
+    if ( manifest == null ) {
+      return;
+    }
+    for ( FileStatus fileStatus : files ) {
+      if ( !failedFiles.contains(fileStatus.getPath())) {
+        manifest.add(fileStatus.getPath().toUri().getPath(), fileStatus.getModificationTime());
+      }
+    }
+    // replace the manifest only once the new one is completely written
+    Path tmp = manifestPath.suffix(".tmp");
+    try {
+      manifest.store(client.create(tmp, true));
+      client.delete(manifestPath, false);
+      if ( !client.rename(tmp, manifestPath)) {
+        throw new IOException("Unable to rename " + tmp + " to " + manifestPath);
+      }
+      LOGGER.info("Manifest : {} consumed files", manifest.size());
+    } catch (IOException ex) {
+      LOGGER.error("Unable to write manifest {}", manifestPath, ex);
+    }
+  }
+
+  /**
+   * Note a file that could not be read, so it is not recorded as consumed.
+   * @param file file
+   */
+  protected void failed( Path file ) {
+    failedFiles.add(file);
   }
 
   @Override
@@ -18,33 +18,65 @@
 
 package org.apache.streams.hdfs;
 
+import org.apache.streams.converter.LineRangeReader;
 import org.apache.streams.core.DatumStatus;
+import org.apache.streams.core.DatumStatusCounter;
 import org.apache.streams.core.StreamsDatum;
-
-import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.streams.util.codec.BlockCompressedInputStream;
+import org.apache.streams.util.codec.StreamsCodec;
+import org.apache.streams.util.codec.StreamsCodecs;
+
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * WebHdfsPersistReaderTask reads from hdfs on behalf of
  * @see org.apache.streams.hdfs.WebHdfsPersistReader
+ *
+ * <p/>
+ * Files are read by a pool of readerThreads threads, one file per thread, and uncompressed or
+ * block-compressed (lz4, snappy, deflate) files larger than splitSize are split into ranges on
+ * line or block boundaries and read concurrently.  The codec is chosen by file extension, or by
+ * the first bytes of files without a codec extension.
  */
 public class WebHdfsPersistReaderTask implements Runnable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(WebHdfsPersistReaderTask.class);
 
+  // lines read between counter updates
+  private static final int COUNT_INTERVAL = 1000;
+
   private WebHdfsPersistReader reader;
+  private FileStatus[] files;
 
   public WebHdfsPersistReaderTask(WebHdfsPersistReader reader) {
+    this(reader, reader.status);
+  }
+
+  /**
+   * WebHdfsPersistReaderTask constructor - reads just the supplied files.
+   * @param reader reader
+   * @param files files to read
+   */
+  public WebHdfsPersistReaderTask(WebHdfsPersistReader reader, FileStatus[] files) {
     this.reader = reader;
+    this.files = files;
   }
 
   @Override
@@ -52,65 +84,165 @@ public class WebHdfsPersistReaderTask implements Runnable {
 
     LOGGER.info("WebHdfsPersistReaderTask: files to process");
 
-    for ( FileStatus fileStatus : reader.status ) {
+    for ( FileStatus fileStatus : files ) {
       LOGGER.info("    " + fileStatus.getPath().getName());
     }
 
-    for ( FileStatus fileStatus : reader.status ) {
-      InputStream inputStream;
-      InputStreamReader inputStreamReader;
-      BufferedReader bufferedReader;
-      if ( fileStatus.isFile() && !fileStatus.getPath().getName().startsWith("_")) {
-        HdfsWriterConfiguration.Compression compression = HdfsWriterConfiguration.Compression.NONE;
-        if ( fileStatus.getPath().getName().endsWith(".gz")) {
-          compression = HdfsWriterConfiguration.Compression.GZIP;
-        }
-        LOGGER.info("Started Processing: {} Encoding: {} Compression: {}", fileStatus.getPath().getName(), reader.hdfsConfiguration.getEncoding(), compression.toString());
+    int threads = reader.hdfsConfiguration.getReaderThreads() != null ? reader.hdfsConfiguration.getReaderThreads().intValue() : 1;
+    long splitSize = reader.hdfsConfiguration.getSplitSize() != null ? reader.hdfsConfiguration.getSplitSize() : 0;
+
+    ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, threads));
+    List<Future<?>> ranges = new ArrayList<>();
+
+    for ( FileStatus fileStatus : files ) {
+      if ( fileStatus.isFile() && fileStatus.getPath().getName().endsWith(".avro")) {
+        ranges.add(workers.submit(() -> readAvro(fileStatus)));
+      } else if ( fileStatus.isFile() && !fileStatus.getPath().getName().startsWith("_")) {
+        final StreamsCodec codec;
+        final byte[] header;
         try {
-          inputStream = reader.client.open(fileStatus.getPath());
-          if ( compression.equals(HdfsWriterConfiguration.Compression.GZIP)) {
-            inputStream = new GZIPInputStream(inputStream);
-          }
-          inputStreamReader = new InputStreamReader(inputStream, reader.hdfsConfiguration.getEncoding());
-          bufferedReader = new BufferedReader(inputStreamReader);
+          codec = codecOf(fileStatus);
+          header = isBlockCompressed(codec) ? readHeader(fileStatus) : null;
         } catch (Exception ex) {
-          LOGGER.error("Exception Opening " + fileStatus.getPath(), ex.getMessage());
-          return;
+          LOGGER.error("Exception Opening {}", fileStatus.getPath(), ex);
+          reader.failed(fileStatus.getPath());
+          continue;
         }
+        // gzip files can only be read from the start
+        long fileSplitSize = codec.isSplittable() ? splitSize : 0;
+        for ( long[] range : LineRangeReader.split(fileStatus.getLen(), fileSplitSize)) {
+          ranges.add(workers.submit(() -> readRange(fileStatus, codec, header, range[0], range[1])));
+        }
+      }
+    }
 
-        String line = "";
-        do {
-          try {
-            line = bufferedReader.readLine();
-            if (StringUtils.isNotEmpty(line)) {
-              reader.countersCurrent.incrementAttempt();
-              StreamsDatum entry = reader.lineReaderUtil.processLine(line);
-              if ( entry != null ) {
-                reader.write(entry);
-                reader.countersCurrent.incrementStatus(DatumStatus.SUCCESS);
-              } else {
-                LOGGER.warn("processLine failed");
-                reader.countersCurrent.incrementStatus(DatumStatus.FAIL);
-              }
-            }
-          } catch (Exception ex) {
-            LOGGER.warn("WebHdfsPersistReader readLine Exception: {}", ex);
-            reader.countersCurrent.incrementStatus(DatumStatus.FAIL);
-          }
+    for ( Future<?> range : ranges ) {
+      try {
+        range.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (ExecutionException ex) {
+        LOGGER.error("WebHdfsPersistReader Exception: {}", ex.getCause());
+      }
+    }
+    workers.shutdownNow();
+
+    LOGGER.info("WebHdfsPersistReaderTask Finished");
+  }
+
+  private void readAvro(FileStatus fileStatus) {
+    LOGGER.info("Started Processing: {} Format: avro", fileStatus.getPath().getName());
+    DatumStatusCounter counter = new DatumStatusCounter();
+    try (DataFileStream<GenericRecord> records = new DataFileStream<>(reader.client.open(fileStatus.getPath()), new GenericDatumReader<GenericRecord>())) {
+      GenericRecord record = null;
+      while (records.hasNext()) {
+        record = records.next(record);
+        counter.incrementAttempt();
+        reader.write(AvroDatumConverter.fromRecord(record));
+        counter.incrementStatus(DatumStatus.SUCCESS);
+        if ( counter.getEmitted() >= COUNT_INTERVAL ) {
+          reader.count(counter);
+          counter = new DatumStatusCounter();
+        }
+      }
+    } catch (Exception ex) {
+      LOGGER.warn("WebHdfsPersistReader avro Exception: {}", ex);
+      counter.incrementStatus(DatumStatus.FAIL);
+      reader.failed(fileStatus.getPath());
+    }
+    reader.count(counter);
+    LOGGER.info("Finished Processing " + fileStatus.getPath().getName());
+  }
+
+  // choose a codec by extension, or by the first bytes of the file when the extension is not a codec's
+  private StreamsCodec codecOf(FileStatus fileStatus) throws IOException {
+    StreamsCodec codec = StreamsCodecs.forFile(fileStatus.getPath().getName());
+    if ( codec != null ) {
+      return codec;
+    }
+    try (FSDataInputStream in = reader.client.open(fileStatus.getPath())) {
+      byte[] magic = new byte[StreamsCodecs.MAGIC_LENGTH];
+      return StreamsCodecs.forMagic(magic, IOUtils.read(in, magic));
+    }
+  }
+
+  private static boolean isBlockCompressed(StreamsCodec codec) {
+    return codec != StreamsCodecs.NONE && codec != StreamsCodecs.GZIP;
+  }
+
+  private byte[] readHeader(FileStatus fileStatus) throws IOException {
+    try (FSDataInputStream in = reader.client.open(fileStatus.getPath())) {
+      return BlockCompressedInputStream.readHeader(in);
+    }
+  }
+
+  private void readRange(FileStatus fileStatus, StreamsCodec codec, byte[] header, long start, long end) {
+    LOGGER.info("Started Processing: {} [{}, {}) Encoding: {} Compression: {}", fileStatus.getPath().getName(), start, end, reader.hdfsConfiguration.getEncoding(), codec.getName());
+    Charset charset = Charset.forName(reader.hdfsConfiguration.getEncoding());
+    LineRangeReader lineReader;
+    try {
+      FSDataInputStream dataInputStream = reader.client.open(fileStatus.getPath());
+      if ( header != null ) {
+        // block ranges hold whole lines, so the decompressed range is read as a whole stream
+        dataInputStream.seek(start);
+        lineReader = new LineRangeReader(new BlockCompressedInputStream(header, dataInputStream, start, end), charset);
+      } else if ( codec == StreamsCodecs.NONE ) {
+        if ( start > 0 ) {
+          dataInputStream.seek(start - 1);
         }
-        while (StringUtils.isNotEmpty(line));
-        LOGGER.info("Finished Processing " + fileStatus.getPath().getName());
+        lineReader = new LineRangeReader(dataInputStream, charset, start, end);
+      } else {
+        lineReader = new LineRangeReader(codec.decompress(dataInputStream), charset);
+      }
+    } catch (Exception ex) {
+      LOGGER.error("Exception Opening {}", fileStatus.getPath(), ex);
+      reader.failed(fileStatus.getPath());
+      return;
+    }
+
+    DatumStatusCounter counter = new DatumStatusCounter();
+    String line;
+    while (true) {
+      try {
+        line = lineReader.readLine();
+      } catch (Exception ex) {
+        LOGGER.warn("WebHdfsPersistReader readLine Exception: {}", ex);
+        counter.incrementStatus(DatumStatus.FAIL);
+        reader.failed(fileStatus.getPath());
+        break;
+      }
+      if (line == null) {
+        break;
+      }
+      if (StringUtils.isNotEmpty(line)) {
+        counter.incrementAttempt();
         try {
-          bufferedReader.close();
+          StreamsDatum entry = reader.lineReaderUtil.processLine(line);
+          if ( entry != null ) {
+            reader.write(entry);
+            counter.incrementStatus(DatumStatus.SUCCESS);
+          } else {
+            LOGGER.warn("processLine failed");
+            counter.incrementStatus(DatumStatus.FAIL);
+          }
         } catch (Exception ex) {
-          LOGGER.error("WebHdfsPersistReader Exception: {}", ex);
+          LOGGER.warn("WebHdfsPersistReader processLine Exception: {}", ex);
+          counter.incrementStatus(DatumStatus.FAIL);
         }
       }
+      if ( counter.getEmitted() >= COUNT_INTERVAL ) {
+        reader.count(counter);
+        counter = new DatumStatusCounter();
+      }
+    }
+    reader.count(counter);
+    LOGGER.info("Finished Processing " + fileStatus.getPath().getName());
+    try {
+      lineReader.close();
+    } catch (Exception ex) {
+      LOGGER.error("WebHdfsPersistReader Exception: {}", ex);
     }
-
-    LOGGER.info("WebHdfsPersistReaderTask Finished");
-
-    Uninterruptibles.sleepUninterruptibly(15, TimeUnit.SECONDS);
   }
 
 }
@@ -20,6 +20,7 @@ package org.apache.streams.hdfs;
 
 import org.apache.streams.config.ComponentConfigurator;
 import org.apache.streams.config.StreamsConfigurator;
+import org.apache.streams.converter.DatumPartitioner;
 import org.apache.streams.converter.LineReadWriteUtil;
 import org.apache.streams.core.DatumStatus;
 import org.apache.streams.core.DatumStatusCountable;
@@ -27,8 +28,15 @@ import org.apache.streams.core.DatumStatusCounter;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
 import org.apache.streams.jackson.StreamsJacksonMapper;
+import org.apache.streams.util.codec.StreamsCodec;
+import org.apache.streams.util.codec.StreamsCodecs;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
@@ -41,18 +49,49 @@ import org.slf4j.LoggerFactory;
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Queue;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * WebHdfsPersistWriter writes to hdfs.
+ *
+ * <p/>
+ * With format avro, files are avro containers with typed columns (see {@link AvroDatumConverter})
+ * instead of delimited lines, and compression becomes the avro snappy or deflate block codec.
+ *
+ * <p/>
+ * Delimited lines are encoded into one of a small pool of buffers, and full buffers are written
+ * to hdfs by a background thread, so write only blocks when every buffer is still in flight.
+ * Files roll after linesPerFile lines or bytesPerFile bytes, whichever comes first.
+ *
+ * <p/>
+ * With partitionGranularity or partitionMetadataKey set, files are written under Hive style
+ * partition directories (see {@link DatumPartitioner}), with one open file per partition.  When
+ * maxOpenFiles partitions are open, the least recently written one is closed to open another.
  */
 public class WebHdfsPersistWriter implements StreamsPersistWriter, Flushable, Closeable, DatumStatusCountable {
 
@@ -60,18 +99,33 @@ public class WebHdfsPersistWriter implements StreamsPersistWriter, Flushable, Cl
 
   private static final Logger LOGGER = LoggerFactory.getLogger(WebHdfsPersistWriter.class);
 
-  private FileSystem client;
+  private volatile FileSystem client;
   private Path path;
   private int linesPerFile;
   private int totalRecordsWritten = 0;
-  private final List<Path> writtenFiles = new ArrayList<>();
-  private int fileLineCounter = 0;
-  private OutputStreamWriter currentWriter = null;
+  private final List<Path> writtenFiles = Collections.synchronizedList(new ArrayList<>());
+  private long bytesPerFile;
+  private final AtomicLong lastFileTime = new AtomicLong();
+  private AvroDatumConverter avroConverter;
 
   private static final int BYTES_IN_MB = 1024 * 1024;
   private static final int BYTES_BEFORE_FLUSH = 64 * BYTES_IN_MB;
-  private volatile int totalByteCount = 0;
-  private volatile int byteCount = 0;
+  private static final int AVRO_DEFLATE_LEVEL = 6;
+  private volatile long totalByteCount = 0;
+
+  // one open file per partition, least recently written first
+  private final LinkedHashMap<String, PartitionFile> openFiles = new LinkedHashMap<>(16, 0.75f, true);
+  private DatumPartitioner partitioner;
+  private int maxOpenFiles;
+
+  // delimited lines are encoded into each file's buffer, and full buffers are written by the flusher thread
+  private BlockingQueue<ByteBuffer> freeBuffers;
+  private int bufferSize;
+  private int buffers;
+  private int allocatedBuffers = 0;
+  private CharsetEncoder encoder;
+  private ExecutorService flusher;
+  private final AtomicReference<Exception> flushError = new AtomicReference<>();
 
   public boolean terminate = false;
 
@@ -89,6 +143,8 @@ public class WebHdfsPersistWriter implements StreamsPersistWriter, Flushable, Cl
   public WebHdfsPersistWriter(HdfsWriterConfiguration hdfsConfiguration) {
     this.hdfsConfiguration = hdfsConfiguration;
     this.linesPerFile = hdfsConfiguration.getLinesPerFile().intValue();
+    this.bytesPerFile = hdfsConfiguration.getBytesPerFile() != null && hdfsConfiguration.getBytesPerFile() > 0
+        ? hdfsConfiguration.getBytesPerFile() : Long.MAX_VALUE;
   }
 
   /**
@@ -131,7 +187,8 @@ public class WebHdfsPersistWriter implements StreamsPersistWriter, Flushable, Cl
     return this.client;
   }
 
-  private synchronized void connectToWebHDFS() {
+  // not synchronized: the flusher thread reconnects while write or close may hold the monitor waiting on it
+  private void connectToWebHDFS() {
     try {
       LOGGER.info("User : {}", this.hdfsConfiguration.getUser());
       UserGroupInformation ugi = UserGroupInformation.createRemoteUser(this.hdfsConfiguration.getUser());
@@ -182,103 +239,279 @@ public class WebHdfsPersistWriter implements StreamsPersistWriter, Flushable, Cl
   public void write(StreamsDatum streamsDatum) {
 
     synchronized (this) {
+      Exception error = flushError.get();
+      if (error != null) {
+        throw new RuntimeException("Failed to write to HDFS. Terminating writer.", error);
+      }
+      PartitionFile file = openFile(partitioner.getPartition(streamsDatum));
       // Check to see if we need to reset the file that we are currently working with
-      if (this.currentWriter == null || (this.fileLineCounter > this.linesPerFile)) {
-        resetFile();
+      if (file.lineCounter > this.linesPerFile || file.byteCounter >= this.bytesPerFile) {
+        resetFile(file);
+      }
+      if (this.avroConverter != null) {
+        writeRecord(file, streamsDatum);
+        return;
       }
       String line = lineWriterUtil.convertResultToString(streamsDatum);
-      writeInternal(line);
+      if (line == null) {
+        LOGGER.warn("Skipping datum {} with no document", streamsDatum.getId());
+        return;
+      }
+      long bytesInLine = encode(file, line);
       if ( !line.endsWith(this.hdfsConfiguration.getLineDelimiter())) {
-        writeInternal(this.hdfsConfiguration.getLineDelimiter());
+        bytesInLine += encode(file, this.hdfsConfiguration.getLineDelimiter());
       }
-      int bytesInLine = line.getBytes().length;
 
       totalRecordsWritten++;
       totalByteCount += bytesInLine;
-      byteCount += bytesInLine;
+      file.byteCounter += bytesInLine;
+      file.lineCounter++;
+    }
+  }
 
-      if (byteCount > BYTES_BEFORE_FLUSH) {
-        try {
-          flush();
-        } catch (IOException ex) {
-          LOGGER.warn("Error flushing to HDFS. Creating a new file and continuing execution.  WARNING: There could be data loss.", ex);
-        }
+  // the open file for a partition, closing the least recently written file if too many are open
+  private PartitionFile openFile(String partition) {
+    PartitionFile file = openFiles.get(partition);
+    if (file == null) {
+      if (openFiles.size() >= maxOpenFiles) {
+        Iterator<PartitionFile> eldest = openFiles.values().iterator();
+        PartitionFile evicted = eldest.next();
+        eldest.remove();
+        closeFile(evicted);
       }
-      this.fileLineCounter++;
+      file = new PartitionFile(partition);
+      openFiles.put(partition, file);
+      resetFile(file);
     }
+    return file;
   }
 
-  private void writeInternal(String line) {
+  private void writeRecord(PartitionFile file, StreamsDatum streamsDatum) {
+    GenericRecord record;
+    try {
+      record = avroConverter.toRecord(streamsDatum);
+    } catch (IOException ex) {
+      LOGGER.warn("Unable to convert datum {} to avro: {}", streamsDatum.getId(), ex.getMessage());
+      return;
+    }
     try {
-      this.currentWriter.write(line);
+      file.avroWriter.append(record);
     } catch (IOException ex) {
       LOGGER.warn("Error writing to HDFS.  Attempting to try a new file", ex);
       try {
-        resetFile();
-        this.currentWriter.write(line);
+        resetFile(file);
+        file.avroWriter.append(record);
       } catch (Exception e2) {
-        LOGGER.warn("Failed to write even after creating a new file.  Attempting to reconnect", e2);
+        LOGGER.error("Failed to write to HDFS after creating a new file. Terminating writer.", e2);
+        throw new RuntimeException(e2);
+      }
+    }
+    totalRecordsWritten++;
+    file.lineCounter++;
+  }
+
+  // encode text into the file's buffer, handing full buffers to the flusher, and return its length in bytes
+  private long encode(PartitionFile file, String text) {
+    CharBuffer chars = CharBuffer.wrap(text);
+    long bytes = 0;
+    while (true) {
+      int start = file.buffer.position();
+      CoderResult result = encoder.encode(chars, file.buffer, true);
+      bytes += file.buffer.position() - start;
+      if (!result.isOverflow()) {
+        break;
+      }
+      handOff(file);
+    }
+    encoder.reset();
+    return bytes;
+  }
+
+  // pass the file's buffer to the flusher and take a free one, blocking only if every buffer is in flight
+  private void handOff(PartitionFile file) {
+    if (file.buffer.position() == 0) {
+      return;
+    }
+    ByteBuffer full = file.buffer;
+    full.flip();
+    flusher.execute(() -> writeBuffer(file, full));
+    file.buffer = takeBuffer();
+  }
+
+  // every open file holds a buffer, and up to buffers - 1 more are in flight
+  private ByteBuffer takeBuffer() {
+    ByteBuffer buffer = freeBuffers.poll();
+    if (buffer == null && allocatedBuffers < openFiles.size() + buffers - 1) {
+      allocatedBuffers++;
+      return ByteBuffer.allocate(bufferSize);
+    }
+    return buffer != null ? buffer : Uninterruptibles.takeUninterruptibly(freeBuffers);
+  }
+
+  // runs on the flusher thread
+  private void writeBuffer(PartitionFile file, ByteBuffer buffer) {
+    try {
+      if (file.stream == null) {
+        return;
+      }
+      try {
+        file.stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      } catch (IOException ex) {
+        LOGGER.warn("Error writing to HDFS.  Attempting to reconnect and try a new file.  WARNING: There could be data loss.", ex);
         try {
-          connectToWebHDFS();
-          resetFile();
-          this.currentWriter.write(line);
-        } catch (Exception e3) {
-          LOGGER.error("Failed to write to HDFS after reconnecting client. Terminating writer.", e3);
-          throw new RuntimeException(e3);
+          closeStream(file);
+        } catch (IOException closeEx) {
+          LOGGER.warn("Error closing failed file", closeEx);
         }
+        connectToWebHDFS();
+        Path retryPath = newFilePath(file.partition);
+        writtenFiles.add(retryPath);
+        openStream(file, retryPath);
+        file.stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
       }
+      file.unflushedBytes += buffer.remaining();
+      if (file.unflushedBytes > BYTES_BEFORE_FLUSH) {
+        file.stream.flush();
+        file.unflushedBytes = 0;
+      }
+    } catch (Exception ex) {
+      LOGGER.error("Failed to write to HDFS after reconnecting client. Terminating writer.", ex);
+      flushError.compareAndSet(null, ex);
+    } finally {
+      buffer.clear();
+      freeBuffers.add(buffer);
+    }
+  }
 
+  // runs on the flusher thread
+  private void openStream(PartitionFile file, Path filePath) throws IOException {
+    // Check to see if a file of the same name exists, if it does, then we are not going to be able to proceed.
+    if (client.exists(filePath)) {
+      throw new IOException("Unable to create file: " + filePath);
     }
+    StreamsCodec codec = StreamsCodecs.forName(hdfsConfiguration.getCompression().toString());
+    file.stream = codec.compress(client.create(filePath));
+    file.unflushedBytes = 0;
+    LOGGER.info("File Created: {}", filePath);
   }
 
-  @Override
-  public void flush() throws IOException {
-    if (this.currentWriter != null && byteCount > BYTES_BEFORE_FLUSH) {
-      this.currentWriter.flush();
-      byteCount = 0;
+  // runs on the flusher thread
+  private void closeStream(PartitionFile file) throws IOException {
+    if (file.stream != null) {
+      OutputStream stream = file.stream;
+      file.stream = null;
+      stream.flush();
+      stream.close();
+      LOGGER.info("File Closed");
     }
   }
 
-  private synchronized void resetFile() {
-    // this will keep it thread safe, so we don't create too many files
-    if (this.fileLineCounter == 0 && this.currentWriter != null) {
-      return;
+  // wait for the flusher to finish everything handed to it so far, then run action on it
+  private void await(Callable<Void> action) throws IOException {
+    try {
+      flusher.submit(action).get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException(ex);
+    } catch (ExecutionException ex) {
+      throw new IOException(ex.getCause());
+    }
+    Exception error = flushError.get();
+    if (error != null) {
+      throw new IOException(error);
     }
+  }
+
+  /**
+   * Write out everything written so far.
+   * @throws IOException IOException
+   */
+  @Override
+  public synchronized void flush() throws IOException {
+    List<PartitionFile> files = new ArrayList<>(openFiles.values());
+    for (PartitionFile file : files) {
+      if (file.avroWriter != null) {
+        file.avroWriter.flush();
+      } else {
+        handOff(file);
+      }
+    }
+    await(() -> {
+      for (PartitionFile file : files) {
+        if (file.stream != null) {
+          file.stream.flush();
+          file.unflushedBytes = 0;
+        }
+      }
+      return null;
+    });
+  }
+
+  private Path newFilePath(String partition) {
+    // files can roll more than once a millisecond, so never reuse a timestamp
+    long time = lastFileTime.updateAndGet(last -> Math.max(new Date().getTime(), last + 1));
 
     // Create the path for where the file is going to live.
-    Path filePath = this.path.suffix("/" + hdfsConfiguration.getWriterFilePrefix() + "-" + new Date().getTime());
+    Path directory = partition.isEmpty() ? this.path : new Path(this.path, partition);
+    Path filePath = new Path(directory, hdfsConfiguration.getWriterFilePrefix() + "-" + time);
 
-    if ( hdfsConfiguration.getCompression().equals(HdfsWriterConfiguration.Compression.GZIP)) {
-      filePath = filePath.suffix(".gz");
+    StreamsCodec codec = StreamsCodecs.forName(hdfsConfiguration.getCompression().toString());
+
+    if ( avroConverter != null ) {
+      return filePath.suffix(".avro");
+    } else if ( codec != StreamsCodecs.NONE ) {
+      return filePath.suffix(codec.getExtension());
     } else {
-      filePath = filePath.suffix(".tsv");
+      return filePath.suffix(".tsv");
     }
+  }
 
-    try {
+  private synchronized void resetFile(PartitionFile file) {
 
-      // if there is a current writer, we must close it first.
-      if (this.currentWriter != null) {
-        flush();
-        close();
-      }
+    Path filePath = newFilePath(file.partition);
 
-      this.fileLineCounter = 0;
+    try {
 
-      // Check to see if a file of the same name exists, if it does, then we are not going to be able to proceed.
-      if (client.exists(filePath)) {
-        throw new RuntimeException("Unable to create file: " + filePath);
-      }
+      file.lineCounter = 0;
+      file.byteCounter = 0;
 
-      if ( hdfsConfiguration.getCompression().equals(HdfsWriterConfiguration.Compression.GZIP)) {
-        this.currentWriter = new OutputStreamWriter(new GZIPOutputStream(client.create(filePath)));
+      if ( avroConverter != null ) {
+        // if there is a current writer, we must close it first.
+        closeAvroWriter(file);
+        // Check to see if a file of the same name exists, if it does, then we are not going to be able to proceed.
+        if (client.exists(filePath)) {
+          throw new RuntimeException("Unable to create file: " + filePath);
+        }
+        StreamsCodec codec = StreamsCodecs.forName(hdfsConfiguration.getCompression().toString());
+        DataFileWriter<GenericRecord> avroWriter = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(avroConverter.getSchema()));
+        if ( codec == StreamsCodecs.SNAPPY ) {
+          avroWriter.setCodec(CodecFactory.snappyCodec());
+        } else if ( codec != StreamsCodecs.NONE ) {
+          avroWriter.setCodec(CodecFactory.deflateCodec(AVRO_DEFLATE_LEVEL));
+        }
+        file.avroWriter = avroWriter.create(avroConverter.getSchema(), client.create(filePath));
+        LOGGER.info("File Created: {}", filePath);
       } else {
-        this.currentWriter = new OutputStreamWriter(client.create(filePath));
+        // the flusher closes the current file and opens the next in order, without the caller waiting
+        if (file.buffer == null) {
+          file.buffer = takeBuffer();
+        } else {
+          handOff(file);
+        }
+        flusher.execute(() -> {
+          try {
+            closeStream(file);
+            openStream(file, filePath);
+          } catch (Exception ex) {
+            LOGGER.error("COULD NOT CreateFile: {}", filePath);
+            flushError.compareAndSet(null, ex);
+          }
+        });
       }
 
       // Add another file to the list of written files.
       writtenFiles.add(filePath);
 
-      LOGGER.info("File Created: {}", filePath);
     } catch (Exception ex) {
       LOGGER.error("COULD NOT CreateFile: {}", filePath);
       LOGGER.error(ex.getMessage());
@@ -286,36 +519,85 @@ public class WebHdfsPersistWriter implements StreamsPersistWriter, Flushable, Cl
     }
   }
 
+  private void closeAvroWriter(PartitionFile file) throws IOException {
+    if (file.avroWriter != null) {
+      DataFileWriter<GenericRecord> avroWriter = file.avroWriter;
+      file.avroWriter = null;
+      avroWriter.close();
+      LOGGER.info("File Closed");
+    }
+  }
+
+  // close a file without waiting for the flusher to write it out
+  private void closeFile(PartitionFile file) {
+    try {
+      closeAvroWriter(file);
+    } catch (IOException ex) {
+      LOGGER.error("Error closing file", ex);
+    }
+    if (file.buffer != null) {
+      ByteBuffer last = file.buffer;
+      file.buffer = null;
+      if (last.position() > 0) {
+        last.flip();
+        flusher.execute(() -> writeBuffer(file, last));
+      } else {
+        freeBuffers.add(last);
+      }
+      flusher.execute(() -> {
+        try {
+          closeStream(file);
+        } catch (IOException ex) {
+          LOGGER.error("Error closing file", ex);
+          flushError.compareAndSet(null, ex);
+        }
+      });
+    }
+  }
+
   @Override
   public synchronized void close() throws IOException {
-    if (this.currentWriter != null) {
-      this.currentWriter.flush();
-      this.currentWriter.close();
-      this.currentWriter = null;
-      LOGGER.info("File Closed");
+    for (PartitionFile file : openFiles.values()) {
+      closeFile(file);
     }
+    openFiles.clear();
+    await(() -> null);
   }
 
   @Override
   public void prepare(Object configurationObject) {
     mapper = StreamsJacksonMapper.getInstance();
     lineWriterUtil = LineReadWriteUtil.getInstance(hdfsConfiguration);
+    if (HdfsWriterConfiguration.Format.AVRO.equals(hdfsConfiguration.getFormat())) {
+      avroConverter = new AvroDatumConverter(hdfsConfiguration, hdfsConfiguration.getColumns());
+    }
+    bufferSize = hdfsConfiguration.getBufferSize() != null ? hdfsConfiguration.getBufferSize().intValue() : BYTES_IN_MB;
+    buffers = hdfsConfiguration.getBuffers() != null ? Math.max(2, hdfsConfiguration.getBuffers().intValue()) : 2;
+    maxOpenFiles = hdfsConfiguration.getMaxOpenFiles() != null ? Math.max(1, hdfsConfiguration.getMaxOpenFiles().intValue()) : 16;
+    partitioner = new DatumPartitioner(hdfsConfiguration.getPartitionGranularity().toString(), hdfsConfiguration.getPartitionMetadataKey());
+    // buffers are allocated as files open, up to one per open file plus buffers - 1 in flight
+    freeBuffers = new ArrayBlockingQueue<>(maxOpenFiles + buffers - 1);
+    encoder = Charset.forName(hdfsConfiguration.getEncoding()).newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    flusher = Executors.newSingleThreadExecutor();
     connectToWebHDFS();
     path = new Path(hdfsConfiguration.getPath() + "/" + hdfsConfiguration.getWriterPath());
   }
 
   @Override
   public void cleanUp() {
-    try {
-      flush();
-    } catch (IOException ex) {
-      LOGGER.error("Error flushing on cleanup", ex);
-    }
     try {
       close();
     } catch (IOException ex) {
       LOGGER.error("Error closing on cleanup", ex);
     }
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   @Override
@@ -325,4 +607,24 @@ public class WebHdfsPersistWriter implements StreamsPersistWriter, Flushable, Cl
     counters.incrementStatus(DatumStatus.SUCCESS, this.totalRecordsWritten);
     return counters;
   }
+
+  /**
+   * The open file of one partition.
+   */
+  private static class PartitionFile {
+
+    private final String partition;
+    private int lineCounter = 0;
+    private long byteCounter = 0;
+    private ByteBuffer buffer;
+    private DataFileWriter<GenericRecord> avroWriter;
+
+    // used only by the flusher thread
+    private OutputStream stream;
+    private long unflushedBytes = 0;
+
+    private PartitionFile(String partition) {
+      this.partition = partition;
+    }
+  }
 }
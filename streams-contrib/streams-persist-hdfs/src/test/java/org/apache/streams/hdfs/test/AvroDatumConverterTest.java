@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.hdfs.test;
+
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.hdfs.AvroDatumConverter;
+import org.apache.streams.hdfs.HdfsColumn;
+import org.apache.streams.hdfs.HdfsWriterConfiguration;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Test converting documents to and from avro records
+ */
+public class AvroDatumConverterTest {
+
+  private static final String ACTIVITY = "{\"id\":\"activity\",\"verb\":\"post\",\"published\":\"2017-06-01T12:00:00.000Z\","
+      + "\"actor\":{\"id\":\"actor\",\"objectType\":\"person\"},\"extensions\":{\"likes\":12,\"public\":true}}";
+
+  @Test
+  public void testDefaultColumns() throws Exception {
+    AvroDatumConverter converter = new AvroDatumConverter(new HdfsWriterConfiguration(), null);
+
+    GenericRecord record = converter.toRecord(new StreamsDatum(ACTIVITY, "activity"));
+
+    Assert.assertEquals("post", record.get("verb"));
+    Assert.assertEquals(new DateTime(2017, 6, 1, 12, 0, DateTimeZone.UTC).getMillis(), record.get("published"));
+    Assert.assertEquals("person", record.get("actor_objectType"));
+    Assert.assertNull(record.get("object_id"));
+    Assert.assertEquals(Schema.Type.UNION, record.getSchema().getField("provider_id").schema().getType());
+  }
+
+  @Test
+  public void testConfiguredColumnsAndRoundTrip() throws Exception {
+    HdfsWriterConfiguration configuration = new HdfsWriterConfiguration();
+    AvroDatumConverter converter = new AvroDatumConverter(configuration, Arrays.asList(
+        new HdfsColumn().withName("likes").withPath("extensions.likes").withType(HdfsColumn.Type.LONG),
+        new HdfsColumn().withPath("extensions.public").withType(HdfsColumn.Type.BOOLEAN),
+        new HdfsColumn().withName("id").withPath("id")));
+
+    StreamsDatum datum = new StreamsDatum(ACTIVITY, "activity", new DateTime(1000L));
+    datum.getMetadata().put("source", "test");
+    GenericRecord record = converter.toRecord(datum);
+
+    Assert.assertEquals(12L, record.get("likes"));
+    Assert.assertEquals(true, record.get("extensions_public"));
+    // a column may not shadow the datum fields
+    Assert.assertEquals(6, record.getSchema().getFields().size());
+
+    StreamsDatum result = AvroDatumConverter.fromRecord(record);
+    Assert.assertEquals("activity", result.getId());
+    Assert.assertEquals(1000L, result.getTimestamp().getMillis());
+    Assert.assertEquals("test", result.getMetadata().get("source"));
+    Assert.assertEquals(ACTIVITY, result.getDocument());
+  }
+
+}
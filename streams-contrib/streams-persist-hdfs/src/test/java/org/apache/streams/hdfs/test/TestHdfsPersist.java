@@ -123,4 +123,54 @@ public class TestHdfsPersist {
     Assert.assertEquals(resultSet.size(), count);
 
   }
+
+  @Test
+  public void TestHdfsPersistCodecs() throws Exception {
+
+    for (HdfsWriterConfiguration.Compression compression : HdfsWriterConfiguration.Compression.values()) {
+      TestHdfsPersistCodecCase(compression);
+    }
+
+  }
+
+  public void TestHdfsPersistCodecCase(HdfsWriterConfiguration.Compression compression) throws Exception {
+
+    HdfsConfiguration hdfsConfiguration = new HdfsConfiguration().withScheme(HdfsConfiguration.Scheme.FILE).withHost("localhost").withUser("cloudera").withPath("target/TestHdfsPersist");
+    hdfsConfiguration.setFields(Arrays.asList("ID", "TS", "META", "DOC"));
+    HdfsWriterConfiguration hdfsWriterConfiguration = MAPPER.convertValue(hdfsConfiguration, HdfsWriterConfiguration.class);
+    hdfsWriterConfiguration.setCompression(compression);
+    hdfsWriterConfiguration.setWriterFilePrefix("activities");
+    hdfsWriterConfiguration.setWriterPath("codec-" + compression);
+    // one file of several compressed blocks, so block-compressed files split too
+    int count = 5000;
+    hdfsWriterConfiguration.setLinesPerFile((long) count);
+    WebHdfsPersistWriter writer = new WebHdfsPersistWriter(hdfsWriterConfiguration);
+
+    writer.prepare(null);
+
+    for (int i = 0; i < count; i++) {
+      Activity activity = new Activity()
+          .withId("id" + i)
+          .withVerb("post")
+          .withContent("activity number " + i + " of a file large enough to be read in several ranges");
+      writer.write(new StreamsDatum(activity, activity.getId()));
+    }
+
+    writer.cleanUp();
+
+    HdfsReaderConfiguration hdfsReaderConfiguration = MAPPER.convertValue(hdfsConfiguration, HdfsReaderConfiguration.class);
+
+    WebHdfsPersistReader reader = new WebHdfsPersistReader(hdfsReaderConfiguration);
+    hdfsReaderConfiguration.setReaderPath("codec-" + compression);
+    // read uncompressed and block-compressed files as several ranges in parallel
+    hdfsReaderConfiguration.setReaderThreads(3L);
+    hdfsReaderConfiguration.setSplitSize(2048L);
+
+    reader.prepare(null);
+
+    StreamsResultSet resultSet = reader.readAll();
+
+    Assert.assertEquals(compression.toString(), count, resultSet.size());
+
+  }
 }
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.streams.hdfs.test;
+
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.core.StreamsResultSet;
+import org.apache.streams.hdfs.HdfsConfiguration;
+import org.apache.streams.hdfs.HdfsReaderConfiguration;
+import org.apache.streams.hdfs.HdfsWriterConfiguration;
+import org.apache.streams.hdfs.WebHdfsPersistReader;
+import org.apache.streams.hdfs.WebHdfsPersistWriter;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Test incremental reads that skip files recorded in the manifest
+ */
+public class WebHdfsPersistReaderTest {
+
+  private static void write(int from, int to) {
+    HdfsWriterConfiguration configuration = new HdfsWriterConfiguration();
+    configuration.setScheme(HdfsConfiguration.Scheme.FILE);
+    configuration.setHost("localhost");
+    configuration.setUser("test");
+    configuration.setPath("target/WebHdfsPersistReaderTest");
+    configuration.setWriterPath("data");
+    configuration.setWriterFilePrefix("lines");
+    configuration.setFields(Arrays.asList("ID", "DOC"));
+    configuration.setLinesPerFile(20L);
+    WebHdfsPersistWriter writer = new WebHdfsPersistWriter(configuration);
+    writer.prepare(null);
+    for (int i = from; i < to; i++) {
+      writer.write(new StreamsDatum("{\"line\":" + i + "}", "id" + i));
+    }
+    writer.cleanUp();
+  }
+
+  private static WebHdfsPersistReader reader() {
+    HdfsReaderConfiguration configuration = new HdfsReaderConfiguration();
+    configuration.setScheme(HdfsConfiguration.Scheme.FILE);
+    configuration.setHost("localhost");
+    configuration.setUser("test");
+    configuration.setPath("target/WebHdfsPersistReaderTest");
+    configuration.setReaderPath("data");
+    configuration.setFields(Arrays.asList("ID", "DOC"));
+    configuration.setManifestPath("manifest");
+    WebHdfsPersistReader reader = new WebHdfsPersistReader(configuration);
+    reader.prepare(null);
+    return reader;
+  }
+
+  @Test
+  public void testReadNewSkipsConsumedFiles() throws Exception {
+    FileUtils.deleteQuietly(new File("target/WebHdfsPersistReaderTest"));
+
+    write(0, 100);
+    StreamsResultSet first = reader().readNew(null);
+    Assert.assertEquals(100, first.size());
+    Assert.assertTrue(new File("target/WebHdfsPersistReaderTest/manifest").exists());
+
+    // a later run loads the manifest and reads only the files written since
+    write(100, 150);
+    WebHdfsPersistReader reader = reader();
+    StreamsResultSet second = reader.readNew(null);
+    Assert.assertEquals(50, second.size());
+    for (StreamsDatum datum : second) {
+      Assert.assertTrue(Integer.parseInt(datum.getId().substring(2)) >= 100);
+    }
+    reader.readCurrent();
+    Assert.assertEquals(0, reader.readNew(null).size());
+  }
+
+  @Test
+  public void testReadNewLeavesReadAllSelection() throws Exception {
+    FileUtils.deleteQuietly(new File("target/WebHdfsPersistReaderTest"));
+
+    write(0, 100);
+    WebHdfsPersistReader reader = reader();
+    Assert.assertEquals(100, reader.readNew(null).size());
+
+    write(100, 150);
+    Assert.assertEquals(50, reader.readNew(null).size());
+
+    // readAll still reads the files listed by prepare, not the last readNew selection
+    Assert.assertEquals(100, reader.readAll().size());
+  }
+
+}
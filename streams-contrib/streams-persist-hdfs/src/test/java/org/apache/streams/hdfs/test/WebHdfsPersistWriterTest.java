@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.hdfs.test;
+
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.hdfs.HdfsConfiguration;
+import org.apache.streams.hdfs.HdfsReaderConfiguration;
+import org.apache.streams.hdfs.HdfsWriterConfiguration;
+import org.apache.streams.hdfs.WebHdfsPersistReader;
+import org.apache.streams.hdfs.WebHdfsPersistWriter;
+import org.apache.streams.util.codec.StreamsCodecs;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FileStatus;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Test writing delimited files through the background flusher, unpartitioned and partitioned
+ */
+public class WebHdfsPersistWriterTest {
+
+  private static final int LINES = 5000;
+
+  private static List<String> readLines(File directory) throws Exception {
+    List<String> lines = new ArrayList<>();
+    File[] files = Objects.requireNonNull(directory.listFiles((dir, name) -> !name.startsWith(".")));
+    for (File file : files) {
+      if (file.isDirectory()) {
+        lines.addAll(readLines(file));
+        continue;
+      }
+      try (InputStream in = StreamsCodecs.detect(new FileInputStream(file))) {
+        for (String line : IOUtils.readLines(in, StandardCharsets.UTF_8)) {
+          lines.add(line);
+        }
+      }
+    }
+    return lines;
+  }
+
+  @Test
+  public void testRollOnBytesWithSmallBuffers() throws Exception {
+    for (HdfsWriterConfiguration.Compression compression : HdfsWriterConfiguration.Compression.values()) {
+      File directory = new File("target/WebHdfsPersistWriterTest/" + compression);
+      FileUtils.deleteQuietly(directory);
+
+      HdfsWriterConfiguration configuration = new HdfsWriterConfiguration();
+      configuration.setScheme(HdfsConfiguration.Scheme.FILE);
+      configuration.setHost("localhost");
+      configuration.setUser("test");
+      configuration.setPath("target/WebHdfsPersistWriterTest");
+      configuration.setWriterPath(compression.toString());
+      configuration.setWriterFilePrefix("lines");
+      configuration.setFields(Arrays.asList("ID", "DOC"));
+      configuration.setCompression(compression);
+      configuration.setLinesPerFile(1000000L);
+      configuration.setBytesPerFile(50000L);
+      configuration.setBufferSize(4096L);
+
+      WebHdfsPersistWriter writer = new WebHdfsPersistWriter(configuration);
+      writer.prepare(null);
+      List<String> expected = new ArrayList<>();
+      for (int i = 0; i < LINES; i++) {
+        String document = "{\"line\":" + i + ",\"text\":\"été " + i + "\"}";
+        writer.write(new StreamsDatum(document, "id" + i));
+        expected.add("id" + i + "\t" + document);
+      }
+      writer.cleanUp();
+
+      Assert.assertEquals(LINES, writer.getDatumStatusCounter().getSuccess());
+      // rolled on bytes, since linesPerFile was never reached
+      Assert.assertTrue(Objects.requireNonNull(directory.listFiles((dir, name) -> !name.startsWith("."))).length > 1);
+      List<String> lines = readLines(directory);
+      Collections.sort(expected);
+      Collections.sort(lines);
+      Assert.assertEquals(compression.toString(), expected, lines);
+    }
+  }
+
+  @Test
+  public void testPartitionedByHourAndMetadata() throws Exception {
+    File directory = new File("target/WebHdfsPersistWriterTest/partitioned");
+    FileUtils.deleteQuietly(directory);
+
+    HdfsWriterConfiguration configuration = new HdfsWriterConfiguration();
+    configuration.setScheme(HdfsConfiguration.Scheme.FILE);
+    configuration.setHost("localhost");
+    configuration.setUser("test");
+    configuration.setPath("target/WebHdfsPersistWriterTest");
+    configuration.setWriterPath("partitioned");
+    configuration.setWriterFilePrefix("lines");
+    configuration.setFields(Arrays.asList("ID", "DOC"));
+    configuration.setPartitionGranularity(HdfsWriterConfiguration.PartitionGranularity.HOUR);
+    configuration.setPartitionMetadataKey("source");
+    // fewer open files than partitions, so partitions are closed and reopened as they are written
+    configuration.setMaxOpenFiles(2L);
+    configuration.setBufferSize(1024L);
+
+    WebHdfsPersistWriter writer = new WebHdfsPersistWriter(configuration);
+    writer.prepare(null);
+    DateTime start = new DateTime(2017, 6, 1, 22, 0, DateTimeZone.UTC);
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 600; i++) {
+      String document = "{\"line\":" + i + "}";
+      StreamsDatum datum = new StreamsDatum(document, "id" + i, start.plusMinutes(i % 180));
+      datum.getMetadata().put("source", i % 2 == 0 ? "even" : "odd");
+      writer.write(datum);
+      expected.add("id" + i + "\t" + document);
+    }
+    writer.cleanUp();
+
+    Assert.assertEquals(600, writer.getDatumStatusCounter().getSuccess());
+    Assert.assertEquals(Arrays.asList("hr=22", "hr=23"), list(new File(directory, "dt=2017-06-01")));
+    Assert.assertEquals(Arrays.asList("hr=00"), list(new File(directory, "dt=2017-06-02")));
+    Assert.assertEquals(Arrays.asList("source=even", "source=odd"), list(new File(directory, "dt=2017-06-02/hr=00")));
+    Assert.assertEquals(90, readLines(new File(directory, "dt=2017-06-01/hr=23/source=odd")).size());
+    List<String> lines = readLines(directory);
+    Collections.sort(expected);
+    Collections.sort(lines);
+    Assert.assertEquals(expected, lines);
+
+    HdfsReaderConfiguration readerConfiguration = new HdfsReaderConfiguration();
+    readerConfiguration.setScheme(HdfsConfiguration.Scheme.FILE);
+    readerConfiguration.setHost("localhost");
+    readerConfiguration.setUser("test");
+    readerConfiguration.setPath("target/WebHdfsPersistWriterTest");
+    readerConfiguration.setReaderPath("partitioned");
+    PartitionListingReader reader = new PartitionListingReader(readerConfiguration);
+    reader.prepare(null);
+    // each hour was written three times, reopening both of its partitions each time
+    Assert.assertEquals(20, reader.list(null, null).length);
+    // only the hr=23 partitions overlap
+    FileStatus[] files = reader.list(start.plusMinutes(70), start.plusMinutes(100));
+    Assert.assertEquals(6, files.length);
+    for (FileStatus file : files) {
+      Assert.assertEquals("hr=23", file.getPath().getParent().getParent().getName());
+    }
+  }
+
+  private static List<String> list(File directory) {
+    List<String> names = Arrays.asList(Objects.requireNonNull(directory.list((dir, name) -> !name.startsWith("."))));
+    Collections.sort(names);
+    return names;
+  }
+
+  private static class PartitionListingReader extends WebHdfsPersistReader {
+
+    PartitionListingReader(HdfsReaderConfiguration configuration) {
+      super(configuration);
+    }
+
+    FileStatus[] list(DateTime start, DateTime end) {
+      return listFiles(start, end);
+    }
+  }
+
+}
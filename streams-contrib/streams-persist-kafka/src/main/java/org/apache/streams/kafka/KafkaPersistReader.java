@@ -24,23 +24,22 @@ import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistReader;
 import org.apache.streams.core.StreamsResultSet;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import kafka.consumer.Consumer;
-import kafka.consumer.ConsumerConfig;
-import kafka.consumer.KafkaStream;
-import kafka.consumer.Whitelist;
-import kafka.javaapi.consumer.ConsumerConnector;
-import kafka.serializer.StringDecoder;
-import kafka.utils.VerifiableProperties;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -48,6 +47,13 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * KafkaPersistReader reads documents from kafka.
+ *
+ * <p/>
+ * consumerThreads consumers join the configured group, sharing the topic's partitions, and hand
+ * the records of each poll to a bounded queue of batches, which readCurrent drains.  A batch
+ * returned by readCurrent counts as processed when readCurrent is next called, or the reader is
+ * cleaned up, and only then are its offsets committed, so a restarted reader resumes after the
+ * last batch handed downstream.
  */
 public class KafkaPersistReader implements StreamsPersistReader, Serializable {
 
@@ -55,17 +61,21 @@ public class KafkaPersistReader implements StreamsPersistReader, Serializable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(KafkaPersistReader.class);
 
-  protected volatile Queue<StreamsDatum> persistQueue;
+  // batches held between the consumers and readCurrent, per consumer
+  private static final int BATCHES_PER_CONSUMER = 2;
 
-  private ObjectMapper mapper = new ObjectMapper();
+  protected volatile Queue<StreamsDatum> persistQueue;
 
   private KafkaReaderConfiguration config;
 
-  private ConsumerConnector consumerConnector;
+  private transient BlockingQueue<KafkaPersistReaderTask.Batch> batches;
 
-  public List<KafkaStream<String, String>> inStreams;
+  // batches returned by the last readCurrent, to acknowledge on the next
+  private transient List<KafkaPersistReaderTask.Batch> delivered = new ArrayList<>();
 
-  private ExecutorService executor = Executors.newSingleThreadExecutor();
+  private transient ExecutorService executor;
+
+  private volatile boolean running = false;
 
   /**
    * KafkaPersistReader constructor - resolves KafkaConfiguration from JVM 'kafka'.
@@ -75,6 +85,14 @@ public class KafkaPersistReader implements StreamsPersistReader, Serializable {
     this.persistQueue  = new ConcurrentLinkedQueue<>();
   }
 
+  /**
+   * KafkaPersistReader constructor - uses supplied KafkaReaderConfiguration.
+   */
+  public KafkaPersistReader(KafkaReaderConfiguration config) {
+    this.config = config;
+    this.persistQueue  = new ConcurrentLinkedQueue<>();
+  }
+
   /**
    * KafkaPersistReader constructor - uses supplied persistQueue.
    */
@@ -95,22 +113,46 @@ public class KafkaPersistReader implements StreamsPersistReader, Serializable {
   @Override
   public void startStream() {
 
-    Properties props = new Properties();
-    props.setProperty("serializer.encoding", "UTF8");
+    running = true;
 
-    ConsumerConfig consumerConfig = new ConsumerConfig(props);
+    int consumers = Math.max(1, config.getConsumerThreads().intValue());
+    for (int i = 0; i < consumers; i++) {
+      executor.submit(new KafkaPersistReaderTask(this, new KafkaConsumer<>(
+          consumerProperties(), new ByteArrayDeserializer(), new ByteArrayDeserializer())));
+    }
 
-    consumerConnector = Consumer.createJavaConsumerConnector(consumerConfig);
+  }
 
-    Whitelist topics = new Whitelist(config.getTopic());
-    VerifiableProperties vprops = new VerifiableProperties(props);
+  private Properties consumerProperties() {
+    Properties props = new Properties();
+    props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, config.getBrokerlist());
+    props.put(ConsumerConfig.GROUP_ID_CONFIG, config.getGroup() != null ? config.getGroup() : STREAMS_ID);
+    props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+    props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, config.getMaxPollRecords().intValue());
+    props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG,
+        config.getStartFrom() == KafkaReaderConfiguration.StartFrom.LATEST ? "latest" : "earliest");
+    return props;
+  }
 
-    inStreams = consumerConnector.createMessageStreamsByFilter(topics, 1, new StringDecoder(vprops), new StringDecoder(vprops));
+  List<String> getTopics() {
+    return Arrays.asList(config.getTopic().split(","));
+  }
 
-    for (final KafkaStream stream : inStreams) {
-      executor.submit(new KafkaPersistReaderTask(this, stream));
-    }
+  Long getStartFromTimestamp() {
+    return config.getStartFrom() == KafkaReaderConfiguration.StartFrom.TIMESTAMP
+        ? config.getStartFromTimestamp()
+        : null;
+  }
 
+  /**
+   * Offer a consumer's batch to readCurrent.
+   * @param batch batch
+   * @param timeoutMs longest to wait for room
+   * @return whether the batch was taken
+   * @throws InterruptedException InterruptedException
+   */
+  boolean handoff(KafkaPersistReaderTask.Batch batch, long timeoutMs) throws InterruptedException {
+    return batches.offer(batch, timeoutMs, TimeUnit.MILLISECONDS);
   }
 
   @Override
@@ -118,9 +160,32 @@ public class KafkaPersistReader implements StreamsPersistReader, Serializable {
     return readCurrent();
   }
 
+  /**
+   * Acknowledge the batches returned last time, and return every batch ready now.
+   * @return result
+   */
   @Override
-  public StreamsResultSet readCurrent() {
-    return null;
+  public synchronized StreamsResultSet readCurrent() {
+
+    acknowledgeDelivered();
+
+    List<KafkaPersistReaderTask.Batch> ready = new ArrayList<>();
+    batches.drainTo(ready);
+
+    Queue<StreamsDatum> current = new ConcurrentLinkedQueue<>();
+    for (KafkaPersistReaderTask.Batch batch : ready) {
+      current.addAll(batch.datums);
+    }
+    delivered = ready;
+
+    return new StreamsResultSet(current);
+  }
+
+  private void acknowledgeDelivered() {
+    for (KafkaPersistReaderTask.Batch batch : delivered) {
+      batch.task.acknowledge(batch.offsets);
+    }
+    delivered = new ArrayList<>();
   }
 
   @Override
@@ -135,27 +200,27 @@ public class KafkaPersistReader implements StreamsPersistReader, Serializable {
 
   @Override
   public boolean isRunning() {
-    return !executor.isShutdown() && !executor.isTerminated();
-  }
-
-  private static ConsumerConfig createConsumerConfig(String zookeeper, String groupId) {
-    Properties props = new Properties();
-    props.put("zookeeper.connect", zookeeper);
-    props.put("group.id", groupId);
-    props.put("zookeeper.session.timeout.ms", "400");
-    props.put("zookeeper.sync.time.ms", "200");
-    props.put("auto.commit.interval.ms", "1000");
-    return new ConsumerConfig(props);
+    return running;
   }
 
   @Override
   public void prepare(Object configurationObject) {
-
+    int consumers = Math.max(1, config.getConsumerThreads().intValue());
+    batches = new ArrayBlockingQueue<>(consumers * BATCHES_PER_CONSUMER);
+    executor = Executors.newFixedThreadPool(consumers);
   }
 
+  /**
+   * Acknowledge the batches last returned, and stop the consumers, which commit on the way out.
+   */
   @Override
   public void cleanUp() {
-    consumerConnector.shutdown();
+    synchronized (this) {
+      acknowledgeDelivered();
+    }
+    // consumers poll briefly, so they notice this within a poll
+    running = false;
+    executor.shutdown();
     while ( !executor.isTerminated()) {
       try {
         executor.awaitTermination(5, TimeUnit.SECONDS);
@@ -20,46 +20,228 @@ package org.apache.streams.kafka;
 
 import org.apache.streams.core.StreamsDatum;
 
-import kafka.consumer.KafkaStream;
-import kafka.message.MessageAndMetadata;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Random;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * KafkaPersistReaderTask reads documents from kafka on behalf of
+ * KafkaPersistReaderTask reads documents from kafka on behalf of KafkaPersistReader.
+ *
+ * <p/>
+ * Each task owns one consumer of the reader's group, and hands each poll's records to the reader
+ * as a {@link Batch}.  While the reader's handoff queue is full the task pauses its partitions but
+ * keeps polling, so the group does not consider it dead.  Offsets are only committed once the
+ * reader acknowledges the batch holding them.
+ *
  * @see org.apache.streams.kafka.KafkaPersistReader
  */
 public class KafkaPersistReaderTask implements Runnable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(KafkaPersistReaderTask.class);
 
+  private static final long POLL_MS = 100;
+
   private KafkaPersistReader reader;
-  private KafkaStream<String,String> stream;
+  private KafkaConsumer<byte[], byte[]> consumer;
 
-  public KafkaPersistReaderTask(KafkaPersistReader reader, KafkaStream<String,String> stream) {
+  // offsets acknowledged by the reader and not yet committed; only touched under its own lock
+  private final Map<TopicPartition, OffsetAndMetadata> acknowledged = new HashMap<>();
+
+  // whether fetching is paused while the reader catches up; only touched by the consumer's thread
+  private boolean paused = false;
+
+  public KafkaPersistReaderTask(KafkaPersistReader reader, KafkaConsumer<byte[], byte[]> consumer) {
     this.reader = reader;
-    this.stream = stream;
+    this.consumer = consumer;
   }
 
   @Override
   public void run() {
 
-    MessageAndMetadata<String,String> item;
-    while (true) {
+    try {
+      consumer.subscribe(reader.getTopics(), new RebalanceListener());
+      while (reader.isRunning()) {
+        commitAcknowledged(false);
+        ConsumerRecords<byte[], byte[]> records = consumer.poll(POLL_MS);
+        if (records.isEmpty()) {
+          continue;
+        }
+        Batch batch = toBatch(records);
+        if (!reader.handoff(batch, POLL_MS)) {
+          // the reader is behind: stop fetching but keep polling, so the group keeps our partitions
+          paused = true;
+          consumer.pause(consumer.assignment());
+          while (reader.isRunning() && !reader.handoff(batch, POLL_MS)) {
+            commitAcknowledged(false);
+            rewind(consumer.poll(0));
+          }
+          paused = false;
+          consumer.resume(consumer.paused());
+        }
+      }
+    } catch (Exception ex) {
+      LOGGER.error("Kafka consumer failed", ex);
+    } finally {
+      try {
+        commitAcknowledged(true);
+      } catch (Exception ex) {
+        LOGGER.warn("Unable to commit offsets on close: {}", ex.getMessage());
+      }
+      consumer.close();
+    }
+
+  }
 
-      for (MessageAndMetadata<String, String> aStream : stream) {
-        item = aStream;
-        reader.persistQueue.add(new StreamsDatum(item.message()));
+  /**
+   * Mark offsets as processed downstream; they are committed by the consumer's own thread.
+   * @param offsets next offset to read, by partition
+   */
+  void acknowledge(Map<TopicPartition, OffsetAndMetadata> offsets) {
+    synchronized (acknowledged) {
+      for (Map.Entry<TopicPartition, OffsetAndMetadata> offset : offsets.entrySet()) {
+        OffsetAndMetadata current = acknowledged.get(offset.getKey());
+        if (current == null || current.offset() < offset.getValue().offset()) {
+          acknowledged.put(offset.getKey(), offset.getValue());
+        }
       }
+    }
+  }
+
+  // records polled while paused can only come from partitions that escaped the pause;
+  // put them back to be fetched again once the reader catches up, rather than drop them
+  private void rewind(ConsumerRecords<byte[], byte[]> records) {
+    for (TopicPartition partition : records.partitions()) {
+      consumer.seek(partition, records.records(partition).get(0).offset());
+    }
+    consumer.pause(records.partitions());
+  }
+
+  private void commitAcknowledged(boolean sync) {
+    Map<TopicPartition, OffsetAndMetadata> offsets;
+    synchronized (acknowledged) {
+      if (acknowledged.isEmpty()) {
+        return;
+      }
+      offsets = new HashMap<>(acknowledged);
+      acknowledged.clear();
+    }
+    // batches read before a rebalance may be acknowledged after it; their partitions now belong to another consumer
+    offsets.keySet().retainAll(consumer.assignment());
+    if (offsets.isEmpty()) {
+      return;
+    }
+    if (sync) {
+      consumer.commitSync(offsets);
+    } else {
+      consumer.commitAsync(offsets, (committed, exception) -> {
+        if (exception != null) {
+          LOGGER.warn("Unable to commit offsets {}: {}", committed, exception.getMessage());
+        }
+      });
+    }
+  }
+
+  private Batch toBatch(ConsumerRecords<byte[], byte[]> records) {
+    List<StreamsDatum> datums = new ArrayList<>(records.count());
+    Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+    for (ConsumerRecord<byte[], byte[]> record : records) {
+      datums.add(toDatum(record));
+      offsets.put(new TopicPartition(record.topic(), record.partition()), new OffsetAndMetadata(record.offset() + 1));
+    }
+    return new Batch(this, datums, offsets);
+  }
+
+  // the inverse of KafkaPersistWriter: key to id, value to document, headers to metadata
+  private static StreamsDatum toDatum(ConsumerRecord<byte[], byte[]> record) {
+    String id = record.key() != null ? new String(record.key(), StandardCharsets.UTF_8) : null;
+    String document = record.value() != null ? new String(record.value(), StandardCharsets.UTF_8) : null;
+    StreamsDatum datum = new StreamsDatum(document, id, record.timestamp() >= 0 ? new DateTime(record.timestamp()) : null);
+    for (Header header : record.headers()) {
+      datum.getMetadata().put(header.key(), header.value() != null ? new String(header.value(), StandardCharsets.UTF_8) : null);
+    }
+    return datum;
+  }
+
+  /**
+   * Commits acknowledged offsets of partitions being taken away, pauses newly assigned partitions
+   * while the reader is behind, and positions partitions new to the group at start_from_timestamp
+   * when starting from a timestamp.
+   */
+  private class RebalanceListener implements ConsumerRebalanceListener {
+
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
       try {
-        Thread.sleep(new Random().nextInt(100));
-      } catch (InterruptedException interrupt) {
-        LOGGER.trace("Interrupt", interrupt);
+        commitAcknowledged(true);
+      } catch (Exception ex) {
+        LOGGER.warn("Unable to commit offsets of revoked partitions: {}", ex.getMessage());
+      }
+      synchronized (acknowledged) {
+        acknowledged.keySet().removeAll(partitions);
       }
     }
 
+    @Override
+    public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+      if (paused) {
+        consumer.pause(partitions);
+      }
+      Long timestamp = reader.getStartFromTimestamp();
+      if (timestamp == null) {
+        return;
+      }
+      Map<TopicPartition, Long> uncommitted = new HashMap<>();
+      for (TopicPartition partition : partitions) {
+        if (consumer.committed(partition) == null) {
+          uncommitted.put(partition, timestamp);
+        }
+      }
+      if (uncommitted.isEmpty()) {
+        return;
+      }
+      Map<TopicPartition, OffsetAndTimestamp> offsets = consumer.offsetsForTimes(uncommitted);
+      for (TopicPartition partition : uncommitted.keySet()) {
+        OffsetAndTimestamp offset = offsets.get(partition);
+        if (offset != null) {
+          consumer.seek(partition, offset.offset());
+        } else {
+          // nothing written since the timestamp
+          consumer.seekToEnd(Collections.singletonList(partition));
+        }
+      }
+    }
+  }
+
+  /**
+   * Records of one poll, and the offsets to commit once they have been processed.
+   */
+  static class Batch {
+
+    final KafkaPersistReaderTask task;
+    final List<StreamsDatum> datums;
+    final Map<TopicPartition, OffsetAndMetadata> offsets;
+
+    Batch(KafkaPersistReaderTask task, List<StreamsDatum> datums, Map<TopicPartition, OffsetAndMetadata> offsets) {
+      this.task = task;
+      this.datums = datums;
+      this.offsets = offsets;
+    }
   }
 
 }
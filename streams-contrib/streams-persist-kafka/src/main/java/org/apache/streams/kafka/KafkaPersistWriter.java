@@ -20,27 +20,47 @@ package org.apache.streams.kafka;
 
 import org.apache.streams.config.ComponentConfigurator;
 import org.apache.streams.config.StreamsConfigurator;
+import org.apache.streams.core.DatumStatus;
+import org.apache.streams.core.DatumStatusCountable;
+import org.apache.streams.core.DatumStatusCounter;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
-import org.apache.streams.util.GuidUtils;
+import org.apache.streams.jackson.StreamsJacksonMapper;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import kafka.javaapi.producer.Producer;
-import kafka.producer.KeyedMessage;
-import kafka.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Flushable;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * KafkaPersistWriter writes documents to kafka.
+ *
+ * <p/>
+ * Each datum becomes one record: the id is the key, so a datum always lands on the same
+ * partition, the document is the value, the timestamp is the record timestamp, and metadata
+ * entries become headers.  Records are sent asynchronously by the producer, batched per
+ * partition by lingerMs and batchSize and compressed with compressionType, and each send's
+ * outcome is counted in {@link #getDatumStatusCounter()}.
  */
-public class KafkaPersistWriter implements StreamsPersistWriter, Serializable, Runnable {
+public class KafkaPersistWriter implements StreamsPersistWriter, Serializable, Runnable, Flushable, DatumStatusCountable {
 
   public static final String STREAMS_ID = "KafkaPersistWriter";
 
@@ -48,11 +68,15 @@ public class KafkaPersistWriter implements StreamsPersistWriter, Serializable, R
 
   protected volatile Queue<StreamsDatum> persistQueue;
 
-  private ObjectMapper mapper = new ObjectMapper();
+  private ObjectMapper mapper = StreamsJacksonMapper.getInstance();
 
   private KafkaWriterConfiguration config;
 
-  private Producer<String, String> producer;
+  private transient Producer<byte[], byte[]> producer;
+
+  private final AtomicLong attempted = new AtomicLong();
+  private final AtomicLong succeeded = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
 
   /**
    * KafkaPersistWriter constructor
@@ -62,6 +86,14 @@ public class KafkaPersistWriter implements StreamsPersistWriter, Serializable, R
     this.persistQueue  = new ConcurrentLinkedQueue<>();
   }
 
+  /**
+   * KafkaPersistWriter constructor - uses supplied KafkaWriterConfiguration.
+   */
+  public KafkaPersistWriter(KafkaWriterConfiguration config) {
+    this.config = config;
+    this.persistQueue  = new ConcurrentLinkedQueue<>();
+  }
+
   /**
    * KafkaPersistWriter constructor - uses supplied persistQueue.
    */
@@ -75,25 +107,27 @@ public class KafkaPersistWriter implements StreamsPersistWriter, Serializable, R
   }
 
   /**
-   * run persist writer thread
+   * create the producer.
    */
   public void start() {
     Properties props = new Properties();
 
-    props.put("metadata.broker.list", config.getBrokerlist());
-    props.put("serializer.class", "kafka.serializer.StringEncoder");
-    props.put("partitioner.class", "org.apache.streams.kafka.StreamsPartitioner");
-    props.put("request.required.acks", "1");
-
-    ProducerConfig config = new ProducerConfig(props);
-
-    producer = new Producer<>(config);
+    props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, config.getBrokerlist());
+    props.put(ProducerConfig.ACKS_CONFIG, config.getAcks());
+    props.put(ProducerConfig.LINGER_MS_CONFIG, config.getLingerMs().intValue());
+    props.put(ProducerConfig.BATCH_SIZE_CONFIG, config.getBatchSize().intValue());
+    props.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, config.getCompressionType().toString());
 
-    new Thread(new KafkaPersistWriterTask(this)).start();
+    producer = new KafkaProducer<>(props, new ByteArraySerializer(), new ByteArraySerializer());
   }
 
+  /**
+   * send outstanding records, and close the producer.
+   */
   public void stop() {
+    producer.flush();
     producer.close();
+    LOGGER.info("Sent {} records to {}, {} failed", succeeded.get(), config.getTopic(), failed.get());
   }
 
   public void setPersistQueue(Queue<StreamsDatum> persistQueue) {
@@ -112,19 +146,65 @@ public class KafkaPersistWriter implements StreamsPersistWriter, Serializable, R
   @Override
   public void write(StreamsDatum entry) {
 
-    try {
+    attempted.incrementAndGet();
 
-      String text = mapper.writeValueAsString(entry);
+    byte[] value;
+    List<Header> headers = new ArrayList<>();
+    try {
+      value = toBytes(entry.getDocument());
+      if (entry.getMetadata() != null) {
+        for (Map.Entry<String, Object> metadata : entry.getMetadata().entrySet()) {
+          if (metadata.getValue() != null) {
+            headers.add(new RecordHeader(metadata.getKey(), toBytes(metadata.getValue())));
+          }
+        }
+      }
+    } catch (JsonProcessingException ex) {
+      LOGGER.warn("Unable to serialize datum {}: {}", entry.getId(), ex.getMessage());
+      failed.incrementAndGet();
+      return;
+    }
 
-      String hash = GuidUtils.generateGuid(text);
+    byte[] key = entry.getId() != null ? entry.getId().getBytes(StandardCharsets.UTF_8) : null;
+    Long timestamp = entry.getTimestamp() != null ? entry.getTimestamp().getMillis() : null;
 
-      KeyedMessage<String, String> data = new KeyedMessage<>(config.getTopic(), hash, text);
+    ProducerRecord<byte[], byte[]> record = new ProducerRecord<>(config.getTopic(), null, timestamp, key, value, headers);
 
-      producer.send(data);
+    producer.send(record, (metadata, exception) -> {
+      if (exception == null) {
+        succeeded.incrementAndGet();
+      } else {
+        failed.incrementAndGet();
+        LOGGER.warn("Failed to send datum {} to {}: {}", entry.getId(), config.getTopic(), exception.getMessage());
+      }
+    });
+  }
 
-    } catch (JsonProcessingException ex) {
-      LOGGER.warn("save: {}", ex);
+  // strings are sent as their utf-8 bytes, anything else as json
+  private byte[] toBytes(Object object) throws JsonProcessingException {
+    if (object instanceof String) {
+      return ((String) object).getBytes(StandardCharsets.UTF_8);
+    } else if (object instanceof byte[]) {
+      return (byte[]) object;
     }
+    return mapper.writeValueAsBytes(object);
+  }
+
+  /**
+   * Wait until every record sent so far is acknowledged or has failed.
+   */
+  @Override
+  public void flush() {
+    producer.flush();
+  }
+
+  @Override
+  public DatumStatusCounter getDatumStatusCounter() {
+    DatumStatusCounter counters = new DatumStatusCounter();
+    counters.incrementAttempt((int) attempted.get());
+    counters.incrementStatus(DatumStatus.SUCCESS, (int) succeeded.get());
+    counters.incrementStatus(DatumStatus.FAIL, (int) failed.get());
+    return counters;
   }
 
   @Override
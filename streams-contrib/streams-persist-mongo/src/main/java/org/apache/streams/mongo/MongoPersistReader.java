@@ -24,26 +24,44 @@ import org.apache.streams.core.DatumStatusCounter;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistReader;
 import org.apache.streams.core.StreamsResultSet;
-import org.apache.streams.jackson.StreamsJacksonMapper;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.Queues;
+import com.mongodb.CursorType;
 import com.mongodb.DB;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
-import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoCredential;
+import com.mongodb.MongoException;
 import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
 import org.apache.commons.lang3.StringUtils;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.conversions.Bson;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -56,6 +74,19 @@ import java.util.stream.Stream;
 
 /**
  * MongoPersistReader reads documents from mongo.
+ *
+ * <p/>
+ * The collection is split into readerThreads ranges of splitKey, bounded by quantiles of a
+ * random sample of the key, and each range is read by its own cursor.  Documents are decoded
+ * from BSON straight into ObjectNodes by {@link ObjectNodeCodec}.
+ *
+ * <p/>
+ * With tail set, startStream then follows the collection's entries in the oplog, emitting a
+ * datum per insert, update and delete with metadata 'operation' (insert, update or delete)
+ * and 'elasticsearch.action' (index or delete, as understood by ElasticsearchPersistWriter).
+ * Updates emit the whole current document.  The oplog position is saved in resumeCollection,
+ * and a reader started with a saved position skips the collection read and only replays
+ * later changes.
  */
 public class MongoPersistReader implements StreamsPersistReader {
 
@@ -63,9 +94,18 @@ public class MongoPersistReader implements StreamsPersistReader {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MongoPersistReader.class);
 
+  // keys sampled per range when choosing range boundaries
+  private static final int SAMPLES_PER_RANGE = 16;
+
+  // least time between saves of the oplog position
+  private static final long RESUME_SAVE_INTERVAL_MS = 1000;
+
+  public static final String OPERATION_INSERT = "insert";
+  public static final String OPERATION_UPDATE = "update";
+  public static final String OPERATION_DELETE = "delete";
+
   protected volatile Queue<StreamsDatum> persistQueue;
 
-  private ObjectMapper mapper = StreamsJacksonMapper.getInstance();
   private volatile AtomicLong lastWrite = new AtomicLong(System.currentTimeMillis());
 
   private ExecutorService executor;
@@ -74,9 +114,20 @@ public class MongoPersistReader implements StreamsPersistReader {
 
   protected MongoClient client;
   protected DB db;
-  protected DBCollection collection;
+  protected MongoCollection<ObjectNode> collection;
+
+  protected List<Bson> ranges;
 
-  protected DBCursor cursor;
+  protected MongoCollection<BsonDocument> oplog;
+  protected MongoCollection<Document> resume;
+  protected String resumeId;
+
+  // last oplog entry read, and whether it was saved by an earlier run
+  protected volatile BsonTimestamp position;
+  protected boolean resumed = false;
+  private long lastSave = 0;
+
+  private volatile boolean running = true;
 
   protected final ReadWriteLock lock = new ReentrantReadWriteLock();
 
@@ -112,7 +163,17 @@ public class MongoPersistReader implements StreamsPersistReader {
     return persistQueue;
   }
 
+  /**
+   * Stop tailing the oplog, saving the position reached.
+   */
   public void stop() {
+    running = false;
+    if (executor != null) {
+      executor.shutdown();
+    }
+    if (position != null) {
+      savePosition(true);
+    }
   }
 
   @Override
@@ -129,16 +190,21 @@ public class MongoPersistReader implements StreamsPersistReader {
         || collection == null ) {
       throw new RuntimeException("Unable to connect!");
     }
-    cursor = collection.find();
 
-    if ( cursor == null
-        || !cursor.hasNext()) {
+    if (collection.find().first() == null) {
       throw new RuntimeException("Collection not present or empty!");
     }
 
+    ranges = splitRanges(config.getSplitKey(), config.getReaderThreads().intValue());
+    LOGGER.info("Reading {} in {} ranges of {}", config.getCollection(), ranges.size(), config.getSplitKey());
+
+    if (config.getTail()) {
+      prepareTail();
+    }
+
     persistQueue = constructQueue();
 
-    executor = Executors.newSingleThreadExecutor();
+    executor = Executors.newFixedThreadPool(ranges.size() + (config.getTail() ? 1 : 0));
 
   }
 
@@ -147,21 +213,160 @@ public class MongoPersistReader implements StreamsPersistReader {
     stop();
   }
 
-  protected StreamsDatum prepareDatum(DBObject dbObject) {
+  protected StreamsDatum prepareDatum(ObjectNode objectNode) {
 
-    ObjectNode objectNode;
-    String id;
+    JsonNode idNode = objectNode.remove("_id");
+    String id = null;
+    if (idNode != null) {
+      id = idNode.has("$oid") ? idNode.get("$oid").asText() : idNode.isValueNode() ? idNode.asText() : idNode.toString();
+    }
 
+    return new StreamsDatum(objectNode, id);
+  }
+
+  // find where to start reading the oplog: the saved position, or its end before the collection is read
+  private void prepareTail() {
+    oplog = client.getDatabase("local").getCollection("oplog.rs", BsonDocument.class);
+    resume = client.getDatabase(config.getDb()).getCollection(config.getResumeCollection());
+    resumeId = StringUtils.isNotEmpty(config.getResumeId())
+        ? config.getResumeId()
+        : config.getDb() + "." + config.getCollection();
+
+    BsonDocument first = oplog.find().sort(new Document("$natural", 1)).first();
+    if (first == null) {
+      throw new RuntimeException("No oplog to tail: tail needs a replica set");
+    }
+
+    Document saved = resume.find(Filters.eq("_id", resumeId)).first();
+    if (saved != null) {
+      position = (BsonTimestamp) saved.get("ts");
+      resumed = true;
+      if (first.getTimestamp("ts").compareTo(position) > 0) {
+        LOGGER.warn("Oplog no longer holds changes after {} saved for {}: changes have been missed, remove the saved position to read the whole collection again",
+            position, resumeId);
+      }
+      LOGGER.info("Resuming {} from oplog position {}", resumeId, position);
+    } else {
+      position = oplog.find().sort(new Document("$natural", -1)).first().getTimestamp("ts");
+    }
+  }
+
+  /**
+   * Save the oplog position reached, at most every RESUME_SAVE_INTERVAL_MS unless forced.
+   * @param force save now
+   */
+  protected synchronized void savePosition(boolean force) {
+    long now = System.currentTimeMillis();
+    if (!force && now - lastSave < RESUME_SAVE_INTERVAL_MS) {
+      return;
+    }
     try {
-      objectNode = mapper.readValue(dbObject.toString(), ObjectNode.class);
-      id = objectNode.get("_id").get("$oid").asText();
-      objectNode.remove("_id");
-    } catch (IOException ex) {
-      LOGGER.warn("document isn't valid JSON.");
-      return null;
+      resume.replaceOne(Filters.eq("_id", resumeId),
+          new Document("_id", resumeId).append("ts", position),
+          new UpdateOptions().upsert(true));
+      lastSave = now;
+    } catch (MongoException ex) {
+      LOGGER.warn("Unable to save oplog position for {}: {}", resumeId, ex.getMessage());
     }
+  }
 
-    return new StreamsDatum(objectNode, id);
+  /**
+   * Convert an oplog entry for the collection to a datum.
+   * @param entry oplog entry
+   * @return datum, or null when the document changed has since been deleted
+   */
+  protected StreamsDatum prepareChange(BsonDocument entry) {
+    String op = entry.getString("op").getValue();
+    BsonDocument change = entry.getDocument("o");
+    ObjectNode document;
+    String operation;
+    String action = "index";
+    switch (op) {
+      case "i":
+        operation = OPERATION_INSERT;
+        document = decode(change);
+        break;
+      case "u":
+        operation = OPERATION_UPDATE;
+        // the entry holds only the modification, so read the whole document as it is now
+        document = collection.find(Filters.eq("_id", entry.getDocument("o2").get("_id"))).first();
+        if (document == null) {
+          return null;
+        }
+        break;
+      default:
+        operation = OPERATION_DELETE;
+        action = "delete";
+        document = decode(change);
+        break;
+    }
+    StreamsDatum datum = prepareDatum(document);
+    datum.setTimestamp(new DateTime(entry.getTimestamp("ts").getTime() * 1000L));
+    datum.getMetadata().put("operation", operation);
+    datum.getMetadata().put("elasticsearch.action", action);
+    return datum;
+  }
+
+  private static ObjectNode decode(BsonDocument document) {
+    return new ObjectNodeCodec().decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+  }
+
+  /**
+   * Split the collection into key ranges, one per reading thread.
+   *
+   * <p/>
+   * Boundaries are quantiles of a $sample of the key, so ranges hold about as many documents
+   * as each other however the key values are spread.  The first range also holds documents
+   * missing the key.
+   * @param splitKey field to split on
+   * @param count number of ranges wanted
+   * @return filters selecting each range
+   */
+  protected List<Bson> splitRanges(String splitKey, int count) {
+    if (count <= 1) {
+      return Collections.singletonList(new Document());
+    }
+    List<BsonValue> samples = new ArrayList<>();
+    List<Bson> pipeline = Arrays.asList(
+        Aggregates.sample(count * SAMPLES_PER_RANGE),
+        Aggregates.project(Projections.include(splitKey)),
+        Aggregates.sort(Sorts.ascending(splitKey)));
+    for (BsonDocument sample : collection.withDocumentClass(BsonDocument.class).aggregate(pipeline)) {
+      BsonValue value = keyValue(sample, splitKey);
+      if (value != null && !value.isNull()) {
+        samples.add(value);
+      }
+    }
+    List<BsonValue> boundaries = new ArrayList<>();
+    for (int i = 1; i < count && !samples.isEmpty(); i++) {
+      BsonValue boundary = samples.get(i * samples.size() / count);
+      // repeated keys can't separate ranges
+      if (!boundaries.contains(boundary) && !boundary.equals(samples.get(0))) {
+        boundaries.add(boundary);
+      }
+    }
+    if (boundaries.isEmpty()) {
+      return Collections.singletonList(new Document());
+    }
+    List<Bson> filters = new ArrayList<>();
+    filters.add(Filters.not(Filters.gte(splitKey, boundaries.get(0))));
+    for (int i = 0; i < boundaries.size() - 1; i++) {
+      filters.add(Filters.and(Filters.gte(splitKey, boundaries.get(i)), Filters.lt(splitKey, boundaries.get(i + 1))));
+    }
+    filters.add(Filters.gte(splitKey, boundaries.get(boundaries.size() - 1)));
+    return filters;
+  }
+
+  // follow a dotted key into a projected document
+  private static BsonValue keyValue(BsonDocument document, String key) {
+    BsonValue value = document;
+    for (String field : key.split("\\.")) {
+      if (!value.isDocument() || !value.asDocument().containsKey(field)) {
+        return null;
+      }
+      value = value.asDocument().get(field);
+    }
+    return value;
   }
 
   private synchronized void connectToMongo() {
@@ -182,19 +387,35 @@ public class MongoPersistReader implements StreamsPersistReader {
       db.createCollection(config.getCollection(), null);
     }
 
-    collection = db.getCollection(config.getCollection());
+    collection = client.getDatabase(config.getDb())
+        .getCollection(config.getCollection(), ObjectNode.class)
+        .withCodecRegistry(CodecRegistries.fromRegistries(
+            CodecRegistries.fromCodecs(new ObjectNodeCodec()),
+            MongoClient.getDefaultCodecRegistry()));
+  }
+
+  // read every range concurrently, returning once all are read
+  private void readRanges() {
+    List<Callable<Object>> tasks = new ArrayList<>();
+    for (Bson range : ranges) {
+      tasks.add(Executors.callable(new MongoPersistReaderTask(this, range)));
+    }
+    try {
+      for (Future<Object> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException interrupt) {
+      LOGGER.trace("Interrupt", interrupt);
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException ex) {
+      LOGGER.warn("Failed reading range", ex.getCause());
+    }
   }
 
   @Override
   public StreamsResultSet readAll() {
 
-    try (DBCursor cursor = collection.find()) {
-      while (cursor.hasNext()) {
-        DBObject dbObject = cursor.next();
-        StreamsDatum datum = prepareDatum(dbObject);
-        write(datum);
-      }
-    }
+    readRanges();
 
     return readCurrent();
   }
@@ -203,19 +424,17 @@ public class MongoPersistReader implements StreamsPersistReader {
   public void startStream() {
 
     LOGGER.debug("startStream");
-    MongoPersistReaderTask readerTask = new MongoPersistReaderTask(this);
-    Thread readerTaskThread = new Thread(readerTask);
-    Future future = executor.submit(readerTaskThread);
-
-    while ( !future.isDone() && !future.isCancelled()) {
-      try {
-        Thread.sleep(1000);
-      } catch (InterruptedException interrupt) {
-        LOGGER.trace("Interrupt", interrupt);
-      }
+    // a resumed reader has read the collection already, and only needs the changes since
+    if (!resumed) {
+      readRanges();
     }
 
-    executor.shutdown();
+    if (config.getTail()) {
+      savePosition(true);
+      executor.submit(new MongoPersistTailTask(this));
+    } else {
+      executor.shutdown();
+    }
 
   }
 
@@ -275,22 +494,77 @@ public class MongoPersistReader implements StreamsPersistReader {
   public class MongoPersistReaderTask implements Runnable {
 
     private MongoPersistReader reader;
+    private Bson range;
 
-    public MongoPersistReaderTask(MongoPersistReader reader) {
+    public MongoPersistReaderTask(MongoPersistReader reader, Bson range) {
       this.reader = reader;
+      this.range = range;
     }
 
     @Override
     public void run() {
 
-      try {
-        while (reader.cursor.hasNext()) {
-          DBObject dbObject = reader.cursor.next();
-          StreamsDatum datum = reader.prepareDatum(dbObject);
+      try (MongoCursor<ObjectNode> cursor = reader.collection.find(range)
+          .batchSize(reader.config.getCursorBatchSize().intValue())
+          .iterator()) {
+        while (cursor.hasNext()) {
+          StreamsDatum datum = reader.prepareDatum(cursor.next());
           reader.write(datum);
         }
-      } finally {
-        reader.cursor.close();
+      }
+
+    }
+
+  }
+
+  /**
+   * Follows the collection's entries in the oplog from the reader's position until stopped.
+   */
+  public class MongoPersistTailTask implements Runnable {
+
+    private MongoPersistReader reader;
+
+    public MongoPersistTailTask(MongoPersistReader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    public void run() {
+
+      String namespace = reader.config.getDb() + "." + reader.config.getCollection();
+
+      while (reader.running) {
+        Bson filter = Filters.and(
+            Filters.gt("ts", reader.position),
+            Filters.eq("ns", namespace),
+            Filters.in("op", "i", "u", "d"));
+        try (MongoCursor<BsonDocument> cursor = reader.oplog.find(filter)
+            .cursorType(CursorType.TailableAwait)
+            .oplogReplay(true)
+            .noCursorTimeout(true)
+            .batchSize(reader.config.getCursorBatchSize().intValue())
+            .iterator()) {
+          while (reader.running) {
+            // waits a little on the server for new entries, then returns null
+            BsonDocument entry = cursor.tryNext();
+            if (entry != null) {
+              StreamsDatum datum = reader.prepareChange(entry);
+              if (datum != null) {
+                reader.write(datum);
+              }
+              reader.position = entry.getTimestamp("ts");
+            }
+            reader.savePosition(false);
+          }
+        } catch (MongoException ex) {
+          LOGGER.warn("Oplog cursor failed, reopening: {}", ex.getMessage());
+          try {
+            Thread.sleep(RESUME_SAVE_INTERVAL_MS);
+          } catch (InterruptedException interrupt) {
+            LOGGER.trace("Interrupt", interrupt);
+            return;
+          }
+        }
       }
 
     }
@@ -23,9 +23,13 @@ import org.apache.streams.config.StreamsConfigurator;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
 import org.apache.streams.jackson.StreamsJacksonMapper;
+import org.apache.streams.util.BatchAccumulator;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
@@ -40,33 +44,38 @@ import org.slf4j.LoggerFactory;
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
 import java.util.Random;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+/**
+ * MongoPersistWriter writes documents to a mongo collection.
+ *
+ * <p/>
+ * Each writing thread buffers documents in its own batch, which is written as an unordered bulk
+ * write once it holds batchSize documents or batchBytes of json, or its oldest document has
+ * waited maxTimeBetweenFlushMs.  Bulk writes run in the background, and writing only blocks while
+ * batchMaxInFlight of them are outstanding.  With upsert, documents are replaced by _id, taken from
+ * the datum id, so rewriting a datum does not duplicate it.
+ */
 public class MongoPersistWriter implements StreamsPersistWriter, Runnable, Flushable, Closeable {
 
   public static final String STREAMS_ID = "MongoPersistWriter";
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MongoPersistWriter.class);
 
-  private static final long MAX_WRITE_LATENCY = 1000;
+  private static final String ID_FIELD = "_id";
 
   protected volatile Queue<StreamsDatum> persistQueue;
 
   private ObjectMapper mapper = StreamsJacksonMapper.getInstance();
-  private volatile AtomicLong lastWrite = new AtomicLong(System.currentTimeMillis());
-  private ScheduledExecutorService backgroundFlushTask = Executors.newSingleThreadScheduledExecutor();
 
   private MongoConfiguration config;
 
@@ -74,9 +83,11 @@ public class MongoPersistWriter implements StreamsPersistWriter, Runnable, Flush
   protected DB db;
   protected DBCollection collection;
 
-  protected List<DBObject> insertBatch = new ArrayList<>();
+  private BatchAccumulator<DBObject> batches;
+  private ExecutorService bulkExecutor;
 
-  protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final AtomicLong documentsWritten = new AtomicLong();
+  private final AtomicLong documentsFailed = new AtomicLong();
 
   public MongoPersistWriter() {
     this(new ComponentConfigurator<>(MongoConfiguration.class).detectConfiguration());
@@ -102,30 +113,31 @@ public class MongoPersistWriter implements StreamsPersistWriter, Runnable, Flush
   @Override
   public void write(StreamsDatum streamsDatum) {
 
-    DBObject dbObject = prepareObject(streamsDatum);
-    if (dbObject != null) {
-      addToBatch(dbObject);
-      flushIfNecessary();
+    String json = toJson(streamsDatum);
+    if (json == null) {
+      return;
+    }
+    DBObject dbObject = (DBObject) JSON.parse(json);
+    if (config.getUpsert() && streamsDatum.getId() != null && !dbObject.containsField(ID_FIELD)) {
+      dbObject.put(ID_FIELD, streamsDatum.getId());
     }
+
+    batches.add(dbObject, json.length());
   }
 
+  /**
+   * Write every buffered document, and wait for all bulk writes to finish.
+   * @throws IOException IOException
+   */
   @Override
   public void flush() throws IOException {
-    try {
-      LOGGER.debug("Attempting to flush {} items to mongo", insertBatch.size());
-      lock.writeLock().lock();
-      collection.insert(insertBatch);
-      lastWrite.set(System.currentTimeMillis());
-      insertBatch = new ArrayList<>();
-    } finally {
-      lock.writeLock().unlock();
-    }
-
+    batches.flush();
   }
 
   public synchronized void close() throws IOException {
+    batches.close();
+    bulkExecutor.shutdown();
     client.close();
-    backgroundFlushTask.shutdownNow();
   }
 
   /**
@@ -133,7 +145,11 @@ public class MongoPersistWriter implements StreamsPersistWriter, Runnable, Flush
    */
   public void start() {
     connectToMongo();
-    backgroundFlushTask.scheduleAtFixedRate(this::flushIfNecessary, 0, MAX_WRITE_LATENCY * 2, TimeUnit.MILLISECONDS);
+    int maxInFlight = Math.max(1, config.getBatchMaxInFlight().intValue());
+    bulkExecutor = Executors.newFixedThreadPool(maxInFlight);
+    batches = new BatchAccumulator<>(config.getBatchSize(), config.getBatchBytes(), config.getMaxTimeBetweenFlushMs(),
+        maxInFlight, this::submit);
+    batches.start();
   }
 
   /**
@@ -151,22 +167,6 @@ public class MongoPersistWriter implements StreamsPersistWriter, Runnable, Flush
     } catch (IOException ex) {
       LOGGER.error("Error closing", ex);
     }
-    try {
-      backgroundFlushTask.shutdown();
-      // Wait a while for existing tasks to terminate
-      if (!backgroundFlushTask.awaitTermination(15, TimeUnit.SECONDS)) {
-        backgroundFlushTask.shutdownNow(); // Cancel currently executing tasks
-        // Wait a while for tasks to respond to being cancelled
-        if (!backgroundFlushTask.awaitTermination(15, TimeUnit.SECONDS)) {
-          LOGGER.error("Stream did not terminate");
-        }
-      }
-    } catch (InterruptedException ie) {
-      // (Re-)Cancel if current thread also interrupted
-      backgroundFlushTask.shutdownNow();
-      // Preserve interrupt status
-      Thread.currentThread().interrupt();
-    }
 
   }
 
@@ -202,41 +202,80 @@ public class MongoPersistWriter implements StreamsPersistWriter, Runnable, Flush
     stop();
   }
 
+  // write out batches whose oldest document has waited maxTimeBetweenFlushMs, such as those of idle threads
   protected void flushIfNecessary() {
-    long lastLatency = System.currentTimeMillis() - lastWrite.get();
-    //Flush iff the size > 0 AND the size is divisible by 100 or the time between now and the last flush is greater
-    //than the maximum desired latency
-    if (insertBatch.size() > 0 && (insertBatch.size() % 100 == 0 || lastLatency > MAX_WRITE_LATENCY)) {
-      try {
-        flush();
-      } catch (IOException ex) {
-        LOGGER.error("Error writing to Mongo", ex);
-      }
+    batches.flushIfNecessary();
+  }
+
+  // hand a batch to the bulk writers, blocking while batchMaxInFlight bulk writes are outstanding
+  private void submit(List<DBObject> documents) {
+    batches.acquire();
+    try {
+      bulkExecutor.execute(() -> {
+        try {
+          bulkWrite(documents);
+        } finally {
+          batches.release();
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      batches.release();
+      LOGGER.error("Writer closed, dropping {} documents", documents.size());
+      documentsFailed.addAndGet(documents.size());
     }
   }
 
-  protected void addToBatch(DBObject dbObject) {
+  // unordered, so one failed document does not stop the rest
+  private void bulkWrite(List<DBObject> documents) {
+    LOGGER.debug("Attempting to write {} items to mongo", documents.size());
+    BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+    for (DBObject document : documents) {
+      Object id = document.get(ID_FIELD);
+      if (config.getUpsert() && id != null) {
+        bulk.find(new BasicDBObject(ID_FIELD, id)).upsert().replaceOne(document);
+      } else {
+        bulk.insert(document);
+      }
+    }
     try {
-      lock.readLock().lock();
-      insertBatch.add(dbObject);
-    } finally {
-      lock.readLock().unlock();
+      bulk.execute();
+      documentsWritten.addAndGet(documents.size());
+    } catch (BulkWriteException ex) {
+      int failed = ex.getWriteErrors().size();
+      documentsWritten.addAndGet(documents.size() - failed);
+      documentsFailed.addAndGet(failed);
+      LOGGER.warn("{} of {} documents failed to write to mongo, first error: {}",
+          failed, documents.size(), failed > 0 ? ex.getWriteErrors().get(0).getMessage() : ex.getMessage());
+    } catch (Exception ex) {
+      documentsFailed.addAndGet(documents.size());
+      LOGGER.error("Error writing {} documents to mongo", documents.size(), ex);
     }
   }
 
+  public long getDocumentsWritten() {
+    return documentsWritten.get();
+  }
+
+  public long getDocumentsFailed() {
+    return documentsFailed.get();
+  }
+
   protected DBObject prepareObject(StreamsDatum streamsDatum) {
-    DBObject dbObject = null;
+    String json = toJson(streamsDatum);
+    return json != null ? (DBObject) JSON.parse(json) : null;
+  }
+
+  private String toJson(StreamsDatum streamsDatum) {
     if (streamsDatum.getDocument() instanceof String) {
-      dbObject = (DBObject) JSON.parse((String) streamsDatum.getDocument());
-    } else {
-      try {
-        ObjectNode node = mapper.valueToTree(streamsDatum.getDocument());
-        dbObject = (DBObject) JSON.parse(node.toString());
-      } catch (Exception ex) {
-        LOGGER.error("Unsupported type: " + streamsDatum.getDocument().getClass(), ex);
-      }
+      return (String) streamsDatum.getDocument();
+    }
+    try {
+      ObjectNode node = mapper.valueToTree(streamsDatum.getDocument());
+      return node.toString();
+    } catch (Exception ex) {
+      LOGGER.error("Unsupported type: " + streamsDatum.getDocument().getClass(), ex);
+      return null;
     }
-    return dbObject;
   }
 
   private synchronized void connectToMongo() {
@@ -259,6 +298,4 @@ public class MongoPersistWriter implements StreamsPersistWriter, Runnable, Flush
 
     collection = db.getCollection(config.getCollection());
   }
-
-
 }
@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.streams.mongo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.BinaryNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.bson.BsonBinary;
+import org.bson.BsonBinarySubType;
+import org.bson.BsonReader;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonTimestamp;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Decodes BSON documents straight into jackson ObjectNodes, so reading a document does not
+ * build a DBObject and then serialize and re-parse it as json, and encodes them back.
+ *
+ * <p/>
+ * Types without a json equivalent are written the way DBObject.toString() writes them, e.g.
+ * {"$oid": hex}, {"$date": "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"} and {"$ts": seconds, "$inc": increment},
+ * so documents look the same as when they were read through the DBObject path.  The one exception
+ * is binary data other than legacy UUIDs: DBObject.toString() writes it as &lt;Binary Data&gt;, which
+ * is not json, so such documents used to be dropped; they are now kept, with the data base64 encoded.
+ * Encoding turns those forms back into their BSON types, so a decoded document round trips.
+ */
+public class ObjectNodeCodec implements Codec<ObjectNode> {
+
+  private static final JsonNodeFactory FACTORY = JsonNodeFactory.instance;
+
+  private static final DateTimeFormatter DATE_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+  @Override
+  public ObjectNode decode(BsonReader reader, DecoderContext decoderContext) {
+    ObjectNode node = FACTORY.objectNode();
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      String name = reader.readName();
+      node.set(name, readValue(reader, decoderContext));
+    }
+    reader.readEndDocument();
+    return node;
+  }
+
+  private JsonNode readValue(BsonReader reader, DecoderContext decoderContext) {
+    switch (reader.getCurrentBsonType()) {
+      case DOCUMENT:
+        return decode(reader, decoderContext);
+      case ARRAY:
+        ArrayNode array = FACTORY.arrayNode();
+        reader.readStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+          array.add(readValue(reader, decoderContext));
+        }
+        reader.readEndArray();
+        return array;
+      case STRING:
+        return FACTORY.textNode(reader.readString());
+      case SYMBOL:
+        return FACTORY.objectNode().put("$symbol", reader.readSymbol());
+      case INT32:
+        return FACTORY.numberNode(reader.readInt32());
+      case INT64:
+        return FACTORY.numberNode(reader.readInt64());
+      case DOUBLE:
+        return FACTORY.numberNode(reader.readDouble());
+      case DECIMAL128:
+        return FACTORY.objectNode().put("$numberDecimal", reader.readDecimal128().toString());
+      case BOOLEAN:
+        return FACTORY.booleanNode(reader.readBoolean());
+      case NULL:
+        reader.readNull();
+        return FACTORY.nullNode();
+      case UNDEFINED:
+        reader.readUndefined();
+        return FACTORY.nullNode();
+      case OBJECT_ID:
+        return FACTORY.objectNode().put("$oid", reader.readObjectId().toHexString());
+      case DATE_TIME:
+        return FACTORY.objectNode().put("$date", DATE_FORMAT.format(Instant.ofEpochMilli(reader.readDateTime())));
+      case TIMESTAMP:
+        BsonTimestamp timestamp = reader.readTimestamp();
+        return FACTORY.objectNode().put("$ts", timestamp.getTime()).put("$inc", timestamp.getInc());
+      case BINARY:
+        BsonBinary binary = reader.readBinaryData();
+        if (binary.getType() == BsonBinarySubType.UUID_LEGACY.getValue() && binary.getData().length == 16) {
+          return FACTORY.objectNode().put("$uuid", legacyUuid(binary.getData()).toString());
+        }
+        return FACTORY.binaryNode(binary.getData());
+      case REGULAR_EXPRESSION:
+        BsonRegularExpression regex = reader.readRegularExpression();
+        return FACTORY.objectNode().put("$regex", regex.getPattern()).put("$options", regex.getOptions());
+      case JAVASCRIPT:
+        return FACTORY.objectNode().put("$code", reader.readJavaScript());
+      case JAVASCRIPT_WITH_SCOPE:
+        ObjectNode code = FACTORY.objectNode().put("$code", reader.readJavaScriptWithScope());
+        code.set("$scope", decode(reader, decoderContext));
+        return code;
+      case MIN_KEY:
+        reader.readMinKey();
+        return FACTORY.objectNode().put("$minKey", 1);
+      case MAX_KEY:
+        reader.readMaxKey();
+        return FACTORY.objectNode().put("$maxKey", 1);
+      default:
+        // db pointers
+        String type = reader.getCurrentBsonType().name();
+        reader.skipValue();
+        return FACTORY.textNode(type);
+    }
+  }
+
+  @Override
+  public void encode(BsonWriter writer, ObjectNode value, EncoderContext encoderContext) {
+    writer.writeStartDocument();
+    Iterator<Map.Entry<String, JsonNode>> fields = value.fields();
+    while (fields.hasNext()) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      writer.writeName(field.getKey());
+      writeValue(writer, field.getValue(), encoderContext);
+    }
+    writer.writeEndDocument();
+  }
+
+  private void writeValue(BsonWriter writer, JsonNode value, EncoderContext encoderContext) {
+    switch (value.getNodeType()) {
+      case OBJECT:
+        if (!writeExtended(writer, value, encoderContext)) {
+          encode(writer, (ObjectNode) value, encoderContext);
+        }
+        break;
+      case ARRAY:
+        writer.writeStartArray();
+        for (JsonNode element : value) {
+          writeValue(writer, element, encoderContext);
+        }
+        writer.writeEndArray();
+        break;
+      case STRING:
+        writer.writeString(value.textValue());
+        break;
+      case NUMBER:
+        if (value.isInt() || value.isShort()) {
+          writer.writeInt32(value.intValue());
+        } else if (value.isLong() || value.isBigInteger() && value.canConvertToLong()) {
+          writer.writeInt64(value.longValue());
+        } else if (value.isBigDecimal() || value.isBigInteger()) {
+          writer.writeDecimal128(new Decimal128(value.decimalValue()));
+        } else {
+          writer.writeDouble(value.doubleValue());
+        }
+        break;
+      case BOOLEAN:
+        writer.writeBoolean(value.booleanValue());
+        break;
+      case BINARY:
+        writer.writeBinaryData(new BsonBinary(((BinaryNode) value).binaryValue()));
+        break;
+      case POJO:
+        writer.writeString(value.asText());
+        break;
+      default:
+        writer.writeNull();
+        break;
+    }
+  }
+
+  // the extended json forms readValue produces, written back as their BSON types
+  private boolean writeExtended(BsonWriter writer, JsonNode value, EncoderContext encoderContext) {
+    if (value.size() == 1 && value.path("$oid").isTextual() && ObjectId.isValid(value.get("$oid").textValue())) {
+      writer.writeObjectId(new ObjectId(value.get("$oid").textValue()));
+    } else if (value.size() == 1 && value.path("$date").isTextual() && parseDate(value.get("$date").textValue()) != null) {
+      writer.writeDateTime(parseDate(value.get("$date").textValue()));
+    } else if (value.size() == 2 && value.path("$ts").isIntegralNumber() && value.path("$inc").isIntegralNumber()) {
+      writer.writeTimestamp(new BsonTimestamp(value.get("$ts").intValue(), value.get("$inc").intValue()));
+    } else if (value.size() == 2 && value.path("$regex").isTextual() && value.path("$options").isTextual()) {
+      writer.writeRegularExpression(new BsonRegularExpression(value.get("$regex").textValue(), value.get("$options").textValue()));
+    } else if (value.size() == 1 && value.path("$code").isTextual()) {
+      writer.writeJavaScript(value.get("$code").textValue());
+    } else if (value.size() == 2 && value.path("$code").isTextual() && value.path("$scope").isObject()) {
+      writer.writeJavaScriptWithScope(value.get("$code").textValue());
+      encode(writer, (ObjectNode) value.get("$scope"), encoderContext);
+    } else if (value.size() == 1 && value.path("$symbol").isTextual()) {
+      writer.writeSymbol(value.get("$symbol").textValue());
+    } else if (value.size() == 1 && value.path("$numberDecimal").isTextual()) {
+      writer.writeDecimal128(Decimal128.parse(value.get("$numberDecimal").textValue()));
+    } else if (value.size() == 1 && value.path("$uuid").isTextual()) {
+      writer.writeBinaryData(new BsonBinary(BsonBinarySubType.UUID_LEGACY, legacyUuid(UUID.fromString(value.get("$uuid").textValue()))));
+    } else if (value.size() == 1 && value.has("$minKey")) {
+      writer.writeMinKey();
+    } else if (value.size() == 1 && value.has("$maxKey")) {
+      writer.writeMaxKey();
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private static Long parseDate(String date) {
+    try {
+      return Instant.parse(date).toEpochMilli();
+    } catch (DateTimeParseException ex) {
+      return null;
+    }
+  }
+
+  // the java driver's legacy UUID layout: each half of the UUID stored little endian
+  private static UUID legacyUuid(byte[] data) {
+    ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    return new UUID(buffer.getLong(), buffer.getLong());
+  }
+
+  private static byte[] legacyUuid(UUID uuid) {
+    return ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN)
+        .putLong(uuid.getMostSignificantBits())
+        .putLong(uuid.getLeastSignificantBits())
+        .array();
+  }
+
+  @Override
+  public Class<ObjectNode> getEncoderClass() {
+    return ObjectNode.class;
+  }
+
+}
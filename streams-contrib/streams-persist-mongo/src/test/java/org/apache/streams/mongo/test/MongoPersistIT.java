@@ -107,4 +107,38 @@ public class MongoPersistIT {
     assertEquals( 89, resultSet.size() );
 
   }
+
+  @Test
+  public void testMongoUpsert() throws Exception {
+
+    MongoConfiguration upsertConfiguration = MAPPER.convertValue(testConfiguration, MongoConfiguration.class)
+        .withCollection("upsert_test")
+        .withUpsert(true)
+        .withBatchSize(10L);
+
+    Path testdataDir = Paths.get("target/dependency/activitystreams-testdata");
+    List<Path> testdataPaths = Files.list(testdataDir).collect(Collectors.toList());
+
+    // writing every document twice replaces rather than duplicates it
+    for (int pass = 0; pass < 2; pass++) {
+      MongoPersistWriter writer = new MongoPersistWriter(upsertConfiguration);
+      writer.prepare(upsertConfiguration);
+      for( Path docPath : testdataPaths ) {
+        Activity activity = MAPPER.readValue(docPath.toFile(), Activity.class);
+        activity.getAdditionalProperties().remove("$license");
+        writer.write( new StreamsDatum(activity, docPath.getFileName().toString()) );
+      }
+      writer.cleanUp();
+      assertEquals( 89, writer.getDocumentsWritten() );
+    }
+
+    MongoPersistReader reader = new MongoPersistReader(upsertConfiguration);
+
+    reader.prepare(null);
+
+    StreamsResultSet resultSet = reader.readAll();
+
+    assertEquals( 89, resultSet.size() );
+
+  }
 }
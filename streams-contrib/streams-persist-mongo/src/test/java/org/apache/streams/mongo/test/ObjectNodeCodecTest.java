@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.streams.mongo.test;
+
+import org.apache.streams.mongo.ObjectNodeCodec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObjectCodec;
+import com.mongodb.MongoClient;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Code;
+import org.bson.types.CodeWScope;
+import org.bson.types.Decimal128;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Tests for {@link ObjectNodeCodec}.
+ */
+public class ObjectNodeCodecTest {
+
+  @Test
+  public void testDecodesBsonTypes() {
+    ObjectId id = new ObjectId();
+    Document document = new Document("_id", id)
+        .append("verb", "post")
+        .append("count", 3)
+        .append("total", 3000000000L)
+        .append("score", 0.5)
+        .append("active", true)
+        .append("missing", null)
+        .append("published", new Date(1496376000000L))
+        .append("tags", Arrays.asList("a", 1, new Document("b", "c")))
+        .append("actor", new Document("id", "actor1").append("objectType", "person"));
+
+    RawBsonDocument bson = new RawBsonDocument(document, new DocumentCodec());
+    ObjectNode node = bson.decode(new ObjectNodeCodec());
+
+    Assert.assertEquals(id.toHexString(), node.get("_id").get("$oid").asText());
+    Assert.assertEquals("post", node.get("verb").asText());
+    Assert.assertTrue(node.get("count").isInt());
+    Assert.assertEquals(3000000000L, node.get("total").asLong());
+    Assert.assertEquals(0.5, node.get("score").asDouble(), 0);
+    Assert.assertTrue(node.get("active").asBoolean());
+    Assert.assertTrue(node.get("missing").isNull());
+    Assert.assertEquals("2017-06-02T04:00:00.000Z", node.get("published").get("$date").asText());
+    Assert.assertEquals(3, node.get("tags").size());
+    Assert.assertEquals("c", node.get("tags").get(2).get("b").asText());
+    Assert.assertEquals("person", node.get("actor").get("objectType").asText());
+  }
+
+  @Test
+  public void testMatchesDBObjectJson() throws Exception {
+    BasicDBObject legacy = new BasicDBObject("_id", new ObjectId())
+        .append("count", 3)
+        .append("total", 3000000000L)
+        .append("score", 0.5)
+        .append("published", new Date(1496376000123L))
+        .append("ts", new BSONTimestamp(1496376000, 7))
+        .append("uuid", UUID.randomUUID())
+        .append("regex", Pattern.compile("^a.*", Pattern.CASE_INSENSITIVE))
+        .append("code", new Code("function() {}"))
+        .append("scoped", new CodeWScope("function() {}", new BasicDBObject("x", 1)))
+        .append("symbol", new Symbol("symbol"))
+        .append("decimal", Decimal128.parse("1.10"))
+        .append("min", new MinKey())
+        .append("max", new MaxKey())
+        .append("tags", Arrays.asList("a", new BasicDBObject("b", "c")));
+
+    ObjectNodeCodec codec = new ObjectNodeCodec();
+    RawBsonDocument bson = new RawBsonDocument(legacy, new DBObjectCodec(MongoClient.getDefaultCodecRegistry()));
+    ObjectNode node = bson.decode(codec);
+
+    Assert.assertEquals(new ObjectMapper().readValue(legacy.toString(), ObjectNode.class), node);
+    Assert.assertEquals(node, new RawBsonDocument(node, codec).decode(codec));
+  }
+
+  @Test
+  public void testEncodeRoundTrips() {
+    ObjectId id = new ObjectId();
+    Document document = new Document("_id", id)
+        .append("count", 3)
+        .append("total", 3000000000L)
+        .append("published", new Date(1496376000000L))
+        .append("tags", Arrays.asList("a", new Document("b", "c")));
+
+    ObjectNodeCodec codec = new ObjectNodeCodec();
+    ObjectNode node = new RawBsonDocument(document, new DocumentCodec()).decode(codec);
+    Document encoded = new RawBsonDocument(node, codec).decode(new DocumentCodec());
+
+    Assert.assertEquals(document, encoded);
+  }
+
+}
@@ -18,6 +18,7 @@
 
 package org.apache.streams.core;
 
+import java.util.Collections;
 import java.util.List;
 
 public interface StreamsProcessor extends StreamsOperation {
@@ -30,4 +31,13 @@ public interface StreamsProcessor extends StreamsOperation {
    */
   List<StreamsDatum> process( StreamsDatum entry );
 
+  /**
+   * Called once after the last call to process and before cleanUp, so a processor that holds datums
+   * back between calls (to batch them, for instance) can still pass them down stream.
+   * @return StreamDatums still held by the processor. Should never be null or contain null object.  Empty list OK.
+   */
+  default List<StreamsDatum> flush() {
+    return Collections.emptyList();
+  }
+
 }
@@ -135,13 +135,7 @@ public class StreamsProcessorTask extends BaseStreamsTask implements DatumStatus
             long startTime = System.currentTimeMillis();
             List<StreamsDatum> output = this.processor.process(datum);
             this.counter.addTime(System.currentTimeMillis() - startTime);
-            if(output != null) {
-              for(StreamsDatum outDatum : output) {
-                super.addToOutgoingQueue(outDatum);
-                this.counter.incrementEmittedCount();
-                statusCounter.incrementStatus(DatumStatus.SUCCESS);
-              }
-            }
+            emit(output);
           } catch (InterruptedException ie) {
             LOGGER.warn("Received InterruptedException, shutting down and re-applying interrupt status.");
             this.keepRunning.set(false);
@@ -157,6 +151,7 @@ public class StreamsProcessorTask extends BaseStreamsTask implements DatumStatus
           LOGGER.trace("Removed NULL datum from queue at processor : {}", this.processor.getClass().getName());
         }
       }
+      flushProcessor();
     } catch(Throwable e) {
       LOGGER.error("Caught Throwable in Processor {}", this.processor.getClass().getSimpleName(), e);
     } finally {
@@ -165,6 +160,31 @@ public class StreamsProcessorTask extends BaseStreamsTask implements DatumStatus
     }
   }
 
+  /**
+   * Pass on whatever the processor still holds once no more datums will arrive.  Runs with the
+   * interrupt status cleared, since shutting down a waiting task interrupts it.
+   */
+  private void flushProcessor() throws InterruptedException {
+    boolean interrupted = Thread.interrupted();
+    try {
+      emit(this.processor.flush());
+    } finally {
+      if(interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void emit(List<StreamsDatum> output) throws InterruptedException {
+    if(output != null) {
+      for(StreamsDatum outDatum : output) {
+        super.addToOutgoingQueue(outDatum);
+        this.counter.incrementEmittedCount();
+        statusCounter.incrementStatus(DatumStatus.SUCCESS);
+      }
+    }
+  }
+
   @Override
   public List<BlockingQueue<StreamsDatum>> getInputQueues() {
     List<BlockingQueue<StreamsDatum>> queues = new LinkedList<BlockingQueue<StreamsDatum>>();
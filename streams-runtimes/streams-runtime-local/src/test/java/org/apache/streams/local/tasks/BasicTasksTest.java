@@ -19,6 +19,7 @@
 package org.apache.streams.local.tasks;
 
 import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.core.StreamsProcessor;
 import org.apache.streams.local.counters.StreamsTaskCounter;
 import org.apache.streams.local.test.processors.PassthroughDatumCounterProcessor;
 import org.apache.streams.local.test.providers.NumericMessageProvider;
@@ -29,9 +30,12 @@ import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.After;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -135,6 +139,68 @@ public class BasicTasksTest {
     assertEquals(0.0, counter.getErrorRate(), 0.0);
   }
 
+  @Test
+  public void testProcessorTaskFlushesHeldDatums() {
+    int numMessages = 10;
+    // holds everything back until the task asks for it
+    StreamsProcessor processor = new StreamsProcessor() {
+      private final List<StreamsDatum> held = new ArrayList<>();
+      @Override
+      public String getId() {
+        return "held";
+      }
+      @Override
+      public List<StreamsDatum> process(StreamsDatum entry) {
+        held.add(entry);
+        return new ArrayList<>();
+      }
+      @Override
+      public List<StreamsDatum> flush() {
+        List<StreamsDatum> result = new ArrayList<>(held);
+        held.clear();
+        return result;
+      }
+      @Override
+      public void prepare(Object configurationObject) {
+      }
+      @Override
+      public void cleanUp() {
+      }
+    };
+    StreamsProcessorTask task = new StreamsProcessorTask(processor);
+    StreamsTaskCounter counter = new StreamsTaskCounter(MBEAN_ID, null, -1);
+    task.setStreamsTaskCounter(counter);
+    BlockingQueue<StreamsDatum> outQueue = new LinkedBlockingQueue<>();
+    BlockingQueue<StreamsDatum> inQueue = createInputQueue(numMessages);
+    task.addOutputQueue(outQueue);
+    task.addInputQueue(inQueue);
+    ExecutorService service = Executors.newFixedThreadPool(1);
+    Future<?> future = service.submit(task);
+    int attempts = 0;
+    while(!task.isWaiting()) {
+      Uninterruptibles.sleepUninterruptibly(500, TimeUnit.MILLISECONDS);
+      ++attempts;
+      if(attempts == 10) {
+        fail("Processor task failed to consume "+numMessages+" in a timely fashion.");
+      }
+    }
+    assertEquals(0, outQueue.size());
+    // the way the local runtime stops a waiting task
+    task.stopTask();
+    future.cancel(true);
+    service.shutdown();
+    try {
+      if(!service.awaitTermination(5, TimeUnit.SECONDS)){
+        service.shutdownNow();
+        fail("Service did not terminate.");
+      }
+    } catch (InterruptedException e) {
+      fail("Test Interrupted.");
+    }
+    assertEquals(numMessages, outQueue.size());
+    assertEquals(numMessages, counter.getNumEmitted());
+  }
+
   @Test
   public void testWriterTask() {
     int numMessages = 100;
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Buffers items for a writer in one batch per writing thread, and hands a batch to the sender
+ * once it holds batchSize items or batchBytes bytes, or its oldest item has waited maxAgeMs.
+ *
+ * <p/>
+ * Full batches are sent on the thread that filled them.  Aged batches, such as those of idle
+ * threads, are sent from a background timer once {@link #start()} has been called.  A sender
+ * that issues requests asynchronously brackets each one with {@link #acquire()} and
+ * {@link #release()}, so sending blocks while maxInFlight requests are outstanding and
+ * {@link #flush()} can wait for all of them to finish.
+ *
+ * @param <T> type of the buffered items
+ */
+public class BatchAccumulator<T> implements Flushable, Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchAccumulator.class);
+
+  private final long batchSize;
+  private final long batchBytes;
+  private final long maxAgeMs;
+  private final int maxInFlight;
+  private final Consumer<List<T>> sender;
+
+  // one batch per writing thread, so writers never contend; all are registered so flushes can reach them
+  private final ThreadLocal<Batch<T>> batches = ThreadLocal.withInitial(this::newBatch);
+  private final Queue<Batch<T>> allBatches = new ConcurrentLinkedQueue<>();
+
+  private final Semaphore inFlight;
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+  /**
+   * BatchAccumulator constructor.
+   * @param batchSize items per batch
+   * @param batchBytes bytes per batch, or Long.MAX_VALUE to batch by count and age alone
+   * @param maxAgeMs longest an item waits before its batch is sent
+   * @param maxInFlight requests the sender may have outstanding
+   * @param sender sends a batch, called with none of the accumulator's locks held
+   */
+  public BatchAccumulator(long batchSize, long batchBytes, long maxAgeMs, int maxInFlight, Consumer<List<T>> sender) {
+    this.batchSize = batchSize;
+    this.batchBytes = batchBytes;
+    this.maxAgeMs = maxAgeMs;
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.sender = sender;
+    this.inFlight = new Semaphore(this.maxInFlight);
+  }
+
+  /**
+   * Start sending aged batches in the background.
+   */
+  public void start() {
+    long interval = Math.max(1, maxAgeMs / 2);
+    timer.scheduleAtFixedRate(this::flushIfNecessary, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Buffer an item in the calling thread's batch, sending the batch if that fills it.
+   * @param item item
+   * @param bytes size the item counts against batchBytes
+   */
+  public void add(T item, long bytes) {
+    Batch<T> batch = batches.get();
+    List<T> full = null;
+    // only flushes from other threads ever compete for this lock
+    synchronized (batch) {
+      batch.add(item, bytes);
+      if (batch.items.size() >= batchSize || batch.bytes >= batchBytes) {
+        full = batch.drain();
+      }
+    }
+    if (full != null) {
+      sender.accept(full);
+    }
+  }
+
+  /**
+   * Send every buffered item, and wait for all requests to finish.
+   */
+  @Override
+  public void flush() {
+    for (Batch<T> batch : allBatches) {
+      List<T> items;
+      synchronized (batch) {
+        items = batch.drain();
+      }
+      if (!items.isEmpty()) {
+        sender.accept(items);
+      }
+    }
+    // every permit is free once every request has finished
+    inFlight.acquireUninterruptibly(maxInFlight);
+    inFlight.release(maxInFlight);
+  }
+
+  /**
+   * Send batches whose oldest item has waited maxAgeMs.
+   */
+  public void flushIfNecessary() {
+    long now = System.currentTimeMillis();
+    for (Batch<T> batch : allBatches) {
+      List<T> items = null;
+      synchronized (batch) {
+        if (!batch.items.isEmpty() && now - batch.started >= maxAgeMs) {
+          items = batch.drain();
+        }
+      }
+      if (items != null) {
+        try {
+          sender.accept(items);
+        } catch (RuntimeException ex) {
+          // an exception escaping the timer would cancel it
+          LOGGER.error("Error sending {} items", items.size(), ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Take a request slot, blocking while maxInFlight requests are outstanding.
+   */
+  public void acquire() {
+    inFlight.acquireUninterruptibly();
+  }
+
+  /**
+   * Give back the slot of a finished request.
+   */
+  public void release() {
+    inFlight.release();
+  }
+
+  /**
+   * Stop the background timer.  Buffered items are not sent; call {@link #flush()} first.
+   */
+  @Override
+  public void close() {
+    ComponentUtils.shutdownExecutor(timer, 15, 15);
+  }
+
+  private Batch<T> newBatch() {
+    Batch<T> batch = new Batch<>();
+    allBatches.add(batch);
+    return batch;
+  }
+
+  /**
+   * Items buffered by one writing thread.
+   */
+  private static class Batch<T> {
+
+    private List<T> items = new ArrayList<>();
+    private long bytes = 0;
+    private long started = 0;
+
+    private void add(T item, long size) {
+      if (items.isEmpty()) {
+        started = System.currentTimeMillis();
+      }
+      items.add(item);
+      bytes += size;
+    }
+
+    private List<T> drain() {
+      List<T> drained = items;
+      items = new ArrayList<>();
+      bytes = 0;
+      return drained;
+    }
+  }
+}
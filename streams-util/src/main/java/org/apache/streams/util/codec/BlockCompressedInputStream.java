@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.util.codec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads a file written by {@link BlockCompressedOutputStream}, or a range of one.
+ *
+ * <p/>
+ * A block belongs to the range its sync marker starts in, so ranges covering a file
+ * together read every block exactly once, and each range yields whole lines.
+ */
+public class BlockCompressedInputStream extends InputStream {
+
+  private final DataInputStream in;
+  private final BlockCompressor compressor;
+  private final byte[] sync;
+  private final long end;
+
+  // file offset of the next unread byte of the underlying stream
+  private long position;
+
+  private byte[] compressed = new byte[0];
+  private byte[] block = new byte[0];
+  private int blockPosition = 0;
+  private int blockLimit = 0;
+  private boolean eof = false;
+  private boolean syncRead = false;
+
+  /**
+   * Read a whole file.
+   * @param in stream positioned at the start of the file
+   * @throws IOException IOException
+   */
+  public BlockCompressedInputStream(InputStream in) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(in));
+    byte[] header = new byte[BlockCompressedOutputStream.HEADER_LENGTH];
+    this.in.readFully(header);
+    this.compressor = compressorOf(header);
+    this.sync = syncOf(header);
+    this.position = header.length;
+    this.end = Long.MAX_VALUE;
+  }
+
+  /**
+   * Read the blocks of one range of a file.
+   * @param header the first HEADER_LENGTH bytes of the file, see {@link #readHeader(InputStream)}
+   * @param in stream positioned at start
+   * @param start first byte of the range
+   * @param end first byte after the range
+   * @throws IOException IOException
+   */
+  public BlockCompressedInputStream(byte[] header, InputStream in, long start, long end) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(in));
+    this.compressor = compressorOf(header);
+    this.sync = syncOf(header);
+    this.position = start;
+    this.end = end;
+    if (start < header.length) {
+      skipFully(header.length - start);
+    } else {
+      seekSync();
+    }
+  }
+
+  /**
+   * Read the header from the start of a file.
+   * @param in stream positioned at the start of the file
+   * @return header
+   * @throws IOException IOException
+   */
+  public static byte[] readHeader(InputStream in) throws IOException {
+    byte[] header = new byte[BlockCompressedOutputStream.HEADER_LENGTH];
+    new DataInputStream(in).readFully(header);
+    compressorOf(header);
+    return header;
+  }
+
+  /**
+   * Whether bytes start a block-compressed file.
+   * @param bytes bytes
+   * @param length number of valid bytes
+   * @return true if they start with the block-compressed magic
+   */
+  public static boolean isBlockCompressed(byte[] bytes, int length) {
+    byte[] magic = BlockCompressedOutputStream.MAGIC;
+    return length >= magic.length && Arrays.equals(Arrays.copyOf(bytes, magic.length), magic);
+  }
+
+  private static BlockCompressor compressorOf(byte[] header) throws IOException {
+    if (!isBlockCompressed(header, header.length)) {
+      throw new IOException("Not a block-compressed file");
+    }
+    return BlockCompressors.forId(header[BlockCompressedOutputStream.MAGIC.length]);
+  }
+
+  private static byte[] syncOf(byte[] header) {
+    return Arrays.copyOfRange(header, BlockCompressedOutputStream.MAGIC.length + 1, header.length);
+  }
+
+  private void skipFully(long count) throws IOException {
+    for (long i = 0; i < count; i++) {
+      in.readByte();
+    }
+    position += count;
+  }
+
+  // advance past the first sync marker at or after the current position
+  private void seekSync() throws IOException {
+    byte[] window = new byte[sync.length];
+    long read = 0;
+    while (true) {
+      int next = in.read();
+      if (next < 0) {
+        eof = true;
+        return;
+      }
+      position++;
+      System.arraycopy(window, 1, window, 0, window.length - 1);
+      window[window.length - 1] = (byte) next;
+      if (++read >= sync.length && Arrays.equals(window, sync)) {
+        syncRead = true;
+        return;
+      }
+    }
+  }
+
+  private boolean nextBlock() throws IOException {
+    if (eof) {
+      return false;
+    }
+    if (syncRead) {
+      syncRead = false;
+      // the marker was consumed by seekSync: the block starts where it did
+      if (position - sync.length >= end) {
+        return false;
+      }
+    } else {
+      if (position >= end) {
+        return false;
+      }
+      byte[] marker = new byte[sync.length];
+      int first = in.read();
+      if (first < 0) {
+        return false;
+      }
+      marker[0] = (byte) first;
+      in.readFully(marker, 1, sync.length - 1);
+      if (!Arrays.equals(marker, sync)) {
+        throw new IOException("Block-compressed file is corrupt at " + position);
+      }
+      position += sync.length;
+    }
+    int rawLength = in.readInt();
+    int compressedLength = in.readInt();
+    if (rawLength < 0 || compressedLength < 0) {
+      throw new IOException("Block-compressed file is corrupt at " + position);
+    }
+    if (compressed.length < compressedLength) {
+      compressed = new byte[compressedLength];
+    }
+    if (block.length < rawLength) {
+      block = new byte[rawLength];
+    }
+    in.readFully(compressed, 0, compressedLength);
+    position += 8 + compressedLength;
+    compressor.decompress(compressed, 0, compressedLength, block, 0, rawLength);
+    blockPosition = 0;
+    blockLimit = rawLength;
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] one = new byte[1];
+    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] bytes, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (blockPosition == blockLimit) {
+      if (!nextBlock()) {
+        return -1;
+      }
+    }
+    int count = Math.min(len, blockLimit - blockPosition);
+    System.arraycopy(block, blockPosition, bytes, off, count);
+    blockPosition += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return blockLimit - blockPosition;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+}
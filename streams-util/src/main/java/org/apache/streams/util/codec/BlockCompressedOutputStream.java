@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.util.codec;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Writes lines as a sequence of independently compressed blocks, so a file can be
+ * read in ranges by several readers at once.
+ *
+ * <p/>
+ * The file starts with a header of {@link #MAGIC}, the compressor id and a random 16 byte
+ * sync marker.  Each block is the sync marker, the uncompressed and compressed lengths, and
+ * the compressed bytes.  Blocks are cut only after a newline, so every block holds whole lines
+ * and a reader can start at any block.
+ */
+public class BlockCompressedOutputStream extends OutputStream {
+
+  static final byte[] MAGIC = {'S', 'B', 'L', 'K'};
+  static final int SYNC_LENGTH = 16;
+  public static final int HEADER_LENGTH = MAGIC.length + 1 + SYNC_LENGTH;
+
+  public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+  private static final byte NEWLINE = '\n';
+
+  private final DataOutputStream out;
+  private final BlockCompressor compressor;
+  private final int blockSize;
+  private final byte[] sync = new byte[SYNC_LENGTH];
+
+  private byte[] buffer;
+  private int count = 0;
+  private byte[] compressed = new byte[0];
+  private boolean closed = false;
+
+  /**
+   * BlockCompressedOutputStream constructor.
+   * @param out out
+   * @param compressor compressor
+   * @param blockSize uncompressed bytes per block, except where a line is longer
+   * @throws IOException IOException
+   */
+  public BlockCompressedOutputStream(OutputStream out, BlockCompressor compressor, int blockSize) throws IOException {
+    this.out = new DataOutputStream(out);
+    this.compressor = compressor;
+    this.blockSize = blockSize;
+    this.buffer = new byte[blockSize];
+    UUID uuid = UUID.randomUUID();
+    for (int i = 0; i < 8; i++) {
+      sync[i] = (byte) (uuid.getMostSignificantBits() >>> (8 * i));
+      sync[i + 8] = (byte) (uuid.getLeastSignificantBits() >>> (8 * i));
+    }
+    this.out.write(MAGIC);
+    this.out.writeByte(compressor.getId());
+    this.out.write(sync);
+  }
+
+  @Override
+  public void write(int byt) throws IOException {
+    write(new byte[] {(byte) byt}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int off, int len) throws IOException {
+    while (len > 0) {
+      if (count == buffer.length) {
+        int cut = lastLineEnd();
+        if (cut > 0 && count >= blockSize) {
+          writeBlock(cut);
+        } else {
+          // a line longer than the block size: grow until it ends
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+      }
+      int chunk = Math.min(len, buffer.length - count);
+      System.arraycopy(bytes, off, buffer, count, chunk);
+      count += chunk;
+      off += chunk;
+      len -= chunk;
+    }
+  }
+
+  /**
+   * Write out the complete lines buffered so far; a trailing partial line stays buffered.
+   * @throws IOException IOException
+   */
+  @Override
+  public void flush() throws IOException {
+    int cut = lastLineEnd();
+    if (cut > 0) {
+      writeBlock(cut);
+    }
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (count > 0) {
+      writeBlock(count);
+    }
+    out.close();
+  }
+
+  // offset after the last newline in the buffer, or 0
+  private int lastLineEnd() {
+    for (int i = count - 1; i >= 0; i--) {
+      if (buffer[i] == NEWLINE) {
+        return i + 1;
+      }
+    }
+    return 0;
+  }
+
+  private void writeBlock(int length) throws IOException {
+    int max = compressor.maxCompressedLength(length);
+    if (compressed.length < max) {
+      compressed = new byte[max];
+    }
+    int compressedLength = compressor.compress(buffer, 0, length, compressed, 0);
+    out.write(sync);
+    out.writeInt(length);
+    out.writeInt(compressedLength);
+    out.write(compressed, 0, compressedLength);
+    System.arraycopy(buffer, length, buffer, 0, count - length);
+    count -= length;
+    if (buffer.length > blockSize && count <= blockSize) {
+      buffer = Arrays.copyOf(buffer, blockSize);
+    }
+  }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.util.codec;
+
+import java.io.IOException;
+
+/**
+ * Compresses independent blocks of bytes, for {@link BlockCompressedOutputStream}
+ * and for compressing individual records.
+ *
+ * <p/>
+ * Implementations are thread-safe.
+ */
+public interface BlockCompressor {
+
+  /**
+   * Identifies the compressor in block-compressed headers.
+   * @return id
+   */
+  byte getId();
+
+  int maxCompressedLength(int length);
+
+  /**
+   * compress src into dest.
+   * @param src src
+   * @param srcOff srcOff
+   * @param srcLen srcLen
+   * @param dest dest, with at least maxCompressedLength(srcLen) bytes from destOff
+   * @param destOff destOff
+   * @return compressed length
+   * @throws IOException IOException
+   */
+  int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff) throws IOException;
+
+  /**
+   * decompress src into exactly destLen bytes of dest.
+   * @param src src
+   * @param srcOff srcOff
+   * @param srcLen srcLen
+   * @param dest dest
+   * @param destOff destOff
+   * @param destLen uncompressed length
+   * @throws IOException IOException
+   */
+  void decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destLen) throws IOException;
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.util.codec;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The available {@link BlockCompressor}s.
+ */
+public final class BlockCompressors {
+
+  private BlockCompressors() {
+  }
+
+  public static final BlockCompressor LZ4 = new Lz4();
+  public static final BlockCompressor SNAPPY = new SnappyCompressor();
+  public static final BlockCompressor DEFLATE = new DeflateCompressor();
+
+  /**
+   * find a compressor by id.
+   * @param id id
+   * @return compressor
+   * @throws IOException if the id is unknown
+   */
+  public static BlockCompressor forId(byte id) throws IOException {
+    for (BlockCompressor compressor : new BlockCompressor[] {LZ4, SNAPPY, DEFLATE}) {
+      if (compressor.getId() == id) {
+        return compressor;
+      }
+    }
+    throw new IOException("Unknown block compressor: " + id);
+  }
+
+  /**
+   * find a compressor by name.
+   * @param name lz4, snappy or deflate; none or null for no compression
+   * @return compressor, or null for none
+   */
+  public static BlockCompressor forName(String name) {
+    if (name == null || name.equalsIgnoreCase("none")) {
+      return null;
+    }
+    switch (name.toLowerCase()) {
+      case "lz4":
+        return LZ4;
+      case "snappy":
+        return SNAPPY;
+      case "deflate":
+        return DEFLATE;
+      default:
+        throw new IllegalArgumentException("Unknown block compressor: " + name);
+    }
+  }
+
+  private static class Lz4 implements BlockCompressor {
+
+    private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    // the safe decompressor checks every read against srcLen, so a truncated or corrupt block fails
+    // instead of reading past the end of its buffer
+    private final LZ4SafeDecompressor decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+
+    @Override
+    public byte getId() {
+      return 1;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+      return compressor.maxCompressedLength(length);
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff) {
+      return compressor.compress(src, srcOff, srcLen, dest, destOff);
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destLen) throws IOException {
+      try {
+        if (decompressor.decompress(src, srcOff, srcLen, dest, destOff, destLen) != destLen) {
+          throw new IOException("Corrupt lz4 block");
+        }
+      } catch (LZ4Exception ex) {
+        throw new IOException("Corrupt lz4 block", ex);
+      }
+    }
+  }
+
+  private static class SnappyCompressor implements BlockCompressor {
+
+    @Override
+    public byte getId() {
+      return 2;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+      return Snappy.maxCompressedLength(length);
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff) throws IOException {
+      return Snappy.rawCompress(src, srcOff, srcLen, dest, destOff);
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destLen) throws IOException {
+      if (Snappy.rawUncompress(src, srcOff, srcLen, dest, destOff) != destLen) {
+        throw new IOException("Corrupt snappy block");
+      }
+    }
+  }
+
+  private static class DeflateCompressor implements BlockCompressor {
+
+    @Override
+    public byte getId() {
+      return 3;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+      // zlib's deflateBound, plus the zlib wrapper
+      return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 6;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff) {
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        deflater.setInput(src, srcOff, srcLen);
+        deflater.finish();
+        return deflater.deflate(dest, destOff, dest.length - destOff);
+      } finally {
+        deflater.end();
+      }
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destLen) throws IOException {
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(src, srcOff, srcLen);
+        if (inflater.inflate(dest, destOff, destLen) != destLen || !inflater.finished()) {
+          throw new IOException("Corrupt deflate block");
+        }
+      } catch (DataFormatException ex) {
+        throw new IOException(ex);
+      } finally {
+        inflater.end();
+      }
+    }
+  }
+
+}
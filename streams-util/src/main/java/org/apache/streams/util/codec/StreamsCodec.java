@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.util.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression format for files of delimited lines.
+ *
+ * @see StreamsCodecs for the available codecs
+ */
+public interface StreamsCodec {
+
+  /**
+   * Name used to select this codec in configuration.
+   * @return name
+   */
+  String getName();
+
+  /**
+   * File extension, including the leading '.', or an empty string.
+   * @return extension
+   */
+  String getExtension();
+
+  /**
+   * Whether files can be read in ranges by several readers at once.
+   * @return true if splittable
+   */
+  boolean isSplittable();
+
+  OutputStream compress(OutputStream out) throws IOException;
+
+  InputStream decompress(InputStream in) throws IOException;
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.util.codec;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The available {@link StreamsCodec}s, shared by the file-based persisters.
+ *
+ * <p/>
+ * lz4, snappy and deflate files are written by {@link BlockCompressedOutputStream}, so unlike
+ * gzip they can be split between readers.  Readers choose a codec by file extension, or by
+ * {@link #detect(InputStream)} when the extension is not recognized.
+ */
+public final class StreamsCodecs {
+
+  private StreamsCodecs() {
+  }
+
+  public static final StreamsCodec NONE = new StreamsCodec() {
+    @Override
+    public String getName() {
+      return "none";
+    }
+
+    @Override
+    public String getExtension() {
+      return "";
+    }
+
+    @Override
+    public boolean isSplittable() {
+      return true;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+      return out;
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+      return in;
+    }
+  };
+
+  public static final StreamsCodec GZIP = new StreamsCodec() {
+    @Override
+    public String getName() {
+      return "gzip";
+    }
+
+    @Override
+    public String getExtension() {
+      return ".gz";
+    }
+
+    @Override
+    public boolean isSplittable() {
+      return false;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new GZIPOutputStream(out, true);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new GZIPInputStream(in);
+    }
+  };
+
+  public static final StreamsCodec LZ4 = new BlockCodec("lz4", ".lz4", BlockCompressors.LZ4);
+  public static final StreamsCodec SNAPPY = new BlockCodec("snappy", ".snappy", BlockCompressors.SNAPPY);
+  public static final StreamsCodec DEFLATE = new BlockCodec("deflate", ".deflate", BlockCompressors.DEFLATE);
+
+  private static final List<StreamsCodec> CODECS = Arrays.asList(NONE, GZIP, LZ4, SNAPPY, DEFLATE);
+
+  private static final byte[] GZIP_MAGIC = {(byte) 0x1f, (byte) 0x8b};
+
+  /**
+   * Number of leading bytes {@link #forMagic(byte[], int)} looks at.
+   */
+  public static final int MAGIC_LENGTH = BlockCompressedOutputStream.MAGIC.length + 1;
+
+  /**
+   * find a codec by name.
+   * @param name name, or null for none
+   * @return codec
+   */
+  public static StreamsCodec forName(String name) {
+    if (name == null) {
+      return NONE;
+    }
+    for (StreamsCodec codec : CODECS) {
+      if (codec.getName().equalsIgnoreCase(name)) {
+        return codec;
+      }
+    }
+    throw new IllegalArgumentException("Unknown compression: " + name);
+  }
+
+  /**
+   * find a codec by file extension.
+   * @param fileName fileName
+   * @return codec, or null if the extension is not a known codec's
+   */
+  public static StreamsCodec forFile(String fileName) {
+    for (StreamsCodec codec : CODECS) {
+      if (codec != NONE && fileName.endsWith(codec.getExtension())) {
+        return codec;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * find a codec by the first bytes of a file.
+   * @param bytes the first {@link #MAGIC_LENGTH} bytes of the file, or fewer for a shorter file
+   * @param length number of valid bytes
+   * @return codec; NONE when the bytes are not a known codec's
+   */
+  public static StreamsCodec forMagic(byte[] bytes, int length) {
+    if (length >= GZIP_MAGIC.length && bytes[0] == GZIP_MAGIC[0] && bytes[1] == GZIP_MAGIC[1]) {
+      return GZIP;
+    }
+    if (length >= MAGIC_LENGTH && BlockCompressedInputStream.isBlockCompressed(bytes, length)) {
+      byte id = bytes[MAGIC_LENGTH - 1];
+      for (StreamsCodec codec : CODECS) {
+        if (codec instanceof BlockCodec && ((BlockCodec) codec).compressor.getId() == id) {
+          return codec;
+        }
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Decompress a stream by looking at its first bytes.
+   * @param in in
+   * @return decompressed stream
+   * @throws IOException IOException
+   */
+  public static InputStream detect(InputStream in) throws IOException {
+    BufferedInputStream buffered = new BufferedInputStream(in);
+    byte[] magic = new byte[MAGIC_LENGTH];
+    buffered.mark(magic.length);
+    int length = IOUtils.read(buffered, magic);
+    buffered.reset();
+    return forMagic(magic, length).decompress(buffered);
+  }
+
+  private static class BlockCodec implements StreamsCodec {
+
+    private final String name;
+    private final String extension;
+    private final BlockCompressor compressor;
+
+    BlockCodec(String name, String extension, BlockCompressor compressor) {
+      this.name = name;
+      this.extension = extension;
+      this.compressor = compressor;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public String getExtension() {
+      return extension;
+    }
+
+    @Override
+    public boolean isSplittable() {
+      return true;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new BlockCompressedOutputStream(out, compressor, BlockCompressedOutputStream.DEFAULT_BLOCK_SIZE);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new BlockCompressedInputStream(in);
+    }
+  }
+
+}
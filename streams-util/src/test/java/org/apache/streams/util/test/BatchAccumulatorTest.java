@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.util.test;
+
+import org.apache.streams.util.BatchAccumulator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit Test for BatchAccumulator.
+ */
+public class BatchAccumulatorTest {
+
+  private final List<List<Integer>> sent = new CopyOnWriteArrayList<>();
+
+  @Test
+  public void testFullBatchIsSentByWriter() {
+    BatchAccumulator<Integer> accumulator = new BatchAccumulator<>(3, Long.MAX_VALUE, 60000, 1, sent::add);
+
+    for (int i = 0; i < 5; i++) {
+      accumulator.add(i, 1);
+    }
+    assertEquals(Collections.singletonList(Arrays.asList(0, 1, 2)), sent);
+
+    accumulator.flush();
+    assertEquals(Arrays.asList(Arrays.asList(0, 1, 2), Arrays.asList(3, 4)), sent);
+  }
+
+  @Test
+  public void testBatchBytesLimit() {
+    BatchAccumulator<Integer> accumulator = new BatchAccumulator<>(100, 10, 60000, 1, sent::add);
+
+    accumulator.add(0, 4);
+    accumulator.add(1, 4);
+    assertTrue(sent.isEmpty());
+    accumulator.add(2, 4);
+    assertEquals(Collections.singletonList(Arrays.asList(0, 1, 2)), sent);
+  }
+
+  @Test
+  public void testFlushReachesEveryThreadsBatch() throws Exception {
+    BatchAccumulator<Integer> accumulator = new BatchAccumulator<>(3, Long.MAX_VALUE, 60000, 1, sent::add);
+
+    Thread first = new Thread(() -> {
+      accumulator.add(0, 1);
+      accumulator.add(1, 1);
+    });
+    Thread second = new Thread(() -> {
+      accumulator.add(2, 1);
+      accumulator.add(3, 1);
+    });
+    first.start();
+    second.start();
+    first.join();
+    second.join();
+
+    // four items, but no single thread's batch is full
+    assertTrue(sent.isEmpty());
+
+    accumulator.flush();
+    assertEquals(2, sent.size());
+    assertEquals(2, sent.get(0).size());
+    assertEquals(2, sent.get(1).size());
+  }
+
+  @Test
+  public void testOnlyAgedBatchesAreSent() throws Exception {
+    BatchAccumulator<Integer> accumulator = new BatchAccumulator<>(100, Long.MAX_VALUE, 200, 1, sent::add);
+
+    accumulator.add(0, 1);
+    accumulator.flushIfNecessary();
+    assertTrue(sent.isEmpty());
+
+    Thread.sleep(250);
+    accumulator.flushIfNecessary();
+    assertEquals(Collections.singletonList(Collections.singletonList(0)), sent);
+  }
+
+  @Test
+  public void testTimerSendsIdleBatch() throws Exception {
+    CountDownLatch delivered = new CountDownLatch(1);
+    BatchAccumulator<Integer> accumulator = new BatchAccumulator<>(100, Long.MAX_VALUE, 50, 1, items -> {
+      sent.add(items);
+      delivered.countDown();
+    });
+    accumulator.start();
+    try {
+      accumulator.add(0, 1);
+      assertTrue(delivered.await(5, TimeUnit.SECONDS));
+      assertEquals(Collections.singletonList(Collections.singletonList(0)), sent);
+    } finally {
+      accumulator.close();
+    }
+  }
+
+  @Test
+  public void testFlushWaitsForRequestsInFlight() throws Exception {
+    CountDownLatch finish = new CountDownLatch(1);
+    AtomicReference<BatchAccumulator<Integer>> holder = new AtomicReference<>();
+    holder.set(new BatchAccumulator<>(1, Long.MAX_VALUE, 60000, 2, items -> {
+      holder.get().acquire();
+      new Thread(() -> {
+        try {
+          finish.await();
+          sent.add(items);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        } finally {
+          holder.get().release();
+        }
+      }).start();
+    }));
+    BatchAccumulator<Integer> accumulator = holder.get();
+
+    accumulator.add(0, 1);
+
+    Thread flusher = new Thread(accumulator::flush);
+    flusher.start();
+    flusher.join(200);
+    assertTrue(flusher.isAlive());
+    assertFalse(sent.contains(Collections.singletonList(0)));
+
+    finish.countDown();
+    flusher.join(5000);
+    assertFalse(flusher.isAlive());
+    assertEquals(Collections.singletonList(Collections.singletonList(0)), sent);
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.util.test;
+
+import org.apache.streams.util.codec.BlockCompressedInputStream;
+import org.apache.streams.util.codec.BlockCompressedOutputStream;
+import org.apache.streams.util.codec.BlockCompressor;
+import org.apache.streams.util.codec.BlockCompressors;
+import org.apache.streams.util.codec.StreamsCodec;
+import org.apache.streams.util.codec.StreamsCodecs;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit Test for StreamsCodecs.
+ */
+public class StreamsCodecsTest {
+
+  private static String lines(int count) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      builder.append("line-").append(i).append('\t').append(new String(new char[i % 300]).replace('\0', 'x')).append('\n');
+    }
+    return builder.toString();
+  }
+
+  private static byte[] compress(StreamsCodec codec, String text) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = codec.compress(bytes)) {
+      out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void testRoundTripAndDetect() throws Exception {
+    String text = lines(2000);
+    for (String name : new String[] {"none", "gzip", "lz4", "snappy", "deflate"}) {
+      StreamsCodec codec = StreamsCodecs.forName(name.toUpperCase());
+      byte[] compressed = compress(codec, text);
+      assertEquals(name, text, IOUtils.toString(codec.decompress(new ByteArrayInputStream(compressed)), StandardCharsets.UTF_8));
+      assertEquals(name, text, IOUtils.toString(StreamsCodecs.detect(new ByteArrayInputStream(compressed)), StandardCharsets.UTF_8));
+      if (codec != StreamsCodecs.NONE) {
+        assertSame(codec, StreamsCodecs.forFile("data-0" + codec.getExtension()));
+        assertSame(codec, StreamsCodecs.forMagic(compressed, compressed.length));
+        assertTrue(compressed.length < text.length());
+      }
+    }
+    assertEquals(null, StreamsCodecs.forFile("data-0.tsv"));
+    assertFalse(StreamsCodecs.GZIP.isSplittable());
+  }
+
+  @Test
+  public void testCorruptBlocksFail() throws Exception {
+    byte[] raw = lines(200).getBytes(StandardCharsets.UTF_8);
+    for (BlockCompressor compressor : new BlockCompressor[] {BlockCompressors.LZ4, BlockCompressors.SNAPPY, BlockCompressors.DEFLATE}) {
+      byte[] compressed = new byte[compressor.maxCompressedLength(raw.length)];
+      int length = compressor.compress(raw, 0, raw.length, compressed, 0);
+      for (int truncated : new int[] {length / 2, length - 1}) {
+        try {
+          compressor.decompress(compressed, 0, truncated, new byte[raw.length], 0, raw.length);
+          fail(compressor.getId() + " decompressed a truncated block");
+        } catch (IOException expected) {
+          // reported, not read out of bounds
+        }
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownName() {
+    StreamsCodecs.forName("zip");
+  }
+
+  @Test
+  public void testRangesReadEveryBlockOnce() throws Exception {
+    String text = lines(3000);
+    for (BlockCompressor compressor : new BlockCompressor[] {BlockCompressors.LZ4, BlockCompressors.SNAPPY, BlockCompressors.DEFLATE}) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (OutputStream out = new BlockCompressedOutputStream(bytes, compressor, 4096)) {
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        // odd sized writes, with flushes between, still cut blocks at line ends
+        for (int off = 0; off < raw.length; off += 1001) {
+          out.write(raw, off, Math.min(1001, raw.length - off));
+          out.flush();
+        }
+      }
+      byte[] file = bytes.toByteArray();
+      byte[] header = BlockCompressedInputStream.readHeader(new ByteArrayInputStream(file));
+      for (int splits : new int[] {1, 2, 7, 50}) {
+        long splitSize = file.length / splits + 1;
+        StringBuilder read = new StringBuilder();
+        for (long start = 0; start < file.length; start += splitSize) {
+          ByteArrayInputStream in = new ByteArrayInputStream(file, (int) start, file.length - (int) start);
+          String range = IOUtils.toString(new BlockCompressedInputStream(header, in, start, start + splitSize), StandardCharsets.UTF_8);
+          assertTrue(range.isEmpty() || range.endsWith("\n"));
+          read.append(range);
+        }
+        assertEquals(compressor.getId() + "/" + splits, text, read.toString());
+      }
+    }
+  }
+
+}